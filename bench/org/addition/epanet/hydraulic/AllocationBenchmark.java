@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2012  Addition, Lda. (addition at addition dot pt)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package org.addition.epanet.hydraulic;
+
+import org.addition.epanet.network.Network;
+import org.addition.epanet.network.io.input.InputParser;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Checks that the hydraulic time steps don't allocate memory once the simulation is warmed up.
+ * <p/>
+ * The simulation is run a few times to let the compiler and the work arrays settle, then the memory allocated by
+ * the thread in each {@link HydraulicSim#simulateSingleStep()} of a few more runs is read from the thread allocation
+ * counter. Logging is turned off, warning and status messages are formatted when published and do allocate, use -L
+ * to keep the default logger level. Exits with status 1 if any measured step allocated memory. Code compiled late
+ * may allocate in a few steps, -T sets the number of allocating steps tolerated over all the measured runs.
+ * <p/>
+ * Usage: AllocationBenchmark network.inp [-D days] [-W warmup runs] [-R measured runs] [-T tolerated steps] [-L] [-V]
+ */
+public class AllocationBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        Logger log = Logger.getLogger(AllocationBenchmark.class.toString());
+        log.setUseParentHandlers(false);
+
+        File inFile = null;
+        int days = 0;
+        int warmup = 50;
+        int runs = 3;
+        int tolerated = 0;
+        boolean logging = false;
+        boolean verbose = false;
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].endsWith(".inp"))
+                inFile = new File(args[i]);
+            else if (args[i].equals("-D") && i + 1 < args.length)
+                days = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-W") && i + 1 < args.length)
+                warmup = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-R") && i + 1 < args.length)
+                runs = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-T") && i + 1 < args.length)
+                tolerated = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-L"))
+                logging = true;
+            else if (args[i].equals("-V"))
+                verbose = true;
+        }
+
+        if (inFile == null || !inFile.exists()) {
+            System.out.println("Usage: AllocationBenchmark network.inp [-D days] [-W warmup runs] [-R measured runs] "
+                    + "[-T tolerated steps] [-L] [-V]");
+            return;
+        }
+
+        java.lang.management.ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        if (!(mx instanceof com.sun.management.ThreadMXBean)
+                || !((com.sun.management.ThreadMXBean) mx).isThreadAllocatedMemorySupported()) {
+            System.out.println("Thread allocation counter not supported by this JVM");
+            return;
+        }
+        com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean) mx;
+        counter.setThreadAllocatedMemoryEnabled(true);
+        long thread = Thread.currentThread().getId();
+
+        if (!logging)
+            log.setLevel(Level.OFF);
+
+        Network net = new Network();
+        InputParser parserINP = InputParser.create(Network.FileType.INP_FILE, log);
+        parserINP.parse(net, inFile);
+        if (days > 0)
+            net.getPropertiesMap().setDuration(days * 86400L);
+
+        // The warm-up runs are measured too, so the measuring loop is also compiled before the measured runs
+        HydraulicSim sim = new HydraulicSim(net, log);
+        for (int run = 0; run < warmup; run++) {
+            measureRun(sim, counter, thread, run, false, false);
+            sim.reset();
+        }
+
+        int allocatingSteps = 0;
+        for (int run = 0; run < runs; run++) {
+            if (run > 0)
+                sim.reset();
+            allocatingSteps += measureRun(sim, counter, thread, run, true, verbose);
+        }
+        if (allocatingSteps > tolerated) {
+            System.out.println(String.format("%d allocating steps, %d tolerated", allocatingSteps, tolerated));
+            System.exit(1);
+        }
+    }
+
+    // Runs the simulation reading the memory allocated in each step, returns the number of allocating steps
+    private static int measureRun(HydraulicSim sim, com.sun.management.ThreadMXBean counter, long thread, int run,
+                                  boolean report, boolean verbose) throws Exception {
+        int steps = 0;
+        long total = 0;
+        long worst = 0;
+        int allocating = 0;
+        long tstep;
+        do {
+            long before = counter.getThreadAllocatedBytes(thread);
+            tstep = sim.simulateSingleStep();
+            long bytes = counter.getThreadAllocatedBytes(thread) - before;
+
+            if (bytes > 0) {
+                allocating++;
+                total += bytes;
+                worst = Math.max(worst, bytes);
+                if (verbose)
+                    System.out.println(String.format("run %d step %5d: %d bytes", run, steps, bytes));
+            }
+            steps++;
+        } while (tstep > 0);
+
+        if (report)
+            System.out.println(String.format("run %d: %d steps, %d allocating, %d bytes, %d bytes per step, "
+                    + "%d bytes max", run, steps, allocating, total, total / steps, worst));
+        return allocating;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2012  Addition, Lda. (addition at addition dot pt)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package org.addition.epanet.hydraulic;
+
+import org.addition.epanet.network.Network;
+import org.addition.epanet.network.io.input.InputParser;
+
+import java.io.DataOutput;
+import java.io.File;
+import java.util.logging.Logger;
+
+/**
+ * Compares the Newton iterations of each time step with and without the {@link FlowPredictor}.
+ * <p/>
+ * Usage: PredictorBenchmark network.inp [-D days] [-V]
+ */
+public class PredictorBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        Logger log = Logger.getLogger(PredictorBenchmark.class.toString());
+        log.setUseParentHandlers(false);
+
+        File inFile = null;
+        int days = 0;
+        boolean verbose = false;
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].endsWith(".inp"))
+                inFile = new File(args[i]);
+            else if (args[i].equals("-D") && i + 1 < args.length)
+                days = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-V"))
+                verbose = true;
+        }
+
+        if (inFile == null || !inFile.exists()) {
+            System.out.println("Usage: PredictorBenchmark network.inp [-D days] [-V]");
+            return;
+        }
+
+        Network net = new Network();
+        InputParser parserINP = InputParser.create(Network.FileType.INP_FILE, log);
+        parserINP.parse(net, inFile);
+        if (days > 0)
+            net.getPropertiesMap().setDuration(days * 86400L);
+
+        HydraulicSim sim = new HydraulicSim(net, log);
+        long[] elapsed = new long[2];
+        int[][] iterations = new int[2][];
+        for (int run = 0; run < 2; run++) {
+            sim.reset();
+            sim.setPredictor(run == 1);
+            long start = System.currentTimeMillis();
+            sim.simulate((DataOutput) null);
+            elapsed[run] = System.currentTimeMillis() - start;
+            iterations[run] = sim.getStepIterations();
+        }
+
+        int steps = Math.min(iterations[0].length, iterations[1].length);
+        int[] total = new int[2];
+        for (int run = 0; run < 2; run++)
+            for (int it : iterations[run])
+                total[run] += it;
+
+        if (verbose) {
+            System.out.println(" step   base  predictor");
+            for (int i = 0; i < steps; i++)
+                System.out.println(String.format("%5d %6d %10d", i, iterations[0][i], iterations[1][i]));
+        }
+
+        System.out.println(String.format("base      : %d steps, %d iterations, %.2f per step, %d ms",
+                iterations[0].length, total[0], total[0] / (double) Math.max(1, iterations[0].length), elapsed[0]));
+        System.out.println(String.format("predictor : %d steps, %d iterations, %.2f per step, %d ms",
+                iterations[1].length, total[1], total[1] / (double) Math.max(1, iterations[1].length), elapsed[1]));
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2012  Addition, Lda. (addition at addition dot pt)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package org.addition.epanet.hydraulic;
+
+import org.addition.epanet.hydraulic.ordering.ApproximateMinimumDegree;
+import org.addition.epanet.hydraulic.ordering.NestedDissection;
+import org.addition.epanet.hydraulic.ordering.NodeOrdering;
+import org.addition.epanet.network.Network;
+import org.addition.epanet.network.io.input.InputParser;
+
+import java.io.File;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Logger;
+
+/**
+ * Compares the node ordering strategies of the sparse matrix, reporting the ordering time, the non-zeros and
+ * fill-in of the factorized matrix and the extended period simulation time with the column, supernodal and
+ * parallel factorizations.
+ * <p/>
+ * Usage: ReorderingBenchmark network.inp
+ */
+public class ReorderingBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        Logger log = Logger.getLogger(ReorderingBenchmark.class.toString());
+        log.setUseParentHandlers(false);
+
+        if (args.length < 1 || !new File(args[0]).exists()) {
+            System.out.println("Usage: ReorderingBenchmark network.inp");
+            return;
+        }
+
+        Network net = new Network();
+        InputParser parserINP = InputParser.create(Network.FileType.INP_FILE, log);
+        parserINP.parse(net, new File(args[0]));
+
+        ForkJoinPool pool = new ForkJoinPool();
+        NodeOrdering[] orderings = {null, new ApproximateMinimumDegree(), new NestedDissection()};
+        for (NodeOrdering ordering : orderings) {
+            HydraulicSim sim = new HydraulicSim(net, log, ordering);
+            SparseMatrix smat = sim.getSparseMatrix();
+
+            long elapsed = simulate(sim);
+            sim.reset();
+            smat.setSupernodal(true);
+            long elapsedSn = simulate(sim);
+            sim.reset();
+            smat.setParallel(pool);
+            long elapsedPar = simulate(sim);
+            smat.setParallel(null);
+
+            System.out.println(String.format("%-4s : ordering %8.2f ms, nnz %8d, fill %8d, ops %12d, " +
+                    "simulation %6d ms, supernodal (%d supernodes) %6d ms, parallel (%d levels) %6d ms",
+                    smat.getOrderingName(), smat.getOrderingTime() / 1e6, smat.getNonZeroCount(),
+                    smat.getFillCount(), smat.getFactorOps(), elapsed, smat.getSupernodeCount(), elapsedSn,
+                    smat.getLevelCount(), elapsedPar));
+        }
+        pool.shutdown();
+    }
+
+    private static long simulate(HydraulicSim sim) throws Exception {
+        File hydFile = File.createTempFile("hydSim", "bin");
+        long start = System.currentTimeMillis();
+        sim.simulate(hydFile);
+        long elapsed = System.currentTimeMillis() - start;
+        hydFile.delete();
+        return elapsed;
+    }
+}
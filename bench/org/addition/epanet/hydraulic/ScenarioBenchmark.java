@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2012  Addition, Lda. (addition at addition dot pt)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package org.addition.epanet.hydraulic;
+
+import org.addition.epanet.network.Network;
+import org.addition.epanet.network.io.input.InputParser;
+import org.addition.epanet.util.ENException;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Measures the scenario throughput of {@link ScenarioRunner} for several thread counts.
+ * <p/>
+ * Usage: ScenarioBenchmark network.inp [-S scenarios] [-Q] [-T threads...]
+ */
+public class ScenarioBenchmark {
+
+    /**
+     * Scenario that scales all the junction demands.
+     */
+    private static class DemandScenario implements ScenarioRunner.Scenario {
+        private final double factor;
+
+        DemandScenario(double factor) {
+            this.factor = factor;
+        }
+
+        public void apply(HydraulicSim sim) throws ENException {
+            sim.setDemandFactor(factor);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Logger log = Logger.getLogger(ScenarioBenchmark.class.toString());
+        log.setUseParentHandlers(false);
+
+        File inFile = null;
+        int count = 32;
+        boolean quality = false;
+        List<Integer> threads = new ArrayList<Integer>();
+
+        int parseMode = 0;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].endsWith(".inp")) {
+                parseMode = 0;
+                inFile = new File(args[i]);
+                continue;
+            } else if (args[i].equals("-S")) {
+                parseMode = 1;
+                continue;
+            } else if (args[i].equals("-T")) {
+                parseMode = 2;
+                continue;
+            } else if (args[i].equals("-Q")) {
+                parseMode = 0;
+                quality = true;
+                continue;
+            }
+
+            if (parseMode == 1)
+                count = Integer.parseInt(args[i]);
+            else if (parseMode == 2)
+                threads.add(Integer.parseInt(args[i]));
+        }
+
+        if (inFile == null || !inFile.exists()) {
+            System.out.println("Usage: ScenarioBenchmark network.inp [-S scenarios] [-Q] [-T threads...]");
+            return;
+        }
+
+        if (threads.size() == 0) {
+            for (int t = 1; t <= Runtime.getRuntime().availableProcessors(); t *= 2)
+                threads.add(t);
+        }
+
+        Network net = new Network();
+        InputParser parserINP = InputParser.create(Network.FileType.INP_FILE, log);
+        parserINP.parse(net, inFile);
+
+        List<DemandScenario> scenarios = new ArrayList<DemandScenario>();
+        for (int i = 0; i < count; i++)
+            scenarios.add(new DemandScenario(0.5 + i / (double) count));
+
+        for (int t : threads) {
+            ScenarioRunner runner = new ScenarioRunner(net, log, t);
+            runner.setQuality(quality);
+
+            long start = System.currentTimeMillis();
+            List<ScenarioRunner.Result> results = runner.run(scenarios);
+            long elapsed = System.currentTimeMillis() - start;
+            runner.shutdown();
+
+            int errors = 0;
+            for (ScenarioRunner.Result result : results) {
+                if (result.getError() != null)
+                    errors++;
+                if (result.getHydFile() != null)
+                    result.getHydFile().delete();
+                if (result.getQualFile() != null)
+                    result.getQualFile().delete();
+            }
+
+            System.out.println(String.format("threads %3d : %d scenarios in %d ms, %.2f scenarios/s, %d errors",
+                    t, count, elapsed, count * 1000.0 / Math.max(1, elapsed), errors));
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2012  Addition, Lda. (addition at addition dot pt)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package org.addition.epanet.hydraulic;
+
+import org.addition.epanet.hydraulic.structures.SimulationLink;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Linear solver that eliminates the tree branches of the junction graph before factoring the looped core.
+ * <p/>
+ * Junctions with a single neighbour junction are removed repeatedly, leaves first, until only the looped core
+ * (and nothing at all for tree shaped zones) is left. Before each solve the equation of every branch junction is
+ * folded onto its attachment junction, which adds the branch demand and flow terms to it, the core is factored
+ * and solved on its own, and the branch heads are recovered back from the attachment heads in linear time.
+ * The elimination is exact, the branch junctions just don't take part in the sparse factorization.
+ */
+public class BranchSolver implements LinearSolver {
+
+    private final int[] seq;        // Branch rows, in elimination order
+    private final int[] parent;     // Attachment row of each branch row, -1 for the last row of a tree
+    private final int[] coeff;      // Coefficient index in Aij of the link to the attachment row
+    private final SparseBlock core;
+
+    /**
+     * Creates the solver for a hydraulic simulation.
+     *
+     * @param sim Hydraulic simulation whose network equations are solved.
+     */
+    public BranchSolver(HydraulicSim sim) {
+        SparseMatrix smat = sim.getSparseMatrix();
+        List<SimulationLink> links = sim.getnLinks();
+        int n = sim.nJunctions.size();
+
+        // Junction graph over the matrix rows
+        int[] xadj = new int[n + 1];
+        for (SimulationLink link : links) {
+            int r1 = smat.getRow(link.getFirst().getIndex());
+            int r2 = smat.getRow(link.getSecond().getIndex());
+            if (r1 < n && r2 < n && r1 != r2) {
+                xadj[r1 + 1]++;
+                xadj[r2 + 1]++;
+            }
+        }
+        for (int i = 0; i < n; i++)
+            xadj[i + 1] += xadj[i];
+        int[] adj = new int[xadj[n]];
+        int[] adjCoeff = new int[xadj[n]];
+        int[] fill = xadj.clone();
+        for (SimulationLink link : links) {
+            int r1 = smat.getRow(link.getFirst().getIndex());
+            int r2 = smat.getRow(link.getSecond().getIndex());
+            if (r1 < n && r2 < n && r1 != r2) {
+                int c = smat.getNdx(link.getIndex());
+                adj[fill[r1]] = r2;
+                adjCoeff[fill[r1]++] = c;
+                adj[fill[r2]] = r1;
+                adjCoeff[fill[r2]++] = c;
+            }
+        }
+
+        // Distinct neighbours, parallel links share the same coefficient
+        int[] deg = new int[n];
+        int[] marker = new int[n];
+        Arrays.fill(marker, -1);
+        for (int i = 0; i < n; i++)
+            for (int t = xadj[i]; t < xadj[i + 1]; t++)
+                if (marker[adj[t]] != i) {
+                    marker[adj[t]] = i;
+                    deg[i]++;
+                }
+
+        // Peel the junctions with at most one neighbour left
+        boolean[] removed = new boolean[n];
+        int[] queue = new int[n];
+        int qt = 0;
+        for (int i = 0; i < n; i++)
+            if (deg[i] <= 1)
+                queue[qt++] = i;
+
+        int[] sq = new int[n];
+        int[] par = new int[n];
+        int[] cf = new int[n];
+        int m = 0;
+        for (int qh = 0; qh < qt; qh++) {
+            int i = queue[qh];
+            removed[i] = true;
+            int p = -1;
+            int c = -1;
+            for (int t = xadj[i]; t < xadj[i + 1]; t++)
+                if (!removed[adj[t]]) {
+                    p = adj[t];
+                    c = adjCoeff[t];
+                    break;
+                }
+            sq[m] = i;
+            par[m] = p;
+            cf[m++] = c;
+            // Rows left without neighbours were queued when they had one
+            if (p >= 0 && --deg[p] == 1)
+                queue[qt++] = p;
+        }
+        seq = Arrays.copyOf(sq, m);
+        parent = Arrays.copyOf(par, m);
+        coeff = Arrays.copyOf(cf, m);
+
+        // Looped core in the sparse matrix elimination order
+        boolean[] inCore = new boolean[n];
+        int[] local = new int[n];
+        int nc = 0;
+        for (int i = 0; i < n; i++)
+            if (!removed[i]) {
+                inCore[i] = true;
+                local[i] = nc++;
+            }
+        int[] rows = new int[nc];
+        for (int i = 0; i < n; i++)
+            if (inCore[i])
+                rows[local[i]] = i;
+        core = new SparseBlock(rows, local, xadj, adj, adjCoeff, inCore);
+    }
+
+    /**
+     * Number of junctions eliminated from the sparse factorization.
+     */
+    public int getBranchCount() {
+        return seq.length;
+    }
+
+    /**
+     * Number of junctions of the looped core.
+     */
+    public int getCoreSize() {
+        return core.size();
+    }
+
+    /**
+     * Number of off-diagonal entries of the core factorization.
+     */
+    public int getCoreNonZeroCount() {
+        return core.getNonZeroCount();
+    }
+
+    public void reset() {
+    }
+
+    public int linsolve(int n, double[] Aii, double[] Aij, double[] B) {
+        // Fold the branch equations onto their attachment rows
+        for (int t = 0; t < seq.length; t++) {
+            int i = seq[t];
+            if (Aii[i] <= 0.0)
+                return i + 1;
+            int p = parent[t];
+            if (p >= 0) {
+                double a = Aij[coeff[t]];
+                double f = a / Aii[i];
+                Aii[p] -= f * a;
+                B[p] -= f * B[i];
+            }
+        }
+
+        int errcode = core.solve(Aii, Aij, B);
+        if (errcode > 0)
+            return errcode;
+
+        // Recover the branch heads from the attachment heads
+        for (int t = seq.length - 1; t >= 0; t--) {
+            int i = seq[t];
+            int p = parent[t];
+            if (p >= 0)
+                B[i] = (B[i] - Aij[coeff[t]] * B[p]) / Aii[i];
+            else
+                B[i] = B[i] / Aii[i];
+        }
+        return 0;
+    }
+}
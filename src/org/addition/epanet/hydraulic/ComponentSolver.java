@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2012  Addition, Lda. (addition at addition dot pt)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package org.addition.epanet.hydraulic;
+
+import org.addition.epanet.hydraulic.structures.SimulationArrays;
+import org.addition.epanet.hydraulic.structures.SimulationLink;
+import org.addition.epanet.network.structures.Link.StatType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Linear solver that splits the network equations into the connected components of the junction graph.
+ * <p/>
+ * Two junctions belong to the same component if they are joined by a path of links that aren't closed. Tanks and
+ * reservoirs are fixed grade nodes outside the system, so zones that only meet at a tank are independent. Each
+ * component gets its own block, with its own symbolic factorization in the elimination order of the sparse matrix,
+ * and the blocks are assembled, factored and solved concurrently on a fork/join pool.
+ * <p/>
+ * Closed links still carry a tiny conductance in the network equations. The coefficients of closed links joining two
+ * components are moved to the right hand side using the heads of the last Newton iteration, which gives the same
+ * solution once the iterations converge.
+ * <p/>
+ * The components are computed again only when a link status change alters which links are closed, and the blocks
+ * are rebuilt only if the components themselves changed.
+ */
+public class ComponentSolver implements LinearSolver {
+
+    /**
+     * Blocks smaller than this are solved together in a single task.
+     */
+    public static final int PARALLEL_GRAIN = 64;
+
+    private final SparseMatrix smat;
+    private final List<SimulationLink> links;
+    private final SimulationArrays arrays;
+    private final ForkJoinPool pool;
+
+    // Junction graph, one entry per junction to junction link
+    private final int[] linkRow1, linkRow2, linkCoeff, linkIndex;
+
+    private boolean[] closed;
+    private int[] compOf;
+    private SparseBlock[] blocks;
+
+    // Closed links between components, moved to the right hand side
+    private int[] crossRow, crossNode, crossCoeff;
+
+    private int decompositions;
+
+    /**
+     * Creates the solver for a hydraulic simulation.
+     *
+     * @param sim  Hydraulic simulation whose network equations are solved.
+     * @param pool Fork/join pool used to solve the blocks, null to solve them sequentially.
+     */
+    public ComponentSolver(HydraulicSim sim, ForkJoinPool pool) {
+        this.smat = sim.getSparseMatrix();
+        this.links = sim.getnLinks();
+        this.arrays = sim.arrays;
+        this.pool = pool;
+
+        int n = sim.nJunctions.size();
+        int m = 0;
+        for (SimulationLink link : links)
+            if (smat.getRow(link.getFirst().getIndex()) < n && smat.getRow(link.getSecond().getIndex()) < n)
+                m++;
+        linkRow1 = new int[m];
+        linkRow2 = new int[m];
+        linkCoeff = new int[m];
+        linkIndex = new int[m];
+        m = 0;
+        for (SimulationLink link : links) {
+            int r1 = smat.getRow(link.getFirst().getIndex());
+            int r2 = smat.getRow(link.getSecond().getIndex());
+            if (r1 < n && r2 < n) {
+                linkRow1[m] = r1;
+                linkRow2[m] = r2;
+                linkCoeff[m] = smat.getNdx(link.getIndex());
+                linkIndex[m++] = link.getIndex();
+            }
+        }
+    }
+
+    /**
+     * Number of components of the last decomposition.
+     */
+    public int getComponentCount() {
+        return blocks != null ? blocks.length : 0;
+    }
+
+    /**
+     * Number of times the components were computed.
+     */
+    public int getDecompositions() {
+        return decompositions;
+    }
+
+    public void reset() {
+        closed = null;
+    }
+
+    public int linsolve(int n, double[] Aii, double[] Aij, double[] B) {
+        decompose(n);
+
+        // Closed links between components
+        for (int t = 0; t < crossRow.length; t++)
+            B[crossRow[t]] -= Aij[crossCoeff[t]] * arrays.head[crossNode[t]];
+
+        final double[] fAii = Aii, fAij = Aij, fB = B;
+        final AtomicInteger error = new AtomicInteger(0);
+        if (pool == null || blocks.length == 1) {
+            for (SparseBlock block : blocks)
+                solveblock(block, fAii, fAij, fB, error);
+        } else {
+            List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+            int lo = 0;
+            int size = 0;
+            for (int c = 0; c < blocks.length; c++) {
+                size += blocks[c].size();
+                if (size >= PARALLEL_GRAIN || c == blocks.length - 1) {
+                    final int from = lo, to = c + 1;
+                    tasks.add(new RecursiveAction() {
+                        protected void compute() {
+                            for (int i = from; i < to; i++)
+                                solveblock(blocks[i], fAii, fAij, fB, error);
+                        }
+                    });
+                    lo = c + 1;
+                    size = 0;
+                }
+            }
+            final List<RecursiveAction> all = tasks;
+            pool.invoke(new RecursiveAction() {
+                protected void compute() {
+                    invokeAll(all);
+                }
+            });
+        }
+        return error.get();
+    }
+
+    // Computes the components of the links that aren't closed, rebuilding the blocks if they changed
+    private void decompose(int n) {
+        boolean changed = closed == null;
+        if (closed == null)
+            closed = new boolean[linkRow1.length];
+        for (int t = 0; t < linkRow1.length; t++) {
+            boolean c = arrays.status[linkIndex[t]].id <= StatType.CLOSED.id;
+            if (c != closed[t]) {
+                closed[t] = c;
+                changed = true;
+            }
+        }
+        if (!changed)
+            return;
+
+        // Union-find over the open links
+        int[] parent = new int[n];
+        for (int i = 0; i < n; i++)
+            parent[i] = i;
+        for (int t = 0; t < linkRow1.length; t++)
+            if (!closed[t]) {
+                int a = find(parent, linkRow1[t]);
+                int b = find(parent, linkRow2[t]);
+                if (a != b)
+                    parent[Math.max(a, b)] = Math.min(a, b);
+            }
+
+        // Components numbered by their first row
+        int[] comp = new int[n];
+        int count = 0;
+        for (int i = 0; i < n; i++) {
+            int r = find(parent, i);
+            comp[i] = r == i ? count++ : comp[r];
+        }
+
+        if (compOf != null && Arrays.equals(comp, compOf))
+            return;
+
+        compOf = comp;
+        build(n, count);
+        decompositions++;
+    }
+
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    // Builds the blocks of the components and the list of links between them
+    private void build(int n, int count) {
+        int[] size = new int[count];
+        for (int i = 0; i < n; i++)
+            size[compOf[i]]++;
+
+        int[][] rows = new int[count][];
+        int[] local = new int[n];
+        for (int c = 0; c < count; c++)
+            rows[c] = new int[size[c]];
+        Arrays.fill(size, 0);
+        for (int i = 0; i < n; i++) {
+            int c = compOf[i];
+            local[i] = size[c];
+            rows[c][size[c]++] = i;
+        }
+
+        // Junction adjacency inside the components, in compressed rows
+        int[] xadj = new int[n + 1];
+        int cross = 0;
+        for (int t = 0; t < linkRow1.length; t++) {
+            if (compOf[linkRow1[t]] == compOf[linkRow2[t]]) {
+                xadj[linkRow1[t] + 1]++;
+                xadj[linkRow2[t] + 1]++;
+            } else
+                cross++;
+        }
+        for (int i = 0; i < n; i++)
+            xadj[i + 1] += xadj[i];
+        int[] adj = new int[xadj[n]];
+        int[] adjCoeff = new int[xadj[n]];
+        int[] fill = xadj.clone();
+        crossRow = new int[2 * cross];
+        crossNode = new int[2 * cross];
+        crossCoeff = new int[2 * cross];
+        cross = 0;
+        boolean[] seen = new boolean[smat.getCoeffsCount()];
+        for (int t = 0; t < linkRow1.length; t++) {
+            int r1 = linkRow1[t], r2 = linkRow2[t];
+            if (compOf[r1] == compOf[r2]) {
+                adj[fill[r1]] = r2;
+                adjCoeff[fill[r1]++] = linkCoeff[t];
+                adj[fill[r2]] = r1;
+                adjCoeff[fill[r2]++] = linkCoeff[t];
+            } else if (!seen[linkCoeff[t]]) {
+                // Parallel links share the same coefficient
+                seen[linkCoeff[t]] = true;
+                crossRow[cross] = r1;
+                crossNode[cross] = smat.getOrder(r2);
+                crossCoeff[cross++] = linkCoeff[t];
+                crossRow[cross] = r2;
+                crossNode[cross] = smat.getOrder(r1);
+                crossCoeff[cross++] = linkCoeff[t];
+            }
+        }
+        crossRow = Arrays.copyOf(crossRow, cross);
+        crossNode = Arrays.copyOf(crossNode, cross);
+        crossCoeff = Arrays.copyOf(crossCoeff, cross);
+
+        SparseBlock[] bl = new SparseBlock[count];
+        for (int c = 0; c < count; c++)
+            bl[c] = new SparseBlock(rows[c], local, xadj, adj, adjCoeff, null);
+        blocks = bl;
+    }
+
+    private static void solveblock(SparseBlock block, double[] Aii, double[] Aij, double[] B, AtomicInteger error) {
+        int row = block.solve(Aii, Aij, B);
+        if (row > 0) {
+            // Report the first failing row of the whole matrix
+            int cur;
+            while (((cur = error.get()) == 0 || row < cur) && !error.compareAndSet(cur, row))
+                ;
+        }
+    }
+}
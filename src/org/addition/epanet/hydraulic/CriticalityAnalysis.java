@@ -0,0 +1,467 @@
+/*
+ * Copyright (C) 2012  Addition, Lda. (addition at addition dot pt)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package org.addition.epanet.hydraulic;
+
+import org.addition.epanet.Constants;
+import org.addition.epanet.hydraulic.structures.SimulationLink;
+import org.addition.epanet.hydraulic.structures.SimulationNode;
+import org.addition.epanet.hydraulic.structures.SimulationPump;
+import org.addition.epanet.hydraulic.structures.SimulationTank;
+import org.addition.epanet.network.FieldsMap;
+import org.addition.epanet.network.Network;
+import org.addition.epanet.network.structures.Link.LinkType;
+import org.addition.epanet.network.structures.Link.StatType;
+import org.addition.epanet.util.ENException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+
+/**
+ * Single link outage (N-1) criticality analysis.
+ * <p/>
+ * Every pipe and valve is closed in turn and the network is solved again at the analysis time. The base solution
+ * is computed once, and each outage restarts the Newton iterations from its heads and flows on a worker
+ * {@link HydraulicSim} sharing the sparse matrix ordering of the base run.
+ * <p/>
+ * Links whose closure splits the network (bridges of the network graph) and leaves one side without any tank or
+ * reservoir are not solved: the demand of the junctions cut off is reported as unmet and the rest of the network
+ * keeps the base solution, since removing demand can only raise its pressures.
+ * <p/>
+ * Case summaries are handed to a {@link Listener} as they complete, so the analysis of large networks doesn't
+ * keep the solution of each case.
+ */
+public class CriticalityAnalysis {
+
+    /**
+     * Receives the summary of each outage, called from the thread that started the analysis.
+     */
+    public static interface Listener {
+        public void caseCompleted(Summary summary);
+    }
+
+    /**
+     * Outage summary, in user units.
+     */
+    public static class Summary {
+        private final String linkId;
+        private boolean deadEnd;
+        private int isolatedNodes;
+        private double unmetDemand;
+        private int lowPressureNodes;
+        private double minPressure = Double.NaN;
+        private String minPressureNode;
+        private int iterations;
+        private boolean converged = true;
+        private Exception error;
+
+        Summary(String linkId) {
+            this.linkId = linkId;
+        }
+
+        public String getLinkId() {
+            return linkId;
+        }
+
+        /**
+         * True if the closure cut off junctions without supply and the network wasn't solved.
+         */
+        public boolean isDeadEnd() {
+            return deadEnd;
+        }
+
+        /**
+         * Junctions cut off from every tank and reservoir.
+         */
+        public int getIsolatedNodes() {
+            return isolatedNodes;
+        }
+
+        /**
+         * Demand of the isolated junctions and of the junctions below the pressure threshold.
+         */
+        public double getUnmetDemand() {
+            return unmetDemand;
+        }
+
+        /**
+         * Isolated junctions plus the junctions below the pressure threshold.
+         */
+        public int getLowPressureNodes() {
+            return lowPressureNodes;
+        }
+
+        /**
+         * Lowest junction pressure, NaN for dead end closures.
+         */
+        public double getMinPressure() {
+            return minPressure;
+        }
+
+        public String getMinPressureNode() {
+            return minPressureNode;
+        }
+
+        public int getIterations() {
+            return iterations;
+        }
+
+        public boolean isConverged() {
+            return converged;
+        }
+
+        /**
+         * Error thrown while solving the outage, null on success.
+         */
+        public Exception getError() {
+            return error;
+        }
+    }
+
+    // Base solution and network graph at the analysis time
+    private static class Base {
+        HydraulicSim.State state;
+        int[] child;        // Node cut off by each bridge link, below it in the search tree, -1 otherwise
+        int[] tin;          // Position of each node in the search order
+        int[] tout;         // End of the subtree of each node in the search order
+        int[] root;         // Search tree root of each node
+        int[] srcPre;       // Prefix sums over the search order: tanks and reservoirs
+        int[] juncPre;      //   junctions
+        double[] demPre;    //   junction demands
+        int[] lowPre;       //   junctions below the threshold in the base solution
+        double[] lowDemPre; //   demand of those junctions
+        int lowTotal;
+        double lowDemTotal;
+    }
+
+    private final Network net;
+    private final Logger log;
+    private final SparseMatrix smat;
+    private final ExecutorService executor;
+    private final ThreadLocal<HydraulicSim> sims;
+    private final HydraulicSim baseSim;
+    private final Map<String, Integer> linkIndex;
+
+    private long time;
+    private double pressureThreshold;
+
+    /**
+     * Creates the criticality analysis.
+     *
+     * @param net     Shared network, must not be changed while the analysis is running.
+     * @param log     Logger reference.
+     * @param threads Number of worker threads.
+     * @throws ENException
+     */
+    public CriticalityAnalysis(Network net, Logger log, int threads) throws ENException {
+        this.net = net;
+        this.log = log;
+        this.baseSim = new HydraulicSim(net, log);
+        this.smat = baseSim.getSparseMatrix();
+        this.executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        this.sims = new ThreadLocal<HydraulicSim>();
+        this.linkIndex = new HashMap<String, Integer>();
+        for (SimulationLink link : baseSim.getnLinks())
+            if (!(link instanceof SimulationPump))
+                linkIndex.put(link.getLink().getId(), link.getIndex());
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * Simulation time of the analysis, in seconds.
+     */
+    public void setTime(long time) {
+        this.time = time;
+    }
+
+    public double getPressureThreshold() {
+        return pressureThreshold;
+    }
+
+    /**
+     * Pressure below which a junction demand is counted as unmet, in user pressure units.
+     */
+    public void setPressureThreshold(double pressureThreshold) {
+        this.pressureThreshold = pressureThreshold;
+    }
+
+    /**
+     * Analyses the closure of every pipe and valve.
+     *
+     * @param listener Receives the case summaries.
+     * @throws ENException
+     * @throws InterruptedException
+     */
+    public void run(Listener listener) throws ENException, InterruptedException {
+        List<String> ids = new ArrayList<String>();
+        for (SimulationLink link : baseSim.getnLinks())
+            if (linkIndex.containsKey(link.getLink().getId()))
+                ids.add(link.getLink().getId());
+        run(ids, listener);
+    }
+
+    /**
+     * Analyses the closure of the given links, waiting for all the cases to finish.
+     *
+     * @param linkIds  Pipe and valve ids.
+     * @param listener Receives the case summaries, in completion order.
+     * @throws ENException
+     * @throws InterruptedException
+     */
+    public void run(List<String> linkIds, Listener listener) throws ENException, InterruptedException {
+        final Base base = prepare();
+
+        CompletionService<Summary> service = new ExecutorCompletionService<Summary>(executor);
+        for (final String id : linkIds)
+            service.submit(new Callable<Summary>() {
+                public Summary call() {
+                    return evaluate(base, id);
+                }
+            });
+
+        for (int i = 0; i < linkIds.size(); i++) {
+            try {
+                listener.caseCompleted(service.take().get());
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Stops the worker threads.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    // Solves the base network and finds the bridges of the network graph
+    private Base prepare() throws ENException {
+        baseSim.reset();
+        if (!baseSim.simulateUntil(time))
+            throw new ENException(1000);
+
+        Base base = new Base();
+        base.state = baseSim.saveState();
+
+        List<SimulationNode> nodes = baseSim.getnNodes();
+        List<SimulationLink> links = baseSim.getnLinks();
+        StatType[] status = baseSim.arrays.status;
+        int nn = nodes.size();
+        int nl = links.size();
+
+        // Adjacency of the links open in the base solution
+        int[] xadj = new int[nn + 1];
+        for (SimulationLink link : links)
+            if (status[link.getIndex()].id > StatType.CLOSED.id) {
+                xadj[link.getFirst().getIndex() + 1]++;
+                xadj[link.getSecond().getIndex() + 1]++;
+            }
+        for (int i = 0; i < nn; i++)
+            xadj[i + 1] += xadj[i];
+        int[] adj = new int[xadj[nn]];
+        int[] adjLink = new int[xadj[nn]];
+        int[] fill = xadj.clone();
+        for (SimulationLink link : links)
+            if (status[link.getIndex()].id > StatType.CLOSED.id) {
+                int n1 = link.getFirst().getIndex();
+                int n2 = link.getSecond().getIndex();
+                adj[fill[n1]] = n2;
+                adjLink[fill[n1]++] = link.getIndex();
+                adj[fill[n2]] = n1;
+                adjLink[fill[n2]++] = link.getIndex();
+            }
+
+        // Iterative depth first search, computing the low links of Tarjan's bridge algorithm
+        int[] tin = new int[nn];
+        int[] tout = new int[nn];
+        int[] low = new int[nn];
+        int[] root = new int[nn];
+        int[] parentLink = new int[nn];
+        int[] next = new int[nn];
+        int[] stack = new int[nn];
+        int[] order = new int[nn];
+        int[] child = new int[nl];
+        Arrays.fill(tin, -1);
+        Arrays.fill(child, -1);
+
+        int count = 0;
+        for (int r = 0; r < nn; r++) {
+            if (tin[r] >= 0)
+                continue;
+            int sp = 0;
+            stack[sp++] = r;
+            parentLink[r] = -1;
+            tin[r] = low[r] = count;
+            order[count++] = r;
+            root[r] = r;
+            next[r] = xadj[r];
+            while (sp > 0) {
+                int v = stack[sp - 1];
+                if (next[v] < xadj[v + 1]) {
+                    int t = next[v]++;
+                    int u = adj[t];
+                    if (adjLink[t] == parentLink[v])
+                        continue;
+                    if (tin[u] < 0) {
+                        parentLink[u] = adjLink[t];
+                        tin[u] = low[u] = count;
+                        order[count++] = u;
+                        root[u] = r;
+                        next[u] = xadj[u];
+                        stack[sp++] = u;
+                    } else if (tin[u] < low[v])
+                        low[v] = tin[u];
+                } else {
+                    sp--;
+                    tout[v] = count;
+                    if (sp > 0) {
+                        int p = stack[sp - 1];
+                        if (low[v] < low[p])
+                            low[p] = low[v];
+                        if (low[v] > tin[p])
+                            child[parentLink[v]] = v;
+                    }
+                }
+            }
+        }
+
+        // Prefix sums over the search order
+        double[] demand = baseSim.arrays.demand;
+        double[] head = baseSim.arrays.head;
+        double pmin = baseSim.fMap.convertUnitToSystem(FieldsMap.Type.PRESSURE, pressureThreshold);
+        base.srcPre = new int[nn + 1];
+        base.juncPre = new int[nn + 1];
+        base.demPre = new double[nn + 1];
+        base.lowPre = new int[nn + 1];
+        base.lowDemPre = new double[nn + 1];
+        for (int i = 0; i < nn; i++) {
+            SimulationNode node = nodes.get(order[i]);
+            boolean tank = node instanceof SimulationTank;
+            boolean lowp = !tank && head[node.getIndex()] - node.getElevation() < pmin;
+            double d = tank ? 0.0 : Math.max(0.0, demand[node.getIndex()]);
+            base.srcPre[i + 1] = base.srcPre[i] + (tank ? 1 : 0);
+            base.juncPre[i + 1] = base.juncPre[i] + (tank ? 0 : 1);
+            base.demPre[i + 1] = base.demPre[i] + d;
+            base.lowPre[i + 1] = base.lowPre[i] + (lowp ? 1 : 0);
+            base.lowDemPre[i + 1] = base.lowDemPre[i] + (lowp ? d : 0.0);
+        }
+        base.lowTotal = base.lowPre[nn];
+        base.lowDemTotal = base.lowDemPre[nn];
+        base.child = child;
+        base.tin = tin;
+        base.tout = tout;
+        base.root = root;
+        return base;
+    }
+
+    private Summary evaluate(Base base, String id) {
+        Summary sum = new Summary(id);
+        try {
+            HydraulicSim sim = sims.get();
+            if (sim == null) {
+                sim = new HydraulicSim(net, log, smat);
+                sims.set(sim);
+            }
+
+            Integer index = linkIndex.get(id);
+            if (index == null)
+                throw new ENException(204);
+            int k = index;
+            SimulationLink link = sim.getnLinks().get(k);
+
+            if (isolate(base, k, sum))
+                return sum;
+
+            sim.restoreState(base.state);
+            if (sim.arrays.status[k].id > StatType.CLOSED.id) {
+                if (link.getType() != LinkType.GPV)
+                    link.setSimSetting(Constants.MISSING);
+                sim.arrays.status[k] = StatType.CLOSED;
+                sim.arrays.flow[k] = Constants.QZERO;
+
+                int iter = sim.resolve();
+                sum.converged = iter >= 0;
+                sum.iterations = Math.abs(iter);
+            }
+
+            double pmin = sim.fMap.convertUnitToSystem(FieldsMap.Type.PRESSURE, pressureThreshold);
+            double unmet = 0.0;
+            double minp = Double.MAX_VALUE;
+            for (SimulationNode node : sim.nJunctions) {
+                double p = sim.arrays.head[node.getIndex()] - node.getElevation();
+                if (p < pmin) {
+                    sum.lowPressureNodes++;
+                    unmet += Math.max(0.0, sim.arrays.demand[node.getIndex()]);
+                }
+                if (p < minp) {
+                    minp = p;
+                    sum.minPressureNode = node.getId();
+                }
+            }
+            sum.unmetDemand = sim.fMap.revertUnit(FieldsMap.Type.FLOW, unmet);
+            if (sum.minPressureNode != null)
+                sum.minPressure = sim.fMap.revertUnit(FieldsMap.Type.PRESSURE, minp);
+        } catch (ENException e) {
+            sum.error = e;
+        }
+        return sum;
+    }
+
+    // Summarizes closures that cut off junctions without supply, returns false if the network must be solved
+    private boolean isolate(Base base, int k, Summary sum) throws ENException {
+        int c = base.child[k];
+        if (c < 0)
+            return false;
+
+        int r = base.root[c];
+        int s0 = base.tin[c], s1 = base.tout[c];
+        int c0 = base.tin[r], c1 = base.tout[r];
+        int srcSub = base.srcPre[s1] - base.srcPre[s0];
+        int srcComp = base.srcPre[c1] - base.srcPre[c0];
+
+        int junc, low;
+        double dem, lowDem;
+        if (srcSub == 0) {
+            junc = base.juncPre[s1] - base.juncPre[s0];
+            dem = base.demPre[s1] - base.demPre[s0];
+            low = base.lowPre[s1] - base.lowPre[s0];
+            lowDem = base.lowDemPre[s1] - base.lowDemPre[s0];
+        } else if (srcComp == srcSub) {
+            // Supply is below the link, the rest of the component is cut off
+            junc = base.juncPre[c1] - base.juncPre[c0] - (base.juncPre[s1] - base.juncPre[s0]);
+            dem = base.demPre[c1] - base.demPre[c0] - (base.demPre[s1] - base.demPre[s0]);
+            low = base.lowPre[c1] - base.lowPre[c0] - (base.lowPre[s1] - base.lowPre[s0]);
+            lowDem = base.lowDemPre[c1] - base.lowDemPre[c0] - (base.lowDemPre[s1] - base.lowDemPre[s0]);
+        } else
+            return false;
+
+        sum.deadEnd = true;
+        sum.isolatedNodes = junc;
+        sum.lowPressureNodes = base.lowTotal - low + junc;
+        sum.unmetDemand = baseSim.fMap.revertUnit(FieldsMap.Type.FLOW, base.lowDemTotal - lowDem + dem);
+        return true;
+    }
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2012  Addition, Lda. (addition at addition dot pt)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package org.addition.epanet.hydraulic;
+
+import org.addition.epanet.hydraulic.structures.SimulationNode;
+import org.addition.epanet.hydraulic.structures.SimulationTank;
+import org.addition.epanet.network.FieldsMap;
+import org.addition.epanet.network.Network;
+import org.addition.epanet.util.ENException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+
+/**
+ * Fire flow analysis of a set of hydrant nodes.
+ * <p/>
+ * The network is solved once per worker thread at the analysis time, and that solution is the starting point of
+ * every hydrant test: the fire flow is added to the hydrant demand and the Newton iterations restart from the
+ * saved heads and flows, which usually converge in a few iterations. As in {@link ScenarioRunner} the sparse
+ * matrix is built once and shared by all the workers.
+ * <p/>
+ * The available flow at the target residual pressure is first estimated with the NFPA 291 relation
+ * Qa = Qf * ((Ps - Pt) / (Ps - Pr))^0.54 and then refined with secant steps on the solved network.
+ */
+public class FireFlowAnalysis {
+
+    /**
+     * Default number of network solutions used to refine the available flow.
+     */
+    public static final int DEFAULT_MAX_SEARCH = 4;
+
+    /**
+     * Fire flow test results of a hydrant, in user units.
+     */
+    public static class Result {
+        private final String nodeId;
+        private double staticPressure;
+        private double fireFlow;
+        private double residualPressure;
+        private double availableFlow;
+        private double minPressure;
+        private String minPressureNode;
+        private int iterations;
+        private boolean converged = true;
+        private Exception error;
+
+        Result(String nodeId) {
+            this.nodeId = nodeId;
+        }
+
+        public String getNodeId() {
+            return nodeId;
+        }
+
+        /**
+         * Hydrant pressure without the fire flow.
+         */
+        public double getStaticPressure() {
+            return staticPressure;
+        }
+
+        public double getFireFlow() {
+            return fireFlow;
+        }
+
+        /**
+         * Hydrant pressure with the fire flow.
+         */
+        public double getResidualPressure() {
+            return residualPressure;
+        }
+
+        /**
+         * Hydrant flow at which the pressure drops to the target pressure.
+         */
+        public double getAvailableFlow() {
+            return availableFlow;
+        }
+
+        /**
+         * Lowest junction pressure with the fire flow.
+         */
+        public double getMinPressure() {
+            return minPressure;
+        }
+
+        public String getMinPressureNode() {
+            return minPressureNode;
+        }
+
+        /**
+         * Newton iterations of all the solutions of this hydrant.
+         */
+        public int getIterations() {
+            return iterations;
+        }
+
+        /**
+         * False if any solution of this hydrant didn't converge.
+         */
+        public boolean isConverged() {
+            return converged;
+        }
+
+        /**
+         * Error thrown while testing the hydrant, null on success.
+         */
+        public Exception getError() {
+            return error;
+        }
+    }
+
+    // Worker simulation solved at the analysis time, kept for the requested time since the solved step may be later
+    private static class Worker {
+        final HydraulicSim sim;
+        final HydraulicSim.State base;
+        final long time;
+
+        Worker(HydraulicSim sim, HydraulicSim.State base, long time) {
+            this.sim = sim;
+            this.base = base;
+            this.time = time;
+        }
+    }
+
+    private final Network net;
+    private final Logger log;
+    private final SparseMatrix smat;
+    private final ExecutorService executor;
+    private final ThreadLocal<Worker> workers;
+    private final Map<String, Integer> nodeIndex;
+
+    private long time;
+    private double fireFlow;
+    private double targetPressure;
+    private int maxSearch = DEFAULT_MAX_SEARCH;
+
+    /**
+     * Creates the fire flow analysis.
+     *
+     * @param net     Shared network, must not be changed while the analysis is running.
+     * @param log     Logger reference.
+     * @param threads Number of worker threads.
+     * @throws ENException
+     */
+    public FireFlowAnalysis(Network net, Logger log, int threads) throws ENException {
+        this.net = net;
+        this.log = log;
+        HydraulicSim sim = new HydraulicSim(net, log);
+        this.smat = sim.getSparseMatrix();
+        this.executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        this.workers = new ThreadLocal<Worker>();
+        this.nodeIndex = new HashMap<String, Integer>();
+        for (SimulationNode node : sim.getnNodes())
+            if (!(node instanceof SimulationTank))
+                nodeIndex.put(node.getId(), node.getIndex());
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * Simulation time of the analysis, in seconds. The hydrants are tested at the first hydraulic step at or after this
+     * time, or at the last step if the simulation ends before it.
+     */
+    public void setTime(long time) {
+        this.time = time;
+    }
+
+    public double getFireFlow() {
+        return fireFlow;
+    }
+
+    /**
+     * Fire flow added to each hydrant, in user flow units.
+     */
+    public void setFireFlow(double fireFlow) {
+        this.fireFlow = fireFlow;
+    }
+
+    public double getTargetPressure() {
+        return targetPressure;
+    }
+
+    /**
+     * Residual pressure used to compute the available flow, in user pressure units.
+     */
+    public void setTargetPressure(double targetPressure) {
+        this.targetPressure = targetPressure;
+    }
+
+    public int getMaxSearch() {
+        return maxSearch;
+    }
+
+    /**
+     * Maximum number of network solutions used to refine the available flow, zero keeps the NFPA estimate.
+     */
+    public void setMaxSearch(int maxSearch) {
+        this.maxSearch = Math.max(0, maxSearch);
+    }
+
+    /**
+     * Tests the hydrants and waits for them to finish.
+     *
+     * @param nodeIds Hydrant junction ids.
+     * @return Hydrant results, in the same order as the ids.
+     * @throws InterruptedException
+     */
+    public List<Result> run(List<String> nodeIds) throws InterruptedException {
+        final long t = time;
+        List<Future<Result>> futures = new ArrayList<Future<Result>>(nodeIds.size());
+        for (final String id : nodeIds)
+            futures.add(executor.submit(new Callable<Result>() {
+                public Result call() {
+                    return testHydrant(id, t);
+                }
+            }));
+
+        List<Result> results = new ArrayList<Result>(nodeIds.size());
+        for (Future<Result> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Stops the worker threads.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private Worker getWorker(long t) throws ENException {
+        Worker worker = workers.get();
+        if (worker != null && worker.time == t)
+            return worker;
+
+        HydraulicSim sim = worker != null ? worker.sim : new HydraulicSim(net, log, smat);
+        if (worker != null)
+            sim.reset();
+        if (!sim.simulateUntil(t))
+            throw new ENException(1000);
+        worker = new Worker(sim, sim.saveState(), t);
+        workers.set(worker);
+        return worker;
+    }
+
+    private Result testHydrant(String id, long t) {
+        Result res = new Result(id);
+        try {
+            Integer index = nodeIndex.get(id);
+            if (index == null)
+                throw new ENException(203);
+
+            Worker worker = getWorker(t);
+            HydraulicSim sim = worker.sim;
+            FieldsMap fMap = sim.fMap;
+            int node = index;
+
+            sim.restoreState(worker.base);
+            res.staticPressure = pressure(sim, node);
+
+            double pf = solve(sim, worker.base, node, fMap.convertUnitToSystem(FieldsMap.Type.FLOW, fireFlow), res);
+            res.fireFlow = fireFlow;
+            res.residualPressure = pf;
+            res.minPressure = Double.MAX_VALUE;
+            for (SimulationNode junc : sim.nJunctions) {
+                double p = pressure(sim, junc.getIndex());
+                if (p < res.minPressure) {
+                    res.minPressure = p;
+                    res.minPressureNode = junc.getId();
+                }
+            }
+
+            res.availableFlow = availableFlow(sim, worker.base, node, res);
+        } catch (ENException e) {
+            res.error = e;
+        }
+        return res;
+    }
+
+    // Hydrant flow, in user units, where the pressure drops to the target pressure
+    private double availableFlow(HydraulicSim sim, HydraulicSim.State base, int node, Result res) throws ENException {
+        double ps = res.staticPressure;
+        double pt = targetPressure;
+        if (ps <= pt)
+            return 0.0;
+
+        double q0 = 0.0, p0 = ps;
+        double q1 = res.fireFlow, p1 = res.residualPressure;
+        if (ps - p1 <= 0.0)
+            return q1;
+
+        double q = q1 * Math.pow((ps - pt) / (ps - p1), 0.54);
+        for (int i = 0; i < maxSearch; i++) {
+            double p = solve(sim, base, node, sim.fMap.convertUnitToSystem(FieldsMap.Type.FLOW, q), res);
+            if (Math.abs(p - pt) <= 1e-3 * Math.max(1.0, Math.abs(pt)))
+                break;
+
+            // Secant step through the new point and the closest of the previous two
+            if (Math.abs(p0 - pt) > Math.abs(p1 - pt)) {
+                q0 = q1;
+                p0 = p1;
+            }
+            q1 = q;
+            p1 = p;
+            if (p1 == p0)
+                break;
+            q = Math.max(0.0, q1 + (pt - p1) * (q1 - q0) / (p1 - p0));
+        }
+        return q;
+    }
+
+    // Solves the network from the base state with an extra demand at the hydrant, returns its pressure
+    private double solve(HydraulicSim sim, HydraulicSim.State base, int node, double flow, Result res) throws ENException {
+        sim.restoreState(base);
+        sim.arrays.demand[node] += flow;
+        int iter = sim.resolve();
+        if (iter < 0) {
+            res.converged = false;
+            iter = -iter;
+        }
+        res.iterations += iter;
+        return pressure(sim, node);
+    }
+
+    private static double pressure(HydraulicSim sim, int node) throws ENException {
+        SimulationNode n = sim.nNodes.get(node);
+        return sim.fMap.revertUnit(FieldsMap.Type.PRESSURE, sim.arrays.head[node] - n.getElevation());
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2012  Addition, Lda. (addition at addition dot pt)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package org.addition.epanet.hydraulic;
+
+import org.addition.epanet.hydraulic.structures.SimulationArrays;
+import org.addition.epanet.hydraulic.structures.SimulationLink;
+import org.addition.epanet.hydraulic.structures.SimulationPump;
+import org.addition.epanet.network.structures.Link.LinkType;
+import org.addition.epanet.network.structures.Link.StatType;
+
+import java.util.List;
+
+/**
+ * Initial flow and head predictor for the Newton iterations of extended period simulations.
+ * <p/>
+ * Keeps the solutions of the last two demand periods and, when the system demand of the new step changes,
+ * extrapolates the flows and junction heads linearly in the system demand:
+ * x = x1 + (x1 - x0) * (D - D1) / (D1 - D0).
+ * Links whose status changed in the last steps, closed links, and pumps or check valves whose flow would reverse
+ * keep the flow of the previous solution.
+ */
+public class FlowPredictor {
+
+    /**
+     * Largest extrapolation factor applied to the last change of the solution.
+     */
+    public static final double MAX_FACTOR = 2.0;
+
+    private final double[] flow0, flow1;
+    private final double[] head0, head1;
+    private final StatType[] status0, status1;
+    private double demand0, demand1;
+    private int count;
+
+    /**
+     * @param nodes Number of nodes.
+     * @param links Number of links.
+     */
+    public FlowPredictor(int nodes, int links) {
+        flow0 = new double[links];
+        flow1 = new double[links];
+        head0 = new double[nodes];
+        head1 = new double[nodes];
+        status0 = new StatType[links];
+        status1 = new StatType[links];
+    }
+
+    /**
+     * Discards the stored solutions.
+     */
+    public void clear() {
+        count = 0;
+    }
+
+    /**
+     * Stores the solution of a time step.
+     *
+     * @param dsystem System wide demand of the step.
+     * @param arrays  Simulation arrays with the solution.
+     */
+    public void record(double dsystem, SimulationArrays arrays) {
+        // Steps of the same demand period replace the last solution, keeping the slope of the last demand change
+        if (count == 0 || dsystem != demand1) {
+            System.arraycopy(flow1, 0, flow0, 0, flow1.length);
+            System.arraycopy(head1, 0, head0, 0, head1.length);
+            System.arraycopy(status1, 0, status0, 0, status1.length);
+            demand0 = demand1;
+            if (count < 2)
+                count++;
+        }
+
+        System.arraycopy(arrays.flow, 0, flow1, 0, flow1.length);
+        System.arraycopy(arrays.head, 0, head1, 0, head1.length);
+        System.arraycopy(arrays.status, 0, status1, 0, status1.length);
+        demand1 = dsystem;
+    }
+
+    /**
+     * Extrapolates the starting flows and junction heads of the next step.
+     *
+     * @param dsystem System wide demand of the next step.
+     * @param arrays  Simulation arrays, holding the previous solution.
+     * @param links   Simulation links.
+     * @return True if the starting point was changed.
+     */
+    public boolean predict(double dsystem, SimulationArrays arrays, List<SimulationLink> links) {
+        if (count < 2 || dsystem == demand1)
+            return false;
+
+        double dd = demand1 - demand0;
+        if (Math.abs(dd) <= 1e-6 * Math.abs(demand1))
+            return false;
+
+        double alpha = Math.max(-MAX_FACTOR, Math.min(MAX_FACTOR, (dsystem - demand1) / dd));
+
+        for (SimulationLink link : links) {
+            int k = link.getIndex();
+            StatType s = arrays.status[k];
+            if (s != status1[k] || s != status0[k] || s.id <= StatType.CLOSED.id)
+                continue;
+
+            double q = arrays.flow[k] + alpha * (flow1[k] - flow0[k]);
+            if ((link instanceof SimulationPump || link.getType() == LinkType.CV) && q * arrays.flow[k] <= 0.0)
+                continue;
+            arrays.flow[k] = q;
+        }
+
+        for (int i : arrays.junctions)
+            arrays.head[i] += alpha * (head1[i] - head0[i]);
+
+        return true;
+    }
+}
@@ -24,24 +24,29 @@ import org.addition.epanet.hydraulic.models.CMModelCalculator;
 import org.addition.epanet.hydraulic.models.DwModelCalculator;
 import org.addition.epanet.hydraulic.models.HWModelCalculator;
 import org.addition.epanet.hydraulic.models.PipeHeadModel;
+import org.addition.epanet.hydraulic.ordering.NodeOrdering;
 import org.addition.epanet.hydraulic.structures.*;
 import org.addition.epanet.network.FieldsMap;
 import org.addition.epanet.network.FieldsMap.Type;
 import org.addition.epanet.network.Network;
 import org.addition.epanet.network.PropertiesMap;
+import org.addition.epanet.network.SimulationOptions;
 import org.addition.epanet.network.io.Keywords;
 import org.addition.epanet.network.structures.*;
 import org.addition.epanet.network.structures.Link.LinkType;
 import org.addition.epanet.network.structures.Link.StatType;
+import org.addition.epanet.util.ChunkedRecords;
 import org.addition.epanet.util.ENException;
 import org.addition.epanet.util.Utilities;
 
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -82,6 +87,51 @@ public class HydraulicSim {
         public double relerr;
     }
 
+    /**
+     * Result holders reused at every time step.
+     */
+    private final NetSolveStep solveStep = new NetSolveStep(0, 0);
+    private final SimulationRule.Result ruleStep = new SimulationRule.Result(0, 0);
+
+    /**
+     * Snapshot of the hydraulic state of a simulation, used to restart the Newton iterations from a solved network.
+     */
+    public static class State {
+        private final long htime;
+        private final double[] head;
+        private final double[] demand;
+        private final double[] emitter;
+        private final double[] flow;
+        private final StatType[] status;
+        private final StatType[] oldStatus;
+        private final double[] setting;
+
+        private State(HydraulicSim sim) {
+            SimulationArrays arrays = sim.arrays;
+            htime = sim.Htime;
+            head = arrays.head.clone();
+            demand = arrays.demand.clone();
+            flow = arrays.flow.clone();
+            status = arrays.status.clone();
+            emitter = new double[head.length];
+            for (SimulationNode node : sim.nNodes)
+                emitter[node.getIndex()] = node.getSimEmitter();
+            oldStatus = new StatType[flow.length];
+            setting = new double[flow.length];
+            for (SimulationLink link : sim.nLinks) {
+                oldStatus[link.getIndex()] = link.getSimOldStatus();
+                setting[link.getIndex()] = link.getSimSetting();
+            }
+        }
+
+        /**
+         * Simulation time of the snapshot.
+         */
+        public long getTime() {
+            return htime;
+        }
+    }
+
     /**
      * Event logger reference.
      */
@@ -98,6 +148,10 @@ public class HydraulicSim {
 
     protected List<SimulationControl> nControls;
     protected List<SimulationRule> nRules;
+    protected RuleIndex ruleIndex;
+    protected EventScheduler events;
+    protected AwareStep.Layout outputLayout;
+    protected int outputCompression;
     protected Curve[] nCurves;
 
 
@@ -111,6 +165,11 @@ public class HydraulicSim {
      */
     protected PropertiesMap pMap;
 
+    /**
+     * Simulation options snapshot, taken from the properties when the simulation starts.
+     */
+    protected SimulationOptions opts;
+
     /**
      * Energy cost time pattern.
      */
@@ -121,11 +180,31 @@ public class HydraulicSim {
      */
     protected SparseMatrix smat;
 
+    /**
+     * Linear system solver, the sparse matrix direct solver by default.
+     */
+    protected LinearSolver solver;
+
+    /**
+     * Node ordering strategy of the sparse matrix, null for the original minimum degree ordering.
+     */
+    protected NodeOrdering ordering;
+
+    /**
+     * Flat array storage of the simulation state and topology.
+     */
+    protected SimulationArrays arrays;
+
     /**
      * Linear system variable storage class.
      */
     protected LSVariables lsv;
 
+    /**
+     * Linear system variables saved before the valve coefficients are added, to recover from a bad valve.
+     */
+    private LSVariables lsvSave;
+
     /**
      * Current report time.
      */
@@ -141,6 +220,42 @@ public class HydraulicSim {
      */
     protected double Dsystem;
 
+    /**
+     * Demand multiplier applied on top of the network demand multiplier, restored to 1 by {@link #reset()}.
+     */
+    protected double Dfactor = 1.0;
+
+    /**
+     * Junction demands compiled into primitive arrays.
+     */
+    protected DemandSchedule demands;
+
+    /**
+     * Precompute the junction demands of a full pattern cycle.
+     */
+    protected boolean demandMatrix;
+
+    /**
+     * Initial flow predictor of the Newton iterations, null if disabled.
+     */
+    protected FlowPredictor predictor;
+
+    /**
+     * Cache of converged solutions of repeating states, null if disabled.
+     */
+    protected SolutionCache cache;
+
+    /**
+     * Newton iterations of each time step of the current run.
+     */
+    protected int[] stepIterations = new int[64];
+    protected int steps;
+
+    // Factorization of the last failed solve and changed rows, reused by resolveBadValve
+    private double[] badValveLii;
+    private double[] badValveLij;
+    private final int[] badValveRows = new int[2];
+
     /**
      * Output stream of the hydraulic solution.
      */
@@ -185,6 +300,43 @@ public class HydraulicSim {
         createSimulationNetwork(tmpNodes, tmpLinks, net);
     }
 
+    /**
+     * Init hydraulic simulation reusing the linear solver ordering of another simulation of the same network.
+     * <p/>
+     * The sparse matrix is only read during the simulation, so it can be shared by simulations running in
+     * different threads.
+     *
+     * @param net  Hydraulic network reference.
+     * @param log  Logger reference.
+     * @param smat Sparse matrix built for the same network.
+     * @throws ENException
+     */
+    public HydraulicSim(Network net, Logger log, SparseMatrix smat) throws ENException {
+        List<Node> tmpNodes = new ArrayList<Node>(net.getNodes());
+        List<Link> tmpLinks = new ArrayList<Link>(net.getLinks());
+        running = false;
+        logger = log;
+        this.smat = smat;
+        createSimulationNetwork(tmpNodes, tmpLinks, net);
+    }
+
+    /**
+     * Init hydraulic simulation, ordering the linear system with the given node ordering strategy.
+     *
+     * @param net      Hydraulic network reference.
+     * @param log      Logger reference.
+     * @param ordering Node ordering strategy.
+     * @throws ENException
+     */
+    public HydraulicSim(Network net, Logger log, NodeOrdering ordering) throws ENException {
+        List<Node> tmpNodes = new ArrayList<Node>(net.getNodes());
+        List<Link> tmpLinks = new ArrayList<Link>(net.getLinks());
+        running = false;
+        logger = log;
+        this.ordering = ordering;
+        createSimulationNetwork(tmpNodes, tmpLinks, net);
+    }
+
     protected void createSimulationNetwork(List<Node> tmpNodes, List<Link> tmpLinks, Network net) throws ENException {
 
         nNodes = new ArrayList<SimulationNode>();
@@ -196,9 +348,15 @@ public class HydraulicSim {
         nRules = new ArrayList<SimulationRule>();
 
 
+        int nJuncs = 0;
+        for (Node n : tmpNodes)
+            if (!(n instanceof Tank))
+                nJuncs++;
+        arrays = new SimulationArrays(tmpNodes.size(), tmpLinks.size(), nJuncs);
+
         Map<String, SimulationNode> nodesById = new HashMap<String, SimulationNode>();
         for (Node n : tmpNodes) {
-            SimulationNode node = SimulationNode.createIndexedNode(n, nNodes.size());
+            SimulationNode node = SimulationNode.createIndexedNode(n, nNodes.size(), arrays);
             nNodes.add(node);
             nodesById.put(node.getId(), node);
 
@@ -209,7 +367,7 @@ public class HydraulicSim {
         }
 
         for (Link l : tmpLinks) {
-            SimulationLink link = SimulationLink.createIndexedLink(nodesById, l, nLinks.size());
+            SimulationLink link = SimulationLink.createIndexedLink(nodesById, l, nLinks.size(), arrays);
             nLinks.add(link);
 
             if (link instanceof SimulationValve)
@@ -222,23 +380,42 @@ public class HydraulicSim {
             SimulationRule rule = new SimulationRule(r, nLinks, nNodes);//, tmpLinks, tmpNodes);
             nRules.add(rule);
         }
+        ruleIndex = new RuleIndex(nRules);
 
         nCurves = net.getCurves().toArray(new Curve[net.getCurves().size()]);
         nControls = new ArrayList<SimulationControl>();
 
         for (Control ctr : net.getControls())
             nControls.add(new SimulationControl(nNodes, nLinks, ctr));
+        events = new EventScheduler(nTanks, nControls);
 
 
         fMap = net.getFieldsMap();
         pMap = net.getPropertiesMap();
-        Epat = net.getPattern(pMap.getEpatId());
-        smat = new SparseMatrix(nNodes, nLinks, nJunctions.size());
+        opts = new SimulationOptions(pMap);
+        Epat = net.getPattern(opts.getEpatId());
+        if (smat == null)
+            smat = new SparseMatrix(nNodes, nLinks, nJunctions.size(), ordering);
+        if (solver == null)
+            solver = smat;
+        arrays.compile(nNodes, nLinks, smat);
+        demands = new DemandSchedule(nJunctions);
         lsv = new LSVariables(nNodes.size(), smat.getCoeffsCount());
+        if (nValves.size() > 0)
+            lsvSave = new LSVariables(nNodes.size(), smat.getCoeffsCount());
 
+        initSimulation();
+    }
+
+    /**
+     * Init the simulation state: headloss model, initial link flows and status, emitters, pump energy and clocks.
+     *
+     * @throws ENException
+     */
+    private void initSimulation() throws ENException {
         Htime = 0;
 
-        switch (pMap.getFormflag()) {
+        switch (opts.getFormflag()) {
 
             case HW:
                 pHLModel = new HWModelCalculator();
@@ -286,7 +463,229 @@ public class HydraulicSim {
         }
 
         Htime = 0;
-        Rtime = pMap.getRstep();
+        Rtime = opts.getRstep();
+    }
+
+    /**
+     * Restore the simulation to its initial state so the same network can be simulated again, reusing the
+     * simulation structures and the sparse matrix ordering.
+     * <p/>
+     * Changes made since the previous run to the network demands, link status and settings, tank initial levels
+     * and simulation properties are taken into account. Changes to the network topology are not, a new
+     * simulation must be created for those. Tank levels set by {@link #setTankInitialHead} are cleared.
+     *
+     * @throws ENException
+     */
+    public void reset() throws ENException {
+        if (running)
+            throw new IllegalStateException("Already running");
+
+        for (SimulationNode node : nNodes)
+            node.reset();
+
+        for (SimulationLink link : nLinks)
+            link.reset();
+
+        ruleIndex.reset();
+        events.reset();
+        simulationOutput = null;
+        Dfactor = 1.0;
+        steps = 0;
+        if (predictor != null)
+            predictor.clear();
+        solver.reset();
+        opts = new SimulationOptions(pMap);
+        arrays.compile(nNodes, nLinks, smat);
+        demands = new DemandSchedule(nJunctions);
+        initSimulation();
+    }
+
+    /**
+     * Runs the simulation without saving results until the hydraulic time reaches the given time, leaving the
+     * network solved at the first time step at or after that time, or at the last step if the simulation ends first.
+     *
+     * @param time Simulation time, in seconds.
+     * @return False if the simulation halted before reaching the time.
+     * @throws ENException
+     */
+    public boolean simulateUntil(long time) throws ENException {
+        if (running)
+            throw new IllegalStateException("Already running");
+
+        simulationOutput = null;
+        try {
+            while (true) {
+                if (!runHyd())
+                    return false;
+                if (Htime >= time || nextHyd() <= 0)
+                    return true;
+            }
+        } catch (IOException e) {
+            throw new ENException(1000);
+        }
+    }
+
+    /**
+     * Saves the current hydraulic state.
+     */
+    public State saveState() {
+        return new State(this);
+    }
+
+    /**
+     * Restores a hydraulic state saved from this simulation, or from another simulation of the same network.
+     */
+    public void restoreState(State state) {
+        Htime = state.htime;
+        ruleIndex.reset();
+        events.reset();
+        if (predictor != null)
+            predictor.clear();
+        System.arraycopy(state.head, 0, arrays.head, 0, state.head.length);
+        System.arraycopy(state.demand, 0, arrays.demand, 0, state.demand.length);
+        System.arraycopy(state.flow, 0, arrays.flow, 0, state.flow.length);
+        System.arraycopy(state.status, 0, arrays.status, 0, state.status.length);
+        for (SimulationNode node : nNodes)
+            node.setSimEmitter(state.emitter[node.getIndex()]);
+        for (SimulationLink link : nLinks) {
+            link.setSimOldStatus(state.oldStatus[link.getIndex()]);
+            link.setSimSetting(state.setting[link.getIndex()]);
+        }
+    }
+
+    /**
+     * Solves the network equations again from the current state, keeping the demands and the control actions.
+     *
+     * @return Newton iterations, negative if the solution didn't converge.
+     * @throws ENException
+     */
+    public int resolve() throws ENException {
+        // Emitter flows were added to the demands by the last solution
+        for (SimulationNode node : nJunctions)
+            node.setSimDemand(node.getSimDemand() - node.getSimEmitter());
+
+        NetSolveStep nss = netSolve();
+        return nss.relerr <= opts.getHacc() ? nss.iter : -nss.iter;
+    }
+
+    /**
+     * Reuses the converged solutions of repeating hydraulic states, see {@link SolutionCache}.
+     *
+     * @param cache Solution cache, null to disable it.
+     */
+    public void setSolutionCache(SolutionCache cache) {
+        if (running)
+            throw new IllegalStateException("Already running");
+        this.cache = cache;
+    }
+
+    public SolutionCache getSolutionCache() {
+        return cache;
+    }
+
+    /**
+     * Writes the hydraulic results in the compact format, with the variables and precision of a layout.
+     *
+     * @param layout Variables written at each step, null for the Aware compatible format.
+     */
+    public void setOutputLayout(AwareStep.Layout layout) {
+        if (running)
+            throw new IllegalStateException("Already running");
+        this.outputLayout = layout;
+    }
+
+    public AwareStep.Layout getOutputLayout() {
+        return outputLayout;
+    }
+
+    /**
+     * Writes the hydraulic results in the compressed format, in chunks of a number of steps. The steps are written
+     * with the output layout, or with all the hydraulic variables as doubles if there's none.
+     *
+     * @param chunkSteps Steps of each compressed chunk, 0 to write the steps uncompressed. Chunks are limited to
+     *                   {@link ChunkedRecords#MAX_CHUNK_SIZE} bytes.
+     */
+    public void setOutputCompression(int chunkSteps) {
+        if (running)
+            throw new IllegalStateException("Already running");
+        if (chunkSteps < 0)
+            throw new IllegalArgumentException("Chunks can't have a negative size");
+        this.outputCompression = chunkSteps;
+    }
+
+    public int getOutputCompression() {
+        return outputCompression;
+    }
+
+    /**
+     * Enables the predictor of the initial flows and heads of each time step, see {@link FlowPredictor}.
+     */
+    public void setPredictor(boolean enable) {
+        if (running)
+            throw new IllegalStateException("Already running");
+        predictor = enable ? new FlowPredictor(nNodes.size(), nLinks.size()) : null;
+    }
+
+    public boolean isPredictor() {
+        return predictor != null;
+    }
+
+    /**
+     * Newton iterations of each time step solved since the last reset.
+     */
+    public int[] getStepIterations() {
+        return Arrays.copyOf(stepIterations, steps);
+    }
+
+    /**
+     * Set a demand multiplier for this simulation, applied on top of the network demand multiplier.
+     *
+     * @param factor Demand multiplier.
+     */
+    public void setDemandFactor(double factor) {
+        Dfactor = factor;
+    }
+
+    public double getDemandFactor() {
+        return Dfactor;
+    }
+
+    /**
+     * Precompute the junction demands of a full pattern cycle into a period by junction matrix, instead of
+     * computing them on each pattern period. Only used if the matrix fits in {@link DemandSchedule#MAX_MATRIX_SIZE}.
+     *
+     * @param value True to precompute the demands.
+     */
+    public void setDemandMatrix(boolean value) {
+        demandMatrix = value;
+        if (!value)
+            demands.clearMatrix();
+    }
+
+    public boolean isDemandMatrix() {
+        return demandMatrix;
+    }
+
+    /**
+     * Set the initial water level of a tank for the current run, must be called before the run starts. The level is
+     * kept by this simulation, the tank of the network isn't changed, and it's cleared by {@link #reset()}, which
+     * restores the initial level of the network tank.
+     *
+     * @param id Tank id.
+     * @param h0 Initial tank head.
+     * @throws ENException If the tank is not found or the head is out of the tank bounds.
+     */
+    public void setTankInitialHead(String id, double h0) throws ENException {
+        for (SimulationTank tank : nTanks) {
+            if (tank.getId().equals(id)) {
+                if (tank.isReservoir() || h0 < tank.getHmin() || h0 > tank.getHmax())
+                    throw new ENException(225, id);
+
+                tank.setInitialLevel(fMap, h0);
+                return;
+            }
+        }
+        throw new ENException(203);
     }
 
     /**
@@ -317,6 +716,15 @@ public class HydraulicSim {
 
     }
 
+    /**
+     * Runs a hydraulic time step without saving results. Once the simulation is warmed up a step doesn't allocate
+     * memory, except for the warning and status messages published by the logger and the growth of the iteration
+     * statistics, checked by the AllocationBenchmark of the bench source folder.
+     *
+     * @return Length of the time step, 0 at the end of the simulation.
+     * @throws ENException
+     * @throws IOException
+     */
     public long simulateSingleStep() throws ENException, IOException {
 
         if (!running)
@@ -329,18 +737,18 @@ public class HydraulicSim {
 
         long hydstep = 0;
 
-        if (Htime < pMap.getDuration())
+        if (Htime < opts.getDuration())
             hydstep = timeStep();
 
-        if (pMap.getDuration() == 0)
-            SimulationPump.stepEnergy(pMap, fMap, Epat, nPumps, Htime, 0);
-        else if (Htime < pMap.getDuration())
-            SimulationPump.stepEnergy(pMap, fMap, Epat, nPumps, Htime, hydstep);
+        if (opts.getDuration() == 0)
+            SimulationPump.stepEnergy(opts, fMap, Epat, nPumps, Htime, 0);
+        else if (Htime < opts.getDuration())
+            SimulationPump.stepEnergy(opts, fMap, Epat, nPumps, Htime, hydstep);
 
-        if (Htime < pMap.getDuration()) {
+        if (Htime < opts.getDuration()) {
             Htime += hydstep;
             if (Htime >= Rtime)
-                Rtime += pMap.getRstep();
+                Rtime += opts.getRstep();
         }
 
         long tstep = hydstep;
@@ -368,8 +776,11 @@ public class HydraulicSim {
         running = true;
 
         simulationOutput = out;
+        ChunkedRecords.Writer chunks = null;
         if (simulationOutput != null) {
-            AwareStep.writeHeader(out, this, pMap.getRstart(), pMap.getRstep(), pMap.getDuration());
+            AwareStep.writeHeader(out, this, opts.getRstart(), opts.getRstep(), opts.getDuration());
+            if (outputCompression > 0)
+                simulationOutput = new DataOutputStream(chunks = AwareStep.compressSteps(out, this));
         }
 //        writeHeader(simulationOutput);
         try {
@@ -384,6 +795,9 @@ public class HydraulicSim {
                     halted = true;
             }
             while (running && tstep > 0);
+
+            if (chunks != null)
+                chunks.finish();
         } catch (IOException e) {
             e.printStackTrace();
             throw new ENException(1000);
@@ -418,17 +832,31 @@ public class HydraulicSim {
         computeDemands();
         computeControls();
 
+        if (predictor != null)
+            predictor.predict(Dsystem, arrays, nLinks);
+
         // Solve network hydraulic equations
-        NetSolveStep nss = netSolve();
+        NetSolveStep nss = cache != null ? cachedSolve() : netSolve();
+
+        if (steps == stepIterations.length)
+            stepIterations = Arrays.copyOf(stepIterations, 2 * steps);
+        stepIterations[steps++] = nss.iter;
+
+        if (predictor != null) {
+            if (nss.relerr <= opts.getHacc())
+                predictor.record(Dsystem, arrays);
+            else
+                predictor.clear();
+        }
 
         // Report new status & save results
-        if (pMap.getStatflag() != PropertiesMap.StatFlag.FALSE)
+        if (opts.getStatflag() != PropertiesMap.StatFlag.FALSE)
             logHydStat(nss);
 
         // If system unbalanced and no extra trials
         // allowed, then activate the Haltflag.
-        if (nss.relerr > pMap.getHacc() && pMap.getExtraIter() == -1) {
-            Htime = pMap.getDuration();
+        if (nss.relerr > opts.getHacc() && opts.getExtraIter() == -1) {
+            Htime = opts.getDuration();
             return false;
         }
 
@@ -444,17 +872,19 @@ public class HydraulicSim {
      * @throws ENException
      */
     protected NetSolveStep netSolve() throws ENException {
-        NetSolveStep ret = new NetSolveStep(0, 0);
+        NetSolveStep ret = solveStep;
+        ret.iter = 0;
+        ret.relerr = 0;
 
-        int nextCheck = pMap.getCheckFreq();
+        int nextCheck = opts.getCheckFreq();
 
-        if (pMap.getStatflag() == PropertiesMap.StatFlag.FULL)
+        if (opts.getStatflag() == PropertiesMap.StatFlag.FULL)
             logRelErr(ret);
 
-        int maxTrials = pMap.getMaxIter();
+        int maxTrials = opts.getMaxIter();
 
-        if (pMap.getExtraIter() > 0)
-            maxTrials += pMap.getExtraIter();
+        if (opts.getExtraIter() > 0)
+            maxTrials += opts.getExtraIter();
 
         double relaxFactor = 1.0;
         int errcode = 0;
@@ -469,28 +899,32 @@ public class HydraulicSim {
             //dumpMatrixCoeffs(new File("dumpMatrix.txt"),true);
 
             // Solution for H is returned in F from call to linsolve().
-            errcode = smat.linsolve(nJunctions.size(), lsv.getAiiVector(), lsv.getAijVector(), lsv.getRHSCoeffs());
+            errcode = solver.linsolve(nJunctions.size(), lsv.getAiiVector(), lsv.getAijVector(), lsv.getRHSCoeffs());
 
             // Ill-conditioning problem
-            if (errcode > 0) {
-                // If control valve causing problem, fix its status & continue,
-                // otherwise end the iterations with no solution.
-                if (SimulationValve.checkBadValve(pMap, logger, nValves, Htime, smat.getOrder(errcode)))
-                    continue;
-                else break;
+            // If control valve causing problem, fix its status & solve again,
+            // otherwise end the iterations with no solution.
+            while (errcode > 0) {
+                SimulationValve valve = SimulationValve.fixBadValve(opts, logger, nValves, Htime, smat.getOrder(errcode - 1));
+                if (valve == null)
+                    break;
+                errcode = resolveBadValve(valve, errcode);
             }
+            if (errcode > 0)
+                break;
 
             // Update current solution.
             // (Row[i] = row of solution matrix corresponding to node i).
-            for (SimulationNode node : nJunctions) {
-                node.setSimHead(lsv.getRHSCoeff(smat.getRow(node.getIndex()))); // Update heads
+            double[] F = lsv.getRHSCoeffs();
+            for (int i : arrays.junctions) {
+                arrays.head[i] = F[arrays.row[i]]; // Update heads
             }
 
             // Update flows
             ret.relerr = newFlows(relaxFactor);
 
             // Write convergence error to status report if called for
-            if (pMap.getStatflag() == PropertiesMap.StatFlag.FULL)
+            if (opts.getStatflag() == PropertiesMap.StatFlag.FULL)
                 logRelErr(ret);
 
             relaxFactor = 1.0;
@@ -498,19 +932,19 @@ public class HydraulicSim {
             boolean valveChange = false;
 
             //  Apply solution damping & check for change in valve status
-            if (pMap.getDampLimit() > 0.0) {
-                if (ret.relerr <= pMap.getDampLimit()) {
+            if (opts.getDampLimit() > 0.0) {
+                if (ret.relerr <= opts.getDampLimit()) {
                     relaxFactor = 0.6;
-                    valveChange = SimulationValve.valveStatus(fMap, pMap, logger, nValves);
+                    valveChange = SimulationValve.valveStatus(fMap, opts, logger, nValves);
                 }
             } else
-                valveChange = SimulationValve.valveStatus(fMap, pMap, logger, nValves);
+                valveChange = SimulationValve.valveStatus(fMap, opts, logger, nValves);
 
             // Check for convergence
-            if (ret.relerr <= pMap.getHacc()) {
+            if (ret.relerr <= opts.getHacc()) {
 
                 //  We have convergence. Quit if we are into extra iterations.
-                if (ret.iter > pMap.getMaxIter())
+                if (ret.iter > opts.getMaxIter())
                     break;
 
                 //  Quit if no status changes occur.
@@ -519,33 +953,35 @@ public class HydraulicSim {
                 if (valveChange)
                     statChange = true;
 
-                if (SimulationLink.linkStatus(pMap, fMap, logger, nLinks))
+                if (SimulationLink.linkStatus(opts, fMap, logger, nLinks))
                     statChange = true;
 
-                if (SimulationControl.pSwitch(logger, pMap, fMap, nControls))
+                if (SimulationControl.pSwitch(logger, opts, fMap, nControls))
                     statChange = true;
 
                 if (!statChange)
                     break;
 
                 //  We have a status change so continue the iterations
-                nextCheck = ret.iter + pMap.getCheckFreq();
-            } else if (ret.iter <= pMap.getMaxCheck() && ret.iter == nextCheck) {
+                nextCheck = ret.iter + opts.getCheckFreq();
+            } else if (ret.iter <= opts.getMaxCheck() && ret.iter == nextCheck) {
                 // No convergence yet. See if its time for a periodic status
                 // check  on pumps, CV's, and pipes connected to tanks.
-                SimulationLink.linkStatus(pMap, fMap, logger, nLinks);
-                nextCheck += pMap.getCheckFreq();
+                SimulationLink.linkStatus(opts, fMap, logger, nLinks);
+                nextCheck += opts.getCheckFreq();
             }
 
             ret.iter++;
         }
 
 
-        for (SimulationNode node : nJunctions)
+        for (int i = 0; i < nJunctions.size(); i++) {
+            SimulationNode node = nJunctions.get(i);
             node.setSimDemand(node.getSimDemand() + node.getSimEmitter());
+        }
 
         if (errcode > 0) {
-            logHydErr(smat.getOrder(errcode));
+            logHydErr(smat.getOrder(errcode - 1));
             errcode = 110;
             return ret;
         }
@@ -556,6 +992,25 @@ public class HydraulicSim {
         return ret;
     }
 
+    // Solves the network equations, reusing the cached solution of the current state
+    private NetSolveStep cachedSolve() throws ENException {
+        long p = (Htime + opts.getPstart()) / opts.getPstep();
+        if (demands.getCycle() <= DemandSchedule.MAX_MATRIX_SIZE)
+            p %= demands.getCycle();
+
+        if (cache.load(p, opts.getDmult() * Dfactor, arrays, nTanks, nLinks, nJunctions, opts.getHtol())
+                && !cache.isStrict()) {
+            solveStep.iter = 0;
+            solveStep.relerr = 0;
+            return solveStep;
+        }
+
+        NetSolveStep nss = netSolve();
+        if (nss.relerr <= opts.getHacc())
+            cache.store(arrays, nJunctions, nss.iter);
+        return nss;
+    }
+
 
     /**
      * Computes coefficients of linearized network eqns.
@@ -563,15 +1018,57 @@ public class HydraulicSim {
     void newCoeffs() throws ENException {
         lsv.clear();
 
-        for (SimulationLink link : nLinks) {
-            link.setSimInvHeadLoss(0);
-            link.setSimFlowCorrection(0);
+        Arrays.fill(arrays.invHeadLoss, 0);
+        Arrays.fill(arrays.flowCorrection, 0);
+
+        SimulationLink.computeMatrixCoeffs(fMap, opts, pHLModel, arrays, nCurves, lsv);         // Compute link coeffs.
+        SimulationNode.computeEmitterCoeffs(opts, nJunctions, smat, lsv);                       // Compute emitter coeffs.
+        SimulationNode.computeNodeCoeffs(arrays, lsv);                                          // Compute node coeffs.
+        if (lsvSave != null)
+            lsv.copyTo(lsvSave);
+        SimulationValve.computeMatrixCoeffs(opts, lsv, smat, nValves);                          // Compute valve coeffs.
+    }
+
+    /**
+     * Solves the linear system again after the status of a bad valve was fixed. Only the valve coefficients are
+     * added again to the coefficients saved by newCoeffs, and with the direct solver the columns of the failed
+     * factorization that don't depend on the valve rows are reused.
+     *
+     * @param valve   Valve whose status was fixed.
+     * @param errcode Ill-conditioned equation of the failed solve.
+     * @return 0 if solution found, or index of equation causing system to be ill-conditioned.
+     */
+    private int resolveBadValve(SimulationValve valve, int errcode) throws ENException {
+        int n = nJunctions.size();
+        boolean partial = solver == smat && !smat.isSupernodal() && smat.getParallel() == null;
+
+        double[] Lii = badValveLii;
+        double[] Lij = badValveLij;
+        if (partial) {
+            Lii = copyOf(lsv.getAiiVector(), Lii);
+            Lij = copyOf(lsv.getAijVector(), Lij);
+            badValveLii = Lii;
+            badValveLij = Lij;
         }
 
-        SimulationLink.computeMatrixCoeffs(fMap, pMap, pHLModel, nLinks, nCurves, smat, lsv);   // Compute link coeffs.
-        SimulationNode.computeEmitterCoeffs(pMap, nJunctions, smat, lsv);                       // Compute emitter coeffs.
-        SimulationNode.computeNodeCoeffs(nJunctions, smat, lsv);                                // Compute node coeffs.
-        SimulationValve.computeMatrixCoeffs(pMap, lsv, smat, nValves);                          // Compute valve coeffs.
+        lsvSave.copyTo(lsv);
+        SimulationValve.computeMatrixCoeffs(opts, lsv, smat, nValves);
+
+        if (!partial)
+            return solver.linsolve(n, lsv.getAiiVector(), lsv.getAijVector(), lsv.getRHSCoeffs());
+
+        int[] rows = badValveRows;
+        rows[0] = smat.getRow(valve.getFirst().getIndex()) + 1;
+        rows[1] = smat.getRow(valve.getSecond().getIndex()) + 1;
+        return smat.refactor(n, lsv.getAiiVector(), lsv.getAijVector(), lsv.getRHSCoeffs(), Lii, Lij, errcode - 1, rows);
+    }
+
+    // Copies an array into a buffer of the same length, allocated if missing
+    private static double[] copyOf(double[] src, double[] buffer) {
+        if (buffer == null || buffer.length != src.length)
+            buffer = new double[src.length];
+        System.arraycopy(src, 0, buffer, 0, src.length);
+        return buffer;
     }
 
     /**
@@ -579,50 +1076,59 @@ public class HydraulicSim {
      */
     double newFlows(double RelaxFactor) throws ENException {
 
-        for (SimulationNode node : nTanks)
-            node.setSimDemand(0);
+        final double[] H = arrays.head;
+        final double[] D = arrays.demand;
+        final double[] Q = arrays.flow;
+        final double[] P = arrays.invHeadLoss;
+        final double[] Y = arrays.flowCorrection;
+        final int[] from = arrays.from;
+        final int[] to = arrays.to;
+        final boolean[] fixedGrade = arrays.fixedGrade;
+        final StatType[] S = arrays.status;
+
+        for (int i : arrays.tanks)
+            D[i] = 0;
 
         double qsum = 0.0;
         double dqsum = 0.0;
 
-        for (SimulationLink link : nLinks) {
-            SimulationNode n1 = link.getFirst();
-            SimulationNode n2 = link.getSecond();
+        for (int k = 0; k < Q.length; k++) {
+            int n1 = from[k];
+            int n2 = to[k];
 
-            double dh = n1.getSimHead() - n2.getSimHead();
-            double dq = link.getSimFlowCorrection() - link.getSimInvHeadLoss() * dh;
+            double dh = H[n1] - H[n2];
+            double dq = Y[k] - P[k] * dh;
 
             dq *= RelaxFactor;
 
-            if (link instanceof SimulationPump) {
-                if (((SimulationPump) link).getPtype() == Pump.Type.CONST_HP && dq > link.getSimFlow())
-                    dq = link.getSimFlow() / 2.0;
-            }
+            if (arrays.constHP[k] && dq > Q[k])
+                dq = Q[k] / 2.0;
 
-            link.setSimFlow(link.getSimFlow() - dq);
+            Q[k] -= dq;
 
-            qsum += Math.abs(link.getSimFlow());
+            qsum += Math.abs(Q[k]);
             dqsum += Math.abs(dq);
 
-            if (link.getSimStatus().id > StatType.CLOSED.id) {
-                if (n1 instanceof SimulationTank)
-                    n1.setSimDemand(n1.getSimDemand() - link.getSimFlow());
-                if (n2 instanceof SimulationTank)
-                    n2.setSimDemand(n2.getSimDemand() + link.getSimFlow());
+            if (S[k].id > StatType.CLOSED.id) {
+                if (fixedGrade[n1])
+                    D[n1] -= Q[k];
+                if (fixedGrade[n2])
+                    D[n2] += Q[k];
             }
         }
 
-        for (SimulationNode node : nJunctions) {
+        for (int i = 0; i < nJunctions.size(); i++) {
+            SimulationNode node = nJunctions.get(i);
 
             if (node.getKe() == 0.0)
                 continue;
-            double dq = node.emitFlowChange(pMap);
+            double dq = node.emitFlowChange(opts);
             node.setSimEmitter(node.getSimEmitter() - dq);
             qsum += Math.abs(node.getSimEmitter());
             dqsum += Math.abs(dq);
         }
 
-        if (qsum > pMap.getHacc())
+        if (qsum > opts.getHacc())
             return (dqsum / qsum);
         else
             return (dqsum);
@@ -633,7 +1139,7 @@ public class HydraulicSim {
      * Implements simple controls based on time or tank levels.
      */
     private void computeControls() throws ENException {
-        SimulationControl.stepActions(logger, fMap, pMap, nControls, Htime);
+        SimulationControl.stepActions(logger, fMap, opts, nControls, Htime);
     }
 
     /**
@@ -641,29 +1147,18 @@ public class HydraulicSim {
      */
     private void computeDemands() throws ENException {
         // Determine total elapsed number of pattern periods
-        long p = (Htime + pMap.getPstart()) / pMap.getPstep();
+        long p = (Htime + opts.getPstart()) / opts.getPstep();
+        double dmult = opts.getDmult() * Dfactor;
 
-        Dsystem = 0.0; //System-wide demand
+        if (demandMatrix && demands.isMatrixAvailable() && !demands.hasMatrix(dmult))
+            demands.precompute(dmult);
 
         // Update demand at each node according to its assigned pattern
-        for (SimulationNode node : nJunctions) {
-            double sum = 0.0;
-            for (Demand demand : node.getDemand()) {
-                // pattern period (k) = (elapsed periods) modulus (periods per pattern)
-                List<Double> factors = demand.getPattern().getFactorsList();
-
-                long k = p % (long) factors.size();
-                double djunc = (demand.getBase()) * factors.get((int) k) * pMap.getDmult();
-                if (djunc > 0.0)
-                    Dsystem += djunc;
-
-                sum += djunc;
-            }
-            node.setSimDemand(sum);
-        }
+        Dsystem = demands.computeDemands(p, dmult, arrays); //System-wide demand
 
         // Update head at fixed grade nodes with time patterns
-        for (SimulationTank tank : nTanks) {
+        for (int i = 0; i < nTanks.size(); i++) {
+            SimulationTank tank = nTanks.get(i);
             if (tank.getArea() == 0.0) {
                 Pattern pat = tank.getPattern();
                 if (pat != null) {
@@ -676,7 +1171,8 @@ public class HydraulicSim {
         }
 
         // Update status of pumps with utilization patterns
-        for (SimulationPump pump : nPumps) {
+        for (int i = 0; i < nPumps.size(); i++) {
+            SimulationPump pump = nPumps.get(i);
             if (pump.getUpat() != null) {
                 List<Double> factors = pump.getUpat().getFactorsList();
                 long k = p % (long) factors.size();
@@ -694,18 +1190,18 @@ public class HydraulicSim {
         if (simulationOutput != null)
             AwareStep.write(simulationOutput, this, Htime);
 
-        if (Htime < pMap.getDuration())
+        if (Htime < opts.getDuration())
             hydstep = timeStep();
 
-        if (pMap.getDuration() == 0)
-            SimulationPump.stepEnergy(pMap, fMap, Epat, nPumps, Htime, 0);
-        else if (Htime < pMap.getDuration())
-            SimulationPump.stepEnergy(pMap, fMap, Epat, nPumps, Htime, hydstep);
+        if (opts.getDuration() == 0)
+            SimulationPump.stepEnergy(opts, fMap, Epat, nPumps, Htime, 0);
+        else if (Htime < opts.getDuration())
+            SimulationPump.stepEnergy(opts, fMap, Epat, nPumps, Htime, hydstep);
 
-        if (Htime < pMap.getDuration()) {
+        if (Htime < opts.getDuration()) {
             Htime += hydstep;
             if (Htime >= Rtime)
-                Rtime += pMap.getRstep();
+                Rtime += opts.getRstep();
         }
 
         return hydstep;
@@ -715,10 +1211,10 @@ public class HydraulicSim {
      * Computes time step to advance hydraulic simulation.
      */
     long timeStep() throws ENException {
-        long tstep = pMap.getHstep();
+        long tstep = opts.getHstep();
 
-        long n = ((Htime + pMap.getPstart()) / pMap.getPstep()) + 1;
-        long t = n * pMap.getPstep() - Htime;
+        long n = ((Htime + opts.getPstart()) / opts.getPstep()) + 1;
+        long t = n * opts.getPstep() - Htime;
 
         if (t > 0 && t < tstep)
             tstep = t;
@@ -727,11 +1223,10 @@ public class HydraulicSim {
         t = Rtime - Htime;
         if (t > 0 && t < tstep) tstep = t;
 
-        tstep = SimulationTank.minimumTimeStep(nTanks, tstep);
-        tstep = SimulationControl.minimumTimeStep(fMap, pMap, nControls, Htime, tstep);
+        tstep = events.minimumTimeStep(fMap, opts, Htime, tstep);
 
         if (nRules.size() > 0) {
-            SimulationRule.Result res = SimulationRule.minimumTimeStep(fMap, pMap, logger, nRules, nTanks, Htime, tstep, Dsystem);
+            SimulationRule.Result res = SimulationRule.minimumTimeStep(fMap, opts, logger, nRules, ruleIndex, nTanks, Htime, tstep, Dsystem, ruleStep);
             tstep = res.step;
             Htime = res.htime;
         } else
@@ -746,7 +1241,11 @@ public class HydraulicSim {
      */
     private void saveStep() throws ENException {
 
-        ByteBuffer bb = ByteBuffer.allocate((nLinks.size() * 3 * Float.SIZE + nNodes.size() * 2 * Float.SIZE + Integer.SIZE) / 8);
+        int size = (nLinks.size() * 3 * Float.SIZE + nNodes.size() * 2 * Float.SIZE + Integer.SIZE) / 8;
+        if (stepSavingByteBuffer == null || !stepSavingByteBuffer.hasArray() || stepSavingByteBuffer.capacity() != size)
+            stepSavingByteBuffer = ByteBuffer.allocate(size);
+        ByteBuffer bb = stepSavingByteBuffer;
+        bb.clear();
 
         try {
             bb.putInt((int) Htime);
@@ -787,83 +1286,87 @@ public class HydraulicSim {
     //  5. Network disconnected
     //  6. System unbalanced
     private void logHydWarn(NetSolveStep nss) {
-        try {
-            int flag;
+        int flag;
 
-            String atime = Utilities.getClockTime(Htime);
+        // The checks only report warnings
+        if (!opts.getMessageflag() || !logger.isLoggable(Level.WARNING))
+            return;
 
-            if (nss.iter > pMap.getMaxIter() && nss.relerr <= pMap.getHacc()) {
-                if (pMap.getMessageflag())
-                    logger.warning(String.format(Utilities.getError("WARN02"), atime));
-                flag = 2;
-            }
+        String atime = Utilities.getClockTime(Htime);
 
-            // Check for negative pressures
-            for (SimulationNode node : nJunctions) {
-                if (node.getSimHead() < node.getElevation() && node.getSimDemand() > 0.0) {
-                    if (pMap.getMessageflag())
-                        logger.warning(String.format(Utilities.getError("WARN06"), atime));
-                    flag = 6;
-                    break;
-                }
+        if (nss.iter > opts.getMaxIter() && nss.relerr <= opts.getHacc()) {
+            if (opts.getMessageflag())
+                logger.warning(String.format(Utilities.getError("WARN02"), atime));
+            flag = 2;
+        }
+
+        // Check for negative pressures
+        for (SimulationNode node : nJunctions) {
+            if (node.getSimHead() < node.getElevation() && node.getSimDemand() > 0.0) {
+                if (opts.getMessageflag())
+                    logger.warning(String.format(Utilities.getError("WARN06"), atime));
+                flag = 6;
+                break;
             }
+        }
 
-            // Check for abnormal valve condition
-            for (SimulationValve valve : nValves) {
-                int j = valve.getIndex();
-                if (valve.getSimStatus().id >= StatType.XFCV.id) {
-                    if (pMap.getMessageflag())
-                        logger.warning(String.format(Utilities.getError("WARN05"), valve.getType().parseStr, valve.getLink().getId(),
-                                valve.getSimStatus().reportStr, atime));
-                    flag = 5;
-                }
+        // Check for abnormal valve condition
+        for (SimulationValve valve : nValves) {
+            int j = valve.getIndex();
+            if (valve.getSimStatus().id >= StatType.XFCV.id) {
+                if (opts.getMessageflag())
+                    logger.warning(String.format(Utilities.getError("WARN05"), valve.getType().parseStr, valve.getLink().getId(),
+                            valve.getSimStatus().reportStr, atime));
+                flag = 5;
             }
+        }
 
-            // Check for abnormal pump condition
-            for (SimulationPump pump : nPumps) {
-                StatType s = pump.getSimStatus();
-                if (pump.getSimStatus().id >= StatType.OPEN.id) {
-                    if (pump.getSimFlow() > pump.getSimSetting() * pump.getQmax())
-                        s = StatType.XFLOW;
-                    if (pump.getSimFlow() < 0.0)
-                        s = StatType.XHEAD;
-                }
+        // Check for abnormal pump condition
+        for (SimulationPump pump : nPumps) {
+            StatType s = pump.getSimStatus();
+            if (pump.getSimStatus().id >= StatType.OPEN.id) {
+                if (pump.getSimFlow() > pump.getSimSetting() * pump.getQmax())
+                    s = StatType.XFLOW;
+                if (pump.getSimFlow() < 0.0)
+                    s = StatType.XHEAD;
+            }
 
-                if (s == StatType.XHEAD || s == StatType.XFLOW) {
-                    if (pMap.getMessageflag())
-                        logger.warning(String.format(Utilities.getError("WARN04"), pump.getLink().getId(), pump.getSimStatus().reportStr, atime));
-                    flag = 4;
-                }
+            if (s == StatType.XHEAD || s == StatType.XFLOW) {
+                if (opts.getMessageflag())
+                    logger.warning(String.format(Utilities.getError("WARN04"), pump.getLink().getId(), pump.getSimStatus().reportStr, atime));
+                flag = 4;
             }
+        }
 
-            // Check if system is unbalanced
-            if (nss.iter > pMap.getMaxIter() && nss.relerr > pMap.getHacc()) {
-                String str = String.format(Utilities.getError("WARN01"), atime);
+        // Check if system is unbalanced
+        if (nss.iter > opts.getMaxIter() && nss.relerr > opts.getHacc()) {
+            String str = String.format(Utilities.getError("WARN01"), atime);
 
-                if (pMap.getExtraIter() == -1)
-                    str += Keywords.t_HALTED;
+            if (opts.getExtraIter() == -1)
+                str += Keywords.t_HALTED;
 
-                if (pMap.getMessageflag())
-                    logger.warning(str);
+            if (opts.getMessageflag())
+                logger.warning(str);
 
-                flag = 1;
-            }
-        } catch (ENException e) {
+            flag = 1;
         }
     }
 
     // Report hydraulic status.
     private void logHydStat(NetSolveStep nss) {
         try {
-            String atime = Utilities.getClockTime(Htime);
-            if (nss.iter > 0) {
-                if (nss.relerr <= pMap.getHacc())
+            // The status changes are still recorded when they aren't logged
+            boolean log = logger.isLoggable(Level.WARNING);
+            String atime = log ? Utilities.getClockTime(Htime) : null;
+            if (log && nss.iter > 0) {
+                if (nss.relerr <= opts.getHacc())
                     logger.warning(String.format(Utilities.getText("FMT58"), atime, nss.iter));
                 else
                     logger.warning(String.format(Utilities.getText("FMT59"), atime, nss.iter, nss.relerr));
             }
 
-            for (SimulationTank tank : nTanks) {
+            for (int i = 0; i < nTanks.size(); i++) {
+                SimulationTank tank = nTanks.get(i);
                 StatType newstat;
 
                 if (Math.abs(tank.getSimDemand()) < 0.001)
@@ -876,30 +1379,35 @@ public class HydraulicSim {
                     newstat = tank.getOldStat();
 
                 if (newstat != tank.getOldStat()) {
-                    if (!tank.isReservoir())
-                        logger.warning(String.format(Utilities.getText("FMT50"), atime, tank.getId(), newstat.reportStr,
-                                (tank.getSimHead() - tank.getElevation()) * fMap.getUnits(Type.HEAD), fMap.getField(Type.HEAD).getUnits()));
-                    else
-                        logger.warning(String.format(Utilities.getText("FMT51"), atime, tank.getId(), newstat.reportStr));
+                    if (log) {
+                        if (!tank.isReservoir())
+                            logger.warning(String.format(Utilities.getText("FMT50"), atime, tank.getId(), newstat.reportStr,
+                                    (tank.getSimHead() - tank.getElevation()) * fMap.getUnits(Type.HEAD), fMap.getField(Type.HEAD).getUnits()));
+                        else
+                            logger.warning(String.format(Utilities.getText("FMT51"), atime, tank.getId(), newstat.reportStr));
+                    }
 
                     tank.setOldStat(newstat);
                 }
             }
 
-            for (SimulationLink link : nLinks) {
+            for (int i = 0; i < nLinks.size(); i++) {
+                SimulationLink link = nLinks.get(i);
                 if (link.getSimStatus() != link.getSimOldStatus()) {
-                    if (Htime == 0)
-                        logger.warning(String.format(Utilities.getText("FMT52"),
-                                atime,
-                                link.getType().parseStr,
-                                link.getLink().getId(),
-                                link.getSimStatus().reportStr));
-                    else
-                        logger.warning(String.format(Utilities.getText("FMT53"), atime,
-                                link.getType().parseStr,
-                                link.getLink().getId(),
-                                link.getSimOldStatus().reportStr,
-                                link.getSimStatus().reportStr));
+                    if (log) {
+                        if (Htime == 0)
+                            logger.warning(String.format(Utilities.getText("FMT52"),
+                                    atime,
+                                    link.getType().parseStr,
+                                    link.getLink().getId(),
+                                    link.getSimStatus().reportStr));
+                        else
+                            logger.warning(String.format(Utilities.getText("FMT53"), atime,
+                                    link.getType().parseStr,
+                                    link.getLink().getId(),
+                                    link.getSimOldStatus().reportStr,
+                                    link.getSimStatus().reportStr));
+                    }
                     link.setSimOldStatus(link.getSimStatus());
                 }
             }
@@ -909,6 +1417,8 @@ public class HydraulicSim {
 
 
     private void logRelErr(NetSolveStep ret) {
+        if (!logger.isLoggable(Level.WARNING))
+            return;
         if (ret.iter == 0) {
             logger.warning(String.format(Utilities.getText("FMT64"), Utilities.getClockTime(Htime)));
         } else {
@@ -917,15 +1427,44 @@ public class HydraulicSim {
     }
 
     private void logHydErr(int order) {
-        try {
-            if (pMap.getMessageflag())
-                logger.warning(String.format(Utilities.getText("FMT62"),
-                        Utilities.getClockTime(Htime), nNodes.get(order).getId()));
-        } catch (ENException e) {
-        }
+        if (opts.getMessageflag())
+            logger.warning(String.format(Utilities.getText("FMT62"),
+                    Utilities.getClockTime(Htime), nNodes.get(order).getId()));
         logHydStat(new NetSolveStep(0, 0));
     }
 
+    public SparseMatrix getSparseMatrix() {
+        return smat;
+    }
+
+    public LinearSolver getLinearSolver() {
+        return solver;
+    }
+
+    /**
+     * Set the solver of the Newton iterations linear system, for instance a {@link PCGSolver} built on this
+     * simulation sparse matrix.
+     *
+     * @param solver Linear solver, null for the sparse matrix direct solver.
+     */
+    public void setLinearSolver(LinearSolver solver) {
+        if (running)
+            throw new IllegalStateException("Already running");
+        this.solver = solver != null ? solver : smat;
+    }
+
+    /**
+     * Eliminates the tree branches of the network before each linear solve, so the sparse factorization only
+     * covers the looped core, see {@link BranchSolver}.
+     */
+    public void setBranchElimination(boolean enable) {
+        setLinearSolver(enable ? new BranchSolver(this) : null);
+    }
+
+    public List<SimulationTank> getnTanks() {
+        return nTanks;
+    }
+
     public List<SimulationNode> getnNodes() {
         return nNodes;
     }
@@ -938,6 +1477,14 @@ public class HydraulicSim {
         return nRules;
     }
 
+    public RuleIndex getRuleIndex() {
+        return ruleIndex;
+    }
+
+    public EventScheduler getEventScheduler() {
+        return events;
+    }
+
     public List<SimulationControl> getnControls() {
         return nControls;
     }
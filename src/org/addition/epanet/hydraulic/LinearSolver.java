@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2012  Addition, Lda. (addition at addition dot pt)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package org.addition.epanet.hydraulic;
+
+/**
+ * Solver of the linear system of each hydraulic Newton iteration.
+ * <p/>
+ * The system is stored as in {@link SparseMatrix}: diagonal entries by matrix row and off-diagonal entries by
+ * coefficient index.
+ */
+public interface LinearSolver {
+
+    /**
+     * Solves the sparse symmetric system of linear equations.
+     *
+     * @param n   Number of equations.
+     * @param Aii Diagonal entries of solution matrix.
+     * @param Aij Non-zero off-diagonal entries of matrix.
+     * @param B   Right hand side coeffs, after solving it's also used as the solution vector.
+     * @return 0 if solution found, or index of equation causing system to be ill-conditioned.
+     */
+    public int linsolve(int n, double[] Aii, double[] Aij, double[] B);
+
+    /**
+     * Discards any state kept from previous solves, called when the simulation is restarted.
+     */
+    public void reset();
+}
@@ -0,0 +1,335 @@
+/*
+ * Copyright (C) 2012  Addition, Lda. (addition at addition dot pt)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package org.addition.epanet.hydraulic;
+
+/**
+ * Preconditioned conjugate gradient linear solver.
+ * <p/>
+ * Iterative alternative to the direct Cholesky factorization of {@link SparseMatrix} for very large networks. The
+ * preconditioner is an incomplete Cholesky factorization without fill-in (IC(0)) on the rows ordering of the
+ * sparse matrix, replaced by the diagonal when it breaks down. Each solve starts from the solution of the previous
+ * one, the heads of the last Newton iteration, so near convergence few iterations are needed. When the iterations
+ * don't converge the system is solved by the direct factorization.
+ * <p/>
+ * An instance keeps the previous solution and work arrays, so it must not be shared by simulations.
+ */
+public class PCGSolver implements LinearSolver {
+
+    /**
+     * Default tolerance of the head corrections relative to the largest head.
+     */
+    public static final double DEFAULT_TOLERANCE = 1e-12;
+
+    /**
+     * Default maximum number of iterations.
+     */
+    public static final int DEFAULT_MAX_ITERATIONS = 1000;
+
+    private final SparseMatrix smat;
+    private final int n;
+
+    // Lower triangle of the original matrix, by column
+    private final int[] colStart;
+    private final int[] rowIndex;
+    private final int[] coeff;       // Position of each entry in Aij
+
+    // Work arrays
+    private final double[] diag;     // Preconditioner diagonal
+    private final double[] lval;     // Preconditioner off-diagonal entries
+    private final int[] pos;
+    private final double[] x, r, z, p, q, b;
+    private boolean hasGuess;
+
+    private double tolerance = DEFAULT_TOLERANCE;
+    private int maxIterations = DEFAULT_MAX_ITERATIONS;
+
+    // Statistics
+    private int iterations;
+    private long totalIterations;
+    private int solves;
+    private int fallbacks;
+
+    /**
+     * Creates the solver for the linear system of a sparse matrix.
+     *
+     * @param smat Sparse matrix of the network, used for the coefficients layout and as fallback.
+     */
+    public PCGSolver(SparseMatrix smat) {
+        this.smat = smat;
+        int[] xlnz = smat.getXLNZ();
+        int[] nzsub = smat.getNZSUB();
+        int[] lnz = smat.getLNZ();
+        int links = smat.getLinkCoeffsCount();
+        n = xlnz.length - 2;
+
+        colStart = new int[n + 1];
+        for (int j = 1; j <= n; j++) {
+            int m = 0;
+            for (int k = xlnz[j]; k < xlnz[j + 1]; k++)
+                if (lnz[k] <= links)
+                    m++;
+            colStart[j] = colStart[j - 1] + m;
+        }
+        rowIndex = new int[colStart[n]];
+        coeff = new int[colStart[n]];
+        for (int j = 1, t = 0; j <= n; j++) {
+            for (int k = xlnz[j]; k < xlnz[j + 1]; k++) {
+                if (lnz[k] <= links) {
+                    rowIndex[t] = nzsub[k] - 1;
+                    coeff[t++] = lnz[k] - 1;
+                }
+            }
+        }
+
+        diag = new double[n];
+        lval = new double[rowIndex.length];
+        pos = new int[n];
+        x = new double[n];
+        r = new double[n];
+        z = new double[n];
+        p = new double[n];
+        q = new double[n];
+        b = new double[n];
+    }
+
+    public double getTolerance() {
+        return tolerance;
+    }
+
+    /**
+     * Set the tolerance of the iterations, the largest head correction given by the diagonally scaled residual
+     * relative to the largest head.
+     */
+    public void setTolerance(double tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    public int getMaxIterations() {
+        return maxIterations;
+    }
+
+    public void setMaxIterations(int maxIterations) {
+        this.maxIterations = maxIterations;
+    }
+
+    /**
+     * Iterations of the last solve.
+     */
+    public int getIterations() {
+        return iterations;
+    }
+
+    public long getTotalIterations() {
+        return totalIterations;
+    }
+
+    public int getSolves() {
+        return solves;
+    }
+
+    /**
+     * Number of solves that didn't converge and were solved by the direct factorization.
+     */
+    public int getFallbacks() {
+        return fallbacks;
+    }
+
+    public void reset() {
+        hasGuess = false;
+        iterations = 0;
+        totalIterations = 0;
+        solves = 0;
+        fallbacks = 0;
+    }
+
+    public int linsolve(int n, double[] Aii, double[] Aij, double[] B) {
+        for (int i = 0; i < n; i++)
+            if (Aii[i] <= 0.0)        // Check for ill-conditioning
+                return i + 1;
+
+        solves++;
+        iterations = 0;
+
+        if (!hasGuess) {
+            for (int i = 0; i < n; i++)
+                x[i] = B[i] / Aii[i];
+        }
+
+        boolean ic = factor(Aii, Aij);
+
+        System.arraycopy(B, 0, b, 0, n);
+        multiply(Aii, Aij, x, r);
+        for (int i = 0; i < n; i++)
+            r[i] = b[i] - r[i];
+
+        boolean converged = converged(Aii);
+        if (!converged) {
+            precondition(ic, Aii, r, z);
+            double rz = 0.0;
+            for (int i = 0; i < n; i++) {
+                p[i] = z[i];
+                rz += r[i] * z[i];
+            }
+
+            while (iterations < maxIterations) {
+                iterations++;
+                multiply(Aii, Aij, p, q);
+                double pq = 0.0;
+                for (int i = 0; i < n; i++)
+                    pq += p[i] * q[i];
+                if (pq <= 0.0)
+                    break;
+
+                double alpha = rz / pq;
+                for (int i = 0; i < n; i++) {
+                    x[i] += alpha * p[i];
+                    r[i] -= alpha * q[i];
+                }
+                if (converged(Aii)) {
+                    converged = true;
+                    break;
+                }
+
+                precondition(ic, Aii, r, z);
+                double rzNew = 0.0;
+                for (int i = 0; i < n; i++)
+                    rzNew += r[i] * z[i];
+                double beta = rzNew / rz;
+                rz = rzNew;
+                for (int i = 0; i < n; i++)
+                    p[i] = z[i] + beta * p[i];
+            }
+        }
+        totalIterations += iterations;
+
+        if (!converged) {
+            fallbacks++;
+            hasGuess = false;
+            int ret = smat.linsolve(n, Aii, Aij, B);
+            if (ret == 0) {
+                System.arraycopy(B, 0, x, 0, n);
+                hasGuess = true;
+            }
+            return ret;
+        }
+
+        System.arraycopy(x, 0, B, 0, n);
+        hasGuess = true;
+        return 0;
+    }
+
+    /**
+     * Checks the convergence of the iterations. The rows of the hydraulic matrix are badly scaled (valves fixing
+     * a head add a huge diagonal term) so the residual is scaled by the diagonal, which gives the head correction
+     * of each row, and compared with the largest head.
+     */
+    private boolean converged(double[] Aii) {
+        double rmax = 0.0;
+        double xmax = 0.0;
+        for (int i = 0; i < n; i++) {
+            rmax = Math.max(rmax, Math.abs(r[i] / Aii[i]));
+            xmax = Math.max(xmax, Math.abs(x[i]));
+        }
+        return rmax <= tolerance * (xmax > 0.0 ? xmax : 1.0);
+    }
+
+    /**
+     * Computes y = A*x.
+     */
+    private void multiply(double[] Aii, double[] Aij, double[] x, double[] y) {
+        for (int i = 0; i < n; i++)
+            y[i] = Aii[i] * x[i];
+        for (int j = 0; j < n; j++) {
+            double xj = x[j];
+            double yj = y[j];
+            for (int t = colStart[j]; t < colStart[j + 1]; t++) {
+                int i = rowIndex[t];
+                double a = Aij[coeff[t]];
+                y[i] += a * xj;
+                yj += a * x[i];
+            }
+            y[j] = yj;
+        }
+    }
+
+    /**
+     * Incomplete Cholesky factorization on the pattern of the original matrix.
+     *
+     * @return False if the factorization broke down.
+     */
+    private boolean factor(double[] Aii, double[] Aij) {
+        System.arraycopy(Aii, 0, diag, 0, n);
+        for (int t = 0; t < lval.length; t++)
+            lval[t] = Aij[coeff[t]];
+
+        for (int j = 0; j < n; j++) {
+            double d = diag[j];
+            if (d <= 0.0)
+                return false;
+            d = Math.sqrt(d);
+            diag[j] = d;
+            int s = colStart[j];
+            int e = colStart[j + 1];
+            for (int t = s; t < e; t++)
+                lval[t] /= d;
+
+            for (int t = s; t < e; t++) {
+                int i = rowIndex[t];
+                double lij = lval[t];
+                diag[i] -= lij * lij;
+
+                // Update the entries of column i that are in the pattern
+                for (int u = colStart[i]; u < colStart[i + 1]; u++)
+                    pos[rowIndex[u]] = u + 1;
+                for (int v = t + 1; v < e; v++) {
+                    int u = pos[rowIndex[v]] - 1;
+                    if (u >= 0)
+                        lval[u] -= lval[v] * lij;
+                }
+                for (int u = colStart[i]; u < colStart[i + 1]; u++)
+                    pos[rowIndex[u]] = 0;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Applies the preconditioner, z = M^-1 * r.
+     */
+    private void precondition(boolean ic, double[] Aii, double[] r, double[] z) {
+        if (!ic) {
+            for (int i = 0; i < n; i++)
+                z[i] = r[i] / Aii[i];
+            return;
+        }
+
+        System.arraycopy(r, 0, z, 0, n);
+        for (int j = 0; j < n; j++) {
+            double zj = z[j] / diag[j];
+            z[j] = zj;
+            for (int t = colStart[j]; t < colStart[j + 1]; t++)
+                z[rowIndex[t]] -= lval[t] * zj;
+        }
+        for (int j = n - 1; j >= 0; j--) {
+            double zj = z[j];
+            for (int t = colStart[j]; t < colStart[j + 1]; t++)
+                zj -= lval[t] * z[rowIndex[t]];
+            z[j] = zj / diag[j];
+        }
+    }
+}
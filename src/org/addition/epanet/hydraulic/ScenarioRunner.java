@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2012  Addition, Lda. (addition at addition dot pt)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package org.addition.epanet.hydraulic;
+
+import org.addition.epanet.hydraulic.structures.SimulationTank;
+import org.addition.epanet.network.Network;
+import org.addition.epanet.quality.QualitySim;
+import org.addition.epanet.util.ENException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+
+/**
+ * Runs several simulation scenarios of the same network in parallel.
+ * <p/>
+ * The network and the sparse matrix ordering are built once and shared by every worker thread, each worker
+ * keeps its own {@link HydraulicSim}, which is reset between scenarios instead of being rebuilt.
+ * Scenarios must only change simulation state (demand factor, tank levels, link settings, ...) and never the
+ * shared network. The reset clears the changes of the previous scenario, so a scenario only affects its own run;
+ * tank initial levels are also passed to the quality simulation.
+ */
+public class ScenarioRunner {
+
+    /**
+     * Simulation scenario, applied to a freshly reset hydraulic simulation before it runs.
+     */
+    public static interface Scenario {
+        public void apply(HydraulicSim sim) throws ENException;
+    }
+
+    /**
+     * Outcome of a scenario run.
+     */
+    public static class Result {
+        private final Scenario scenario;
+        private final File hydFile;
+        private final File qualFile;
+        private final long elapsed;
+        private final Exception error;
+
+        Result(Scenario scenario, File hydFile, File qualFile, long elapsed, Exception error) {
+            this.scenario = scenario;
+            this.hydFile = hydFile;
+            this.qualFile = qualFile;
+            this.elapsed = elapsed;
+            this.error = error;
+        }
+
+        public Scenario getScenario() {
+            return scenario;
+        }
+
+        /**
+         * Hydraulic results file.
+         */
+        public File getHydFile() {
+            return hydFile;
+        }
+
+        /**
+         * Quality results file, null if the quality simulation is disabled.
+         */
+        public File getQualFile() {
+            return qualFile;
+        }
+
+        /**
+         * Scenario run time in milliseconds.
+         */
+        public long getElapsed() {
+            return elapsed;
+        }
+
+        /**
+         * Error thrown while running the scenario, null on success.
+         */
+        public Exception getError() {
+            return error;
+        }
+    }
+
+    private final Network net;
+    private final Logger log;
+    private final SparseMatrix smat;
+    private final ExecutorService executor;
+    private final ThreadLocal<HydraulicSim> sims;
+
+    private boolean quality;
+    private File outputDir;
+
+    /**
+     * Creates the scenario runner.
+     *
+     * @param net     Shared network, must not be changed while scenarios are running.
+     * @param log     Logger reference.
+     * @param threads Number of worker threads.
+     * @throws ENException
+     */
+    public ScenarioRunner(Network net, Logger log, int threads) throws ENException {
+        this.net = net;
+        this.log = log;
+        this.smat = new HydraulicSim(net, log).getSparseMatrix();
+        this.executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        this.sims = new ThreadLocal<HydraulicSim>();
+    }
+
+    public SparseMatrix getSparseMatrix() {
+        return smat;
+    }
+
+    public boolean isQuality() {
+        return quality;
+    }
+
+    /**
+     * Enables the water quality simulation after each hydraulic simulation.
+     */
+    public void setQuality(boolean quality) {
+        this.quality = quality;
+    }
+
+    public File getOutputDir() {
+        return outputDir;
+    }
+
+    /**
+     * Directory where the result files are created, the system temporary directory is used if null.
+     */
+    public void setOutputDir(File outputDir) {
+        this.outputDir = outputDir;
+    }
+
+    /**
+     * Runs the scenarios and waits for them to finish.
+     *
+     * @param scenarios Scenarios to run.
+     * @return Scenario results, in the same order as the scenarios.
+     * @throws InterruptedException
+     */
+    public List<Result> run(List<? extends Scenario> scenarios) throws InterruptedException {
+        List<Future<Result>> futures = new ArrayList<Future<Result>>(scenarios.size());
+        for (final Scenario scenario : scenarios)
+            futures.add(executor.submit(new Callable<Result>() {
+                public Result call() {
+                    return runScenario(scenario);
+                }
+            }));
+
+        List<Result> results = new ArrayList<Result>(scenarios.size());
+        for (Future<Result> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Stops the worker threads.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private Result runScenario(Scenario scenario) {
+        long start = System.currentTimeMillis();
+        File hydFile = null;
+        File qualFile = null;
+        try {
+            HydraulicSim hydSim = sims.get();
+            if (hydSim == null) {
+                hydSim = new HydraulicSim(net, log, smat);
+                sims.set(hydSim);
+            } else
+                hydSim.reset();
+
+            scenario.apply(hydSim);
+
+            hydFile = File.createTempFile("hyd", null, outputDir);
+            hydSim.simulate(hydFile);
+
+            if (quality) {
+                qualFile = File.createTempFile("qual", null, outputDir);
+                QualitySim qSim = new QualitySim(net, log);
+                for (SimulationTank tank : hydSim.getnTanks())
+                    if (!tank.isReservoir())
+                        qSim.setTankInitialVolume(tank.getId(), tank.getV0());
+                qSim.simulate(hydFile, qualFile);
+            }
+        } catch (ENException e) {
+            return new Result(scenario, hydFile, qualFile, System.currentTimeMillis() - start, e);
+        } catch (IOException e) {
+            return new Result(scenario, hydFile, qualFile, System.currentTimeMillis() - start, e);
+        }
+        return new Result(scenario, hydFile, qualFile, System.currentTimeMillis() - start, null);
+    }
+}
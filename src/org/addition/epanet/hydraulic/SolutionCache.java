@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2012  Addition, Lda. (addition at addition dot pt)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package org.addition.epanet.hydraulic;
+
+import org.addition.epanet.hydraulic.structures.SimulationArrays;
+import org.addition.epanet.hydraulic.structures.SimulationLink;
+import org.addition.epanet.hydraulic.structures.SimulationNode;
+import org.addition.epanet.hydraulic.structures.SimulationTank;
+import org.addition.epanet.network.structures.Link.StatType;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache of converged hydraulic solutions for extended period simulations with repeating patterns.
+ * <p/>
+ * Solutions are keyed on the hydraulic state before the network is solved: the pattern period within the demand
+ * pattern cycle, the demand multiplier, the tank heads quantized to a tolerance, the fixed grade node heads, whether
+ * each tank is full or empty, and the status and setting of every link set by controls and rules. When a key repeats
+ * the stored heads, flows and link statuses are reused instead of running the Newton iterations.
+ * <p/>
+ * In strict mode a reused solution is only the starting point of the Newton iterations, which verify it against the
+ * convergence criterion. Solutions that need more than one iteration are counted as rejected and replaced.
+ */
+public class SolutionCache {
+
+    /**
+     * Default number of stored solutions.
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 1024;
+
+    // Hashed state key
+    private static class Key {
+        private final long[] values;
+        private final int hash;
+
+        Key(long[] values) {
+            this.values = values;
+            this.hash = Arrays.hashCode(values);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Key && Arrays.equals(values, ((Key) obj).values);
+        }
+    }
+
+    // Converged solution
+    private static class Entry {
+        double[] head;
+        double[] flow;
+        StatType[] status;
+        double[] demand;
+        double[] emitter;
+    }
+
+    private final double tolerance;
+    private final boolean strict;
+    private final Map<Key, Entry> entries;
+
+    private long[] keyBuffer;
+    private Key current;
+    private long hits;
+    private long misses;
+    private long rejected;
+
+    /**
+     * Creates a cache with the default capacity.
+     *
+     * @param tolerance Tank head quantization step, in feet.
+     * @param strict    Verify the reused solutions with the Newton iterations.
+     */
+    public SolutionCache(double tolerance, boolean strict) {
+        this(tolerance, strict, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * Creates a cache.
+     *
+     * @param tolerance  Tank head quantization step, in feet.
+     * @param strict     Verify the reused solutions with the Newton iterations.
+     * @param maxEntries Number of stored solutions, the least recently used are discarded.
+     */
+    public SolutionCache(double tolerance, boolean strict, final int maxEntries) {
+        if (tolerance <= 0.0)
+            throw new IllegalArgumentException("Tolerance must be positive");
+        this.tolerance = tolerance;
+        this.strict = strict;
+        this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    public double getTolerance() {
+        return tolerance;
+    }
+
+    public boolean isStrict() {
+        return strict;
+    }
+
+    /**
+     * Number of time steps that reused a stored solution.
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * Number of time steps without a stored solution.
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Number of reused solutions that didn't satisfy the convergence criterion, strict mode only.
+     */
+    public long getRejected() {
+        return rejected;
+    }
+
+    /**
+     * Number of stored solutions.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Discards the stored solutions and the statistics.
+     */
+    public void clear() {
+        entries.clear();
+        current = null;
+        hits = misses = rejected = 0;
+    }
+
+    /**
+     * Looks up the solution of the current state and copies it into the simulation arrays.
+     *
+     * @param period Pattern period within the demand pattern cycle.
+     * @param dmult  Demand multiplier.
+     * @param arrays Simulation arrays.
+     * @param tanks  Tanks and reservoirs.
+     * @param links  Simulation links.
+     * @param juncs  Junctions.
+     * @param htol   Head tolerance of the full and empty tank levels.
+     * @return True if a stored solution was found.
+     */
+    public boolean load(long period, double dmult, SimulationArrays arrays, List<SimulationTank> tanks,
+                        List<SimulationLink> links, List<SimulationNode> juncs, double htol) {
+        int size = 2 + 2 * tanks.size() + 2 * links.size();
+        if (keyBuffer == null || keyBuffer.length != size)
+            keyBuffer = new long[size];
+
+        long[] key = keyBuffer;
+        int n = 0;
+        key[n++] = period;
+        key[n++] = Double.doubleToLongBits(dmult);
+        for (SimulationTank tank : tanks) {
+            double h = arrays.head[tank.getIndex()];
+            key[n++] = tank.getArea() == 0.0 ? Double.doubleToLongBits(h) : Math.round(h / tolerance);
+            // Links of full or empty tanks are closed by the iterations, the quantized head may not tell
+            if (tank.getArea() == 0.0)
+                key[n++] = 0;
+            else if (h >= tank.getHmax() - htol)
+                key[n++] = 1;
+            else if (h <= tank.getHmin() + htol)
+                key[n++] = -1;
+            else
+                key[n++] = 0;
+        }
+        for (SimulationLink link : links) {
+            key[n++] = arrays.status[link.getIndex()].ordinal();
+            key[n++] = Double.doubleToLongBits(link.getSimSetting());
+        }
+
+        Key probe = new Key(key);
+        Entry entry = entries.get(probe);
+        if (entry == null) {
+            misses++;
+            current = probe;
+            keyBuffer = null;
+            return false;
+        }
+
+        hits++;
+        current = null;
+        for (SimulationNode node : juncs) {
+            int i = node.getIndex();
+            arrays.head[i] = entry.head[i];
+            node.setSimEmitter(entry.emitter[i]);
+        }
+        // Junction demands with the emitter flows and tank inflows are only computed by the Newton iterations
+        if (!strict)
+            System.arraycopy(entry.demand, 0, arrays.demand, 0, entry.demand.length);
+        System.arraycopy(entry.flow, 0, arrays.flow, 0, entry.flow.length);
+        System.arraycopy(entry.status, 0, arrays.status, 0, entry.status.length);
+        return true;
+    }
+
+    /**
+     * Stores the converged solution of the state of the last lookup.
+     *
+     * @param arrays     Simulation arrays with the solution.
+     * @param juncs      Junctions.
+     * @param iterations Newton iterations of the solution, used to verify reused solutions in strict mode.
+     */
+    public void store(SimulationArrays arrays, List<SimulationNode> juncs, int iterations) {
+        if (current == null) {
+            // Verified solution of the last lookup
+            if (iterations <= 1)
+                return;
+            rejected++;
+            current = new Key(keyBuffer.clone());
+        }
+
+        Entry entry = new Entry();
+        entry.head = arrays.head.clone();
+        entry.flow = arrays.flow.clone();
+        entry.status = arrays.status.clone();
+        entry.demand = arrays.demand.clone();
+        entry.emitter = new double[entry.head.length];
+        for (SimulationNode node : juncs)
+            entry.emitter[node.getIndex()] = node.getSimEmitter();
+
+        entries.put(current, entry);
+        current = null;
+    }
+}
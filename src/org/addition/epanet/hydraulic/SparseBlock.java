@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2012  Addition, Lda. (addition at addition dot pt)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package org.addition.epanet.hydraulic;
+
+import java.util.Arrays;
+
+/**
+ * Cholesky factorization of a subset of the rows of the network equations.
+ * <p/>
+ * The block has its own symbolic structure, computed from its elimination tree with the rows eliminated in the
+ * given order, and its own factor storage, so several blocks of the same system can be factored at the same time.
+ * The numerical factorization is the left-looking column algorithm of {@link SparseMatrix#linsolve}.
+ */
+class SparseBlock {
+
+    private final int n;
+    private final int[] rows;      // Matrix row (zero based) of each block row
+    private final int[] xlnz;      // Start of each column in nzsub, one based as in SparseMatrix
+    private final int[] nzsub;     // Block row of each entry, one based
+    private final int[] src;       // Coefficient index in Aij of each entry, -1 for fill-ins
+    private final double[] lnz;
+    private final double[] diag;
+    private final double[] b;
+    private final double[] temp;
+    private final int[] link;
+    private final int[] first;
+
+    /**
+     * Builds the symbolic factorization of the block.
+     *
+     * @param rows     Matrix rows of the block (zero based), in elimination order.
+     * @param local    Position in the block of each matrix row of the block.
+     * @param xadj     Start of each matrix row adjacency in adj.
+     * @param adj      Adjacent matrix rows, only rows of the same block are used.
+     * @param adjCoeff Coefficient index in Aij of each adjacency.
+     * @param inBlock  Rows that belong to the block, null if adj only holds rows of the block.
+     */
+    SparseBlock(int[] rows, int[] local, int[] xadj, int[] adj, int[] adjCoeff, boolean[] inBlock) {
+        this.n = rows.length;
+        this.rows = rows;
+
+        int[][] cols = new int[n + 1][];
+        int[][] coeffs = new int[n + 1][];
+        int[] marker = new int[n + 1];
+        int[] coeffOf = new int[n + 1];
+        int[] buf = new int[n + 1];
+        int[] child = new int[n + 1];    // First child in the elimination tree
+        int[] sibling = new int[n + 1];  // Next child of the same parent
+        int nnz = 0;
+
+        for (int j = 1; j <= n; j++) {
+            int m = 0;
+            marker[j] = j;
+            int g = rows[j - 1];
+            for (int t = xadj[g]; t < xadj[g + 1]; t++) {
+                if (inBlock != null && !inBlock[adj[t]])
+                    continue;
+                int r = local[adj[t]] + 1;
+                if (r > j && marker[r] != j) {
+                    marker[r] = j;
+                    coeffOf[r] = adjCoeff[t];
+                    buf[m++] = r;
+                }
+            }
+            for (int c = child[j]; c != 0; c = sibling[c]) {
+                for (int r : cols[c]) {
+                    if (marker[r] != j) {
+                        marker[r] = j;
+                        coeffOf[r] = -1;
+                        buf[m++] = r;
+                    }
+                }
+            }
+
+            Arrays.sort(buf, 0, m);
+            cols[j] = Arrays.copyOf(buf, m);
+            coeffs[j] = new int[m];
+            for (int t = 0; t < m; t++)
+                coeffs[j][t] = coeffOf[buf[t]];
+            nnz += m;
+
+            if (m > 0) {
+                int parent = buf[0];
+                sibling[j] = child[parent];
+                child[parent] = j;
+            }
+        }
+
+        xlnz = new int[n + 2];
+        nzsub = new int[nnz + 1];
+        src = new int[nnz + 1];
+        xlnz[1] = 1;
+        for (int j = 1; j <= n; j++) {
+            int k = xlnz[j];
+            for (int t = 0; t < cols[j].length; t++, k++) {
+                nzsub[k] = cols[j][t];
+                src[k] = coeffs[j][t];
+            }
+            xlnz[j + 1] = k;
+        }
+        lnz = new double[nnz + 1];
+        diag = new double[n + 1];
+        b = new double[n + 1];
+        temp = new double[n + 1];
+        link = new int[n + 1];
+        first = new int[n + 1];
+    }
+
+    /**
+     * Number of rows of the block.
+     */
+    int size() {
+        return n;
+    }
+
+    /**
+     * Number of off-diagonal entries of the factorization.
+     */
+    int getNonZeroCount() {
+        return xlnz[n + 1] - 1;
+    }
+
+    /**
+     * Assembles the block from the matrix coefficients, factors it and solves it, writing the solution into B.
+     * The matrix arrays are only read.
+     *
+     * @return 0 if the solution was found, or the matrix row (one based) causing the block to be ill-conditioned.
+     */
+    int solve(double[] Aii, double[] Aij, double[] B) {
+        for (int j = 1; j <= n; j++) {
+            diag[j] = Aii[rows[j - 1]];
+            b[j] = B[rows[j - 1]];
+            link[j] = 0;
+            temp[j] = 0.0;
+        }
+        for (int i = 1; i < xlnz[n + 1]; i++)
+            lnz[i] = src[i] >= 0 ? Aij[src[i]] : 0.0;
+
+        // Numerical factorization
+        for (int j = 1; j <= n; j++) {
+            double diagj = 0.0;
+            int k = link[j];
+            while (k != 0) {
+                int newk = link[k];
+                int kfirst = first[k];
+                double ljk = lnz[kfirst];
+                diagj += ljk * ljk;
+                int istrt = kfirst + 1;
+                int istop = xlnz[k + 1] - 1;
+                if (istop >= istrt) {
+                    first[k] = istrt;
+                    int isub = nzsub[istrt];
+                    link[k] = link[isub];
+                    link[isub] = k;
+                    for (int i = istrt; i <= istop; i++)
+                        temp[nzsub[i]] += lnz[i] * ljk;
+                }
+                k = newk;
+            }
+
+            diagj = diag[j] - diagj;
+            if (diagj <= 0.0)
+                return rows[j - 1] + 1;
+            diagj = Math.sqrt(diagj);
+            diag[j] = diagj;
+            int istrt = xlnz[j];
+            int istop = xlnz[j + 1] - 1;
+            if (istop >= istrt) {
+                first[j] = istrt;
+                int isub = nzsub[istrt];
+                link[j] = link[isub];
+                link[isub] = j;
+                for (int i = istrt; i <= istop; i++) {
+                    isub = nzsub[i];
+                    lnz[i] = (lnz[i] - temp[isub]) / diagj;
+                    temp[isub] = 0.0;
+                }
+            }
+        }
+
+        // Forward substitution
+        for (int j = 1; j <= n; j++) {
+            double bj = b[j] / diag[j];
+            b[j] = bj;
+            for (int i = xlnz[j]; i < xlnz[j + 1]; i++)
+                b[nzsub[i]] -= lnz[i] * bj;
+        }
+
+        // Backward substitution
+        for (int j = n; j >= 1; j--) {
+            double bj = b[j];
+            for (int i = xlnz[j]; i < xlnz[j + 1]; i++)
+                bj -= lnz[i] * b[nzsub[i]];
+            b[j] = bj / diag[j];
+        }
+
+        for (int j = 1; j <= n; j++)
+            B[rows[j - 1]] = b[j];
+        return 0;
+    }
+}
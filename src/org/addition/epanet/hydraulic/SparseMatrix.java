@@ -17,6 +17,7 @@
 
 package org.addition.epanet.hydraulic;
 
+import org.addition.epanet.hydraulic.ordering.NodeOrdering;
 import org.addition.epanet.hydraulic.structures.SimulationLink;
 import org.addition.epanet.hydraulic.structures.SimulationNode;
 
@@ -24,11 +25,14 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Linear system solving support class.
  */
-public class SparseMatrix {
+public class SparseMatrix implements LinearSolver {
 
     /**
      * Adjacent item
@@ -90,10 +94,64 @@ public class SparseMatrix {
         return coeffsCount;
     }
 
+    /**
+     * Name of the node ordering strategy.
+     */
+    private final String orderingName;
+    /**
+     * Reordering and symbolic factorization time, in nanoseconds.
+     */
+    private long orderingTime;
+
+    public String getOrderingName() {
+        return orderingName;
+    }
+
+    public long getOrderingTime() {
+        return orderingTime;
+    }
+
+    /**
+     * Number of fill-in coefficients created by the factorization.
+     */
+    public int getFillCount() {
+        return coeffsCount - Ndx.length + 1;
+    }
+
+    /**
+     * Number of off-diagonal non-zeros of the factorized matrix.
+     */
+    public int getNonZeroCount() {
+        return XLNZ[XLNZ.length - 1] - 1;
+    }
+
+    /**
+     * Number of multiply-add operations of the numerical factorization.
+     */
+    public long getFactorOps() {
+        long ops = 0;
+        for (int i = 1; i < XLNZ.length - 1; i++) {
+            long m = XLNZ[i + 1] - XLNZ[i];
+            ops += m * m;
+        }
+        return ops;
+    }
+
     /**
      * Creates sparse representation of coeff. matrix.
      */
     public SparseMatrix(List<SimulationNode> nodes, List<SimulationLink> links, int juncs) {
+        this(nodes, links, juncs, null);
+    }
+
+    /**
+     * Creates sparse representation of coeff. matrix.
+     * @param nodes Collecion of hydraulic simulation nodes.
+     * @param links Collection of hydraulic simulation links.
+     * @param juncs Number of junctions.
+     * @param ordering Node ordering strategy, null for the original minimum degree ordering.
+     */
+    public SparseMatrix(List<SimulationNode> nodes, List<SimulationLink> links, int juncs, NodeOrdering ordering) {
 
         Order = new int[nodes.size() + 1];
         Row = new int[nodes.size() + 1];
@@ -111,13 +169,23 @@ public class SparseMatrix {
 
         coeffsCount = links.size();
 
-        // Re-order nodes to minimize number of non-zero coeffs
-        // in factorized solution matrix. At same time, adjacency
-        // list is updated with links representing non-zero coeffs.
-        reordernodes(adjList, juncs);
-
-        storesparse(adjList,juncs);             // Sort row indexes in NZSUB to optimize linsolve()
-        ordersparse(juncs);
+        long start = System.nanoTime();
+        if (ordering == null) {
+            orderingName = "MD";
+
+            // Re-order nodes to minimize number of non-zero coeffs
+            // in factorized solution matrix. At same time, adjacency
+            // list is updated with links representing non-zero coeffs.
+            reordernodes(adjList, juncs);
+
+            storesparse(adjList,juncs);             // Sort row indexes in NZSUB to optimize linsolve()
+            ordersparse(juncs);
+        } else {
+            orderingName = ordering.getName();
+            ordernodes(adjList, juncs, ordering);
+            symbolic(adjList, juncs);
+        }
+        orderingTime = System.nanoTime() - start;
         buildlists(adjList,nodes, links, false); // Re-build adjacency lists without removing parallel links for use in future connectivity checking.
     }
 
@@ -319,6 +387,113 @@ public class SparseMatrix {
         adjList.get(i).add(0, alink);
     }
 
+    /**
+     * Re-orders the junctions with an external ordering strategy.
+     * @param adjlist Nodes adjacency list.
+     * @param Njuncs Number of junctions.
+     * @param ordering Node ordering strategy.
+     */
+    private void ordernodes(List<List<AdjItem>> adjlist, int Njuncs, NodeOrdering ordering) {
+        for (int k = 1; k < adjlist.size(); k++) {
+            Row[k] = k;
+            Order[k] = k;
+        }
+
+        // Junction graph in compressed rows, zero based
+        int[] xadj = new int[Njuncs + 1];
+        for (int i = 1; i <= Njuncs; i++) {
+            int m = 0;
+            for (AdjItem alink : adjlist.get(i)) {
+                int node = alink.getNode();
+                if (node > 0 && node <= Njuncs && node != i)
+                    m++;
+            }
+            xadj[i] = xadj[i - 1] + m;
+        }
+        int[] adjncy = new int[xadj[Njuncs]];
+        for (int i = 1, k = 0; i <= Njuncs; i++) {
+            for (AdjItem alink : adjlist.get(i)) {
+                int node = alink.getNode();
+                if (node > 0 && node <= Njuncs && node != i)
+                    adjncy[k++] = node - 1;
+            }
+        }
+
+        int[] perm = ordering.order(Njuncs, xadj, adjncy);
+        for (int k = 1; k <= Njuncs; k++) {
+            Order[k] = perm[k - 1] + 1;
+            Row[Order[k]] = k;
+        }
+    }
+
+    /**
+     * Computes the non-zero structure of the factorized matrix from the elimination tree, the structure of each
+     * column is the union of its original entries and of the structures of its children. Fill-in entries get new
+     * coefficient indexes.
+     * @param adjlist Nodes adjacency list.
+     * @param n Number of junctions.
+     */
+    private void symbolic(List<List<AdjItem>> adjlist, int n) {
+        int[][] rows = new int[n + 1][];
+        int[][] coeffs = new int[n + 1][];
+        int[] marker = new int[n + 1];
+        int[] linkOf = new int[n + 1];
+        int[] buf = new int[n + 1];
+        int[] child = new int[n + 1];    // First child in the elimination tree
+        int[] sibling = new int[n + 1];  // Next child of the same parent
+        int nnz = 0;
+
+        for (int j = 1; j <= n; j++) {
+            int m = 0;
+            marker[j] = j;
+
+            for (AdjItem alink : adjlist.get(Order[j])) {
+                int r = Row[alink.getNode()];
+                if (r > j && r <= n && marker[r] != j) {
+                    marker[r] = j;
+                    linkOf[r] = alink.getLink();
+                    buf[m++] = r;
+                }
+            }
+
+            for (int c = child[j]; c != 0; c = sibling[c]) {
+                for (int r : rows[c]) {
+                    if (marker[r] != j) {
+                        marker[r] = j;
+                        linkOf[r] = 0;
+                        buf[m++] = r;
+                    }
+                }
+            }
+
+            Arrays.sort(buf, 0, m);
+            rows[j] = Arrays.copyOf(buf, m);
+            coeffs[j] = new int[m];
+            for (int t = 0; t < m; t++)
+                coeffs[j][t] = linkOf[buf[t]] != 0 ? linkOf[buf[t]] : ++coeffsCount;
+            nnz += m;
+
+            if (m > 0) {
+                int parent = buf[0];
+                sibling[j] = child[parent];
+                child[parent] = j;
+            }
+        }
+
+        XLNZ = new int[n + 2];
+        NZSUB = new int[nnz + 2];
+        LNZ = new int[nnz + 2];
+        XLNZ[1] = 1;
+        for (int j = 1; j <= n; j++) {
+            int k = XLNZ[j];
+            for (int t = 0; t < rows[j].length; t++, k++) {
+                NZSUB[k] = rows[j][t];
+                LNZ[k] = coeffs[j][t];
+            }
+            XLNZ[j + 1] = k;
+        }
+    }
+
     /**
      * Start position of each column in NZSUB.
      */
@@ -417,6 +592,307 @@ public class SparseMatrix {
         }
     }
 
+    /**
+     * Start position of each column in NZSUB, only for reading.
+     */
+    int[] getXLNZ() {
+        return XLNZ;
+    }
+
+    /**
+     * Row index of each coeff. in each column, only for reading.
+     */
+    int[] getNZSUB() {
+        return NZSUB;
+    }
+
+    /**
+     * Position of each coeff. in Aij array, only for reading.
+     */
+    int[] getLNZ() {
+        return LNZ;
+    }
+
+    /**
+     * Number of coefficients of the original matrix, the fill-in coefficients come after them.
+     */
+    int getLinkCoeffsCount() {
+        return Ndx.length - 1;
+    }
+
+    /**
+     * The direct solver keeps no state between solves.
+     */
+    public void reset() {
+    }
+
+    /**
+     * Use the supernodal factorization in linsolve.
+     */
+    private boolean supernodal;
+    /**
+     * Number of supernodes.
+     */
+    private int snCount;
+    /**
+     * First column of each supernode, snStart[snCount] is n+1.
+     */
+    private int[] snStart;
+    /**
+     * Supernode of each column.
+     */
+    private int[] snOf;
+    /**
+     * Start of each supernode dense panel in the factor storage.
+     */
+    private int[] snPtr;
+
+    public boolean isSupernodal() {
+        return supernodal;
+    }
+
+    /**
+     * Enables the supernodal factorization, finding the supernodes of the factorized matrix structure.
+     * @param supernodal True to factor dense column blocks together.
+     */
+    public void setSupernodal(boolean supernodal) {
+        if (supernodal && snStart == null)
+            findsupernodes(XLNZ.length - 2);
+        this.supernodal = supernodal;
+    }
+
+    /**
+     * Number of supernodes of the factorized matrix.
+     */
+    public int getSupernodeCount() {
+        if (snStart == null)
+            findsupernodes(XLNZ.length - 2);
+        return snCount;
+    }
+
+    /**
+     * Pool of the parallel factorization, null for sequential.
+     */
+    private ForkJoinPool pool;
+    /**
+     * Supernodes of each elimination tree level, the supernodes of level l are levelSn[levelPtr[l]] to
+     * levelSn[levelPtr[l+1]-1] and only depend on supernodes of lower levels.
+     */
+    private int[] levelPtr;
+    private int[] levelSn;
+    /**
+     * Descendant supernodes updating each supernode, updSn[updPtr[J]] to updSn[updPtr[J+1]-1], with the range
+     * of their panel rows that fall in the columns of J.
+     */
+    private int[] updPtr;
+    private int[] updSn;
+    private int[] updFirst;
+    private int[] updLast;
+    /**
+     * Row to panel row map of each worker thread.
+     */
+    private ThreadLocal<int[]> relMap;
+
+    /**
+     * Work vectors of the factorizations, kept for each thread since simulations in different threads may share
+     * the matrix.
+     */
+    private static class Workspace {
+        // Column factorization
+        double[] temp;
+        int[] link;
+        int[] first;
+        boolean[] redo;
+
+        // Supernodal factorization
+        double[] panel;
+        int[] rel;
+        int[] snLink;
+        int[] snFirst;
+    }
+
+    private final ThreadLocal<Workspace> workspace = new ThreadLocal<Workspace>() {
+        protected Workspace initialValue() {
+            return new Workspace();
+        }
+    };
+
+    // Work vectors of the column factorization for the calling thread
+    private Workspace columnWorkspace(int n) {
+        Workspace ws = workspace.get();
+        if (ws.link == null || ws.link.length != n + 1) {
+            ws.temp = new double[n + 1];
+            ws.link = new int[n + 1];
+            ws.first = new int[n + 1];
+            ws.redo = new boolean[n + 1];
+        }
+        return ws;
+    }
+
+    // Work vectors of the supernodal factorization for the calling thread
+    private Workspace panelWorkspace(int n) {
+        Workspace ws = workspace.get();
+        if (ws.panel == null || ws.panel.length != snPtr[snCount] || ws.rel.length != n + 1
+                || ws.snLink.length != snCount) {
+            ws.panel = new double[snPtr[snCount]];
+            ws.rel = new int[n + 1];
+            ws.snLink = new int[snCount];
+            ws.snFirst = new int[snCount];
+        }
+        return ws;
+    }
+
+    public ForkJoinPool getParallel() {
+        return pool;
+    }
+
+    /**
+     * Enables the parallel supernodal factorization and triangular solves. Supernodes on the same level of the
+     * elimination tree are processed concurrently, levels with few supernodes run in the calling thread.
+     * @param pool Pool running the factorization, null to disable.
+     */
+    public void setParallel(ForkJoinPool pool) {
+        if (pool != null && levelPtr == null) {
+            if (snStart == null)
+                findsupernodes(XLNZ.length - 2);
+            buildschedule(XLNZ.length - 2);
+        }
+        this.pool = pool;
+    }
+
+    /**
+     * Number of elimination tree levels of the parallel factorization.
+     */
+    public int getLevelCount() {
+        if (levelPtr == null) {
+            if (snStart == null)
+                findsupernodes(XLNZ.length - 2);
+            buildschedule(XLNZ.length - 2);
+        }
+        return levelPtr.length - 1;
+    }
+
+    /**
+     * Computes the elimination tree levels of the supernodes and the static list of updates of each supernode.
+     * @param n Number of junctions.
+     */
+    private void buildschedule(final int n) {
+        int ns = snCount;
+        int[] level = new int[ns];
+        int[] count = new int[ns + 1];
+        int levels = 0;
+
+        // Children always precede their parents
+        for (int J = 0; J < ns; J++) {
+            int f = snStart[J];
+            int w = snStart[J + 1] - f;
+            int m = XLNZ[f + 1] - XLNZ[f] + 1;
+            int rJ = XLNZ[f] - 1;
+            if (m > w) {
+                int parent = snOf[NZSUB[rJ + w]];
+                level[parent] = Math.max(level[parent], level[J] + 1);
+            }
+            levels = Math.max(levels, level[J] + 1);
+
+            for (int q = w; q < m; ) {
+                int target = snOf[NZSUB[rJ + q]];
+                while (q < m && NZSUB[rJ + q] < snStart[target + 1])
+                    q++;
+                count[target + 1]++;
+            }
+        }
+
+        int[] lptr = new int[levels + 1];
+        for (int J = 0; J < ns; J++)
+            lptr[level[J] + 1]++;
+        for (int l = 0; l < levels; l++)
+            lptr[l + 1] += lptr[l];
+        int[] lsn = new int[ns];
+        int[] pos = Arrays.copyOf(lptr, levels);
+        for (int J = 0; J < ns; J++)
+            lsn[pos[level[J]]++] = J;
+
+        for (int J = 0; J < ns; J++)
+            count[J + 1] += count[J];
+        int[] usn = new int[count[ns]];
+        int[] ufirst = new int[count[ns]];
+        int[] ulast = new int[count[ns]];
+        int[] upos = Arrays.copyOf(count, ns);
+        for (int K = 0; K < ns; K++) {
+            int f = snStart[K];
+            int w = snStart[K + 1] - f;
+            int m = XLNZ[f + 1] - XLNZ[f] + 1;
+            int rK = XLNZ[f] - 1;
+            for (int q = w; q < m; ) {
+                int target = snOf[NZSUB[rK + q]];
+                int u = upos[target]++;
+                usn[u] = K;
+                ufirst[u] = q;
+                while (q < m && NZSUB[rK + q] < snStart[target + 1])
+                    q++;
+                ulast[u] = q;
+            }
+        }
+
+        updPtr = count;
+        updSn = usn;
+        updFirst = ufirst;
+        updLast = ulast;
+        relMap = new ThreadLocal<int[]>() {
+            protected int[] initialValue() {
+                return new int[n + 1];
+            }
+        };
+        levelSn = lsn;
+        levelPtr = lptr;
+    }
+
+    /**
+     * Groups the columns of the factorized matrix into fundamental supernodes, sets of consecutive columns where
+     * each column is the parent of the previous one in the elimination tree and has the same structure below
+     * the diagonal block.
+     * @param n Number of junctions.
+     */
+    private void findsupernodes(int n) {
+        int[] start = new int[n + 2];
+        int[] of = new int[n + 2];
+        int[] ptr = new int[n + 2];
+        int ns = 0;
+
+        for (int j = 1; j <= n; j++) {
+            if (j == 1 || !samestructure(j - 1))
+                start[ns++] = j;
+            of[j] = ns - 1;
+        }
+        start[ns] = n + 1;
+
+        for (int s = 0; s < ns; s++) {
+            int f = start[s];
+            int m = XLNZ[f + 1] - XLNZ[f] + 1;
+            ptr[s + 1] = ptr[s] + m * (start[s + 1] - f);
+        }
+
+        snOf = of;
+        snPtr = ptr;
+        snCount = ns;
+        snStart = start;
+    }
+
+    /**
+     * Checks if column j+1 belongs to the same supernode as column j.
+     * @param j Column index.
+     */
+    private boolean samestructure(int j) {
+        int kj = XLNZ[j];
+        int m = XLNZ[j + 1] - kj;
+        if (m == 0 || NZSUB[kj] != j + 1 || XLNZ[j + 2] - XLNZ[j + 1] != m - 1)
+            return false;
+        for (int t = 1; t < m; t++)
+            if (NZSUB[kj + t] != NZSUB[XLNZ[j + 1] + t - 1])
+                return false;
+        return true;
+    }
+
     /**
      * Solves sparse symmetric system of linear equations using Cholesky factorization.
      * @param n Number of equations.
@@ -427,12 +903,20 @@ public class SparseMatrix {
      */
     public int linsolve(int n, double [] Aii, double [] Aij, double [] B)
     {
+        if (pool != null)
+            return linsolvepar(n, Aii, Aij, B);
+        if (supernodal)
+            return linsolvesn(n, Aii, Aij, B);
+
         int    i, istop, istrt, isub, j, k, kfirst, newk;
         double bj, diagj, ljk;
 
-        double [] temp = new double[n+1];
-        int [] link = new int[n+1];
-        int [] first = new int[n+1];
+        Workspace ws = columnWorkspace(n);
+        double [] temp = ws.temp;
+        int [] link = ws.link;
+        int [] first = ws.first;
+        Arrays.fill(temp, 0.0);
+        Arrays.fill(link, 0);
 
         // Begin numerical factorization of matrix A into L
         // Compute column L(*,j) for j = 1,...n
@@ -500,6 +984,105 @@ public class SparseMatrix {
             }
         }
 
+        substitute(n, Aii, Aij, B);
+        return(0);
+    }
+
+    /**
+     * Supernodal variant of linsolve. The columns of each supernode are gathered into a dense panel, updated
+     * by the panels of its descendants in the elimination tree and factored with dense kernels. The factor is
+     * written back into Aii and Aij as in linsolve.
+     * @param n Number of equations.
+     * @param Aii Diagonal entries of solution matrix.
+     * @param Aij Non-zero off-diagonal entries of matrix.
+     * @param B Right hand side coeffs, after solving it's also used as the solution vector.
+     * @return 0 if solution found, or index of equation causing system to be ill-conditioned.
+     */
+    private int linsolvesn(int n, double[] Aii, double[] Aij, double[] B) {
+        int ns = snCount;
+        Workspace ws = panelWorkspace(n);
+        double[] L = ws.panel;
+        int[] rel = ws.rel;
+        int[] link = ws.snLink;
+        int[] first = ws.snFirst;
+        Arrays.fill(link, -1);
+
+        for (int J = 0; J < ns; J++) {
+            gatherpanel(J, Aii, Aij, L, rel);
+
+            // Updates from the descendant supernodes
+            int f = snStart[J];
+            int w = snStart[J + 1] - f;
+            int K = link[J];
+            while (K != -1) {
+                int nextK = link[K];
+                int mK = XLNZ[snStart[K] + 1] - XLNZ[snStart[K]] + 1;
+                int rK = XLNZ[snStart[K]] - 1;
+                int q0 = first[K];
+                int q1 = q0;
+                while (q1 < mK && NZSUB[rK + q1] < f + w)
+                    q1++;
+
+                updatepanel(K, q0, q1, J, L, rel);
+
+                if (q1 < mK) {
+                    int target = snOf[NZSUB[rK + q1]];
+                    first[K] = q1;
+                    link[K] = link[target];
+                    link[target] = K;
+                }
+                K = nextK;
+            }
+
+            int err = factorpanel(J, L);
+            if (err != 0)
+                return err;
+
+            int m = XLNZ[f + 1] - XLNZ[f] + 1;
+            if (m > w) {
+                first[J] = w;
+                int target = snOf[NZSUB[XLNZ[f] - 1 + w]];
+                link[J] = link[target];
+                link[target] = J;
+            }
+
+            storepanel(J, Aii, Aij, L);
+        }
+
+        // Foward substitution
+        for (int J = 0; J < ns; J++) {
+            int f = snStart[J];
+            int w = snStart[J + 1] - f;
+            int m = XLNZ[f + 1] - XLNZ[f] + 1;
+            int rJ = XLNZ[f] - 1;
+            for (int c = 0; c < w; c++) {
+                int col = snPtr[J] + c * m;
+                double bj = B[f + c - 1] / L[col + c];
+                B[f + c - 1] = bj;
+                for (int i = c + 1; i < m; i++)
+                    B[NZSUB[rJ + i] - 1] -= L[col + i] * bj;
+            }
+        }
+
+        // Backward substitution
+        for (int J = ns - 1; J >= 0; J--)
+            backwardpanel(J, L, B);
+
+        return 0;
+    }
+
+    /**
+     * Forward and backward substitution with the factorized matrix.
+     * @param n Number of equations.
+     * @param Aii Diagonal entries of the factor.
+     * @param Aij Off-diagonal entries of the factor.
+     * @param B Right hand side coeffs, after solving it's also used as the solution vector.
+     */
+    private void substitute(int n, double [] Aii, double [] Aij, double [] B)
+    {
+        int    i, istop, istrt, isub, j;
+        double bj;
+
         // Foward substitution
         for (j=1; j<=n; j++)
         {
@@ -533,10 +1116,375 @@ public class SparseMatrix {
             }
             B[j-1] = bj/Aii[j-1];
         }
+    }
+
+    /**
+     * Solves the system after a change in the matrix entries of a few rows, reusing the columns of a previous
+     * factorization. Only the columns on the elimination tree paths from the changed rows to the root, and the
+     * columns the previous factorization didn't reach, are computed again.
+     * @param n Number of equations.
+     * @param Aii Diagonal entries of solution matrix.
+     * @param Aij Non-zero off-diagonal entries of matrix.
+     * @param B Right hand side coeffs, after solving it's also used as the solution vector.
+     * @param Lii Diagonal entries of the previous factorization.
+     * @param Lij Off-diagonal entries of the previous factorization.
+     * @param valid Number of columns computed by the previous factorization.
+     * @param rows Changed rows (1 based), rows above n are ignored.
+     * @return 0 if solution found, or index of equation causing system to be ill-conditioned.
+     */
+    public int refactor(int n, double [] Aii, double [] Aij, double [] B, double [] Lii, double [] Lij,
+                        int valid, int [] rows)
+    {
+        int    i, istop, istrt, isub, j, k, kfirst, newk;
+        double bj, diagj, ljk;
+
+        Workspace ws = columnWorkspace(n);
+        boolean [] redo = ws.redo;
+        Arrays.fill(redo, false);
+        for (j=valid+1; j<=n; j++)
+            redo[j] = true;
+        for (int r : rows)
+        {
+            j = r;
+            while (j >= 1 && j <= n && !redo[j])
+            {
+                redo[j] = true;
+                j = XLNZ[j+1] > XLNZ[j] ? NZSUB[XLNZ[j]] : 0;
+            }
+        }
+
+        // Columns that don't depend on the changed rows keep their previous values
+        for (j=1; j<=n; j++)
+        {
+            if (redo[j])
+                continue;
+            Aii[j-1] = Lii[j-1];
+            for (i=XLNZ[j]; i<XLNZ[j+1]; i++)
+                Aij[LNZ[i]-1] = Lij[LNZ[i]-1];
+        }
+
+        double [] temp = ws.temp;
+        int [] link = ws.link;
+        int [] first = ws.first;
+        Arrays.fill(temp, 0.0);
+        Arrays.fill(link, 0);
+
+        for (j=1; j<=n; j++)
+        {
+            diagj = 0.0;
+            newk = link[j];
+            k = newk;
+            while (k != 0)
+            {
+                newk = link[k];
+                kfirst = first[k];
+                ljk = Aij[LNZ[kfirst]-1];
+                diagj += ljk*ljk;
+                istrt = kfirst + 1;
+                istop = XLNZ[k+1] - 1;
+                if (istop >= istrt)
+                {
+                    first[k] = istrt;
+                    isub = NZSUB[istrt];
+                    link[k] = link[isub];
+                    link[isub] = k;
+
+                    if (redo[j])
+                    {
+                        for (i=istrt; i<=istop; i++)
+                        {
+                            isub = NZSUB[i];
+                            temp[isub] += Aij[LNZ[i]-1]*ljk;
+                        }
+                    }
+                }
+                k = newk;
+            }
+
+            istrt = XLNZ[j];
+            istop = XLNZ[j+1] - 1;
+            if (redo[j])
+            {
+                diagj = Aii[j-1] - diagj;
+                if (diagj <= 0.0)        // Check for ill-conditioning
+                {
+                    return j;
+                }
+                diagj = Math.sqrt(diagj);
+                Aii[j-1] = diagj;
+            }
+            if (istop >= istrt)
+            {
+                first[j] = istrt;
+                isub = NZSUB[istrt];
+                link[j] = link[isub];
+                link[isub] = j;
+                if (redo[j])
+                {
+                    for (i=istrt; i<=istop; i++)
+                    {
+                        isub = NZSUB[i];
+                        bj = (Aij[LNZ[i]-1] - temp[isub])/diagj;
+                        Aij[LNZ[i]-1] = bj;
+                        temp[isub] = 0.0;
+                    }
+                }
+            }
+        }
+
+        substitute(n, Aii, Aij, B);
 
         return(0);
     }
 
-}
+    /**
+     * Minimum number of supernodes of a level to process it in parallel.
+     */
+    private static final int PARALLEL_GRAIN = 8;
+
+    private static final int FACTOR = 0;
+    private static final int FORWARD = 1;
+    private static final int BACKWARD = 2;
 
+    /**
+     * Processes a range of supernodes of an elimination tree level, splitting it among the pool threads.
+     */
+    private class LevelTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int phase, lo, hi;
+        private final double[] Aii, Aij, L, B;
+        private final AtomicInteger error;
+
+        LevelTask(int phase, int lo, int hi, double[] Aii, double[] Aij, double[] L, double[] B, AtomicInteger error) {
+            this.phase = phase;
+            this.lo = lo;
+            this.hi = hi;
+            this.Aii = Aii;
+            this.Aij = Aij;
+            this.L = L;
+            this.B = B;
+            this.error = error;
+        }
 
+        protected void compute() {
+            if (hi - lo <= PARALLEL_GRAIN) {
+                runlevel(phase, lo, hi, Aii, Aij, L, B, error);
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new LevelTask(phase, lo, mid, Aii, Aij, L, B, error),
+                    new LevelTask(phase, mid, hi, Aii, Aij, L, B, error));
+        }
+    }
+
+    /**
+     * Parallel variant of linsolve. The supernodes are factored level by level of the elimination tree, and
+     * the forward and backward substitutions follow the same levels, gathering the contributions of the
+     * descendant supernodes so that each supernode only writes its own rows.
+     * @param n Number of equations.
+     * @param Aii Diagonal entries of solution matrix.
+     * @param Aij Non-zero off-diagonal entries of matrix.
+     * @param B Right hand side coeffs, after solving it's also used as the solution vector.
+     * @return 0 if solution found, or index of equation causing system to be ill-conditioned.
+     */
+    private int linsolvepar(int n, double[] Aii, double[] Aij, double[] B) {
+        double[] L = panelWorkspace(n).panel;
+        AtomicInteger error = new AtomicInteger(0);
+        int levels = levelPtr.length - 1;
+
+        for (int l = 0; l < levels; l++) {
+            schedule(FACTOR, l, Aii, Aij, L, B, error);
+            if (error.get() != 0)
+                return error.get();
+        }
+
+        for (int l = 0; l < levels; l++)
+            schedule(FORWARD, l, Aii, Aij, L, B, error);
+
+        for (int l = levels - 1; l >= 0; l--)
+            schedule(BACKWARD, l, Aii, Aij, L, B, error);
+
+        return 0;
+    }
+
+    private void schedule(int phase, int l, double[] Aii, double[] Aij, double[] L, double[] B, AtomicInteger error) {
+        int lo = levelPtr[l];
+        int hi = levelPtr[l + 1];
+        if (hi - lo < PARALLEL_GRAIN)
+            runlevel(phase, lo, hi, Aii, Aij, L, B, error);
+        else
+            pool.invoke(new LevelTask(phase, lo, hi, Aii, Aij, L, B, error));
+    }
+
+    private void runlevel(int phase, int lo, int hi, double[] Aii, double[] Aij, double[] L, double[] B,
+                          AtomicInteger error) {
+        int[] rel = phase == FACTOR ? relMap.get() : null;
+        for (int s = lo; s < hi; s++) {
+            int J = levelSn[s];
+            switch (phase) {
+                case FACTOR:
+                    gatherpanel(J, Aii, Aij, L, rel);
+                    for (int u = updPtr[J]; u < updPtr[J + 1]; u++)
+                        updatepanel(updSn[u], updFirst[u], updLast[u], J, L, rel);
+                    int err = factorpanel(J, L);
+                    if (err != 0) {
+                        int cur = error.get();
+                        while ((cur == 0 || err < cur) && !error.compareAndSet(cur, err))
+                            cur = error.get();
+                    } else
+                        storepanel(J, Aii, Aij, L);
+                    break;
+                case FORWARD:
+                    forwardpanel(J, L, B);
+                    break;
+                case BACKWARD:
+                    backwardpanel(J, L, B);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Forward substitution of the columns of a supernode, gathering the contributions of its descendants.
+     */
+    private void forwardpanel(int J, double[] L, double[] B) {
+        for (int u = updPtr[J]; u < updPtr[J + 1]; u++) {
+            int K = updSn[u];
+            int fK = snStart[K];
+            int wK = snStart[K + 1] - fK;
+            int mK = XLNZ[fK + 1] - XLNZ[fK] + 1;
+            int pK = snPtr[K];
+            int rK = XLNZ[fK] - 1;
+            for (int q = updFirst[u]; q < updLast[u]; q++) {
+                double sum = 0.0;
+                for (int t = 0; t < wK; t++)
+                    sum += L[pK + t * mK + q] * B[fK + t - 1];
+                B[NZSUB[rK + q] - 1] -= sum;
+            }
+        }
+
+        int f = snStart[J];
+        int w = snStart[J + 1] - f;
+        int m = XLNZ[f + 1] - XLNZ[f] + 1;
+        for (int c = 0; c < w; c++) {
+            int col = snPtr[J] + c * m;
+            double bj = B[f + c - 1] / L[col + c];
+            B[f + c - 1] = bj;
+            for (int i = c + 1; i < w; i++)
+                B[f + i - 1] -= L[col + i] * bj;
+        }
+    }
+
+    /**
+     * Gathers the columns of a supernode into its dense panel and maps the panel rows into rel.
+     */
+    private void gatherpanel(int J, double[] Aii, double[] Aij, double[] L, int[] rel) {
+        int f = snStart[J];
+        int w = snStart[J + 1] - f;
+        int m = XLNZ[f + 1] - XLNZ[f] + 1;
+        int pJ = snPtr[J];
+        int rJ = XLNZ[f] - 1;     // Rows of the panel are f, NZSUB[rJ+1], ...
+
+        for (int c = 0; c < w; c++) {
+            int j = f + c;
+            int col = pJ + c * m;
+            L[col + c] = Aii[j - 1];
+            for (int k = XLNZ[j], i = c + 1; k < XLNZ[j + 1]; k++, i++)
+                L[col + i] = Aij[LNZ[k] - 1];
+        }
+        rel[f] = 0;
+        for (int i = 1; i < m; i++)
+            rel[NZSUB[rJ + i]] = i;
+    }
+
+    /**
+     * Subtracts from the panel of supernode J the update of the rows q0 to q1-1 of the factored supernode K.
+     */
+    private void updatepanel(int K, int q0, int q1, int J, double[] L, int[] rel) {
+        int f = snStart[J];
+        int m = XLNZ[f + 1] - XLNZ[f] + 1;
+        int pJ = snPtr[J];
+        int fK = snStart[K];
+        int wK = snStart[K + 1] - fK;
+        int mK = XLNZ[fK + 1] - XLNZ[fK] + 1;
+        int pK = snPtr[K];
+        int rK = XLNZ[fK] - 1;
+
+        for (int q = q0; q < q1; q++) {
+            int col = pJ + (NZSUB[rK + q] - f) * m;
+            for (int t = 0; t < wK; t++) {
+                int colK = pK + t * mK;
+                double lqt = L[colK + q];
+                if (lqt == 0.0)
+                    continue;
+                for (int i = q; i < mK; i++)
+                    L[col + rel[NZSUB[rK + i]]] -= L[colK + i] * lqt;
+            }
+        }
+    }
+
+    /**
+     * Dense Cholesky of the diagonal block of a panel and scaling of the rows below it.
+     * @return 0 if the block is positive definite, or index of equation causing system to be ill-conditioned.
+     */
+    private int factorpanel(int J, double[] L) {
+        int f = snStart[J];
+        int w = snStart[J + 1] - f;
+        int m = XLNZ[f + 1] - XLNZ[f] + 1;
+        int pJ = snPtr[J];
+
+        for (int c = 0; c < w; c++) {
+            int col = pJ + c * m;
+            double diag = L[col + c];
+            if (diag <= 0.0)        // Check for ill-conditioning
+                return f + c;
+            diag = Math.sqrt(diag);
+            L[col + c] = diag;
+            for (int i = c + 1; i < m; i++)
+                L[col + i] /= diag;
+            for (int c2 = c + 1; c2 < w; c2++) {
+                int col2 = pJ + c2 * m;
+                double lc = L[col + c2];
+                if (lc == 0.0)
+                    continue;
+                for (int i = c2; i < m; i++)
+                    L[col2 + i] -= L[col + i] * lc;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Stores the factored panel columns into Aii and Aij.
+     */
+    private void storepanel(int J, double[] Aii, double[] Aij, double[] L) {
+        int f = snStart[J];
+        int w = snStart[J + 1] - f;
+        int m = XLNZ[f + 1] - XLNZ[f] + 1;
+        for (int c = 0; c < w; c++) {
+            int j = f + c;
+            int col = snPtr[J] + c * m;
+            Aii[j - 1] = L[col + c];
+            for (int k = XLNZ[j], i = c + 1; k < XLNZ[j + 1]; k++, i++)
+                Aij[LNZ[k] - 1] = L[col + i];
+        }
+    }
+
+    /**
+     * Backward substitution of the columns of a supernode.
+     */
+    private void backwardpanel(int J, double[] L, double[] B) {
+        int f = snStart[J];
+        int w = snStart[J + 1] - f;
+        int m = XLNZ[f + 1] - XLNZ[f] + 1;
+        int rJ = XLNZ[f] - 1;
+        for (int c = w - 1; c >= 0; c--) {
+            int col = snPtr[J] + c * m;
+            double bj = B[f + c - 1];
+            for (int i = c + 1; i < m; i++)
+                bj -= L[col + i] * B[NZSUB[rJ + i] - 1];
+            B[f + c - 1] = bj / L[col + c];
+        }
+    }
+}
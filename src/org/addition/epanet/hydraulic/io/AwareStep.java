@@ -31,6 +31,7 @@ import org.addition.epanet.network.structures.Pump;
 import org.addition.epanet.quality.QualitySim;
 import org.addition.epanet.quality.structures.QualityLink;
 import org.addition.epanet.quality.structures.QualityNode;
+import org.addition.epanet.util.ChunkedRecords;
 import org.addition.epanet.util.ENException;
 
 import java.io.DataInput;
@@ -42,6 +43,13 @@ import java.util.List;
 
 /**
  * Aware compatible hydraulic step snapshot
+ * <p/>
+ * Steps are written in one of two formats. The Aware compatible format (version {@link #FORMAT_VERSION}) stores
+ * three doubles per node and three per link, the third one being the quality or zero. The compact format (version
+ * {@link #COMPACT_FORMAT_VERSION}) stores only the variables of a {@link Layout}, each as a column of floats or
+ * doubles for all the nodes or links, and records the layout in the header so the steps can be read back. The
+ * compressed format (version {@link #COMPRESSED_FORMAT_VERSION}) stores the steps of the compact format in chunks
+ * compressed by {@link ChunkedRecords}, with the full precision layout if none is set.
  */
 public class AwareStep {
     private double[] QN;
@@ -56,6 +64,88 @@ public class AwareStep {
 
     public static final int FORMAT_VERSION = 1;
 
+    public static final int COMPACT_FORMAT_VERSION = 2;
+
+    public static final int COMPRESSED_FORMAT_VERSION = 3;
+
+    /**
+     * Variables of the compact format, written in this order.
+     */
+    public static enum Variable {
+        NODE_DEMAND,
+        NODE_HEAD,
+        NODE_QUALITY,
+        LINK_FLOW,
+        LINK_HEADLOSS,  // Head difference between the start and end nodes
+        LINK_QUALITY;
+
+        public boolean isNode() {
+            return this == NODE_DEMAND || this == NODE_HEAD || this == NODE_QUALITY;
+        }
+    }
+
+    private static final Variable[] VARIABLES = Variable.values();
+
+    // Layout of the compressed format when the simulation has none
+    private static final Layout DOUBLE_LAYOUT = new Layout(8);
+
+    /**
+     * Variables written in the compact format and their precision, 4 bytes for floats, 8 for doubles and 0 for
+     * the variables left out.
+     */
+    public static class Layout {
+        private final int[] bytes = new int[VARIABLES.length];
+
+        /**
+         * Creates a layout without variables.
+         */
+        public Layout() {
+        }
+
+        /**
+         * Creates a layout with the hydraulic variables, demands, heads, flows and head losses.
+         *
+         * @param bytes 4 to write floats, 8 to write doubles.
+         */
+        public Layout(int bytes) {
+            set(Variable.NODE_DEMAND, bytes);
+            set(Variable.NODE_HEAD, bytes);
+            set(Variable.LINK_FLOW, bytes);
+            set(Variable.LINK_HEADLOSS, bytes);
+        }
+
+        /**
+         * Set the precision of a variable.
+         *
+         * @param variable Variable.
+         * @param bytes    4 to write floats, 8 to write doubles, 0 to leave it out.
+         * @return This layout.
+         */
+        public Layout set(Variable variable, int bytes) {
+            if (bytes != 0 && bytes != 4 && bytes != 8)
+                throw new IllegalArgumentException("Variables are written with 4 or 8 bytes");
+            this.bytes[variable.ordinal()] = bytes;
+            return this;
+        }
+
+        /**
+         * Get the precision of a variable, in bytes, 0 if the variable isn't written.
+         */
+        public int getBytes(Variable variable) {
+            return bytes[variable.ordinal()];
+        }
+
+        /**
+         * Size of a step, in bytes.
+         */
+        public int getStepSize(int nodes, int links) {
+            int size = Long.SIZE * 2 / 8;
+            for (Variable v : VARIABLES)
+                size += bytes[v.ordinal()] * (v.isNode() ? nodes : links);
+            return size;
+        }
+    }
+
     public static class HeaderInfo {
         public int version;
         public int nodes;
@@ -63,15 +153,99 @@ public class AwareStep {
         public long rstart;
         public long rstep;
         public long duration;
+        public Layout layout;   // Null for the Aware compatible format
+        public int chunkSteps;  // Steps of a compressed chunk, 0 if the steps aren't compressed
+
+        /**
+         * Size of a step, in bytes.
+         */
+        public int getStepSize() {
+            if (layout != null)
+                return layout.getStepSize(nodes, links);
+            return (nodes * 3 + links * 3) * Double.SIZE / 8 + Long.SIZE * 2 / 8;
+        }
+
+        /**
+         * Size of the header, in bytes.
+         */
+        public int getHeaderSize() {
+            int size = Integer.SIZE * 3 / 8 + Long.SIZE * 3 / 8;
+            if (layout != null)
+                size += Integer.SIZE / 8 + VARIABLES.length;
+            if (chunkSteps > 0)
+                size += Integer.SIZE / 8;
+            return size;
+        }
+
+        /**
+         * Number and size of the values of a step, in the order they're written.
+         */
+        public int[] getWords() {
+            if (layout == null)
+                return new int[]{nodes * 3 + links * 3 + 2, Double.SIZE / 8};
+            int[] words = new int[VARIABLES.length * 2 + 2];
+            for (Variable v : VARIABLES) {
+                words[v.ordinal() * 2] = v.isNode() ? nodes : links;
+                words[v.ordinal() * 2 + 1] = layout.getBytes(v);
+            }
+            words[VARIABLES.length * 2] = 2;
+            words[VARIABLES.length * 2 + 1] = Long.SIZE / 8;
+            return words;
+        }
+    }
+
+    // Layout of the steps written by a simulation, null for the Aware compatible format
+    private static Layout outputLayout(HydraulicSim hydraulicSim) {
+        Layout layout = hydraulicSim.getOutputLayout();
+        if (layout == null && hydraulicSim.getOutputCompression() > 0)
+            return DOUBLE_LAYOUT;
+        return layout;
+    }
+
+    // Counts and layout of the steps written by a simulation
+    private static HeaderInfo outputHeader(HydraulicSim hydraulicSim) {
+        HeaderInfo headerInfo = new HeaderInfo();
+        headerInfo.nodes = hydraulicSim.getnNodes().size();
+        headerInfo.links = hydraulicSim.getnLinks().size();
+        headerInfo.layout = outputLayout(hydraulicSim);
+        return headerInfo;
     }
 
     public static void writeHeader(DataOutput outStream, HydraulicSim hydraulicSim, long rstart, long rstep, long duration) throws IOException, ENException {
-        outStream.writeInt(FORMAT_VERSION);
+        Layout layout = outputLayout(hydraulicSim);
+        int chunkSteps = hydraulicSim.getOutputCompression();
+        if (chunkSteps > 0)
+            outStream.writeInt(COMPRESSED_FORMAT_VERSION);
+        else
+            outStream.writeInt(layout != null ? COMPACT_FORMAT_VERSION : FORMAT_VERSION);
         outStream.writeInt(hydraulicSim.getnNodes().size());
         outStream.writeInt(hydraulicSim.getnLinks().size());
         outStream.writeLong(rstart);
         outStream.writeLong(rstep);
         outStream.writeLong(duration);
+
+        // Precision of each variable
+        if (layout != null) {
+            outStream.writeInt(VARIABLES.length);
+            for (Variable v : VARIABLES)
+                outStream.writeByte(layout.getBytes(v));
+        }
+
+        if (chunkSteps > 0)
+            outStream.writeInt(ChunkedRecords.chunkRecords(outputHeader(hydraulicSim).getStepSize(), chunkSteps));
+    }
+
+    /**
+     * Creates the stream that compresses the steps written after the header, for the compressed format.
+     *
+     * @param outStream    Output of the hydraulic file, after the header.
+     * @param hydraulicSim Hydraulic simulation.
+     * @return Stream to write the steps to, finished at the end of the simulation.
+     */
+    public static ChunkedRecords.Writer compressSteps(DataOutput outStream, HydraulicSim hydraulicSim) {
+        HeaderInfo headerInfo = outputHeader(hydraulicSim);
+        return new ChunkedRecords.Writer(outStream, headerInfo.getStepSize(), headerInfo.getWords(),
+                hydraulicSim.getOutputCompression());
     }
 
     public static HeaderInfo readHeader(DataInput in) throws IOException, ENException {
@@ -82,11 +256,38 @@ public class AwareStep {
         headerInfo.rstart = in.readLong();
         headerInfo.rstep = in.readLong();
         headerInfo.duration = in.readLong();
+
+        if (headerInfo.version == COMPACT_FORMAT_VERSION || headerInfo.version == COMPRESSED_FORMAT_VERSION) {
+            int count = in.readInt();
+            if (count != VARIABLES.length)
+                throw new ENException(307);
+            Layout layout = new Layout();
+            for (Variable v : VARIABLES) {
+                int bytes = in.readByte();
+                if (bytes != 0 && bytes != 4 && bytes != 8)
+                    throw new ENException(307);
+                layout.set(v, bytes);
+            }
+            headerInfo.layout = layout;
+
+            if (headerInfo.version == COMPRESSED_FORMAT_VERSION) {
+                headerInfo.chunkSteps = in.readInt();
+                if (headerInfo.chunkSteps <= 0)
+                    throw new ENException(307);
+            }
+        } else if (headerInfo.version != FORMAT_VERSION)
+            throw new ENException(307);
+
         return headerInfo;
     }
 
 
     public static void write(DataOutput outStream, HydraulicSim hydraulicSim, long hydStep) throws IOException, ENException {
+        Layout layout = outputLayout(hydraulicSim);
+        if (layout != null) {
+            writeCompact(outStream, hydraulicSim, null, layout, hydStep, hydraulicSim.getHtime());
+            return;
+        }
 
         List<SimulationNode> nodes = hydraulicSim.getnNodes();
         List<SimulationLink> links = hydraulicSim.getnLinks();
@@ -97,16 +298,18 @@ public class AwareStep {
 
         int baSize = (nNodes * 3 + nLinks * 3) * Double.SIZE / 8 +
                 Long.SIZE * 2 / 8;
-        ByteBuffer buf = ByteBuffer.allocate(baSize);
+        ByteBuffer buf = stepBuffer(hydraulicSim, baSize);
 
 
-        for (SimulationNode node : nodes) {
+        for (int i = 0; i < nNodes; i++) {
+            SimulationNode node = nodes.get(i);
             buf.putDouble(node.getSimDemand());
             buf.putDouble(node.getSimHead());
             buf.putDouble(0.0);
         }
 
-        for (SimulationLink link : links) {
+        for (int i = 0; i < nLinks; i++) {
+            SimulationLink link = links.get(i);
             buf.putDouble(link.getSimStatus().id <= Link.StatType.CLOSED.id ? 0d : link.getSimFlow());
             buf.putDouble((link.getFirst().getSimHead() - link.getSecond().getSimHead()));
             buf.putDouble(0.0);
@@ -119,7 +322,79 @@ public class AwareStep {
         outStream.write(buf.array());
     }
 
+    // Step buffer of the simulation, allocated once and reused at every step
+    private static ByteBuffer stepBuffer(HydraulicSim hydraulicSim, int size) {
+        ByteBuffer buf = hydraulicSim.getStepSavingByteBuffer();
+        if (buf == null || !buf.hasArray() || buf.capacity() != size) {
+            buf = ByteBuffer.allocate(size);
+            hydraulicSim.setStepSavingByteBuffer(buf);
+        }
+        buf.clear();
+        return buf;
+    }
+
+    // Writes a step in the compact format, each variable of the layout as a column of floats or doubles
+    private static void writeCompact(DataOutput outStream, HydraulicSim hydraulicSim, QualitySim qualitySim,
+                                     Layout layout, long step, long time) throws IOException, ENException {
+        List<SimulationNode> nodes = hydraulicSim.getnNodes();
+        List<SimulationLink> links = hydraulicSim.getnLinks();
+        List<QualityNode> qNodes = qualitySim != null ? qualitySim.getnNodes() : null;
+        List<QualityLink> qLinks = qualitySim != null ? qualitySim.getnLinks() : null;
+
+        ByteBuffer buf = stepBuffer(hydraulicSim, layout.getStepSize(nodes.size(), links.size()));
+
+        for (Variable v : VARIABLES) {
+            int bytes = layout.getBytes(v);
+            if (bytes == 0)
+                continue;
+            int n = v.isNode() ? nodes.size() : links.size();
+            for (int i = 0; i < n; i++) {
+                double value = 0.0;
+                switch (v) {
+                    case NODE_DEMAND:
+                        value = nodes.get(i).getSimDemand();
+                        break;
+                    case NODE_HEAD:
+                        value = nodes.get(i).getSimHead();
+                        break;
+                    case NODE_QUALITY:
+                        value = qNodes != null ? qNodes.get(i).getQuality() : 0.0;
+                        break;
+                    case LINK_FLOW: {
+                        SimulationLink link = links.get(i);
+                        value = link.getSimStatus().id <= Link.StatType.CLOSED.id ? 0d : link.getSimFlow();
+                        break;
+                    }
+                    case LINK_HEADLOSS: {
+                        SimulationLink link = links.get(i);
+                        value = link.getFirst().getSimHead() - link.getSecond().getSimHead();
+                        break;
+                    }
+                    case LINK_QUALITY:
+                        value = qLinks != null ? qLinks.get(i).getAverageQuality(null) : 0.0;
+                        break;
+                }
+                if (bytes == 4)
+                    buf.putFloat((float) value);
+                else
+                    buf.putDouble(value);
+            }
+        }
+
+        buf.putLong(step);
+        buf.putLong(time);
+
+        buf.flip();
+        outStream.write(buf.array(), 0, buf.limit());
+    }
+
     public static void writeHydAndQual(DataOutput outStream, HydraulicSim hydraulicSim, QualitySim qualitySim, long step, long time) throws IOException, ENException {
+        Layout layout = outputLayout(hydraulicSim);
+        if (layout != null) {
+            writeCompact(outStream, hydraulicSim, qualitySim, layout, step, time);
+            return;
+        }
+
         List<QualityNode> qNodes = qualitySim != null ? qualitySim.getnNodes() : null;
         List<QualityLink> qLinks = qualitySim != null ? qualitySim.getnLinks() : null;
         List<SimulationNode> nodes = hydraulicSim.getnNodes();
@@ -129,7 +404,7 @@ public class AwareStep {
         int nLinks = links.size();
 
         int baSize = (nNodes * 3 + nLinks * 3) * Double.SIZE / 8 + Long.SIZE * 2 / 8;
-        ByteBuffer buf = ByteBuffer.allocate(baSize);
+        ByteBuffer buf = stepBuffer(hydraulicSim, baSize);
 
         int count = 0;
         for (SimulationNode node : nodes) {
@@ -186,6 +461,23 @@ public class AwareStep {
     } */
 
     public AwareStep(DataInput inStream, HeaderInfo headerInfo) throws IOException {
+        this(read(inStream, headerInfo), headerInfo);
+    }
+
+    // Reads the bytes of a step
+    private static ByteBuffer read(DataInput inStream, HeaderInfo headerInfo) throws IOException {
+        byte[] ba = new byte[headerInfo.getStepSize()];
+        inStream.readFully(ba);
+        return ByteBuffer.wrap(ba);
+    }
+
+    /**
+     * Reads a step from a buffer, starting at its position.
+     *
+     * @param buf        Buffer holding the step, its position is moved to the end of the step.
+     * @param headerInfo Header of the file.
+     */
+    public AwareStep(ByteBuffer buf, HeaderInfo headerInfo) {
         int nNodes = headerInfo.nodes;
         int nLinks = headerInfo.links;
 
@@ -197,11 +489,10 @@ public class AwareStep {
         QN = new double[nNodes];
         QL = new double[nLinks];
 
-        int baSize = (nNodes * 3 + nLinks * 3) * Double.SIZE / 8 +
-                Long.SIZE * 2 / 8;
-        byte[] ba = new byte[baSize];
-        inStream.readFully(ba);
-        ByteBuffer buf = ByteBuffer.wrap(ba);
+        if (headerInfo.layout != null) {
+            readCompact(buf, headerInfo.layout);
+            return;
+        }
 
         for (int i = 0; i < nNodes; i++) {
             D[i] = buf.getDouble();
@@ -220,6 +511,41 @@ public class AwareStep {
     }
 
 
+    // Reads a step in the compact format, variables left out of the layout are zero
+    private void readCompact(ByteBuffer buf, Layout layout) {
+        for (Variable v : VARIABLES) {
+            int bytes = layout.getBytes(v);
+            if (bytes == 0)
+                continue;
+            double[] values = null;
+            switch (v) {
+                case NODE_DEMAND:
+                    values = D;
+                    break;
+                case NODE_HEAD:
+                    values = H;
+                    break;
+                case NODE_QUALITY:
+                    values = QN;
+                    break;
+                case LINK_FLOW:
+                    values = Q;
+                    break;
+                case LINK_HEADLOSS:
+                    values = DH;
+                    break;
+                case LINK_QUALITY:
+                    values = QL;
+                    break;
+            }
+            for (int i = 0; i < values.length; i++)
+                values[i] = bytes == 4 ? buf.getFloat() : buf.getDouble();
+        }
+
+        hydStep = buf.getLong();
+        hydTime = buf.getLong();
+    }
+
     public double getNodeDemand(int id, Node node, FieldsMap fMap) {
         try {
             return fMap != null ? fMap.revertUnit(FieldsMap.Type.DEMAND, D[id]) : D[id];
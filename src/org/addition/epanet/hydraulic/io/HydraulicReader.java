@@ -19,13 +19,21 @@ package org.addition.epanet.hydraulic.io;
 
 
 import org.addition.epanet.network.FieldsMap;
+import org.addition.epanet.util.ChunkedRecords;
 import org.addition.epanet.util.ENException;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Iterator;
 
 /**
  * Hydraulic binary file reader class.
+ * <p/>
+ * All the steps of a file have the same size, so the position of a step is known from its number. When reading
+ * from a {@link RandomAccessFile} the steps can be read in any order and {@link #getStep(long)} finds a step by a
+ * binary search on the step times, which are read from the file as needed and kept. Other inputs are read forward
+ * only. Compressed files are decompressed while reading, a chunk of steps at a time.
  */
 public class HydraulicReader implements Iterable<AwareStep> {
 
@@ -42,16 +50,119 @@ public class HydraulicReader implements Iterable<AwareStep> {
      */
     private DataInput inputStream;
 
+    /**
+     * Input file for random access, null if the input is a stream.
+     */
+    private RandomAccessFile file;
+
+    /**
+     * Number of the current step, with random access.
+     */
+    private int curIndex = -1;
+
+    /**
+     * Times of the steps read so far, Long.MIN_VALUE for the steps not read yet.
+     */
+    private long[] times = new long[0];
+
+    /**
+     * Steps of a compressed file, with random access.
+     */
+    private ChunkedRecords.Reader chunks;
+
 
     public HydraulicReader(DataInput inputStream) throws IOException, ENException {
         this.inputStream = inputStream;
         headerInfo = AwareStep.readHeader(inputStream);
+        if (inputStream instanceof RandomAccessFile)
+            file = (RandomAccessFile) inputStream;
+
+        if (headerInfo.chunkSteps > 0) {
+            if (file != null)
+                chunks = ChunkedRecords.Reader.open(file, headerInfo.getHeaderSize(), file.length(),
+                        headerInfo.getStepSize(), headerInfo.getWords(), headerInfo.chunkSteps);
+            else
+                this.inputStream = new DataInputStream(new ChunkedRecords.Input(inputStream,
+                        headerInfo.getStepSize(), headerInfo.getWords(), headerInfo.chunkSteps));
+        }
+    }
+
+    /**
+     * Get the number of complete steps in the file.
+     *
+     * @return Number of steps, -1 if the input isn't a random access file.
+     * @throws IOException
+     */
+    public int getStepCount() throws IOException {
+        if (file == null)
+            return -1;
+        if (chunks != null)
+            return (int) chunks.getCount();
+        return (int) ((file.length() - headerInfo.getHeaderSize()) / headerInfo.getStepSize());
+    }
+
+    /**
+     * Get the time of a step, without reading the step.
+     *
+     * @param index Step number, from 0 to getStepCount()-1.
+     * @return Step time.
+     * @throws IOException
+     */
+    public long getStepTime(int index) throws IOException {
+        if (index >= times.length) {
+            int n = times.length;
+            times = Arrays.copyOf(times, Math.max(index + 1, getStepCount()));
+            Arrays.fill(times, n, times.length, Long.MIN_VALUE);
+        }
+        if (times[index] == Long.MIN_VALUE) {
+            // The time is the last field of the step
+            if (chunks != null) {
+                times[index] = chunks.buffer(index).getLong(chunks.position(index) + headerInfo.getStepSize()
+                        - Long.SIZE / 8);
+                return times[index];
+            }
+            file.seek(offset(index + 1) - Long.SIZE / 8);
+            times[index] = file.readLong();
+        }
+        return times[index];
+    }
+
+    /**
+     * Read a step by its number.
+     *
+     * @param index Step number, from 0 to getStepCount()-1.
+     * @return Reference to step snapshot.
+     * @throws IOException
+     */
+    public AwareStep getStepAt(int index) throws IOException {
+        if (file == null)
+            throw new UnsupportedOperationException("Steps are read forward from streams");
+        if (curStep != null && curIndex == index)
+            return curStep;
+        if (chunks != null) {
+            ByteBuffer buf = chunks.buffer(index).duplicate();
+            buf.position(chunks.position(index));
+            curStep = new AwareStep(buf, headerInfo);
+        } else {
+            file.seek(offset(index));
+            curStep = new AwareStep(file, headerInfo);
+        }
+        curIndex = index;
+        if (index < times.length)
+            times[index] = curStep.getTime();
+        return curStep;
+    }
+
+    // Position of a step in the file
+    private long offset(int index) {
+        return headerInfo.getHeaderSize() + (long) index * headerInfo.getStepSize();
     }
 
 
 
     /**
-     * Read step data from file with a given time instant — it assumes the requested timestep is the same or after the current one.
+     * Read step data from file with a given time instant. With random access it's the first step at or after the
+     * time, otherwise it assumes the requested timestep is the same or after the current one.
      *
      * @param time Step instant.
      * @return Reference to step snapshot.
@@ -61,6 +172,21 @@ public class HydraulicReader implements Iterable<AwareStep> {
         if (curStep != null) {
             if (curStep.getTime() == time) return curStep;
         }
+
+        // First step at or after the time
+        if (file != null) {
+            int lo = 0;
+            int hi = getStepCount();
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (getStepTime(mid) < time)
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            }
+            return lo < getStepCount() ? getStepAt(lo) : null;
+        }
+
         while (curStep==null || curStep.getTime() < time)
             curStep = new AwareStep(inputStream, headerInfo);
         return curStep.getTime() >= time ? curStep : null;
@@ -73,6 +199,8 @@ public class HydraulicReader implements Iterable<AwareStep> {
      * @throws IOException
      */
     public void close() throws IOException {
+        if (chunks != null)
+            chunks.close();
         if (inputStream instanceof Closeable) {
             ((Closeable) inputStream).close();
         }
@@ -150,12 +278,24 @@ public class HydraulicReader implements Iterable<AwareStep> {
         private SnapshotIterator() {
         }
 
+        /**
+         * Number of the next step, with random access.
+         */
+        private int next;
+
         /**
          * Checks for available steps.
          *
          * @return Step availability.
          */
         public boolean hasNext() {
+            if (file != null) {
+                try {
+                    return next < getStepCount();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
             return curStep == null || curStep.getStep() != 0;
         }
 
@@ -166,6 +306,8 @@ public class HydraulicReader implements Iterable<AwareStep> {
          */
         public AwareStep next() {
             try {
+                if (file != null)
+                    return getStepAt(next++);
                 return curStep = new AwareStep(inputStream, headerInfo);
             } catch (IOException e) {
                 throw new RuntimeException(e);
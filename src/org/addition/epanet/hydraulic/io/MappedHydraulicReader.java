@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2012  Addition, Lda. (addition at addition dot pt)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package org.addition.epanet.hydraulic.io;
+
+import org.addition.epanet.hydraulic.io.AwareStep.Variable;
+import org.addition.epanet.util.ChunkedRecords;
+import org.addition.epanet.util.ENException;
+import org.addition.epanet.util.MappedRecords;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Memory mapped hydraulic binary file reader class.
+ * <p/>
+ * Reads the same files as {@link HydraulicReader}, in any format, but the values are read from a memory mapping
+ * of the file when requested instead of being copied into the arrays of an {@link AwareStep}. The reader keeps a
+ * single {@link Step} view that is moved between the steps of the file, so scanning the steps doesn't allocate
+ * memory. Values are in simulation units, as written by the simulation. Compressed files can't be mapped, their
+ * steps are decompressed a chunk at a time into memory.
+ */
+public class MappedHydraulicReader implements Iterable<MappedHydraulicReader.Step> {
+
+    private static final Variable[] VARIABLES = Variable.values();
+
+    /**
+     * View of a step of the file.
+     */
+    public class Step {
+        private ByteBuffer buf;
+        private int base;
+        private int index = -1;
+
+        private Step() {
+        }
+
+        // Moves the view to a step
+        private Step moveTo(int index) throws IOException {
+            if (this.index != index) {
+                buf = records.buffer(index);
+                base = records.position(index);
+                this.index = index;
+            }
+            return this;
+        }
+
+        /**
+         * Get the value of a variable, zero if the variable isn't in the file.
+         *
+         * @param variable Variable.
+         * @param id       Node or link sequential identification number.
+         * @return Value in simulation units.
+         */
+        public double getValue(Variable variable, int id) {
+            int v = variable.ordinal();
+            int pos = base + start[v] + id * stride[v];
+            switch (bytes[v]) {
+                case 4:
+                    return buf.getFloat(pos);
+                case 8:
+                    return buf.getDouble(pos);
+            }
+            return 0.0;
+        }
+
+        public double getNodeDemand(int id) {
+            return getValue(Variable.NODE_DEMAND, id);
+        }
+
+        public double getNodeHead(int id) {
+            return getValue(Variable.NODE_HEAD, id);
+        }
+
+        public double getNodeQuality(int id) {
+            return getValue(Variable.NODE_QUALITY, id);
+        }
+
+        public double getLinkFlow(int id) {
+            return getValue(Variable.LINK_FLOW, id);
+        }
+
+        public double getLinkHeadLoss(int id) {
+            return getValue(Variable.LINK_HEADLOSS, id);
+        }
+
+        public double getLinkAvrQuality(int id) {
+            return getValue(Variable.LINK_QUALITY, id);
+        }
+
+        public long getStep() {
+            return buf.getLong(base + records.getRecordSize() - Long.SIZE * 2 / 8);
+        }
+
+        public long getTime() {
+            return buf.getLong(base + records.getRecordSize() - Long.SIZE / 8);
+        }
+
+        /**
+         * Get the number of this step in the file.
+         */
+        public int getIndex() {
+            return index;
+        }
+    }
+
+    /**
+     * Step iterator class, moves the reader step view forward.
+     */
+    private class StepIterator implements Iterator<Step> {
+        private int next;
+
+        public boolean hasNext() {
+            return next < getStepCount();
+        }
+
+        public Step next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            try {
+                return getStepAt(next++);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private final RandomAccessFile file;
+    private final AwareStep.HeaderInfo headerInfo;
+    private final MappedRecords records;
+
+    // Position of the first value of each variable in a step, distance between values and size of a value
+    private final int[] start = new int[VARIABLES.length];
+    private final int[] stride = new int[VARIABLES.length];
+    private final int[] bytes = new int[VARIABLES.length];
+
+    private final Step step = new Step();
+
+    /**
+     * Opens and maps a hydraulic file.
+     *
+     * @param hydFile Hydraulic file.
+     * @throws IOException
+     * @throws ENException
+     */
+    public MappedHydraulicReader(File hydFile) throws IOException, ENException {
+        file = new RandomAccessFile(hydFile, "r");
+        try {
+            headerInfo = AwareStep.readHeader(file);
+        } catch (ENException e) {
+            file.close();
+            throw e;
+        }
+
+        int stepSize = headerInfo.getStepSize();
+        if (headerInfo.chunkSteps > 0) {
+            records = ChunkedRecords.Reader.open(file, headerInfo.getHeaderSize(), file.length(), stepSize,
+                    headerInfo.getWords(), headerInfo.chunkSteps);
+        } else {
+            long count = (file.length() - headerInfo.getHeaderSize()) / stepSize;
+            records = new MappedRecords(file.getChannel(), headerInfo.getHeaderSize(), stepSize, count);
+        }
+
+        AwareStep.Layout layout = headerInfo.layout;
+        if (layout != null) {
+            // Variables are written as columns
+            int pos = 0;
+            for (Variable v : VARIABLES) {
+                int i = v.ordinal();
+                start[i] = pos;
+                stride[i] = bytes[i] = layout.getBytes(v);
+                pos += bytes[i] * (v.isNode() ? headerInfo.nodes : headerInfo.links);
+            }
+        } else {
+            // Demand, head and quality of each node followed by flow, head loss and quality of each link
+            int rec = 3 * Double.SIZE / 8;
+            for (Variable v : VARIABLES) {
+                int i = v.ordinal();
+                int k = v.isNode() ? i - Variable.NODE_DEMAND.ordinal() : i - Variable.LINK_FLOW.ordinal();
+                start[i] = (v.isNode() ? 0 : headerInfo.nodes * rec) + k * Double.SIZE / 8;
+                stride[i] = rec;
+                bytes[i] = Double.SIZE / 8;
+            }
+        }
+    }
+
+    /**
+     * Close the file, the steps can't be read after.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        records.close();
+        file.close();
+    }
+
+    /**
+     * Get the number of complete steps in the file.
+     */
+    public int getStepCount() {
+        return (int) records.getCount();
+    }
+
+    /**
+     * Move the step view to a step.
+     *
+     * @param index Step number, from 0 to getStepCount()-1.
+     * @return Reference to the step view.
+     * @throws IOException
+     */
+    public Step getStepAt(int index) throws IOException {
+        return step.moveTo(index);
+    }
+
+    /**
+     * Move the step view to the first step at or after a time.
+     *
+     * @param time Step time.
+     * @return Reference to the step view, null if there are no steps after the time.
+     * @throws IOException
+     */
+    public Step getStep(long time) throws IOException {
+        int lo = 0;
+        int hi = getStepCount();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (step.moveTo(mid).getTime() < time)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo < getStepCount() ? step.moveTo(lo) : null;
+    }
+
+    /**
+     * Get step view iterator.
+     *
+     * @return Step iterator, all iterators move the same view.
+     */
+    public Iterator<Step> iterator() {
+        return new StepIterator();
+    }
+
+    /**
+     * Get the precision of a variable in the file, in bytes, 0 if the variable isn't in the file.
+     */
+    public int getBytes(Variable variable) {
+        return bytes[variable.ordinal()];
+    }
+
+    public int getVersion() {
+        return headerInfo.version;
+    }
+
+    public int getNodes() {
+        return headerInfo.nodes;
+    }
+
+    public int getLinks() {
+        return headerInfo.links;
+    }
+
+    public long getReportStart() {
+        return headerInfo.rstart;
+    }
+
+    public long getReportStep() {
+        return headerInfo.rstep;
+    }
+
+    public long getDuration() {
+        return headerInfo.duration;
+    }
+}
@@ -0,0 +1,354 @@
+/*
+ * Copyright (C) 2012  Addition, Lda. (addition at addition dot pt)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package org.addition.epanet.hydraulic.io;
+
+import org.addition.epanet.hydraulic.io.AwareStep.Variable;
+import org.addition.epanet.util.ENException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Time series store of the hydraulic results, with the values of each node or link variable stored contiguously.
+ * <p/>
+ * Hydraulic files store the values of all the nodes and links of a step together, so reading the series of a
+ * single element reads the whole file. A series file is built from a hydraulic file by {@link #create} and stores
+ * for each variable the minimum, maximum and mean value of each element followed by the series of each element,
+ * so the series of an element over any time range is read with a single positional read.
+ * <p/>
+ * File layout: version, number of nodes, links and steps as ints, the precision of each {@link Variable} as a
+ * byte, the step times as longs and then, for each variable in the file, the statistics of its elements as three
+ * doubles and the series of its elements as floats or doubles, with the precision of the hydraulic file.
+ */
+public class SeriesStore {
+
+    public static final int FORMAT_VERSION = 1;
+
+    private static final Variable[] VARIABLES = Variable.values();
+
+    private static final int HEADER_SIZE = Integer.SIZE * 4 / 8 + VARIABLES.length;
+
+    private static final int STATS_SIZE = Double.SIZE * 3 / 8;
+
+    /**
+     * Size of the transposition buffer used to create a store, in bytes.
+     */
+    private static final int BUFFER_SIZE = 1 << 24;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final int nodes;
+    private final int links;
+    private final long[] times;
+    private final int[] bytes = new int[VARIABLES.length];
+    private final long[] statsPos = new long[VARIABLES.length];
+    private final long[] seriesPos = new long[VARIABLES.length];
+
+    /**
+     * Opens a series file.
+     *
+     * @param seriesFile Series file created by {@link #create}.
+     * @throws IOException
+     * @throws ENException
+     */
+    public SeriesStore(File seriesFile) throws IOException, ENException {
+        file = new RandomAccessFile(seriesFile, "r");
+        channel = file.getChannel();
+        try {
+            if (file.readInt() != FORMAT_VERSION)
+                throw new ENException(307);
+            nodes = file.readInt();
+            links = file.readInt();
+            times = new long[file.readInt()];
+            for (Variable v : VARIABLES) {
+                int b = file.readByte();
+                if (b != 0 && b != 4 && b != 8)
+                    throw new ENException(307);
+                bytes[v.ordinal()] = b;
+            }
+
+            ByteBuffer buf = ByteBuffer.allocate(times.length * Long.SIZE / 8);
+            readFully(buf, HEADER_SIZE);
+            buf.asLongBuffer().get(times);
+
+            if (file.length() < layout(nodes, links, times.length, bytes, statsPos, seriesPos))
+                throw new ENException(307);
+        } catch (ENException e) {
+            file.close();
+            throw e;
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    // Positions of the statistics and series of each variable, returns the size of the file
+    private static long layout(int nodes, int links, int steps, int[] bytes, long[] statsPos, long[] seriesPos) {
+        long pos = HEADER_SIZE + (long) steps * Long.SIZE / 8;
+        for (Variable v : VARIABLES) {
+            int i = v.ordinal();
+            int count = bytes[i] == 0 ? 0 : (v.isNode() ? nodes : links);
+            statsPos[i] = pos;
+            pos += (long) count * STATS_SIZE;
+            seriesPos[i] = pos;
+            pos += (long) count * steps * bytes[i];
+        }
+        return pos;
+    }
+
+    /**
+     * Creates a series file from a hydraulic file.
+     *
+     * @param hydFile    Hydraulic file, in any format.
+     * @param seriesFile Series file to create.
+     * @throws IOException
+     * @throws ENException
+     */
+    public static void create(File hydFile, File seriesFile) throws IOException, ENException {
+        MappedHydraulicReader reader = new MappedHydraulicReader(hydFile);
+        RandomAccessFile out = new RandomAccessFile(seriesFile, "rw");
+        try {
+            out.setLength(0);
+            FileChannel channel = out.getChannel();
+
+            int nodes = reader.getNodes();
+            int links = reader.getLinks();
+            int steps = reader.getStepCount();
+            int[] bytes = new int[VARIABLES.length];
+            int rowSize = 1;
+            for (Variable v : VARIABLES) {
+                bytes[v.ordinal()] = reader.getBytes(v);
+                rowSize = Math.max(rowSize, bytes[v.ordinal()] * (v.isNode() ? nodes : links));
+            }
+            long[] statsPos = new long[VARIABLES.length];
+            long[] seriesPos = new long[VARIABLES.length];
+            layout(nodes, links, steps, bytes, statsPos, seriesPos);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + steps * Long.SIZE / 8);
+            header.putInt(FORMAT_VERSION).putInt(nodes).putInt(links).putInt(steps);
+            for (Variable v : VARIABLES)
+                header.put((byte) bytes[v.ordinal()]);
+            for (int t = 0; t < steps; t++)
+                header.putLong(reader.getStepAt(t).getTime());
+            header.flip();
+            writeFully(channel, header, 0);
+
+            // Steps are read in blocks that are transposed in memory and written as a run of each series
+            int block = Math.max(1, BUFFER_SIZE / rowSize);
+            ByteBuffer tile = ByteBuffer.allocate(Math.min(block, Math.max(1, steps)) * rowSize);
+
+            for (Variable v : VARIABLES) {
+                int i = v.ordinal();
+                int b = bytes[i];
+                if (b == 0)
+                    continue;
+                int count = v.isNode() ? nodes : links;
+                double[] min = new double[count];
+                double[] max = new double[count];
+                double[] sum = new double[count];
+                Arrays.fill(min, Double.POSITIVE_INFINITY);
+                Arrays.fill(max, Double.NEGATIVE_INFINITY);
+
+                for (int t0 = 0; t0 < steps; t0 += block) {
+                    int n = Math.min(block, steps - t0);
+                    for (int k = 0; k < n; k++) {
+                        MappedHydraulicReader.Step step = reader.getStepAt(t0 + k);
+                        for (int e = 0; e < count; e++) {
+                            double value = step.getValue(v, e);
+                            int pos = (e * n + k) * b;
+                            if (b == 4)
+                                tile.putFloat(pos, (float) value);
+                            else
+                                tile.putDouble(pos, value);
+                            if (value < min[e]) min[e] = value;
+                            if (value > max[e]) max[e] = value;
+                            sum[e] += value;
+                        }
+                    }
+                    for (int e = 0; e < count; e++) {
+                        tile.limit((e + 1) * n * b).position(e * n * b);
+                        writeFully(channel, tile, seriesPos[i] + ((long) e * steps + t0) * b);
+                    }
+                    tile.clear();
+                }
+
+                ByteBuffer stats = ByteBuffer.allocate(count * STATS_SIZE);
+                for (int e = 0; e < count; e++)
+                    stats.putDouble(min[e]).putDouble(max[e]).putDouble(steps > 0 ? sum[e] / steps : 0.0);
+                stats.flip();
+                writeFully(channel, stats, statsPos[i]);
+            }
+        } finally {
+            out.close();
+            reader.close();
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining())
+            pos += channel.write(buf, pos);
+    }
+
+    private void readFully(ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, pos);
+            if (n < 0)
+                throw new java.io.EOFException();
+            pos += n;
+        }
+        buf.flip();
+    }
+
+    /**
+     * Close the file.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        file.close();
+    }
+
+    public int getNodes() {
+        return nodes;
+    }
+
+    public int getLinks() {
+        return links;
+    }
+
+    public int getStepCount() {
+        return times.length;
+    }
+
+    /**
+     * Get the time of a step.
+     *
+     * @param index Step number, from 0 to getStepCount()-1.
+     */
+    public long getTime(int index) {
+        return times[index];
+    }
+
+    /**
+     * Check if a variable is in the store.
+     */
+    public boolean hasVariable(Variable variable) {
+        return bytes[variable.ordinal()] != 0;
+    }
+
+    /**
+     * Get the number of the first step at or after a time.
+     *
+     * @param time Time.
+     * @return Step number, getStepCount() if all the steps are before the time.
+     */
+    public int findStep(long time) {
+        int lo = 0;
+        int hi = times.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (times[mid] < time)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    // Number of the first step after a time
+    private int endStep(long time) {
+        return time == Long.MAX_VALUE ? times.length : findStep(time + 1);
+    }
+
+    /**
+     * Get the times of the steps in a time range.
+     *
+     * @param fromTime Start of the range.
+     * @param toTime   End of the range, included.
+     * @return Step times, matching the values of {@link #getSeries}.
+     */
+    public long[] getTimes(long fromTime, long toTime) {
+        int first = findStep(fromTime);
+        int last = Math.max(first, endStep(toTime));
+        return Arrays.copyOfRange(times, first, last);
+    }
+
+    /**
+     * Get the values of a node or link variable in a time range.
+     *
+     * @param variable Variable.
+     * @param id       Node or link sequential identification number.
+     * @param fromTime Start of the range.
+     * @param toTime   End of the range, included.
+     * @return Values in simulation units of the steps in the range.
+     * @throws IOException
+     */
+    public double[] getSeries(Variable variable, int id, long fromTime, long toTime) throws IOException {
+        int i = checkElement(variable, id);
+        int first = findStep(fromTime);
+        int last = Math.max(first, endStep(toTime));
+        int b = bytes[i];
+
+        double[] values = new double[last - first];
+        if (values.length == 0)
+            return values;
+        ByteBuffer buf = ByteBuffer.allocate(values.length * b);
+        readFully(buf, seriesPos[i] + ((long) id * times.length + first) * b);
+        if (b == 4) {
+            for (int k = 0; k < values.length; k++)
+                values[k] = buf.getFloat();
+        } else
+            buf.asDoubleBuffer().get(values);
+        return values;
+    }
+
+    public double getMin(Variable variable, int id) throws IOException {
+        return getStat(variable, id, 0);
+    }
+
+    public double getMax(Variable variable, int id) throws IOException {
+        return getStat(variable, id, 1);
+    }
+
+    /**
+     * Get the mean of the step values of a node or link variable.
+     */
+    public double getMean(Variable variable, int id) throws IOException {
+        return getStat(variable, id, 2);
+    }
+
+    private double getStat(Variable variable, int id, int k) throws IOException {
+        int i = checkElement(variable, id);
+        ByteBuffer buf = ByteBuffer.allocate(Double.SIZE / 8);
+        readFully(buf, statsPos[i] + (long) id * STATS_SIZE + k * Double.SIZE / 8);
+        return buf.getDouble();
+    }
+
+    private int checkElement(Variable variable, int id) {
+        int i = variable.ordinal();
+        if (bytes[i] == 0)
+            throw new IllegalArgumentException("Variable " + variable + " isn't in the store");
+        if (id < 0 || id >= (variable.isNode() ? nodes : links))
+            throw new IndexOutOfBoundsException("Element " + id);
+        return i;
+    }
+}
@@ -18,10 +18,8 @@
 package org.addition.epanet.hydraulic.models;
 
 
-import org.addition.epanet.hydraulic.structures.SimulationLink;
-import org.addition.epanet.network.PropertiesMap;
-import org.addition.epanet.network.structures.Link;
-import org.addition.epanet.network.structures.Link.LinkType;
+import org.addition.epanet.hydraulic.structures.SimulationArrays;
+import org.addition.epanet.network.SimulationOptions;
 import org.addition.epanet.util.ENException;
 
 /**
@@ -90,7 +88,7 @@ public class DwModelCalculator implements PipeHeadModel {
 //        return f;
 //    }
 
-//    public LinkCoeffs compute(PropertiesMap pMap, SimulationLink sL) throws ENException {
+//    public LinkCoeffs compute(SimulationOptions opts, SimulationLink sL) throws ENException {
 //        // Evaluate headloss coefficients
 //        double q = Math.abs(sL.getSimFlow());               // Absolute flow
 //        double ml = sL.getLink().getKm();                   // Minor loss coeff.
@@ -112,7 +110,7 @@ public class DwModelCalculator implements PipeHeadModel {
 //            double diameter = link.getDiameter();
 //
 //            q1 = Math.abs(sL.getSimFlow());
-//            s = pMap.getViscos() * diameter;
+//            s = opts.getViscos() * diameter;
 //
 //            w = q1 / s;
 //            if (w >= A1) {
@@ -142,9 +140,9 @@ public class DwModelCalculator implements PipeHeadModel {
 //        double r1 = resistance * r + ml;
 //
 //        // Use large P coefficient for small flow resistance product
-//        double rQtol = pMap.getRQtol();
+//        double rQtol = opts.getRQtol();
 //        if (r1 * q < rQtol) {
-//            return new LinkCoeffs(1d / rQtol, sL.getSimFlow() / pMap.getHexp());
+//            return new LinkCoeffs(1d / rQtol, sL.getSimFlow() / opts.getHexp());
 //        }
 //
 //        // Compute P and Y coefficients
@@ -162,25 +160,18 @@ public class DwModelCalculator implements PipeHeadModel {
 //        }
 //    }
 
-    public LinkCoeffs compute(PropertiesMap pMap, SimulationLink sL) throws ENException {
-        double viscos = pMap.getViscos();
-        double rQtol = pMap.getRQtol();
-        double hexp = pMap.getHexp();
+    public void compute(SimulationOptions opts, SimulationArrays arrays, int k) throws ENException {
+        double viscos = opts.getViscos();
+        double rQtol = opts.getRQtol();
+        double hexp = opts.getHexp();
 
-        Link link = sL.getLink();
-        double simFlow = sL.getSimFlow();
+        double simFlow = arrays.flow[k];
         double q = Math.abs(simFlow);               // Absolute flow
-        double km = link.getKm();                   // Minor loss coeff.
-        double flowResistance = link.getFlowResistance();        // Resistance coeff.
-        double roughness = link.getRoughness();
-        double diameter = link.getDiameter();
-        boolean isOne = sL.getType().id > LinkType.PIPE.id;
-
-        LinkCoeffs linkCoeffs = innerDwCalc(viscos, rQtol, hexp, simFlow, q, km, flowResistance, roughness, diameter, isOne);
-        return linkCoeffs;
-    }
+        double km = arrays.km[k];                   // Minor loss coeff.
+        double flowResistance = arrays.resistance[k];        // Resistance coeff.
+        double roughness = arrays.roughness[k];
+        double diameter = arrays.diameter[k];
 
-    private static LinkCoeffs innerDwCalc(double viscos, double rQtol, double hexp, double simFlow, double q, double km, double flowResistance, double roughness, double diameter, boolean one) {
         double
                 resistance;
         double x1, x2, x3, x4,
@@ -188,51 +179,45 @@ public class DwModelCalculator implements PipeHeadModel {
                 fa, fb, r2;
         double s, w;
 
+        s = viscos * diameter;
+
+        w = q / s;
+        if (w >= A1) {
+            y1 = A8 / Math.pow(w, 0.9d);
+            y2 = roughness / (3.7 * diameter) + y1;
+            y3 = A9 * Math.log(y2);
+            resistance = 1.0 / (y3 * y3);
+        } else if (w > A2) {
+            y2 = roughness / (3.7 * diameter) + AB;
+            y3 = A9 * Math.log(y2);
+            fa = 1.0 / (y3 * y3);
+            fb = (2.0 + AC / (y2 * y3)) * fa;
+            r2 = w / A2;
+            x1 = 7.0 * fa - fb;
+            x2 = 0.128 - 17.0 * fa + 2.5 * fb;
+            x3 = -0.128 + 13.0 * fa - (fb + fb);
+            x4 = r2 * (0.032 - 3.0 * fa + 0.5 * fb);
+            resistance = x1 + r2 * (x2 + r2 * (x3 + x4));
+        } else if (w > A4) {
+            resistance = A3 * s / q;
+        } else {
+            resistance = 8d;
 
-        if (one)
-            resistance = 1d;
-        else {
-            s = viscos * diameter;
-
-            w = q / s;
-            if (w >= A1) {
-                y1 = A8 / Math.pow(w, 0.9d);
-                y2 = roughness / (3.7 * diameter) + y1;
-                y3 = A9 * Math.log(y2);
-                resistance = 1.0 / (y3 * y3);
-            } else if (w > A2) {
-                y2 = roughness / (3.7 * diameter) + AB;
-                y3 = A9 * Math.log(y2);
-                fa = 1.0 / (y3 * y3);
-                fb = (2.0 + AC / (y2 * y3)) * fa;
-                r2 = w / A2;
-                x1 = 7.0 * fa - fb;
-                x2 = 0.128 - 17.0 * fa + 2.5 * fb;
-                x3 = -0.128 + 13.0 * fa - (fb + fb);
-                x4 = r2 * (0.032 - 3.0 * fa + 0.5 * fb);
-                resistance = x1 + r2 * (x2 + r2 * (x3 + x4));
-            } else if (w > A4) {
-                resistance = A3 * s / q;
-            } else {
-                resistance = 8d;
-
-            }
         }
 
         double r1 = resistance * flowResistance + km;
-        LinkCoeffs linkCoeffs;
         // Use large P coefficient for small flow resistance product
         if (r1 * q < rQtol) {
-
-            linkCoeffs = new LinkCoeffs(1d / rQtol, simFlow / hexp);
+            arrays.invHeadLoss[k] = 1d / rQtol;
+            arrays.flowCorrection[k] = simFlow / hexp;
         } else {
             // Compute P and Y coefficients
             double hpipe = r1 * (q * q);    // Total head loss
             double p = 2d * r1 * q;        // |dh/dQ|
             p = 1d / p;
-            linkCoeffs = new LinkCoeffs(p, simFlow < 0 ? -hpipe * p : hpipe * p);
+            arrays.invHeadLoss[k] = p;
+            arrays.flowCorrection[k] = simFlow < 0 ? -hpipe * p : hpipe * p;
         }
-        return linkCoeffs;
     }
 
 //    static native LinkCoeffs innerDwCalcNative(double viscos, double rQtol, double hexp, double simFlow, double q, double km, double flowResistance, double roughness, double diameter, boolean one);
@@ -18,29 +18,32 @@
 package org.addition.epanet.hydraulic.models;
 
 import org.addition.epanet.util.ENException;
-import org.addition.epanet.hydraulic.structures.SimulationLink;
-import org.addition.epanet.network.PropertiesMap;
+import org.addition.epanet.hydraulic.structures.SimulationArrays;
+import org.addition.epanet.network.SimulationOptions;
 
 /**
  * Hazen-Williams model calculator.
  */
 public class HWModelCalculator implements PipeHeadModel{
 
-    public LinkCoeffs compute(PropertiesMap pMap,SimulationLink sL) throws ENException {
+    public void compute(SimulationOptions opts,SimulationArrays arrays,int k) throws ENException {
         // Evaluate headloss coefficients
-        double q = Math.abs(sL.getSimFlow());      // Absolute flow
-        double ml = sL.getLink().getKm();          // Minor loss coeff.
-        double r = sL.getLink().getFlowResistance();         // Resistance coeff.
+        double flow = arrays.flow[k];
+        double q = Math.abs(flow);                 // Absolute flow
+        double ml = arrays.km[k];                  // Minor loss coeff.
+        double r = arrays.resistance[k];           // Resistance coeff.
 
         double r1 = 1.0 * r + ml;
 
         // Use large P coefficient for small flow resistance product
-        if (r1 * q < pMap.getRQtol()){
-            return new LinkCoeffs(1d / pMap.getRQtol(),sL.getSimFlow() / pMap.getHexp());
+        if (r1 * q < opts.getRQtol()){
+            arrays.invHeadLoss[k] = 1d / opts.getRQtol();
+            arrays.flowCorrection[k] = flow / opts.getHexp();
+            return;
         }
 
-        double hpipe = r * Math.pow(q, pMap.getHexp());     // Friction head loss
-        double p = pMap.getHexp() * hpipe;                  // Q*dh(friction)/dQ
+        double hpipe = r * Math.pow(q, opts.getHexp());     // Friction head loss
+        double p = opts.getHexp() * hpipe;                  // Q*dh(friction)/dQ
         double hml;
         if (ml > 0d) {
             hml = ml * q * q;   // Minor head loss
@@ -48,7 +51,8 @@ public class HWModelCalculator implements PipeHeadModel{
         } else
             hml = 0d;
 
-        p = sL.getSimFlow() / p;  // 1 / (dh/dQ)
-        return new LinkCoeffs(Math.abs(p),p * (hpipe + hml));
+        p = flow / p;  // 1 / (dh/dQ)
+        arrays.invHeadLoss[k] = Math.abs(p);
+        arrays.flowCorrection[k] = p * (hpipe + hml);
     }
 }
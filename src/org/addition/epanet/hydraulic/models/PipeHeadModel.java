@@ -19,42 +19,21 @@ package org.addition.epanet.hydraulic.models;
 
 
 import org.addition.epanet.util.ENException;
-import org.addition.epanet.hydraulic.structures.SimulationLink;
-import org.addition.epanet.network.PropertiesMap;
+import org.addition.epanet.hydraulic.structures.SimulationArrays;
+import org.addition.epanet.network.SimulationOptions;
 
 /**
  * Pipe head loss model calculator.
  */
 public interface PipeHeadModel {
 
-    /**
-     * Link coefficients.
-     */
-    public static class LinkCoeffs{
-        public LinkCoeffs(double invHeadLoss, double flowCorrection) {
-            this.invHeadLoss = invHeadLoss;
-            this.flowCorrection = flowCorrection;
-        }
-
-        private double invHeadLoss;
-        private double flowCorrection;
-
-        public double getInvHeadLoss() {
-            return invHeadLoss;
-        }
-
-        public double getFlowCorrection() {
-            return flowCorrection;
-        }
-    }
-    //public double compute(PropertiesMap pMap,SimulationLink link) throws ENException;
-
     /**
      * Compute link coefficients through the implemented pipe headloss model.
-     * @param pMap Network properties map.
-     * @param sL Simulation link.
-     * @return Computed link coefficients.
+     * The P and Y coefficients are stored in the simulation arrays.
+     * @param opts Simulation options.
+     * @param arrays Simulation arrays.
+     * @param k Pipe index.
      * @throws ENException
      */
-    public LinkCoeffs compute(PropertiesMap pMap,SimulationLink sL) throws ENException;
+    public void compute(SimulationOptions opts,SimulationArrays arrays,int k) throws ENException;
 }
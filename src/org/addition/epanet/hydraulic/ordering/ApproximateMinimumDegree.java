@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2012  Addition, Lda. (addition at addition dot pt)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package org.addition.epanet.hydraulic.ordering;
+
+import java.util.Arrays;
+
+/**
+ * Approximate minimum degree ordering.
+ * <p/>
+ * Eliminates the nodes on a quotient graph, where each eliminated node becomes an element holding the list of
+ * its uneliminated neighbours, so the fill is never stored explicitly. Node degrees are replaced by the
+ * approximate external degree bound of Amestoy, Davis and Duff, which is updated in time proportional to the
+ * size of the quotient graph. Elements covered by the newest element are absorbed.
+ */
+public class ApproximateMinimumDegree implements NodeOrdering {
+
+    public String getName() {
+        return "AMD";
+    }
+
+    public int[] order(int n, int[] xadj, int[] adjncy) {
+        int[][] A = new int[n][];      // Adjacent variables
+        int[] aLen = new int[n];
+        int[][] E = new int[n][];      // Adjacent elements
+        int[] eLen = new int[n];
+        int[][] L = new int[n][];      // Variables of each element
+        boolean[] elim = new boolean[n];
+        boolean[] dead = new boolean[n];
+        int[] deg = new int[n];
+        int[] w = new int[n];
+        int[] mark = new int[n];
+        int[] buf = new int[n];
+        int[] perm = new int[n];
+
+        // Degree lists
+        int[] head = new int[n + 1];
+        int[] next = new int[n];
+        int[] prev = new int[n];
+        Arrays.fill(head, -1);
+
+        for (int i = 0; i < n; i++) {
+            aLen[i] = xadj[i + 1] - xadj[i];
+            A[i] = Arrays.copyOfRange(adjncy, xadj[i], xadj[i + 1]);
+            E[i] = new int[2];
+            deg[i] = aLen[i];
+            insert(head, next, prev, i, deg[i]);
+        }
+        Arrays.fill(w, -1);
+
+        int tag = 0;
+        int mindeg = 0;
+        for (int k = 0; k < n; k++) {
+            while (head[mindeg] == -1)
+                mindeg++;
+
+            int p = head[mindeg];
+            remove(head, next, prev, p, deg[p]);
+            elim[p] = true;
+            perm[k] = p;
+
+            // New element Lp, the uneliminated neighbours of p
+            mark[p] = ++tag;
+            int cnt = 0;
+            for (int t = 0; t < aLen[p]; t++) {
+                int v = A[p][t];
+                if (!elim[v] && mark[v] != tag) {
+                    mark[v] = tag;
+                    buf[cnt++] = v;
+                }
+            }
+            for (int t = 0; t < eLen[p]; t++) {
+                int e = E[p][t];
+                if (dead[e])
+                    continue;
+                for (int v : L[e]) {
+                    if (!elim[v] && mark[v] != tag) {
+                        mark[v] = tag;
+                        buf[cnt++] = v;
+                    }
+                }
+                dead[e] = true;
+                L[e] = null;
+            }
+            int[] lp = Arrays.copyOf(buf, cnt);
+            L[p] = lp;
+            A[p] = null;
+            E[p] = null;
+
+            // Prune the variables of Lp and add p to their elements
+            for (int v : lp) {
+                int m = 0;
+                int[] ev = E[v];
+                for (int t = 0; t < eLen[v]; t++)
+                    if (!dead[ev[t]])
+                        ev[m++] = ev[t];
+                if (m == ev.length)
+                    E[v] = ev = Arrays.copyOf(ev, 2 * m + 2);
+                ev[m++] = p;
+                eLen[v] = m;
+
+                m = 0;
+                int[] av = A[v];
+                for (int t = 0; t < aLen[v]; t++) {
+                    int u = av[t];
+                    if (!elim[u] && mark[u] != tag)
+                        av[m++] = u;
+                }
+                aLen[v] = m;
+            }
+
+            // |Le \ Lp| for the other elements of the variables of Lp
+            for (int v : lp) {
+                for (int t = 0; t < eLen[v] - 1; t++) {
+                    int e = E[v][t];
+                    if (w[e] < 0)
+                        w[e] = L[e].length;
+                    w[e]--;
+                }
+            }
+
+            // Approximate degrees, absorbing elements contained in Lp
+            int remaining = n - k - 1;
+            for (int v : lp) {
+                int d = aLen[v] + cnt - 1;
+                int m = 0;
+                int[] ev = E[v];
+                for (int t = 0; t < eLen[v] - 1; t++) {
+                    int e = ev[t];
+                    if (w[e] == 0) {
+                        dead[e] = true;
+                        L[e] = null;
+                        continue;
+                    }
+                    if (!dead[e]) {
+                        d += w[e];
+                        ev[m++] = e;
+                    }
+                }
+                ev[m++] = p;
+                eLen[v] = m;
+
+                d = Math.min(d, deg[v] + cnt - 1);
+                d = Math.max(0, Math.min(d, remaining - 1));
+                remove(head, next, prev, v, deg[v]);
+                deg[v] = d;
+                insert(head, next, prev, v, d);
+                if (d < mindeg)
+                    mindeg = d;
+            }
+
+            for (int v : lp)
+                for (int t = 0; t < eLen[v]; t++)
+                    w[E[v][t]] = -1;
+        }
+
+        return perm;
+    }
+
+    private static void insert(int[] head, int[] next, int[] prev, int i, int d) {
+        next[i] = head[d];
+        prev[i] = -1;
+        if (head[d] != -1)
+            prev[head[d]] = i;
+        head[d] = i;
+    }
+
+    private static void remove(int[] head, int[] next, int[] prev, int i, int d) {
+        if (prev[i] != -1)
+            next[prev[i]] = next[i];
+        else
+            head[d] = next[i];
+        if (next[i] != -1)
+            prev[next[i]] = prev[i];
+    }
+}
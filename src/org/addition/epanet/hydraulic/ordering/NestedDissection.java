@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2012  Addition, Lda. (addition at addition dot pt)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package org.addition.epanet.hydraulic.ordering;
+
+import java.util.Arrays;
+
+/**
+ * Nested dissection ordering.
+ * <p/>
+ * The graph is split in two by a vertex separator taken from the middle level of a breadth first level
+ * structure rooted at a pseudo-peripheral node, both halves are ordered recursively and the separator is
+ * eliminated last. Subgraphs smaller than the leaf size are ordered with {@link ApproximateMinimumDegree}.
+ */
+public class NestedDissection implements NodeOrdering {
+
+    /**
+     * Default subgraph size below which the dissection stops.
+     */
+    public static final int DEFAULT_LEAF_SIZE = 128;
+
+    private final int leafSize;
+
+    // Work arrays of the current ordering
+    private int[] xadj;
+    private int[] adjncy;
+    private int[] set;       // Subgraph id of each node
+    private int[] level;     // Level of each node in the current level structure
+    private int[] local;     // Node index inside a leaf subgraph
+    private int[] queue;
+    private int[] perm;
+    private int sets;
+    private int reached;     // Nodes reached by the last breadth first search
+
+    public NestedDissection() {
+        this(DEFAULT_LEAF_SIZE);
+    }
+
+    public NestedDissection(int leafSize) {
+        this.leafSize = Math.max(2, leafSize);
+    }
+
+    public String getName() {
+        return "ND";
+    }
+
+    public synchronized int[] order(int n, int[] xadj, int[] adjncy) {
+        this.xadj = xadj;
+        this.adjncy = adjncy;
+        set = new int[n];
+        level = new int[n];
+        local = new int[n];
+        queue = new int[n];
+        perm = new int[n];
+        sets = reached = 0;
+        Arrays.fill(local, -1);
+
+        int[] all = new int[n];
+        for (int i = 0; i < n; i++)
+            all[i] = i;
+        dissect(all, 0);
+
+        int[] ret = perm;
+        this.xadj = this.adjncy = set = level = local = queue = perm = null;
+        return ret;
+    }
+
+    // Orders the nodes, writing them into perm starting at pos
+    private void dissect(int[] nodes, int pos) {
+        int n = nodes.length;
+        if (n == 0)
+            return;
+
+        if (n <= leafSize) {
+            leaf(nodes, pos);
+            return;
+        }
+
+        int id = ++sets;
+        for (int v : nodes) {
+            set[v] = id;
+            level[v] = -1;
+        }
+
+        // Pseudo-peripheral root, from repeated breadth first searches
+        int root = nodes[0];
+        int depth = levels(root, id);
+        for (int it = 0; it < 4; it++) {
+            int last = queue[reached - 1];
+            int best = last;
+            for (int q = reached - 1; q >= 0 && level[queue[q]] == level[last]; q--)
+                if (degree(queue[q], id) < degree(best, id))
+                    best = queue[q];
+            int d = levels(best, id);
+            if (d <= depth) {
+                depth = levels(root, id);
+                break;
+            }
+            root = best;
+            depth = d;
+        }
+
+        // Disconnected subgraph, split the reached component from the rest
+        if (reached < n) {
+            int[] a = Arrays.copyOf(queue, reached);
+            int[] b = new int[n - reached];
+            int m = 0;
+            for (int v : nodes)
+                if (level[v] < 0)
+                    b[m++] = v;
+            dissect(a, pos);
+            dissect(b, pos + a.length);
+            return;
+        }
+
+        // Too shallow to split
+        if (depth < 2) {
+            leaf(nodes, pos);
+            return;
+        }
+
+        // Separator is the level where half of the nodes have been reached
+        int sepLevel = Math.max(1, Math.min(level[queue[n / 2]], depth - 1));
+
+        int na = 0, nb = 0, ns = 0;
+        for (int v : nodes) {
+            int l = level[v];
+            if (l < sepLevel)
+                na++;
+            else if (l > sepLevel)
+                nb++;
+            else if (touchesLevel(v, id, sepLevel + 1))
+                ns++;
+            else
+                na++; // Separator nodes without neighbours in the next level are moved to the first half
+        }
+
+        int[] a = new int[na];
+        int[] b = new int[nb];
+        int[] s = new int[ns];
+        na = nb = ns = 0;
+        for (int v : nodes) {
+            int l = level[v];
+            if (l < sepLevel)
+                a[na++] = v;
+            else if (l > sepLevel)
+                b[nb++] = v;
+            else if (touchesLevel(v, id, sepLevel + 1))
+                s[ns++] = v;
+            else
+                a[na++] = v;
+        }
+
+        dissect(a, pos);
+        dissect(b, pos + na);
+        System.arraycopy(s, 0, perm, pos + na + nb, ns);
+    }
+
+    // Breadth first level structure of the subgraph, returns its depth
+    private int levels(int root, int id) {
+        for (int q = 0; q < reached; q++)
+            level[queue[q]] = -1;
+
+        int qh = 0;
+        reached = 0;
+        queue[reached++] = root;
+        level[root] = 0;
+        int depth = 0;
+        while (qh < reached) {
+            int v = queue[qh++];
+            for (int t = xadj[v]; t < xadj[v + 1]; t++) {
+                int u = adjncy[t];
+                if (set[u] == id && level[u] < 0) {
+                    level[u] = level[v] + 1;
+                    depth = level[u];
+                    queue[reached++] = u;
+                }
+            }
+        }
+        return depth;
+    }
+
+    private int degree(int v, int id) {
+        int d = 0;
+        for (int t = xadj[v]; t < xadj[v + 1]; t++)
+            if (set[adjncy[t]] == id)
+                d++;
+        return d;
+    }
+
+    private boolean touchesLevel(int v, int id, int l) {
+        for (int t = xadj[v]; t < xadj[v + 1]; t++) {
+            int u = adjncy[t];
+            if (set[u] == id && level[u] == l)
+                return true;
+        }
+        return false;
+    }
+
+    // Orders a small subgraph with the approximate minimum degree ordering
+    private void leaf(int[] nodes, int pos) {
+        int n = nodes.length;
+        for (int i = 0; i < n; i++)
+            local[nodes[i]] = i;
+
+        int[] sxadj = new int[n + 1];
+        int cnt = 0;
+        for (int i = 0; i < n; i++) {
+            int v = nodes[i];
+            for (int t = xadj[v]; t < xadj[v + 1]; t++)
+                if (local[adjncy[t]] >= 0)
+                    cnt++;
+            sxadj[i + 1] = cnt;
+        }
+        int[] sadj = new int[cnt];
+        cnt = 0;
+        for (int v : nodes)
+            for (int t = xadj[v]; t < xadj[v + 1]; t++)
+                if (local[adjncy[t]] >= 0)
+                    sadj[cnt++] = local[adjncy[t]];
+
+        int[] sub = new ApproximateMinimumDegree().order(n, sxadj, sadj);
+        for (int i = 0; i < n; i++)
+            perm[pos + i] = nodes[sub[i]];
+
+        for (int v : nodes)
+            local[v] = -1;
+    }
+}
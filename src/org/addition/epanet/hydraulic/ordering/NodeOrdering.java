@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2012  Addition, Lda. (addition at addition dot pt)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package org.addition.epanet.hydraulic.ordering;
+
+/**
+ * Fill reducing node ordering strategy used by the sparse matrix symbolic factorization.
+ */
+public interface NodeOrdering {
+
+    /**
+     * Computes the elimination order of the junctions.
+     *
+     * @param n      Number of junctions.
+     * @param xadj   Start of each junction adjacency in adjncy (n+1 entries, zero based).
+     * @param adjncy Adjacent junctions, symmetric, without self loops or repeated entries.
+     * @return Junction eliminated at each step (zero based permutation).
+     */
+    public int[] order(int n, int[] xadj, int[] adjncy);
+
+    /**
+     * Strategy name used in reports.
+     */
+    public String getName();
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2012  Addition, Lda. (addition at addition dot pt)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package org.addition.epanet.hydraulic.structures;
+
+import org.addition.epanet.network.structures.Demand;
+import org.addition.epanet.network.structures.Pattern;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Junction demands compiled into primitive arrays.
+ * <p/>
+ * The demand categories of each junction are stored in compressed rows (base demand and pattern index per
+ * category), and the pattern factors in plain double arrays, so the demands of a pattern period are computed
+ * in a single loop. For runs with repeating patterns the demands of a full pattern cycle can be precomputed
+ * into a period by junction matrix.
+ */
+public class DemandSchedule {
+
+    /**
+     * Largest period by junction matrix that is precomputed, in number of values.
+     */
+    public static final int MAX_MATRIX_SIZE = 16 * 1024 * 1024;
+
+    private final int[] junctions;      // Junction node index
+    private final int[] start;          // First demand category of each junction, CSR style
+    private final double[] base;        // Base demand of each category
+    private final int[] pattern;        // Pattern index of each category
+    private final double[][] factors;   // Pattern factors
+    private final double[] current;     // Factor of each pattern in the current period
+    private final long cycle;           // Periods until all the patterns repeat
+
+    // Period by junction demand matrix
+    private double[][] matrix;
+    private double[] matrixSystem;
+    private double matrixMult;
+
+    /**
+     * Compiles the demands of the junctions.
+     *
+     * @param nodes Junctions of the simulation.
+     */
+    public DemandSchedule(List<SimulationNode> nodes) {
+        junctions = new int[nodes.size()];
+        start = new int[nodes.size() + 1];
+
+        int count = 0;
+        for (SimulationNode node : nodes)
+            count += node.getDemand().size();
+        base = new double[count];
+        pattern = new int[count];
+
+        Map<Pattern, Integer> patIndex = new HashMap<Pattern, Integer>();
+        int j = 0;
+        int c = 0;
+        for (SimulationNode node : nodes) {
+            junctions[j] = node.getIndex();
+            start[j++] = c;
+            for (Demand demand : node.getDemand()) {
+                Integer id = patIndex.get(demand.getPattern());
+                if (id == null) {
+                    id = patIndex.size();
+                    patIndex.put(demand.getPattern(), id);
+                }
+                base[c] = demand.getBase();
+                pattern[c++] = id;
+            }
+        }
+        start[j] = c;
+
+        factors = new double[patIndex.size()][];
+        long lcm = 1;
+        for (Map.Entry<Pattern, Integer> entry : patIndex.entrySet()) {
+            List<Double> list = entry.getKey().getFactorsList();
+            double[] f = new double[list.size()];
+            for (int i = 0; i < f.length; i++)
+                f[i] = list.get(i);
+            factors[entry.getValue()] = f;
+            if (lcm <= MAX_MATRIX_SIZE)
+                lcm = lcm / gcd(lcm, f.length) * f.length;
+        }
+        current = new double[factors.length];
+        cycle = lcm;
+    }
+
+    private static long gcd(long a, long b) {
+        while (b != 0) {
+            long t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    /**
+     * Number of periods after which all the demand patterns repeat.
+     */
+    public long getCycle() {
+        return cycle;
+    }
+
+    /**
+     * Checks if the demands of a full pattern cycle fit in the period by junction matrix.
+     */
+    public boolean isMatrixAvailable() {
+        return cycle > 0 && cycle * junctions.length <= MAX_MATRIX_SIZE;
+    }
+
+    /**
+     * Precomputes the demands of all the periods of a pattern cycle.
+     *
+     * @param dmult Demand multiplier.
+     */
+    public void precompute(double dmult) {
+        int periods = (int) cycle;
+        double[][] m = new double[periods][junctions.length];
+        double[] sys = new double[periods];
+        for (int p = 0; p < periods; p++)
+            sys[p] = computePeriod(p, dmult, m[p]);
+
+        matrix = m;
+        matrixSystem = sys;
+        matrixMult = dmult;
+    }
+
+    /**
+     * Discards the precomputed demand matrix.
+     */
+    public void clearMatrix() {
+        matrix = null;
+        matrixSystem = null;
+    }
+
+    /**
+     * Checks if the demand matrix was precomputed with the given demand multiplier.
+     */
+    public boolean hasMatrix(double dmult) {
+        return matrix != null && matrixMult == dmult;
+    }
+
+    /**
+     * Computes the junction demands of a pattern period, stored in the simulation arrays.
+     *
+     * @param p      Pattern period.
+     * @param dmult  Demand multiplier.
+     * @param arrays Simulation arrays.
+     * @return System wide demand.
+     */
+    public double computeDemands(long p, double dmult, SimulationArrays arrays) {
+        final double[] demand = arrays.demand;
+
+        if (matrix != null && dmult == matrixMult) {
+            double[] row = matrix[(int) (p % cycle)];
+            for (int j = 0; j < junctions.length; j++)
+                demand[junctions[j]] = row[j];
+            return matrixSystem[(int) (p % cycle)];
+        }
+
+        double dsystem = 0.0;
+        for (int i = 0; i < factors.length; i++) {
+            double[] f = factors[i];
+            current[i] = f[(int) (p % (long) f.length)];
+        }
+
+        for (int j = 0; j < junctions.length; j++) {
+            double sum = 0.0;
+            for (int c = start[j]; c < start[j + 1]; c++) {
+                double djunc = base[c] * current[pattern[c]] * dmult;
+                if (djunc > 0.0)
+                    dsystem += djunc;
+                sum += djunc;
+            }
+            demand[junctions[j]] = sum;
+        }
+        return dsystem;
+    }
+
+    // Computes the demands of a pattern period into a matrix row
+    private double computePeriod(long p, double dmult, double[] row) {
+        double dsystem = 0.0;
+        for (int j = 0; j < junctions.length; j++) {
+            double sum = 0.0;
+            for (int c = start[j]; c < start[j + 1]; c++) {
+                double[] f = factors[pattern[c]];
+                double djunc = base[c] * f[(int) (p % (long) f.length)] * dmult;
+                if (djunc > 0.0)
+                    dsystem += djunc;
+                sum += djunc;
+            }
+            row[j] = sum;
+        }
+        return dsystem;
+    }
+}
@@ -0,0 +1,347 @@
+/*
+ * Copyright (C) 2012  Addition, Lda. (addition at addition dot pt)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package org.addition.epanet.hydraulic.structures;
+
+import org.addition.epanet.Constants;
+import org.addition.epanet.network.FieldsMap;
+import org.addition.epanet.network.SimulationOptions;
+import org.addition.epanet.network.structures.Control.ControlType;
+import org.addition.epanet.network.structures.Link.LinkType;
+import org.addition.epanet.util.ENException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Scheduler of the simple control and tank events that limit the hydraulic time step.
+ * <p/>
+ * Gives the same time step as {@link SimulationTank#minimumTimeStep} followed by
+ * {@link SimulationControl#minimumTimeStep}, without scanning every tank and control at every step. Timer and
+ * time of day controls are kept in a priority queue by the time of their next activation and rescheduled once
+ * that time is passed. The fill and drain times of the tanks and the times at which tank levels cross the grades
+ * of level controls are predicted again only for the tanks whose level or net inflow changed, and kept in priority
+ * queues by the predicted time. A time step is then found by looking at the first events of the queues.
+ */
+public class EventScheduler {
+
+    // Binary heap of entry ids ordered by a time, with the position of each entry to update it in place
+    private static class Heap {
+        final long[] time;
+        final int[] heap;
+        final int[] pos;
+        int size;
+
+        Heap(int n) {
+            time = new long[n];
+            heap = new int[n];
+            pos = new int[n];
+            Arrays.fill(pos, -1);
+        }
+
+        void clear() {
+            Arrays.fill(pos, -1);
+            size = 0;
+        }
+
+        int peek() {
+            return size > 0 ? heap[0] : -1;
+        }
+
+        int poll() {
+            int id = heap[0];
+            remove(id);
+            return id;
+        }
+
+        // Sets the time of an entry, Long.MAX_VALUE removes it
+        void set(int id, long t) {
+            if (t == Long.MAX_VALUE) {
+                remove(id);
+                return;
+            }
+            time[id] = t;
+            if (pos[id] < 0) {
+                heap[size] = id;
+                pos[id] = size++;
+                up(pos[id]);
+            } else {
+                up(pos[id]);
+                down(pos[id]);
+            }
+        }
+
+        void remove(int id) {
+            int i = pos[id];
+            if (i < 0)
+                return;
+            pos[id] = -1;
+            if (i == --size)
+                return;
+            heap[i] = heap[size];
+            pos[heap[i]] = i;
+            up(i);
+            down(pos[heap[i]]);
+        }
+
+        private void up(int i) {
+            int id = heap[i];
+            while (i > 0) {
+                int p = (i - 1) >> 1;
+                if (time[heap[p]] <= time[id])
+                    break;
+                heap[i] = heap[p];
+                pos[heap[i]] = i;
+                i = p;
+            }
+            heap[i] = id;
+            pos[id] = i;
+        }
+
+        private void down(int i) {
+            int id = heap[i];
+            while (true) {
+                int c = 2 * i + 1;
+                if (c >= size)
+                    break;
+                if (c + 1 < size && time[heap[c + 1]] < time[heap[c]])
+                    c++;
+                if (time[heap[c]] >= time[id])
+                    break;
+                heap[i] = heap[c];
+                pos[heap[i]] = i;
+                i = c;
+            }
+            heap[i] = id;
+            pos[id] = i;
+        }
+    }
+
+    private final List<SimulationTank> tanks;
+    private final List<SimulationControl> controls;
+
+    // Level controls of each tank
+    private final int[][] tankControls;
+
+    // Tank state of the last prediction
+    private final double[] lastHead;
+    private final double[] lastDemand;
+    private final double[] lastVolume;
+    private final long[] lastTime;
+
+    // Volume at the grade of each level control
+    private final double[] gradeVolume;
+
+    private final Heap tankEvents;
+    private final Heap controlEvents;
+    private final int[] visited;
+
+    private boolean started;
+    private long htime;
+
+    /**
+     * Creates the scheduler of a simulation.
+     *
+     * @param tanks    Simulation tanks and reservoirs.
+     * @param controls Simulation simple controls.
+     */
+    public EventScheduler(List<SimulationTank> tanks, List<SimulationControl> controls) {
+        this.tanks = tanks;
+        this.controls = controls;
+
+        Map<SimulationNode, Integer> tankIndex = new IdentityHashMap<SimulationNode, Integer>();
+        List<List<Integer>> byTank = new ArrayList<List<Integer>>();
+        for (int i = 0; i < tanks.size(); i++) {
+            tankIndex.put(tanks.get(i), i);
+            byTank.add(new ArrayList<Integer>());
+        }
+        for (int c = 0; c < controls.size(); c++) {
+            Integer i = tankIndex.get(controls.get(c).getNode());
+            if (i != null)
+                byTank.get(i).add(c);
+        }
+        tankControls = new int[tanks.size()][];
+        for (int i = 0; i < tanks.size(); i++) {
+            List<Integer> ids = byTank.get(i);
+            tankControls[i] = new int[ids.size()];
+            for (int k = 0; k < ids.size(); k++)
+                tankControls[i][k] = ids.get(k);
+        }
+
+        lastHead = new double[tanks.size()];
+        lastDemand = new double[tanks.size()];
+        lastVolume = new double[tanks.size()];
+        lastTime = new long[tanks.size()];
+        gradeVolume = new double[controls.size()];
+        tankEvents = new Heap(tanks.size());
+        controlEvents = new Heap(controls.size());
+        visited = new int[controls.size()];
+    }
+
+    /**
+     * Forgets the scheduled events, they're predicted again from the current state in the next time step.
+     */
+    public void reset() {
+        started = false;
+    }
+
+    /**
+     * Revises the time step based on the shortest time to fill or drain a tank and to activate a simple control.
+     *
+     * @param fMap  Simulation fields map.
+     * @param opts  Simulation options.
+     * @param htime Current hydraulic time.
+     * @param tstep Time step to revise.
+     * @return Revised time step.
+     * @throws ENException
+     */
+    public long minimumTimeStep(FieldsMap fMap, SimulationOptions opts, long htime, long tstep) throws ENException {
+        if (!started || htime < this.htime)
+            schedule(fMap, opts, htime);
+        else
+            update(fMap, opts, htime);
+        this.htime = htime;
+
+        // Tanks filling or draining
+        int id = tankEvents.peek();
+        if (id >= 0 && tankEvents.time[id] - htime < tstep)
+            tstep = tankEvents.time[id] - htime;
+
+        // First control in time order that changes its link
+        int n = 0;
+        while ((id = controlEvents.peek()) >= 0) {
+            long t = controlEvents.time[id] - htime;
+            if (t >= tstep)
+                break;
+            SimulationControl control = controls.get(id);
+            visited[n++] = controlEvents.poll();
+            // A time of day control reached at this time isn't scheduled again for the next day
+            if (control.getType() == ControlType.TIMEOFDAY && t == Constants.SECperDAY)
+                continue;
+            if (changesLink(control)) {
+                tstep = t;
+                break;
+            }
+        }
+        for (int k = 0; k < n; k++)
+            controlEvents.set(visited[k], controlEvents.time[visited[k]]);
+
+        return tstep;
+    }
+
+    // Check if a control actually changes the status or setting of its link, as SimulationControl does
+    private static boolean changesLink(SimulationControl control) {
+        SimulationLink link = control.getLink();
+        return link != null && (link.getType().id > LinkType.PIPE.id && link.getSimSetting() != control.getSetting())
+                || (link.getSimStatus() != control.getStatus());
+    }
+
+    // Predicts all the events from the current state
+    private void schedule(FieldsMap fMap, SimulationOptions opts, long htime) throws ENException {
+        tankEvents.clear();
+        controlEvents.clear();
+        for (int c = 0; c < controls.size(); c++) {
+            SimulationControl control = controls.get(c);
+            if (control.getNode() instanceof SimulationTank)
+                gradeVolume[c] = ((SimulationTank) control.getNode()).findVolume(fMap, control.getGrade());
+            else
+                controlEvents.set(c, nextActivation(control, opts, htime));
+        }
+        for (int i = 0; i < tanks.size(); i++)
+            predict(i, htime);
+        started = true;
+    }
+
+    // Reschedules the time controls already passed and predicts the events of the tanks that changed
+    private void update(FieldsMap fMap, SimulationOptions opts, long htime) throws ENException {
+        for (int i = 0; i < tanks.size(); i++) {
+            SimulationTank tank = tanks.get(i);
+            double q = tank.getSimDemand();
+            if (Double.doubleToLongBits(tank.getSimHead()) != Double.doubleToLongBits(lastHead[i])
+                    || Double.doubleToLongBits(q) != Double.doubleToLongBits(lastDemand[i])
+                    || Double.doubleToLongBits(tank.getSimVolume()) != Double.doubleToLongBits(lastVolume[i])
+                    || (htime != lastTime[i] && Math.abs(q) > Constants.QZERO))
+                predict(i, htime);
+        }
+
+        int id;
+        while ((id = controlEvents.peek()) >= 0 && controlEvents.time[id] <= htime) {
+            SimulationControl control = controls.get(id);
+            controlEvents.set(id, nextActivation(control, opts, htime));
+        }
+    }
+
+    // Next time after the given time at which a time control is activated
+    private static long nextActivation(SimulationControl control, SimulationOptions opts, long htime) {
+        if (control.getNode() != null)
+            return Long.MAX_VALUE;
+
+        if (control.getType() == ControlType.TIMER)
+            return control.getTime() > htime ? control.getTime() : Long.MAX_VALUE;
+
+        if (control.getType() == ControlType.TIMEOFDAY) {
+            long t1 = (htime + opts.getTstart()) % Constants.SECperDAY;
+            long t2 = control.getTime();
+            long t = t2 > t1 ? t2 - t1 : Constants.SECperDAY - t1 + t2;
+            return htime + t;
+        }
+
+        return Long.MAX_VALUE;
+    }
+
+    // Predicts the fill or drain time of a tank and the times at which its level crosses the grades of its controls
+    private void predict(int i, long htime) {
+        SimulationTank tank = tanks.get(i);
+        double h = tank.getSimHead();
+        double q = tank.getSimDemand();
+        double vol = tank.getSimVolume();
+        lastHead[i] = h;
+        lastDemand[i] = q;
+        lastVolume[i] = vol;
+        lastTime[i] = htime;
+
+        boolean flowing = Math.abs(q) > Constants.QZERO;
+
+        long next = Long.MAX_VALUE;
+        if (flowing && !tank.isReservoir()) {
+            double v = 0.0;
+            if (q > 0.0 && h < tank.getHmax())
+                v = tank.getVmax() - vol;
+            else if (q < 0.0 && h > tank.getHmin())
+                v = tank.getVmin() - vol;
+            long t = Math.round(v / q);
+            if (v != 0.0 && t > 0)
+                next = htime + t;
+        }
+        tankEvents.set(i, next);
+
+        for (int c : tankControls[i]) {
+            SimulationControl control = controls.get(c);
+            long crossing = Long.MAX_VALUE;
+            if (flowing && ((h < control.getGrade() && control.getType() == ControlType.HILEVEL && q > 0.0)
+                    || (h > control.getGrade() && control.getType() == ControlType.LOWLEVEL && q < 0.0))) {
+                long t = Math.round((gradeVolume[c] - vol) / q);
+                if (t > 0)
+                    crossing = htime + t;
+            }
+            controlEvents.set(c, crossing);
+        }
+    }
+}
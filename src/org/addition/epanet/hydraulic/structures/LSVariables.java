@@ -84,6 +84,10 @@ public class LSVariables {
         return matrixOffDiagonal[id];
     }
 
+    public double[] getNodalInflows() {
+        return nodalInflows;
+    }
+
     public double[] getAiiVector() {
         return matrixDiagonal;
     }
@@ -95,6 +99,16 @@ public class LSVariables {
     public double[] getRHSCoeffs() {
         return rightHandSideCoeffs;
     }
+
+    /**
+     * Copies all the variables into another instance of the same size.
+     */
+    public void copyTo(LSVariables ls) {
+        System.arraycopy(nodalInflows, 0, ls.nodalInflows, 0, nodalInflows.length);
+        System.arraycopy(matrixDiagonal, 0, ls.matrixDiagonal, 0, matrixDiagonal.length);
+        System.arraycopy(matrixOffDiagonal, 0, ls.matrixOffDiagonal, 0, matrixOffDiagonal.length);
+        System.arraycopy(rightHandSideCoeffs, 0, ls.rightHandSideCoeffs, 0, rightHandSideCoeffs.length);
+    }
 }
 
 /**
@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2012  Addition, Lda. (addition at addition dot pt)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package org.addition.epanet.hydraulic.structures;
+
+import org.addition.epanet.Constants;
+import org.addition.epanet.network.SimulationOptions;
+import org.addition.epanet.network.structures.Rule.Objects;
+import org.addition.epanet.network.structures.Rule.Operators;
+import org.addition.epanet.network.structures.Rule.Values;
+import org.addition.epanet.network.structures.Rule.Varwords;
+import org.addition.epanet.util.ENException;
+
+import java.util.*;
+
+/**
+ * Index of the rule premises by the simulation values they read.
+ * <p/>
+ * Each premise reads one input, a variable of a node, link or of the whole system. Inputs shared by several
+ * premises are read once per rule step and compared with the value of the last step; only the rules reading an
+ * input that changed are evaluated again, the others keep their last result. Premises on the simulation time or
+ * clock time can only change when the time crosses their value, so they're scheduled in a priority queue by the
+ * next time their result may change instead of being checked at every step.
+ */
+public class RuleIndex {
+
+    // Input kinds
+    private static final int DEMAND = 0;
+    private static final int HEAD = 1;
+    private static final int FLOW = 2;
+    private static final int STATUS = 3;
+    private static final int SETTING = 4;
+    private static final int VOLUME = 5;
+    private static final int KINDS = 6;
+
+    // Variable read by one or more premises
+    private static class Input {
+        final Object object;
+        final int kind;
+        final boolean dynamic;  // Changes between hydraulic solutions, tank levels and link states set by rules
+        final Set<Integer> rules = new TreeSet<Integer>();
+        int[] ruleIds;
+        double last;
+
+        Input(Object object, int kind) {
+            this.object = object;
+            this.kind = kind;
+            this.dynamic = object instanceof SimulationTank || kind == STATUS || kind == SETTING;
+        }
+
+        double read(double dsystem) {
+            switch (kind) {
+                case DEMAND:
+                    return object == Objects.r_SYSTEM ? dsystem : ((SimulationNode) object).getSimDemand();
+                case HEAD:
+                    return ((SimulationNode) object).getSimHead();
+                case FLOW:
+                    return ((SimulationLink) object).getSimFlow();
+                case STATUS:
+                    return ((SimulationLink) object).getSimStatus().id;
+                case SETTING:
+                    return ((SimulationLink) object).getSimSetting();
+                case VOLUME:
+                    return ((SimulationTank) object).getSimVolume();
+            }
+            return 0.0;
+        }
+    }
+
+    // Next time a time premise may change, reused once polled
+    private static class Event {
+        long time;
+        int rule;
+        SimulationRule.Premise premise;  // Null for a one time check
+    }
+
+    private final List<SimulationRule> rules;
+    private final Input[] inputs;
+    private final Input[] dynamicInputs;
+    private final SimulationRule.Premise[][] timed;  // Premises of the rules with time premises
+    private final boolean[] dirty;
+    private final boolean[] result;
+    private final PriorityQueue<Event> events;
+    private final List<Event> spareEvents = new ArrayList<Event>();
+    private final List<SimulationRule.ActItem> actions = new ArrayList<SimulationRule.ActItem>();
+    private final List<SimulationRule.ActItem> actionItems = new ArrayList<SimulationRule.ActItem>();
+    private final Map<SimulationLink, SimulationRule.ActItem> actionLinks =
+            new IdentityHashMap<SimulationLink, SimulationRule.ActItem>();
+    private boolean actionsValid;
+
+    private boolean started;
+    private boolean scanAll;
+    private long lastTime;
+    private long evaluations;
+
+    /**
+     * Builds the index of a list of rules.
+     *
+     * @param rules Simulation rules, in evaluation order.
+     */
+    public RuleIndex(List<SimulationRule> rules) {
+        this.rules = rules;
+        int n = rules.size();
+        timed = new SimulationRule.Premise[n][];
+        dirty = new boolean[n];
+        result = new boolean[n];
+        events = new PriorityQueue<Event>(Math.max(1, n), new Comparator<Event>() {
+            public int compare(Event e1, Event e2) {
+                return e1.time < e2.time ? -1 : (e1.time > e2.time ? 1 : 0);
+            }
+        });
+
+        Map<Object, Input[]> byObject = new IdentityHashMap<Object, Input[]>();
+        List<Input> all = new ArrayList<Input>();
+        for (int r = 0; r < n; r++) {
+            SimulationRule.Premise[] pchain = rules.get(r).getPchain();
+            for (SimulationRule.Premise p : pchain) {
+                Varwords var = p.getVariable();
+                if (var == Varwords.r_TIME || var == Varwords.r_CLOCKTIME) {
+                    timed[r] = pchain;
+                    continue;
+                }
+                for (int kind : kinds(p)) {
+                    Input[] slots = byObject.get(p.getObject());
+                    if (slots == null)
+                        byObject.put(p.getObject(), slots = new Input[KINDS]);
+                    if (slots[kind] == null)
+                        all.add(slots[kind] = new Input(p.getObject(), kind));
+                    slots[kind].rules.add(r);
+                }
+            }
+        }
+
+        List<Input> dyn = new ArrayList<Input>();
+        for (Input in : all) {
+            in.ruleIds = new int[in.rules.size()];
+            int i = 0;
+            for (Integer r : in.rules)
+                in.ruleIds[i++] = r;
+            if (in.dynamic)
+                dyn.add(in);
+        }
+        inputs = all.toArray(new Input[all.size()]);
+        dynamicInputs = dyn.toArray(new Input[dyn.size()]);
+    }
+
+    // Inputs read by a premise, following SimulationRule.Premise.checkPremise
+    private static int[] kinds(SimulationRule.Premise p) {
+        if (p.getStatus().id > Values.IS_NUMBER.id)
+            return p.getObject() instanceof SimulationLink ? new int[]{STATUS} : new int[0];
+        switch (p.getVariable()) {
+            case r_DEMAND:
+                return new int[]{DEMAND};
+            case r_HEAD:
+            case r_GRADE:
+            case r_PRESSURE:
+            case r_LEVEL:
+                return new int[]{HEAD};
+            case r_FLOW:
+                return new int[]{FLOW};
+            case r_SETTING:
+                return new int[]{SETTING};
+            case r_FILLTIME:
+            case r_DRAINTIME:
+                return p.getObject() instanceof SimulationTank ? new int[]{VOLUME, DEMAND} : new int[0];
+        }
+        return new int[0];
+    }
+
+    /**
+     * Forgets the results of the last evaluation, all the rules are evaluated in the next rule step.
+     */
+    public void reset() {
+        started = false;
+    }
+
+    /**
+     * Number of rule evaluations since the index was built.
+     */
+    public long getEvaluations() {
+        return evaluations;
+    }
+
+    // Marks the start of a new hydraulic time step, when all the inputs may have changed
+    void begin() {
+        scanAll = true;
+    }
+
+    // Marks the rules that must be evaluated at a rule step
+    void update(SimulationOptions opts, long htime, double dsystem) throws ENException {
+        if (!started || htime <= lastTime || rules.size() != dirty.length) {
+            if (rules.size() != dirty.length)
+                throw new IllegalStateException("Rules changed after the index was built");
+            Arrays.fill(dirty, true);
+            actionsValid = false;
+            while (!events.isEmpty())
+                spareEvents.add(events.poll());
+            for (Input in : inputs)
+                in.last = in.read(dsystem);
+            for (int r = 0; r < dirty.length; r++)
+                if (timed[r] != null)
+                    for (SimulationRule.Premise p : timed[r])
+                        schedule(opts, newEvent(0, r, p), htime);
+            started = true;
+            scanAll = false;
+            lastTime = htime;
+            return;
+        }
+
+        for (Input in : scanAll ? inputs : dynamicInputs) {
+            double v = in.read(dsystem);
+            if (Double.doubleToLongBits(v) != Double.doubleToLongBits(in.last)) {
+                in.last = v;
+                for (int r : in.ruleIds)
+                    dirty[r] = true;
+            }
+        }
+        scanAll = false;
+
+        while (!events.isEmpty() && events.peek().time <= htime) {
+            Event e = events.poll();
+            dirty[e.rule] = true;
+            if (e.premise != null) {
+                // Equality holds for the single step whose interval holds the time, check the next step too
+                if (e.premise.getRelop() == Operators.EQ || e.premise.getRelop() == Operators.NE)
+                    events.add(newEvent(htime + 1, e.rule, null));
+                schedule(opts, e, htime);
+            } else
+                spareEvents.add(e);
+        }
+        lastTime = htime;
+    }
+
+    // Event from the spare events, or a new one
+    private Event newEvent(long time, int rule, SimulationRule.Premise premise) {
+        Event e = spareEvents.isEmpty() ? new Event() : spareEvents.remove(spareEvents.size() - 1);
+        e.time = time;
+        e.rule = rule;
+        e.premise = premise;
+        return e;
+    }
+
+    // Schedules an event at the next time after the given time at which its time premise may change
+    private void schedule(SimulationOptions opts, Event e, long after) throws ENException {
+        SimulationRule.Premise p = e.premise;
+        long x = (long) p.getValue();
+        long next;
+        if (p.getVariable() == Varwords.r_TIME) {
+            next = x > after ? x : (x + 1 > after ? x + 1 : Long.MAX_VALUE);
+        } else if (p.getVariable() == Varwords.r_CLOCKTIME) {
+            long tstart = opts.getTstart();
+            next = Math.min(nextClock(x, after, tstart), Math.min(nextClock(x + 1, after, tstart),
+                    nextClock(0, after, tstart)));
+        } else
+            next = Long.MAX_VALUE;
+        if (next != Long.MAX_VALUE) {
+            e.time = next;
+            events.add(e);
+        } else
+            spareEvents.add(e);
+    }
+
+    // First time after the given time at which the clock time is the given time of day
+    private static long nextClock(long clock, long after, long tstart) {
+        long day = Constants.SECperDAY;
+        long base = after + 1;
+        long d = ((clock - (base + tstart)) % day + day) % day;
+        return base + d;
+    }
+
+    boolean isDirty(int rule) {
+        return dirty[rule];
+    }
+
+    boolean getResult(int rule) {
+        return result[rule];
+    }
+
+    void setResult(int rule, boolean value) {
+        if (result[rule] != value)
+            actionsValid = false;
+        result[rule] = value;
+        dirty[rule] = false;
+        evaluations++;
+    }
+
+    // Action list of the current rule results, null if a result changed since it was built
+    List<SimulationRule.ActItem> getActions() {
+        return actionsValid ? actions : null;
+    }
+
+    // Empties the action list to build it again, the list and its items are reused
+    List<SimulationRule.ActItem> clearActions() {
+        actions.clear();
+        actionLinks.clear();
+        actionsValid = true;
+        return actions;
+    }
+
+    // Links of the actions in the action list
+    Map<SimulationLink, SimulationRule.ActItem> getActionLinks() {
+        return actionLinks;
+    }
+
+    // Item for the next action added to the action list
+    SimulationRule.ActItem newAction(SimulationRule rule, SimulationRule.Action action) {
+        int k = actions.size();
+        if (k == actionItems.size())
+            actionItems.add(new SimulationRule.ActItem(rule, action));
+        SimulationRule.ActItem item = actionItems.get(k);
+        item.rule = rule;
+        item.action = action;
+        return item;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2012  Addition, Lda. (addition at addition dot pt)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package org.addition.epanet.hydraulic.structures;
+
+import org.addition.epanet.hydraulic.SparseMatrix;
+import org.addition.epanet.network.structures.Link.LinkType;
+import org.addition.epanet.network.structures.Link.StatType;
+import org.addition.epanet.network.structures.Pump;
+
+import java.util.List;
+
+/**
+ * Flat primitive array representation of the simulation network.
+ * <p/>
+ * Node heads and demands and link status, flows and P/Y coefficients are stored here, indexed by the node and
+ * link index, and the simulation nodes and links read and write them through their getters. The network topology
+ * and the pipe constants are copied into arrays as well, so the coefficients assembly and the flow update of
+ * each Newton iteration run over contiguous arrays instead of the simulation objects.
+ */
+public class SimulationArrays {
+
+    /**
+     * Link classes.
+     */
+    public static final byte PIPE = 0;
+    public static final byte PUMP = 1;
+    public static final byte VALVE = 2;
+
+    // Simulation state
+
+    public final double[] head;           // Epanet 'H[n]', node head
+    public final double[] demand;         // Epanet 'D[n]', node demand
+    public final StatType[] status;       // Epanet 'S[k]', link status
+    public final double[] flow;           // Epanet 'Q[k]', link flow
+    public final double[] invHeadLoss;    // Epanet 'P[k]', inverse headloss derivatives
+    public final double[] flowCorrection; // Epanet 'Y[k]', flow correction factors
+
+    // Network topology and pipe constants, filled by compile
+
+    public final SimulationLink[] links;
+    public final byte[] linkClass;        // PIPE, PUMP or VALVE
+    public final int[] from;              // Start node index
+    public final int[] to;                // End node index
+    public final int[] ndx;               // Off diagonal coefficient index
+    public final boolean[] constHP;       // Constant horsepower pump
+    public final double[] km;             // Minor loss coefficient
+    public final double[] resistance;     // Flow resistance
+    public final double[] roughness;
+    public final double[] diameter;
+
+    public final int[] row;               // Node matrix row
+    public final boolean[] fixedGrade;    // Node is a tank or reservoir
+    public final int[] junctions;         // Junction node indexes
+    public final int[] tanks;             // Tank and reservoir node indexes
+
+    public SimulationArrays(int nodes, int links, int junctions) {
+        head = new double[nodes];
+        demand = new double[nodes];
+        status = new StatType[links];
+        flow = new double[links];
+        invHeadLoss = new double[links];
+        flowCorrection = new double[links];
+
+        this.links = new SimulationLink[links];
+        linkClass = new byte[links];
+        from = new int[links];
+        to = new int[links];
+        ndx = new int[links];
+        constHP = new boolean[links];
+        km = new double[links];
+        resistance = new double[links];
+        roughness = new double[links];
+        diameter = new double[links];
+
+        row = new int[nodes];
+        fixedGrade = new boolean[nodes];
+        this.junctions = new int[junctions];
+        tanks = new int[nodes - junctions];
+    }
+
+    /**
+     * Copies the network topology and the pipe constants into the arrays.
+     *
+     * @param nodes Simulation nodes.
+     * @param links Simulation links.
+     * @param smat  Sparse matrix of the network.
+     */
+    public void compile(List<SimulationNode> nodes, List<SimulationLink> links, SparseMatrix smat) {
+        int nJuncs = 0;
+        int nTanks = 0;
+        for (SimulationNode node : nodes) {
+            int i = node.getIndex();
+            row[i] = smat.getRow(i);
+            fixedGrade[i] = node instanceof SimulationTank;
+            if (fixedGrade[i])
+                tanks[nTanks++] = i;
+            else
+                junctions[nJuncs++] = i;
+        }
+
+        for (SimulationLink link : links) {
+            int k = link.getIndex();
+            this.links[k] = link;
+            from[k] = link.getFirst().getIndex();
+            to[k] = link.getSecond().getIndex();
+            ndx[k] = smat.getNdx(k);
+
+            if (link instanceof SimulationPump) {
+                linkClass[k] = PUMP;
+                constHP[k] = ((SimulationPump) link).getPtype() == Pump.Type.CONST_HP;
+            } else if (link.getType() == LinkType.PIPE || link.getType() == LinkType.CV)
+                linkClass[k] = PIPE;
+            else
+                linkClass[k] = VALVE;
+
+            km[k] = link.getKm();
+            resistance[k] = link.getFlowResistance();
+            roughness[k] = link.getRoughness();
+            diameter[k] = link.getDiameter();
+        }
+    }
+
+    /**
+     * Adds the P and Y coefficients of a link to the linear system.
+     */
+    void addLinkCoeffs(int k, LSVariables ls) {
+        int n1 = from[k];
+        int n2 = to[k];
+        double p = invHeadLoss[k];
+        double y = flowCorrection[k];
+        double[] x = ls.getNodalInflows();
+        double[] aii = ls.getAiiVector();
+        double[] f = ls.getRHSCoeffs();
+
+        x[n1] -= flow[k];
+        x[n2] += flow[k];
+
+        ls.getAijVector()[ndx[k]] -= p;
+
+        if (!fixedGrade[n1]) {
+            aii[row[n1]] += p;
+            f[row[n1]] += y;
+        } else
+            f[row[n2]] += p * head[n1];
+
+        if (!fixedGrade[n2]) {
+            aii[row[n2]] += p;
+            f[row[n2]] -= y;
+        } else
+            f[row[n1]] += p * head[n2];
+    }
+}
@@ -22,6 +22,7 @@ import org.addition.epanet.Constants;
 import org.addition.epanet.network.FieldsMap;
 import org.addition.epanet.network.FieldsMap.Type;
 import org.addition.epanet.network.PropertiesMap;
+import org.addition.epanet.network.SimulationOptions;
 import org.addition.epanet.network.io.Keywords;
 import org.addition.epanet.network.structures.Control;
 import org.addition.epanet.network.structures.Control.ControlType;
@@ -31,6 +32,7 @@ import org.addition.epanet.util.ENException;
 import org.addition.epanet.util.Utilities;
 
 import java.util.List;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class SimulationControl {
@@ -99,13 +101,13 @@ public class SimulationControl {
      * Get the shortest time step to activate the control.
      *
      * @param fMap
-     * @param pMap
+     * @param opts
      * @param htime
      * @param tstep
      * @return
      * @throws ENException
      */
-    private long getRequiredTimeStep(FieldsMap fMap, PropertiesMap pMap, long htime, long tstep) throws ENException {
+    private long getRequiredTimeStep(FieldsMap fMap, SimulationOptions opts, long htime, long tstep) throws ENException {
 
         long t = 0;
 
@@ -138,7 +140,7 @@ public class SimulationControl {
 
         // Time-of-day control
         if (getType() == ControlType.TIMEOFDAY) {
-            long t1 = (htime + pMap.getTstart()) % Constants.SECperDAY;
+            long t1 = (htime + opts.getTstart()) % Constants.SECperDAY;
             long t2 = getTime();
             if (t2 >= t1) t = t2 - t1;
             else t = Constants.SECperDAY - t1 + t2;
@@ -158,11 +160,11 @@ public class SimulationControl {
     }
 
     // Revises time step based on shortest time to fill or drain a tank
-    public static long minimumTimeStep(FieldsMap fMap, PropertiesMap pMap, List<SimulationControl> controls,
+    public static long minimumTimeStep(FieldsMap fMap, SimulationOptions opts, List<SimulationControl> controls,
                                        long htime, long tstep) throws ENException {
         long newTStep = tstep;
         for (SimulationControl control : controls)
-            newTStep = control.getRequiredTimeStep(fMap, pMap, htime, newTStep);
+            newTStep = control.getRequiredTimeStep(fMap, opts, htime, newTStep);
         return newTStep;
     }
 
@@ -170,13 +172,14 @@ public class SimulationControl {
     // Implements simple controls based on time or tank levels
     public static int stepActions(Logger log,
                                   FieldsMap fMap,
-                                  PropertiesMap pMap,
+                                  SimulationOptions opts,
                                   List<SimulationControl> controls,
                                   long htime) throws ENException {
         int setsum = 0;
 
         // Examine each control statement
-        for (SimulationControl control : controls) {
+        for (int i = 0; i < controls.size(); i++) {
+            SimulationControl control = controls.get(i);
             boolean reset = false;
 
             // Make sure that link is defined
@@ -208,7 +211,7 @@ public class SimulationControl {
 
             //  Link is time-of-day controlled
             if (control.getType() == ControlType.TIMEOFDAY) {
-                if ((htime + pMap.getTstart()) % Constants.SECperDAY == control.getTime())
+                if ((htime + opts.getTstart()) % Constants.SECperDAY == control.getTime())
                     reset = true;
             }
 
@@ -233,7 +236,7 @@ public class SimulationControl {
                 if (s1 != s2 || k1 != k2) {
                     link.setSimStatus(s2);
                     link.setSimSetting(k2);
-                    if (pMap.getStatflag() != null)
+                    if (opts.getStatflag() != null)
                         logControlAction(log, control, htime);
                     setsum++;
                 }
@@ -245,10 +248,11 @@ public class SimulationControl {
 
 
     // Adjusts settings of links controlled by junction pressures after a hydraulic solution is found
-    public static boolean pSwitch(Logger log, PropertiesMap pMap, FieldsMap fMap, List<SimulationControl> controls) throws ENException {
+    public static boolean pSwitch(Logger log, SimulationOptions opts, FieldsMap fMap, List<SimulationControl> controls) throws ENException {
         boolean anychange = false;
 
-        for (SimulationControl control : controls) {
+        for (int i = 0; i < controls.size(); i++) {
+            SimulationControl control = controls.get(i);
             boolean reset = false;
             if (control.getLink() == null)
                 continue;
@@ -257,10 +261,10 @@ public class SimulationControl {
             if (control.getNode() != null && !(control.getNode() instanceof SimulationTank)) {
 
                 // Determine if control conditions are satisfied
-                if (control.getType() == ControlType.LOWLEVEL && control.getNode().getSimHead() <= control.getGrade() + pMap.getHtol())
+                if (control.getType() == ControlType.LOWLEVEL && control.getNode().getSimHead() <= control.getGrade() + opts.getHtol())
                     reset = true;
 
-                if (control.getType() == ControlType.HILEVEL && control.getNode().getSimHead() >= control.getGrade() - pMap.getHtol())
+                if (control.getType() == ControlType.HILEVEL && control.getNode().getSimHead() >= control.getGrade() - opts.getHtol())
                     reset = true;
             }
 
@@ -292,7 +296,7 @@ public class SimulationControl {
                     link.setSimStatus(control.getStatus());
                     if (link.getType().id > LinkType.PIPE.id)
                         link.setSimSetting(control.getSetting());
-                    if (pMap.getStatflag() == PropertiesMap.StatFlag.FULL)
+                    if (opts.getStatflag() == PropertiesMap.StatFlag.FULL)
                         logStatChange(log, fMap, link, s);
 
                     anychange = true;
@@ -303,6 +307,8 @@ public class SimulationControl {
     }
 
     private static void logControlAction(Logger log, SimulationControl control, long Htime) {
+        if (!log.isLoggable(Level.WARNING))
+            return;
         SimulationNode n = control.getNode();
         SimulationLink l = control.getLink();
         String Msg = "";
@@ -333,6 +339,8 @@ public class SimulationControl {
     }
 
     private static void logStatChange(Logger log, FieldsMap fMap, SimulationLink link, StatType oldstatus) {
+        if (!log.isLoggable(Level.WARNING))
+            return;
         StatType s1 = oldstatus;
         StatType s2 = link.getSimStatus();
         try {
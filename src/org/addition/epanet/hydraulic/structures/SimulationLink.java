@@ -18,11 +18,11 @@
 package org.addition.epanet.hydraulic.structures;
 
 import org.addition.epanet.Constants;
-import org.addition.epanet.hydraulic.SparseMatrix;
 import org.addition.epanet.hydraulic.models.PipeHeadModel;
 import org.addition.epanet.network.FieldsMap;
 import org.addition.epanet.network.FieldsMap.Type;
 import org.addition.epanet.network.PropertiesMap;
+import org.addition.epanet.network.SimulationOptions;
 import org.addition.epanet.network.structures.Curve;
 import org.addition.epanet.network.structures.Link;
 import org.addition.epanet.network.structures.Link.LinkType;
@@ -35,6 +35,7 @@ import org.addition.epanet.util.Utilities;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class SimulationLink {
@@ -44,53 +45,51 @@ public class SimulationLink {
     protected SimulationNode second = null;
     protected final Link link;
     protected final int index;
+    protected final SimulationArrays arrays; // Status, flow, P and Y coefficients of the link are stored here
 
-    protected StatType status;         // Epanet 'S[k]', link current status
-    protected double flow;           // Epanet 'Q[k]', link flow value
-    protected double invHeadLoss;    // Epanet 'P[k]', Inverse headloss derivatives
-    protected double flowCorrection; // Epanet 'Y[k]', Flow correction factors
     protected double setting;        // Epanet 'K[k]', Link setting
     protected StatType oldStatus;
 
 
-    public static SimulationLink createIndexedLink(Map<String, SimulationNode> byId, Link ref, int idx) {
+    public static SimulationLink createIndexedLink(Map<String, SimulationNode> byId, Link ref, int idx, SimulationArrays arrays) {
         SimulationLink ret = null;
         if (ref instanceof Valve)
-            ret = new SimulationValve(byId.values(), ref, idx);
+            ret = new SimulationValve(byId.values(), ref, idx, arrays);
         else if (ref instanceof Pump)
-            ret = new SimulationPump(byId.values(), ref, idx);
+            ret = new SimulationPump(byId.values(), ref, idx, arrays);
         else
-            ret = new SimulationLink(byId, ref, idx);
+            ret = new SimulationLink(byId, ref, idx, arrays);
 
         return ret;
     }
 
-    public static SimulationLink createIndexedLink(List<SimulationNode> indexedNodes, Link ref, int idx) {
+    public static SimulationLink createIndexedLink(List<SimulationNode> indexedNodes, Link ref, int idx, SimulationArrays arrays) {
         SimulationLink ret = null;
         if (ref instanceof Valve)
-            ret = new SimulationValve(indexedNodes, ref, idx);
+            ret = new SimulationValve(indexedNodes, ref, idx, arrays);
         else if (ref instanceof Pump)
-            ret = new SimulationPump(indexedNodes, ref, idx);
+            ret = new SimulationPump(indexedNodes, ref, idx, arrays);
         else
-            ret = new SimulationLink(indexedNodes, ref, idx);
+            ret = new SimulationLink(indexedNodes, ref, idx, arrays);
 
         return ret;
     }
 
-    public SimulationLink(Map<String, SimulationNode> byId, Link ref, int idx) {
+    public SimulationLink(Map<String, SimulationNode> byId, Link ref, int idx, SimulationArrays arrays) {
 
         link = ref;
         first = byId.get(link.getFirst().getId());
         second = byId.get(link.getSecond().getId());
         this.index = idx;
+        this.arrays = arrays;
 
         // Init
         setting = link.getRoughness();
-        status = link.getStat();
+        arrays.status[index] = link.getStat();
 
     }
 
-    public SimulationLink(Collection<SimulationNode> indexedNodes, Link ref, int idx) {
+    public SimulationLink(Collection<SimulationNode> indexedNodes, Link ref, int idx, SimulationArrays arrays) {
         link = ref;
 
         for (SimulationNode indexedNode : indexedNodes) {
@@ -101,10 +100,11 @@ public class SimulationLink {
             if (first != null && second != null) break;
         }
         this.index = idx;
+        this.arrays = arrays;
 
         // Init
         setting = link.getRoughness();
-        status = link.getStat();
+        arrays.status[index] = link.getStat();
     }
 
     // Indexed link methods
@@ -179,19 +179,19 @@ public class SimulationLink {
     // Simulation getters & setters
 
     public StatType getSimStatus() {
-        return status;
+        return arrays.status[index];
     }
 
     public void setSimStatus(StatType type) {
-        status = type;
+        arrays.status[index] = type;
     }
 
     public double getSimFlow() {
-        return flow;
+        return arrays.flow[index];
     }
 
     public void setSimFlow(double flow) {
-        this.flow = flow;
+        arrays.flow[index] = flow;
     }
 
     public double getSimSetting() {
@@ -203,19 +203,19 @@ public class SimulationLink {
     }
 
     public double getSimInvHeadLoss() {
-        return invHeadLoss;
+        return arrays.invHeadLoss[index];
     }
 
     public void setSimInvHeadLoss(double value) {
-        invHeadLoss = value;
+        arrays.invHeadLoss[index] = value;
     }
 
     public double getSimFlowCorrection() {
-        return flowCorrection;
+        return arrays.flowCorrection[index];
     }
 
     public void setSimFlowCorrection(double value) {
-        flowCorrection = value;
+        arrays.flowCorrection[index] = value;
     }
 
     public StatType getSimOldStatus() {
@@ -226,6 +226,16 @@ public class SimulationLink {
         this.oldStatus = oldStatus;
     }
 
+    // Restores the link initial status and setting
+    public void reset() {
+        setting = link.getRoughness();
+        arrays.status[index] = link.getStat();
+        oldStatus = null;
+        arrays.flow[index] = 0.0;
+        arrays.invHeadLoss[index] = 0.0;
+        arrays.flowCorrection[index] = 0.0;
+    }
+
     // Simulation Methods
 
     // Sets link status to OPEN(true) or CLOSED(false)
@@ -237,14 +247,14 @@ public class SimulationLink {
             else if (getType() != LinkType.GPV)
                 setting = Constants.MISSING;
 
-            status = StatType.OPEN;
+            arrays.status[index] = StatType.OPEN;
         } else {
             if (this instanceof SimulationPump)
                 setting = 0.0;
             else if (getType() != LinkType.GPV)
                 setting = Constants.MISSING;
 
-            status = StatType.CLOSED;
+            arrays.status[index] = StatType.CLOSED;
         }
     }
 
@@ -252,18 +262,18 @@ public class SimulationLink {
     public void setLinkSetting(double value) {
         if (this instanceof SimulationPump) {
             setting = value;
-            if (value > 0 && status.id <= StatType.CLOSED.id)
-                status = StatType.OPEN;
+            if (value > 0 && arrays.status[index].id <= StatType.CLOSED.id)
+                arrays.status[index] = StatType.OPEN;
 
-            if (value == 0 && status.id > StatType.CLOSED.id)
-                status = StatType.CLOSED;
+            if (value == 0 && arrays.status[index].id > StatType.CLOSED.id)
+                arrays.status[index] = StatType.CLOSED;
 
         } else if (getType() == LinkType.FCV) {
             setting = value;
-            status = StatType.ACTIVE;
+            arrays.status[index] = StatType.ACTIVE;
         } else {
-            if (setting == Constants.MISSING && status.id <= StatType.CLOSED.id)
-                status = StatType.OPEN;
+            if (setting == Constants.MISSING && arrays.status[index].id <= StatType.CLOSED.id)
+                arrays.status[index] = StatType.OPEN;
 
             setting = value;
         }
@@ -273,41 +283,34 @@ public class SimulationLink {
     // or to flow at velocity of 1 fps for other links.
     public void initLinkFlow() {
         if (getSimStatus() == StatType.CLOSED)
-            flow = Constants.QZERO;
+            arrays.flow[index] = Constants.QZERO;
         else if (this instanceof SimulationPump)
-            flow = getRoughness() * ((SimulationPump) this).getQ0();
+            arrays.flow[index] = getRoughness() * ((SimulationPump) this).getQ0();
         else
-            flow = Constants.PI * Math.pow(getDiameter(), 2) / 4.0;
+            arrays.flow[index] = Constants.PI * Math.pow(getDiameter(), 2) / 4.0;
     }
 
     public void initLinkFlow(StatType type, double Kc) {
         if (type == StatType.CLOSED)
-            flow = Constants.QZERO;
+            arrays.flow[index] = Constants.QZERO;
         else if (this instanceof SimulationPump)
-            flow = Kc * ((SimulationPump) this).getQ0();
+            arrays.flow[index] = Kc * ((SimulationPump) this).getQ0();
         else
-            flow = Constants.PI * Math.pow(getDiameter(), 2) / 4.0;
+            arrays.flow[index] = Constants.PI * Math.pow(getDiameter(), 2) / 4.0;
     }
 
 //    public static long T1 = 0, T2 = 0, T3 = 0; //TODO:REMOVE THIS
 
-    // Compute P, Y and matrix coeffs
-    private void computeMatrixCoeff(final FieldsMap fMap,
-                                    final PropertiesMap pMap,
-                                    final PipeHeadModel hlModel,
-                                    final Curve[] curves,
-                                    final SparseMatrix smat, final LSVariables ls) throws ENException {
+    // Computes P & Y coefficients of a pump or valve, returns false if the link is left out of the matrix for now
+    private boolean computeLinkCoeff(final FieldsMap fMap,
+                                     final SimulationOptions opts,
+                                     final Curve[] curves) throws ENException {
 
         switch (getType()) {
-            // Pipes
-            case CV:
-            case PIPE:
-                computePipeCoeff(pMap, hlModel);
-                break;
             // Pumps
             case PUMP:
-                ((SimulationPump) this).computePumpCoeff(fMap, pMap);
-                break;
+                ((SimulationPump) this).computePumpCoeff(fMap, opts);
+                return true;
             // Valves
             case PBV:
             case TCV:
@@ -317,53 +320,16 @@ public class SimulationLink {
             case PSV:
                 // If valve status fixed then treat as pipe
                 // otherwise ignore the valve for now.
-                if (!((SimulationValve) this).computeValveCoeff(fMap, pMap, curves))
-                    return;
-                break;
+                return ((SimulationValve) this).computeValveCoeff(fMap, opts, curves);
             default:
-                return;
+                return false;
         }
-
-        int n1 = first.getIndex();
-        int n2 = second.getIndex();
-
-        ls.addNodalInFlow(n1, -flow);
-        ls.addNodalInFlow(n2, +flow);
-
-        ls.addAij(smat.getNdx(getIndex()), -invHeadLoss);
-
-        if (!(first instanceof SimulationTank)) {
-            ls.addAii(smat.getRow(n1), +invHeadLoss);
-            ls.addRHSCoeff(smat.getRow(n1), +flowCorrection);
-        } else
-            ls.addRHSCoeff(smat.getRow(n2), +(invHeadLoss * first.getSimHead()));
-
-        if (!(second instanceof SimulationTank)) {
-            ls.addAii(smat.getRow(n2), +invHeadLoss);
-            ls.addRHSCoeff(smat.getRow(n2), -flowCorrection);
-        } else
-            ls.addRHSCoeff(smat.getRow(n1), +(invHeadLoss * second.getSimHead()));
-
-    }
-
-    // Computes P & Y coefficients for pipe k
-    private void computePipeCoeff(PropertiesMap pMap, PipeHeadModel hlModel) throws ENException {
-        // For closed pipe use headloss formula: h = CBIG*q
-        if (status.id <= StatType.CLOSED.id) {
-            invHeadLoss = 1.0 / Constants.CBIG;
-            flowCorrection = flow;
-            return;
-        }
-
-        PipeHeadModel.LinkCoeffs coeffs = hlModel.compute(pMap, this);
-        invHeadLoss = coeffs.getInvHeadLoss();
-        flowCorrection = coeffs.getFlowCorrection();
     }
 
 
     // Closes link flowing into full or out of empty tank
-    private void tankStatus(PropertiesMap pMap) throws ENException {
-        double q = flow;
+    private void tankStatus(SimulationOptions opts) throws ENException {
+        double q = arrays.flow[index];
         SimulationNode n1 = getFirst();
         SimulationNode n2 = getSecond();
 
@@ -383,43 +349,43 @@ public class SimulationLink {
         SimulationTank tank = (SimulationTank) n1;
 
         // Skip reservoirs & closed links
-        if (tank.getArea() == 0.0 || status.id <= StatType.CLOSED.id)
+        if (tank.getArea() == 0.0 || arrays.status[index].id <= StatType.CLOSED.id)
             return;
 
         // If tank full, then prevent flow into it
-        if (tank.getSimHead() >= tank.getHmax() - pMap.getHtol()) {
+        if (tank.getSimHead() >= tank.getHmax() - opts.getHtol()) {
             //Case 1: Link is a pump discharging into tank
             if (getType() == LinkType.PUMP) {
                 if (getSecond() == n1)
-                    status = StatType.TEMPCLOSED;
-            } else if (cvStatus(pMap, StatType.OPEN, h, q) == StatType.CLOSED) //  Case 2: Downstream head > tank head
-                status = StatType.TEMPCLOSED;
+                    arrays.status[index] = StatType.TEMPCLOSED;
+            } else if (cvStatus(opts, StatType.OPEN, h, q) == StatType.CLOSED) //  Case 2: Downstream head > tank head
+                arrays.status[index] = StatType.TEMPCLOSED;
         }
 
         // If tank empty, then prevent flow out of it
-        if (tank.getSimHead() <= tank.getHmin() + pMap.getHtol()) {
+        if (tank.getSimHead() <= tank.getHmin() + opts.getHtol()) {
             // Case 1: Link is a pump discharging from tank
             if (getType() == LinkType.PUMP) {
                 if (getFirst() == n1)
-                    status = StatType.TEMPCLOSED;
+                    arrays.status[index] = StatType.TEMPCLOSED;
             }
             // Case 2: Tank head > downstream head
-            else if (cvStatus(pMap, StatType.CLOSED, h, q) == StatType.OPEN)
-                status = StatType.TEMPCLOSED;
+            else if (cvStatus(opts, StatType.CLOSED, h, q) == StatType.OPEN)
+                arrays.status[index] = StatType.TEMPCLOSED;
         }
     }
 
     // Updates status of a check valve.
-    private static StatType cvStatus(PropertiesMap pMap, StatType s, double dh, double q) throws ENException {
-        if (Math.abs(dh) > pMap.getHtol()) {
-            if (dh < -pMap.getHtol())
+    private static StatType cvStatus(SimulationOptions opts, StatType s, double dh, double q) throws ENException {
+        if (Math.abs(dh) > opts.getHtol()) {
+            if (dh < -opts.getHtol())
                 return (StatType.CLOSED);
-            else if (q < -pMap.getQtol())
+            else if (q < -opts.getQtol())
                 return (StatType.CLOSED);
             else
                 return (StatType.OPEN);
         } else {
-            if (q < -pMap.getQtol())
+            if (q < -opts.getQtol())
                 return (StatType.CLOSED);
             else
                 return (s);
@@ -427,32 +393,32 @@ public class SimulationLink {
     }
 
     // Determines new status for pumps, CVs, FCVs & pipes to tanks.
-    private boolean linkStatus(PropertiesMap pMap, FieldsMap fMap, Logger log) throws ENException {
+    private boolean linkStatus(SimulationOptions opts, FieldsMap fMap, Logger log) throws ENException {
         boolean change = false;
 
         double dh = first.getSimHead() - second.getSimHead();
 
-        StatType tStatus = status;
+        StatType tStatus = arrays.status[index];
 
         if (tStatus == StatType.XHEAD || tStatus == StatType.TEMPCLOSED)
-            status = StatType.OPEN;
+            arrays.status[index] = StatType.OPEN;
 
         if (getType() == LinkType.CV)
-            status = cvStatus(pMap, status, dh, flow);
+            arrays.status[index] = cvStatus(opts, arrays.status[index], dh, arrays.flow[index]);
 
-        if (this instanceof SimulationPump && status.id >= StatType.OPEN.id && setting > 0.0)
-            status = ((SimulationPump) this).pumpStatus(pMap, -dh);
+        if (this instanceof SimulationPump && arrays.status[index].id >= StatType.OPEN.id && setting > 0.0)
+            arrays.status[index] = ((SimulationPump) this).pumpStatus(opts, -dh);
 
         if (getType() == LinkType.FCV && setting != Constants.MISSING)
-            status = ((SimulationValve) this).fcvStatus(pMap, tStatus);
+            arrays.status[index] = ((SimulationValve) this).fcvStatus(opts, tStatus);
 
         if (first instanceof SimulationTank || second instanceof SimulationTank)
-            tankStatus(pMap);
+            tankStatus(opts);
 
-        if (tStatus != status) {
+        if (tStatus != arrays.status[index]) {
             change = true;
-            if (pMap.getStatflag() == PropertiesMap.StatFlag.FULL)
-                logStatChange(fMap, log, this, tStatus, status);
+            if (opts.getStatflag() == PropertiesMap.StatFlag.FULL)
+                logStatChange(fMap, log, this, tStatus, arrays.status[index]);
         }
 
         return (change);
@@ -471,7 +437,8 @@ public class SimulationLink {
                 case FCV:
                     link.setting *= fMap.getUnits(Type.FLOW);
             }
-            logger.finest(String.format(Utilities.getText("FMT56"), link.getType().parseStr, link.getLink().getId(), link.setting));
+            if (logger.isLoggable(Level.FINEST))
+                logger.finest(String.format(Utilities.getText("FMT56"), link.getType().parseStr, link.getLink().getId(), link.setting));
             return;
         }
 
@@ -489,17 +456,18 @@ public class SimulationLink {
         else
             j2 = StatType.OPEN;
 
-        if (j1 != j2) {
+        if (j1 != j2 && logger.isLoggable(Level.FINEST)) {
             logger.finest(String.format(Utilities.getText("FMT57"), link.getType().parseStr, link.getLink().getId(), j1.reportStr, j2.reportStr));
         }
 
     }
 
     // Determines new status for pumps, CVs, FCVs & pipes to tanks.
-    public static boolean linkStatus(PropertiesMap pMap, FieldsMap fMap, Logger log, List<SimulationLink> links) throws ENException {
+    public static boolean linkStatus(SimulationOptions opts, FieldsMap fMap, Logger log, List<SimulationLink> links) throws ENException {
         boolean change = false;
-        for (SimulationLink link : links) {
-            if (link.linkStatus(pMap, fMap, log))
+        for (int i = 0; i < links.size(); i++) {
+            SimulationLink link = links.get(i);
+            if (link.linkStatus(opts, fMap, log))
                 change = true;
         }
         return change;
@@ -507,13 +475,25 @@ public class SimulationLink {
 
     // Computes solution matrix coefficients for links
     public static void computeMatrixCoeffs(final FieldsMap fMap,
-                                           final PropertiesMap pMap,
+                                           final SimulationOptions opts,
                                            final PipeHeadModel hlModel,
-                                           final List<SimulationLink> links, final Curve[] curves,
-                                           final SparseMatrix smat, final LSVariables ls) throws ENException {
-
-        for (final SimulationLink link : links) {
-            link.computeMatrixCoeff(fMap, pMap, hlModel, curves, smat, ls);
+                                           final SimulationArrays arrays, final Curve[] curves,
+                                           final LSVariables ls) throws ENException {
+        final byte[] linkClass = arrays.linkClass;
+        final StatType[] status = arrays.status;
+
+        for (int k = 0; k < linkClass.length; k++) {
+            if (linkClass[k] == SimulationArrays.PIPE) {
+                // For closed pipe use headloss formula: h = CBIG*q
+                if (status[k].id <= StatType.CLOSED.id) {
+                    arrays.invHeadLoss[k] = 1.0 / Constants.CBIG;
+                    arrays.flowCorrection[k] = arrays.flow[k];
+                } else
+                    hlModel.compute(opts, arrays, k);
+            } else if (!arrays.links[k].computeLinkCoeff(fMap, opts, curves))
+                continue;
+
+            arrays.addLinkCoeffs(k, ls);
         }
     }
-}
+}
\ No newline at end of file
@@ -22,7 +22,7 @@ import org.addition.epanet.Constants;
 import org.addition.epanet.util.ENException;
 import org.addition.epanet.util.Utilities;
 import org.addition.epanet.hydraulic.SparseMatrix;
-import org.addition.epanet.network.PropertiesMap;
+import org.addition.epanet.network.SimulationOptions;
 import org.addition.epanet.network.structures.*;
 
 import java.util.List;
@@ -30,23 +30,23 @@ import java.util.List;
 public class SimulationNode {
     protected final int index;
     protected final Node node;
+    protected final SimulationArrays arrays; // Head and demand of the node are stored here
 
-    protected double head;   // Epanet 'H[n]' variable, node head.
-    protected double demand; // Epanet 'D[n]' variable, node demand.
     protected double emitter;// Epanet 'E[n]' variable, emitter flows
 
-    public static SimulationNode createIndexedNode(Node _node, int idx){
+    public static SimulationNode createIndexedNode(Node _node, int idx, SimulationArrays arrays){
         SimulationNode ret;
         if(_node instanceof Tank)
-            ret = new SimulationTank(_node,idx);
+            ret = new SimulationTank(_node,idx,arrays);
         else
-            ret = new SimulationNode(_node,idx);
+            ret = new SimulationNode(_node,idx,arrays);
 
         return ret;
     }
-    public SimulationNode(Node ref, int idx) {
+    public SimulationNode(Node ref, int idx, SimulationArrays arrays) {
         this.node =ref;
         index = idx;
+        this.arrays = arrays;
     }
 
     public int getIndex() {
@@ -97,19 +97,19 @@ public class SimulationNode {
     ////
 
     public double getSimHead() {
-        return head;
+        return arrays.head[index];
     }
 
     public void setSimHead(double head) {
-        this.head = head;
+        arrays.head[index] = head;
     }
 
     public double getSimDemand(){
-        return demand;
+        return arrays.demand[index];
     }
 
     public void setSimDemand(double value){
-        demand = value;
+        arrays.demand[index] = value;
     }
 
     public double getSimEmitter(){
@@ -120,14 +120,23 @@ public class SimulationNode {
         emitter = value;
     }
 
+    // Restores the node initial simulation state
+    public void reset(){
+        arrays.head[index] = 0.0;
+        arrays.demand[index] = 0.0;
+        emitter = 0.0;
+    }
+
     ////
 
     // Completes calculation of nodal flow imbalance (X) flow correction (F) arrays
-    public static void computeNodeCoeffs(List<SimulationNode> junctions, SparseMatrix smat, LSVariables ls){
-        for(SimulationNode node : junctions)
+    public static void computeNodeCoeffs(SimulationArrays arrays, LSVariables ls){
+        final double[] x = ls.getNodalInflows();
+        final double[] f = ls.getRHSCoeffs();
+        for(int i : arrays.junctions)
         {
-            ls.addNodalInFlow(node, - node.demand);
-            ls.addRHSCoeff(smat.getRow(node.getIndex()),+ls.getNodalInFlow(node));
+            x[i] -= arrays.demand[i];
+            f[arrays.row[i]] += x[i];
         }
     }
 
@@ -136,20 +145,21 @@ public class SimulationNode {
     // a fictitious reservoir whose elevation equals that
     // of the junction. The headloss through this pipe is
     // Ke*(Flow)^Qexp, where Ke = emitter headloss coeff.
-    public static void computeEmitterCoeffs(PropertiesMap pMap,
+    public static void computeEmitterCoeffs(SimulationOptions opts,
                                             List<SimulationNode> junctions,
                                             SparseMatrix smat, LSVariables ls) throws ENException {
-        for (SimulationNode node : junctions) {
+        for (int i = 0; i < junctions.size(); i++) {
+            SimulationNode node = junctions.get(i);
             if (node.getNode().getKe() == 0.0)
                 continue;
 
             double ke = Math.max(Constants.CSMALL, node.getNode().getKe());
             double q = node.emitter;
-            double z = ke * Math.pow(Math.abs(q), pMap.getQexp());
-            double p = pMap.getQexp()* z / Math.abs(q);
+            double z = ke * Math.pow(Math.abs(q), opts.getQexp());
+            double p = opts.getQexp()* z / Math.abs(q);
 
-            if (p < pMap.getRQtol())
-                p = 1.0 / pMap.getRQtol();
+            if (p < opts.getRQtol())
+                p = 1.0 / opts.getRQtol();
             else
                 p = 1.0 / p;
 
@@ -161,14 +171,14 @@ public class SimulationNode {
     }
 
     // Computes flow change at an emitter node
-    public double emitFlowChange(PropertiesMap pMap) throws ENException {
+    public double emitFlowChange(SimulationOptions opts) throws ENException {
         double ke = Math.max(Constants.CSMALL, getKe());
-        double p = pMap.getQexp() * ke * Math.pow(Math.abs(emitter), (pMap.getQexp() - 1.0));
-        if (p < pMap.getRQtol())
-            p = 1.0d / pMap.getRQtol();
+        double p = opts.getQexp() * ke * Math.pow(Math.abs(emitter), (opts.getQexp() - 1.0));
+        if (p < opts.getRQtol())
+            p = 1.0d / opts.getRQtol();
         else
             p = 1.0d / p;
-        return (emitter / pMap.getQexp() - p * (head-getElevation()));
+        return (emitter / opts.getQexp() - p * (arrays.head[index]-getElevation()));
     }
 
 }
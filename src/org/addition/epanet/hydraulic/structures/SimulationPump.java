@@ -20,7 +20,7 @@ package org.addition.epanet.hydraulic.structures;
 import org.addition.epanet.Constants;
 import org.addition.epanet.network.FieldsMap;
 import org.addition.epanet.network.FieldsMap.Type;
-import org.addition.epanet.network.PropertiesMap;
+import org.addition.epanet.network.SimulationOptions;
 import org.addition.epanet.network.structures.Curve;
 import org.addition.epanet.network.structures.Link;
 import org.addition.epanet.network.structures.Link.StatType;
@@ -37,6 +37,7 @@ public class SimulationPump extends SimulationLink {
     private double h0;                  // Simulated shutoff head
     private double flowCoefficient;     // Simulated Flow coefficent
     private double n;                   // Simulated flow expoent
+    private final Energy flowEnergy = new Energy(0.0, 0.0); // Energy of the last step, reused
 
     public static class Energy {
         public Energy(double power, double efficiency) {
@@ -48,8 +49,8 @@ public class SimulationPump extends SimulationLink {
         public double efficiency;   // Pump effiency
     }
 
-    public SimulationPump(Collection<SimulationNode> indexedNodes, Link ref, int idx) {
-        super(indexedNodes, ref, idx);
+    public SimulationPump(Collection<SimulationNode> indexedNodes, Link ref, int idx, SimulationArrays arrays) {
+        super(indexedNodes, ref, idx, arrays);
         for (int i = 0; i < 6; i++)
             energy[i] = ((Pump) ref).getEnergy(0);
 
@@ -111,6 +112,17 @@ public class SimulationPump extends SimulationLink {
     }
 
 
+    // Restores the pump initial curve coefficients and clears the energy usage
+    public void reset() {
+        super.reset();
+        for (int i = 0; i < 6; i++)
+            energy[i] = 0.0;
+
+        h0 = ((Pump) link).getH0();
+        flowCoefficient = ((Pump) link).getFlowCoefficient();
+        n = ((Pump) link).getN();
+    }
+
     private void setH0(double h0) {
         this.h0 = h0;
     }
@@ -135,18 +147,20 @@ public class SimulationPump extends SimulationLink {
         return n;
     }
 
-    // Computes flow energy associated with this link pump.
-    private Energy getFlowEnergy(PropertiesMap pMap, FieldsMap fMap) throws ENException {
-        Energy ret = new Energy(0.0, 0.0);
+    // Computes flow energy associated with this link pump, in the energy object of the pump.
+    private Energy getFlowEnergy(SimulationOptions opts, FieldsMap fMap) throws ENException {
+        Energy ret = flowEnergy;
+        ret.power = 0.0;
+        ret.efficiency = 0.0;
 
-        if (status.id <= StatType.CLOSED.id) {
+        if (arrays.status[index].id <= StatType.CLOSED.id) {
             return ret;
         }
 
-        double q = Math.abs(flow);
+        double q = Math.abs(arrays.flow[index]);
         double dh = Math.abs(first.getSimHead() - second.getSimHead());
 
-        double e = pMap.getEpump();
+        double e = opts.getEpump();
 
         if (getEcurve() != null) {
             Curve curve = getEcurve();
@@ -157,7 +171,7 @@ public class SimulationPump extends SimulationLink {
         e = Math.max(e, 1.0);
         e /= 100.0;
 
-        ret.power = dh * q * pMap.getSpGrav() / 8.814 / e * Constants.KWperHP;
+        ret.power = dh * q * opts.getSpGrav() / 8.814 / e * Constants.KWperHP;
         ret.efficiency = e;
 
         return ret;
@@ -165,13 +179,13 @@ public class SimulationPump extends SimulationLink {
 
 
     // Accumulates pump energy usage.
-    private double updateEnergy(PropertiesMap pMap, FieldsMap fMap,
+    private double updateEnergy(SimulationOptions opts, FieldsMap fMap,
                                 long n, double c0, double f0, double dt) throws ENException {
         double c = 0;
 
         //Skip closed pumps
-        if (status.id <= StatType.CLOSED.id) return 0.0;
-        double q = Math.max(Constants.QZERO, Math.abs(flow));
+        if (arrays.status[index].id <= StatType.CLOSED.id) return 0.0;
+        double q = Math.max(Constants.QZERO, Math.abs(arrays.flow[index]));
 
         // Find pump-specific energy cost
         if (getEcost() > 0.0)
@@ -186,7 +200,7 @@ public class SimulationPump extends SimulationLink {
             c *= f0;
 
         // Find pump energy & efficiency
-        Energy energy = getFlowEnergy(pMap, fMap);
+        Energy energy = getFlowEnergy(opts, fMap);
 
         // Update pump's cumulative statistics
         setEnergy(0, getEnergy(0) + dt);                        // Time on-line
@@ -200,16 +214,16 @@ public class SimulationPump extends SimulationLink {
     }
 
     // Computes P & Y coeffs. for pump in the link
-    void computePumpCoeff(FieldsMap fMap, PropertiesMap pMap) throws ENException {
+    void computePumpCoeff(FieldsMap fMap, SimulationOptions opts) throws ENException {
         double h0, q, r, n;
 
-        if (status.id <= StatType.CLOSED.id || setting == 0.0) {
-            invHeadLoss = 1.0 / Constants.CBIG;
-            flowCorrection = flow;
+        if (arrays.status[index].id <= StatType.CLOSED.id || setting == 0.0) {
+            arrays.invHeadLoss[index] = 1.0 / Constants.CBIG;
+            arrays.flowCorrection[index] = arrays.flow[index];
             return;
         }
 
-        q = Math.max(Math.abs(flow), Constants.TINY);
+        q = Math.max(Math.abs(arrays.flow[index]), Constants.TINY);
 
         if (getPtype() == Pump.Type.CUSTOM) {
 
@@ -225,13 +239,13 @@ public class SimulationPump extends SimulationLink {
         r = getFlowCoefficient() * Math.pow(setting, 2.0 - n);
         if (n != 1.0) r = n * r * Math.pow(q, n - 1.0);
 
-        invHeadLoss = 1.0 / Math.max(r, pMap.getRQtol());
-        flowCorrection = flow / n + invHeadLoss * h0;
+        arrays.invHeadLoss[index] = 1.0 / Math.max(r, opts.getRQtol());
+        arrays.flowCorrection[index] = arrays.flow[index] / n + arrays.invHeadLoss[index] * h0;
     }
 
     // Get new pump status
     // dh head gain
-    public StatType pumpStatus(PropertiesMap pMap, double dh) throws ENException {
+    public StatType pumpStatus(SimulationOptions opts, double dh) throws ENException {
         double hmax;
 
         if (getPtype() == Pump.Type.CONST_HP)
@@ -239,23 +253,23 @@ public class SimulationPump extends SimulationLink {
         else
             hmax = (setting * setting) * getHmax();
 
-        if (dh > hmax + pMap.getHtol())
+        if (dh > hmax + opts.getHtol())
             return (StatType.XHEAD);
 
         return (StatType.OPEN);
     }
 
     // Update pumps energy
-    public static double stepEnergy(PropertiesMap pMap, FieldsMap fMap,
+    public static double stepEnergy(SimulationOptions opts, FieldsMap fMap,
                                     Pattern Epat,
                                     List<SimulationPump> pumps,
                                     long htime, long hstep) throws ENException {
         double dt, psum = 0.0;
 
 
-        if (pMap.getDuration() == 0)
+        if (opts.getDuration() == 0)
             dt = 1.0;
-        else if (htime < pMap.getDuration())
+        else if (htime < opts.getDuration())
             dt = (double) hstep / 3600.0;
         else
             dt = 0.0;
@@ -263,10 +277,10 @@ public class SimulationPump extends SimulationLink {
         if (dt == 0.0)
             return 0.0;
 
-        long n = (htime + pMap.getPstart()) / pMap.getPstep();
+        long n = (htime + opts.getPstart()) / opts.getPstep();
 
 
-        double c0 = pMap.getEcost();
+        double c0 = opts.getEcost();
         double f0 = 1.0;
 
         if (Epat != null) {
@@ -274,8 +288,9 @@ public class SimulationPump extends SimulationLink {
             f0 = Epat.getFactorsList().get((int) m);
         }
 
-        for (SimulationPump pump : pumps) {
-            psum += pump.updateEnergy(pMap, fMap, n, c0, f0, dt);
+        for (int i = 0; i < pumps.size(); i++) {
+            SimulationPump pump = pumps.get(i);
+            psum += pump.updateEnergy(opts, fMap, n, c0, f0, dt);
         }
 
         return psum;
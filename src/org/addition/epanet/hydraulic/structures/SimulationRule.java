@@ -21,16 +21,19 @@ package org.addition.epanet.hydraulic.structures;
 import org.addition.epanet.Constants;
 import org.addition.epanet.util.ENException;
 import org.addition.epanet.util.Utilities;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.addition.epanet.network.FieldsMap;
-import org.addition.epanet.network.PropertiesMap;
+import org.addition.epanet.network.SimulationOptions;
 import org.addition.epanet.network.structures.Rule;
 import org.addition.epanet.network.structures.Rule.*;
 import org.addition.epanet.network.FieldsMap.*;
 import org.addition.epanet.network.structures.Link.*;
 
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 public class SimulationRule {
 
@@ -247,11 +250,11 @@ public class SimulationRule {
 
 
         // Checks if a particular premise is true
-        private boolean checkPremise(FieldsMap fMap,PropertiesMap pMap,
+        private boolean checkPremise(FieldsMap fMap,SimulationOptions opts,
                                      long Time1, long Htime, double dsystem) throws ENException
         {
             if (variable == Varwords.r_TIME || variable ==  Varwords.r_CLOCKTIME)
-                return(checkTime(pMap,Time1,Htime));
+                return(checkTime(opts,Time1,Htime));
             else if (status.id > Values.IS_NUMBER.id)
                 return(checkStatus());
             else
@@ -259,7 +262,7 @@ public class SimulationRule {
         }
 
         // Checks if condition on system time holds
-        private boolean checkTime(PropertiesMap pMap, long Time1, long Htime) throws ENException
+        private boolean checkTime(SimulationOptions opts, long Time1, long Htime) throws ENException
         {
             boolean  flag;
             long  t1,t2,x;
@@ -270,8 +273,8 @@ public class SimulationRule {
             }
             else if (variable == Varwords.r_CLOCKTIME)
             {
-                t1 = (Time1 + pMap.getTstart()) % Constants.SECperDAY;
-                t2 = (Htime + pMap.getTstart()) % Constants.SECperDAY;
+                t1 = (Time1 + opts.getTstart()) % Constants.SECperDAY;
+                t2 = (Htime + opts.getTstart()) % Constants.SECperDAY;
             }
             else
                 return false;
@@ -521,7 +524,7 @@ public class SimulationRule {
         }
 
         // Execute action, returns true if the link was alterated.
-        private boolean execute(FieldsMap fMap,PropertiesMap pMap,Logger log, double tol,long Htime) throws ENException {
+        private boolean execute(FieldsMap fMap,SimulationOptions opts,Logger log, double tol,long Htime) throws ENException {
             boolean flag = false;
 
             StatType s = link.getSimStatus();
@@ -552,7 +555,7 @@ public class SimulationRule {
             }
 
             if (flag){
-                if (pMap.getStatflag()!=null) // Report rule action
+                if (opts.getStatflag()!=null) // Report rule action
                     logRuleExecution(log,Htime);
                 return true;
             }
@@ -561,6 +564,8 @@ public class SimulationRule {
         }
 
         public void logRuleExecution(Logger log, long Htime){
+            if (!log.isLoggable(Level.WARNING))
+                return;
             log.warning(String.format(Utilities.getText("FMT63"),Utilities.getClockTime(Htime), link.getType().parseStr, link.getLink().getId(), label));
         }
     }
@@ -597,70 +602,67 @@ public class SimulationRule {
 
 
     // Evaluate rule premises.
-    private boolean evalPremises(FieldsMap fMap,PropertiesMap pMap,
+    private boolean evalPremises(FieldsMap fMap,SimulationOptions opts,
                                  long Time1, long Htime, double dsystem) throws ENException
     {
         boolean result=true;
 
-        for(SimulationRule.Premise p : getPchain())
+        for(int i = 0; i < Pchain.size(); i++)
         {
+            SimulationRule.Premise p = Pchain.get(i);
             if (p.getLogop() == Rulewords.r_OR){
                 if (!result)
-                    result = p.checkPremise(fMap,pMap,Time1,Htime,dsystem);
+                    result = p.checkPremise(fMap,opts,Time1,Htime,dsystem);
             }
             else{
                 if (!result)
                     return false;
-                result = p.checkPremise(fMap,pMap,Time1,Htime,dsystem);
+                result = p.checkPremise(fMap,opts,Time1,Htime,dsystem);
             }
 
         }
         return result;
     }
 
-    // Adds rule's actions to action list
-    private static void updateActionList(SimulationRule rule, List<ActItem> actionList, boolean branch){
-        if(branch){ // go through the true action branch
-            for(Action a : rule.getTchain()){
-                if(!checkAction(rule,a,actionList)) // add a new action from the "true" chain
-                    actionList.add(new ActItem(rule,a));
-            }
-        }
-        else{
-            for(Action a : rule.getFchain()){
-                if(!checkAction(rule,a,actionList)) // add a new action from the "false" chain
-                    actionList.add(new ActItem(rule,a));
+    // Adds rule's actions to action list, with the items of the index if there's one
+    private static void updateActionList(SimulationRule rule, List<ActItem> actionList,
+                                         Map<SimulationLink, ActItem> actionLinks, boolean branch, RuleIndex index){
+        // go through the "true" or the "false" branch
+        List<Action> chain = branch ? rule.getTchain() : rule.getFchain();
+        for(int i = 0; i < chain.size(); i++){
+            Action a = chain.get(i);
+            if(!checkAction(rule,a,actionLinks)){
+                ActItem item = index != null ? index.newAction(rule,a) : new ActItem(rule,a);
+                actionList.add(item);
+                actionLinks.put(a.link,item);
             }
         }
     }
 
     // Checks if an action with the same link is already on the Action List
-    private static boolean checkAction(SimulationRule rule,Action action, List<ActItem> actionList){
-
-        for(ActItem item : actionList)
-        {
-            if(item.action.link == action.link){ // Action with same link
-                if(rule.priority > item.rule.priority){ // Replace Actitem action with higher priority rule
-                    item.rule = rule;
-                    item.action = action;
-                }
+    private static boolean checkAction(SimulationRule rule,Action action, Map<SimulationLink, ActItem> actionLinks){
+        ActItem item = actionLinks.get(action.link);
+        if(item == null)
+            return false;
 
-                return true;
-            }
+        if(rule.priority > item.rule.priority){ // Replace Actitem action with higher priority rule
+            item.rule = rule;
+            item.action = action;
         }
 
-        return false;
+        return true;
     }
 
     // Implements actions on action list, returns the number of actions executed.
-    private static int takeActions(FieldsMap fMap, PropertiesMap pMap, Logger log,List<ActItem> actionList,
+    private static int takeActions(FieldsMap fMap, SimulationOptions opts, Logger log,List<ActItem> actionList,
                                    long htime) throws ENException
     {
         double  tol = 1.e-3;
         int n = 0;
 
-        for(ActItem item : actionList){
-            if(item.action.execute(fMap,pMap,log,tol,htime))
+        for(int i = 0; i < actionList.size(); i++){
+            ActItem item = actionList.get(i);
+            if(item.action.execute(fMap,opts,log,tol,htime))
                 n++;
         }
 
@@ -668,24 +670,57 @@ public class SimulationRule {
     }
 
 
-    // Checks which rules should fire at current time.
-    private static int check(FieldsMap fMap,PropertiesMap pMap, List<SimulationRule> rules,Logger log,
-                             long Htime,long dt,double dsystem) throws ENException {
+    // Checks which rules should fire at current time, evaluating only the rules marked by the index.
+    private static int check(FieldsMap fMap,SimulationOptions opts, List<SimulationRule> rules,RuleIndex index,
+                             Logger log,long Htime,long dt,double dsystem) throws ENException {
         // Start of rule evaluation time interval
         long Time1 = Htime - dt + 1;
 
+        if (index != null){
+            index.update(opts, Htime, dsystem);
+            for(int i = 0; i < rules.size(); i++)
+                if (index.isDirty(i))
+                    index.setResult(i, rules.get(i).evalPremises(fMap,opts,Time1,Htime,dsystem));
+
+            // The action list only changes with the rule results
+            List<ActItem> actionList = index.getActions();
+            if (actionList == null){
+                actionList = index.clearActions();
+                for(int i = 0; i < rules.size(); i++)
+                    updateActionList(rules.get(i),actionList,index.getActionLinks(),index.getResult(i),index);
+            }
+            return takeActions(fMap,opts,log,actionList,Htime);
+        }
+
         List<ActItem> actionList = new ArrayList<ActItem>();
+        Map<SimulationLink, ActItem> actionLinks = new IdentityHashMap<SimulationLink, ActItem>();
 
         for(SimulationRule rule : rules)
-            updateActionList(rule,actionList,rule.evalPremises(fMap,pMap,Time1,Htime,dsystem));
+            updateActionList(rule,actionList,actionLinks,rule.evalPremises(fMap,opts,Time1,Htime,dsystem),null);
 
-        return takeActions(fMap,pMap,log,actionList,Htime);
+        return takeActions(fMap,opts,log,actionList,Htime);
     }
 
     // updates next time step by checking if any rules will fire before then; also updates tank levels.
-    public static Result minimumTimeStep(FieldsMap fMap,PropertiesMap pMap,Logger log,
+    public static Result minimumTimeStep(FieldsMap fMap,SimulationOptions opts,Logger log,
                                          List<SimulationRule> rules,List<SimulationTank> tanks,
                                          long Htime,long tstep,double dsystem) throws ENException
+    {
+        return minimumTimeStep(fMap,opts,log,rules,null,tanks,Htime,tstep,dsystem);
+    }
+
+    // updates next time step like above, re-evaluating only the rules whose premises may have changed.
+    public static Result minimumTimeStep(FieldsMap fMap,SimulationOptions opts,Logger log,
+                                         List<SimulationRule> rules,RuleIndex index,List<SimulationTank> tanks,
+                                         long Htime,long tstep,double dsystem) throws ENException
+    {
+        return minimumTimeStep(fMap,opts,log,rules,index,tanks,Htime,tstep,dsystem,new Result(0,0));
+    }
+
+    // updates next time step like above, storing it in the given result instead of a new one.
+    public static Result minimumTimeStep(FieldsMap fMap,SimulationOptions opts,Logger log,
+                                         List<SimulationRule> rules,RuleIndex index,List<SimulationTank> tanks,
+                                         long Htime,long tstep,double dsystem,Result result) throws ENException
     {
         long    tnow,   // Start of time interval for rule evaluation
                 tmax,   // End of time interval for rule evaluation
@@ -705,8 +740,8 @@ public class SimulationRule {
             // Otherwise, time increment equals rule evaluation time step and
             // first actual increment equals time until next even multiple of
             // Rulestep occurs.
-            dt = pMap.getRulestep();
-            dt1 = pMap.getRulestep()  - (tnow % pMap.getRulestep());
+            dt = opts.getRulestep();
+            dt1 = opts.getRulestep()  - (tnow % opts.getRulestep());
         }
 
         // Make sure time increment is no larger than current time step
@@ -727,10 +762,13 @@ public class SimulationRule {
         //       Also note that dt1 will equal dt after the first
         //       time increment is taken.
 
+        if (index != null)
+            index.begin();
+
         do {
             Htime += dt1;                                       // Update simulation clock
             SimulationTank.stepWaterLevels(tanks, fMap, dt1);        // Find new tank levels
-            if (check(fMap,pMap,rules,log,Htime,dt1,dsystem) != 0) break; // Stop if rules fire
+            if (check(fMap,opts,rules,index,log,Htime,dt1,dsystem) != 0) break; // Stop if rules fire
             dt = Math.min(dt, tmax - Htime);                    // Update time increment
             dt1 = dt;                                           // Update actual increment
         }
@@ -741,7 +779,9 @@ public class SimulationRule {
         tstep = Htime - tnow;
         Htime = tnow;
 
-        return new Result(tstep,Htime);
+        result.step = tstep;
+        result.htime = Htime;
+        return result;
     }
 
     public SimulationRule(Rule _rule, List<SimulationLink> links,List<SimulationNode> nodes)  throws ENException{
@@ -38,13 +38,15 @@ public class SimulationTank extends SimulationNode {
 
     private StatType oldStat;
 
-    public SimulationTank(Node ref, int idx) {
-        super(ref, idx);
-        volume = ((Tank) node).getV0();
+    public SimulationTank(Node ref, int idx, SimulationArrays arrays) {
+        super(ref, idx, arrays);
+        initHead = ((Tank) node).getH0();
+        initVolume = ((Tank) node).getV0();
+        volume = initVolume;
 
         // Init
-        head = ((Tank) node).getH0();
-        demand = (0.0);
+        arrays.head[index] = initHead;
+        arrays.demand[index] = (0.0);
         oldStat = StatType.TEMPCLOSED;
     }
 
@@ -56,6 +58,10 @@ public class SimulationTank extends SimulationNode {
 
     private double volume;
 
+    // Initial level and volume of the current run, the network tank isn't changed
+    private double initHead;
+    private double initVolume;
+
 
     public double getArea() {
         return ((Tank) node).getArea();
@@ -69,10 +75,6 @@ public class SimulationTank extends SimulationNode {
         return ((Tank) node).getHmax();
     }
 
-    //public double getH0() {
-    //    return ((Tank)node).getH0();
-    //}
-
     public double getVmin() {
         return ((Tank) node).getVmin();
     }
@@ -82,7 +84,18 @@ public class SimulationTank extends SimulationNode {
     }
 
     public double getV0() {
-        return ((Tank) node).getV0();
+        return initVolume;
+    }
+
+    public double getH0() {
+        return initHead;
+    }
+
+    // Sets the initial level of the tank for the current run, without changing the network tank
+    public void setInitialLevel(FieldsMap fMap, double h0) throws ENException {
+        setSimLevel(fMap, h0);
+        initVolume = volume;
+        initHead = h0;
     }
 
     //public double getKb() {
@@ -128,11 +141,27 @@ public class SimulationTank extends SimulationNode {
         this.oldStat = oldStat;
     }
 
+    // Sets the tank water level, updating the tank volume accordingly
+    public void setSimLevel(FieldsMap fMap, double h) throws ENException {
+        arrays.head[index] = h;
+        volume = findVolume(fMap, h);
+    }
+
+    // Restores the initial level and volume of the network tank
+    public void reset() {
+        super.reset();
+        initHead = ((Tank) node).getH0();
+        initVolume = ((Tank) node).getV0();
+        volume = initVolume;
+        arrays.head[index] = initHead;
+        oldStat = StatType.TEMPCLOSED;
+    }
+
 
     /// Simulation methods
 
     // Finds water volume in tank corresponding to elevation 'h'
-    double findVolume(FieldsMap fMap, double h) throws ENException {
+    public double findVolume(FieldsMap fMap, double h) throws ENException {
 
         Curve curve = getVcurve();
         if (curve == null)
@@ -151,16 +180,16 @@ public class SimulationTank extends SimulationNode {
             return;
 
         // Euler
-        double dv = demand * tstep;
+        double dv = arrays.demand[index] * tstep;
         volume += dv;
 
-        if (volume + demand >= getVmax())
+        if (volume + arrays.demand[index] >= getVmax())
             volume = getVmax();
 
-        if (volume - demand <= getVmin())
+        if (volume - arrays.demand[index] <= getVmin())
             volume = getVmin();
 
-        head = findGrade(fMap);
+        arrays.head[index] = findGrade(fMap);
     }
 
     // Finds water level in tank corresponding to current volume
@@ -177,8 +206,8 @@ public class SimulationTank extends SimulationNode {
     private long getRequiredTimeStep(long tstep) {
         if (isReservoir()) return tstep;  //  Skip reservoirs
 
-        double h = head;    // Current tank grade
-        double q = demand;  // Flow into tank
+        double h = arrays.head[index];    // Current tank grade
+        double q = arrays.demand[index];  // Flow into tank
         double v = 0.0;
 
         if (Math.abs(q) <= Constants.QZERO)
@@ -211,8 +240,10 @@ public class SimulationTank extends SimulationNode {
 
     // Computes new water levels in tanks after current time step.
     public static void stepWaterLevels(List<SimulationTank> tanks, FieldsMap fMap, long tstep) throws ENException {
-        for (SimulationTank tank : tanks)
+        for (int i = 0; i < tanks.size(); i++) {
+            SimulationTank tank = tanks.get(i);
             tank.updateLevel(fMap, tstep);
+        }
     }
 
 }
@@ -21,6 +21,7 @@ import org.addition.epanet.Constants;
 import org.addition.epanet.hydraulic.SparseMatrix;
 import org.addition.epanet.network.FieldsMap;
 import org.addition.epanet.network.PropertiesMap;
+import org.addition.epanet.network.SimulationOptions;
 import org.addition.epanet.network.structures.Curve;
 import org.addition.epanet.network.structures.Link;
 import org.addition.epanet.network.structures.Link.LinkType;
@@ -30,6 +31,7 @@ import org.addition.epanet.util.Utilities;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -37,118 +39,118 @@ import java.util.logging.Logger;
  */
 public class SimulationValve extends SimulationLink {
 
-    public SimulationValve(Collection<SimulationNode> indexedNodes, Link ref, int idx) {
-        super(indexedNodes, ref, idx);
+    public SimulationValve(Collection<SimulationNode> indexedNodes, Link ref, int idx, SimulationArrays arrays) {
+        super(indexedNodes, ref, idx, arrays);
     }
 
 
     // Computes solution matrix coeffs. for a completely open, closed, or throttled control valve.
-    protected void valveCoeff(PropertiesMap pMap) throws ENException {
+    protected void valveCoeff(SimulationOptions opts) throws ENException {
         double p;
 
         // Valve is closed. Use a very small matrix coeff.
-        if (status.id <= StatType.CLOSED.id) {
-            invHeadLoss = 1.0 / Constants.CBIG;
-            flowCorrection = flow;
+        if (arrays.status[index].id <= StatType.CLOSED.id) {
+            arrays.invHeadLoss[index] = 1.0 / Constants.CBIG;
+            arrays.flowCorrection[index] = arrays.flow[index];
             return;
         }
 
         // Account for any minor headloss through the valve
         if (getKm() > 0.0) {
-            p = 2.0 * getKm() * Math.abs(flow);
-            if (p < pMap.getRQtol())
-                p = pMap.getRQtol();
+            p = 2.0 * getKm() * Math.abs(arrays.flow[index]);
+            if (p < opts.getRQtol())
+                p = opts.getRQtol();
 
-            invHeadLoss = 1.0 / p;
-            flowCorrection = flow / 2.0;
+            arrays.invHeadLoss[index] = 1.0 / p;
+            arrays.flowCorrection[index] = arrays.flow[index] / 2.0;
         } else {
-            invHeadLoss = 1.0 / pMap.getRQtol();
-            flowCorrection = flow;
+            arrays.invHeadLoss[index] = 1.0 / opts.getRQtol();
+            arrays.flowCorrection[index] = arrays.flow[index];
         }
     }
 
     // Computes solution matrix coeffs. for a completely open, closed, or throttled control valve.
-    private void valveCoeff(PropertiesMap pMap, double km) throws ENException {
+    private void valveCoeff(SimulationOptions opts, double km) throws ENException {
         double p;
 
         // Valve is closed. Use a very small matrix coeff.
-        if (status.id <= StatType.CLOSED.id) {
-            invHeadLoss = 1.0 / Constants.CBIG;
-            flowCorrection = flow;
+        if (arrays.status[index].id <= StatType.CLOSED.id) {
+            arrays.invHeadLoss[index] = 1.0 / Constants.CBIG;
+            arrays.flowCorrection[index] = arrays.flow[index];
             return;
         }
 
         // Account for any minor headloss through the valve
         if (km > 0.0) {
-            p = 2.0 * km * Math.abs(flow);
-            if (p < pMap.getRQtol())
-                p = pMap.getRQtol();
+            p = 2.0 * km * Math.abs(arrays.flow[index]);
+            if (p < opts.getRQtol())
+                p = opts.getRQtol();
 
-            invHeadLoss = 1.0 / p;
-            flowCorrection = flow / 2.0;
+            arrays.invHeadLoss[index] = 1.0 / p;
+            arrays.flowCorrection[index] = arrays.flow[index] / 2.0;
         } else {
-            invHeadLoss = 1.0 / pMap.getRQtol();
-            flowCorrection = flow;
+            arrays.invHeadLoss[index] = 1.0 / opts.getRQtol();
+            arrays.flowCorrection[index] = arrays.flow[index];
         }
     }
 
     // Computes P & Y coeffs. for pressure breaker valve
-    void pbvCoeff(PropertiesMap pMap) throws ENException {
+    void pbvCoeff(SimulationOptions opts) throws ENException {
         if (setting == Constants.MISSING || setting == 0.0)
-            valveCoeff(pMap);
-        else if (getKm() * (flow * flow) > setting)
-            valveCoeff(pMap);
+            valveCoeff(opts);
+        else if (getKm() * (arrays.flow[index] * arrays.flow[index]) > setting)
+            valveCoeff(opts);
         else {
-            invHeadLoss = Constants.CBIG;
-            flowCorrection = setting * Constants.CBIG;
+            arrays.invHeadLoss[index] = Constants.CBIG;
+            arrays.flowCorrection[index] = setting * Constants.CBIG;
         }
     }
 
     // Computes P & Y coeffs. for throttle control valve
-    void tcvCoeff(PropertiesMap pMap) throws ENException {
+    void tcvCoeff(SimulationOptions opts) throws ENException {
         double km = getKm();
 
         if (setting != Constants.MISSING)
             km = (0.02517 * setting / Math.pow(getDiameter(), 4));
 
-        valveCoeff(pMap, km);
+        valveCoeff(opts, km);
     }
 
     // Computes P & Y coeffs. for general purpose valve
-    void gpvCoeff(FieldsMap fMap, PropertiesMap pMap, Curve[] curves) throws ENException {
-        if (status == StatType.CLOSED)
-            valveCoeff(pMap);
+    void gpvCoeff(FieldsMap fMap, SimulationOptions opts, Curve[] curves) throws ENException {
+        if (arrays.status[index] == StatType.CLOSED)
+            valveCoeff(opts);
         else {
-            double q = Math.max(Math.abs(flow), Constants.TINY);
+            double q = Math.max(Math.abs(arrays.flow[index]), Constants.TINY);
             Curve.Coeffs coeffs = curves[(int) Math.round(setting)].getCoeff(fMap, q);
-            invHeadLoss = 1.0 / Math.max(coeffs.r, pMap.getRQtol());
-            flowCorrection = invHeadLoss * (coeffs.h0 + coeffs.r * q) * Utilities.getSignal(flow);
+            arrays.invHeadLoss[index] = 1.0 / Math.max(coeffs.r, opts.getRQtol());
+            arrays.flowCorrection[index] = arrays.invHeadLoss[index] * (coeffs.h0 + coeffs.r * q) * Utilities.getSignal(arrays.flow[index]);
         }
     }
 
     // Updates status of a flow control valve.
-    StatType fcvStatus(PropertiesMap pMap, StatType s) throws ENException {
+    StatType fcvStatus(SimulationOptions opts, StatType s) throws ENException {
         StatType status;
         status = s;
-        if (getFirst().getSimHead() - getSecond().getSimHead() < -pMap.getHtol()) status = StatType.XFCV;
-        else if (flow < -pMap.getQtol()) status = StatType.XFCV;
-        else if (s == StatType.XFCV && flow >= setting) status = StatType.ACTIVE;
+        if (getFirst().getSimHead() - getSecond().getSimHead() < -opts.getHtol()) status = StatType.XFCV;
+        else if (arrays.flow[index] < -opts.getQtol()) status = StatType.XFCV;
+        else if (s == StatType.XFCV && arrays.flow[index] >= setting) status = StatType.ACTIVE;
         return (status);
     }
 
 
     // Computes solution matrix coeffs. for pressure reducing valves
-    void prvCoeff(PropertiesMap pMap, LSVariables ls, SparseMatrix smat) throws ENException {
+    void prvCoeff(SimulationOptions opts, LSVariables ls, SparseMatrix smat) throws ENException {
         int k = getIndex();
         int i = smat.getRow(first.getIndex());
         int j = smat.getRow(second.getIndex());
 
         double hset = second.getElevation() + setting;
 
-        if (status == StatType.ACTIVE) {
+        if (arrays.status[index] == StatType.ACTIVE) {
 
-            invHeadLoss = 0.0;
-            flowCorrection = flow + ls.getNodalInFlow(second);
+            arrays.invHeadLoss[index] = 0.0;
+            arrays.flowCorrection[index] = arrays.flow[index] + ls.getNodalInFlow(second);
             ls.addRHSCoeff(j, +(hset * Constants.CBIG));
             ls.addAii(j, +Constants.CBIG);
             if (ls.getNodalInFlow(second) < 0.0)
@@ -156,42 +158,42 @@ public class SimulationValve extends SimulationLink {
             return;
         }
 
-        valveCoeff(pMap);
+        valveCoeff(opts);
 
-        ls.addAij(smat.getNdx(k), -invHeadLoss);
-        ls.addAii(i, +invHeadLoss);
-        ls.addAii(j, +invHeadLoss);
-        ls.addRHSCoeff(i, +(flowCorrection - flow));
-        ls.addRHSCoeff(j, -(flowCorrection - flow));
+        ls.addAij(smat.getNdx(k), -arrays.invHeadLoss[index]);
+        ls.addAii(i, +arrays.invHeadLoss[index]);
+        ls.addAii(j, +arrays.invHeadLoss[index]);
+        ls.addRHSCoeff(i, +(arrays.flowCorrection[index] - arrays.flow[index]));
+        ls.addRHSCoeff(j, -(arrays.flowCorrection[index] - arrays.flow[index]));
     }
 
 
     // Computes solution matrix coeffs. for pressure sustaining valve
-    void psvCoeff(PropertiesMap pMap, LSVariables ls, SparseMatrix smat) throws ENException {
+    void psvCoeff(SimulationOptions opts, LSVariables ls, SparseMatrix smat) throws ENException {
         int k = getIndex();
         int i = smat.getRow(first.getIndex());
         int j = smat.getRow(second.getIndex());
         double hset = first.getElevation() + setting;
 
-        if (status == StatType.ACTIVE) {
-            invHeadLoss = 0.0;
-            flowCorrection = flow - ls.getNodalInFlow(first);
+        if (arrays.status[index] == StatType.ACTIVE) {
+            arrays.invHeadLoss[index] = 0.0;
+            arrays.flowCorrection[index] = arrays.flow[index] - ls.getNodalInFlow(first);
             ls.addRHSCoeff(i, +(hset * Constants.CBIG));
             ls.addAii(i, +Constants.CBIG);
             if (ls.getNodalInFlow(first) > 0.0) ls.addRHSCoeff(j, +ls.getNodalInFlow(first));
             return;
         }
 
-        valveCoeff(pMap);
-        ls.addAij(smat.getNdx(k), -invHeadLoss);
-        ls.addAii(i, +invHeadLoss);
-        ls.addAii(j, +invHeadLoss);
-        ls.addRHSCoeff(i, +(flowCorrection - flow));
-        ls.addRHSCoeff(j, -(flowCorrection - flow));
+        valveCoeff(opts);
+        ls.addAij(smat.getNdx(k), -arrays.invHeadLoss[index]);
+        ls.addAii(i, +arrays.invHeadLoss[index]);
+        ls.addAii(j, +arrays.invHeadLoss[index]);
+        ls.addRHSCoeff(i, +(arrays.flowCorrection[index] - arrays.flow[index]));
+        ls.addRHSCoeff(j, -(arrays.flowCorrection[index] - arrays.flow[index]));
     }
 
     // computes solution matrix coeffs. for flow control valve
-    void fcvCoeff(PropertiesMap pMap, LSVariables ls, SparseMatrix smat) throws ENException {
+    void fcvCoeff(SimulationOptions opts, LSVariables ls, SparseMatrix smat) throws ENException {
         int k = getIndex();
         double q = setting;
         int i = smat.getRow(first.getIndex());
@@ -200,24 +202,24 @@ public class SimulationValve extends SimulationLink {
         // If valve active, break network at valve and treat
         // flow setting as external demand at upstream node
         // and external supply at downstream node.
-        if (status == StatType.ACTIVE) {
+        if (arrays.status[index] == StatType.ACTIVE) {
             ls.addNodalInFlow(first.getIndex(), -q);
             ls.addRHSCoeff(i, -q);
             ls.addNodalInFlow(second.getIndex(), +q);
             ls.addRHSCoeff(j, +q);
-            invHeadLoss = 1.0 / Constants.CBIG;
-            ls.addAij(smat.getNdx(k), -invHeadLoss);
-            ls.addAii(i, +invHeadLoss);
-            ls.addAii(j, +invHeadLoss);
-            flowCorrection = flow - q;
+            arrays.invHeadLoss[index] = 1.0 / Constants.CBIG;
+            ls.addAij(smat.getNdx(k), -arrays.invHeadLoss[index]);
+            ls.addAii(i, +arrays.invHeadLoss[index]);
+            ls.addAii(j, +arrays.invHeadLoss[index]);
+            arrays.flowCorrection[index] = arrays.flow[index] - q;
         } else {
             //  Otherwise treat valve as an open pipe
-            valveCoeff(pMap);
-            ls.addAij(smat.getNdx(k), -invHeadLoss);
-            ls.addAii(i, +invHeadLoss);
-            ls.addAii(j, +invHeadLoss);
-            ls.addRHSCoeff(i, +(flowCorrection - flow));
-            ls.addRHSCoeff(j, -(flowCorrection - flow));
+            valveCoeff(opts);
+            ls.addAij(smat.getNdx(k), -arrays.invHeadLoss[index]);
+            ls.addAii(i, +arrays.invHeadLoss[index]);
+            ls.addAii(j, +arrays.invHeadLoss[index]);
+            ls.addRHSCoeff(i, +(arrays.flowCorrection[index] - arrays.flow[index]));
+            ls.addRHSCoeff(j, -(arrays.flowCorrection[index] - arrays.flow[index]));
         }
     }
 
@@ -225,48 +227,56 @@ public class SimulationValve extends SimulationLink {
     // whose setting causes an inconsistent set of eqns. If so,
     // the valve status is fixed open and a warning condition
     // is generated.
-    public static boolean checkBadValve(PropertiesMap pMap, Logger log, List<SimulationValve> valves, long Htime, int n) throws ENException {
-        for (SimulationValve link : valves) {
+    public static boolean checkBadValve(SimulationOptions opts, Logger log, List<SimulationValve> valves, long Htime, int n) throws ENException {
+        return fixBadValve(opts, log, valves, Htime, n) != null;
+    }
+
+    // Same as checkBadValve, returning the valve whose status was fixed or null.
+    public static SimulationValve fixBadValve(SimulationOptions opts, Logger log, List<SimulationValve> valves, long Htime, int n) throws ENException {
+        for (int i = 0; i < valves.size(); i++) {
+            SimulationValve link = valves.get(i);
             SimulationNode n1 = link.getFirst();
             SimulationNode n2 = link.getSecond();
             if (n == n1.getIndex() || n == n2.getIndex()) {
                 if (link.getType() == LinkType.PRV || link.getType() == LinkType.PSV || link.getType() == LinkType.FCV) {
-                    if (link.status == StatType.ACTIVE) {
-                        if (pMap.getStatflag() == PropertiesMap.StatFlag.FULL) {
+                    if (link.getSimStatus() == StatType.ACTIVE) {
+                        if (opts.getStatflag() == PropertiesMap.StatFlag.FULL) {
                             logBadValve(log, link, Htime);
                         }
                         if (link.getType() == LinkType.FCV)
-                            link.status = StatType.XFCV;
+                            link.setSimStatus(StatType.XFCV);
                         else
-                            link.status = StatType.XPRESSURE;
-                        return true;
+                            link.setSimStatus(StatType.XPRESSURE);
+                        return link;
                     }
                 }
-                return false;
+                return null;
             }
         }
 
-        return false;
+        return null;
     }
 
     private static void logBadValve(Logger log, SimulationLink link, long Htime) {
+        if (!log.isLoggable(Level.WARNING))
+            return;
         log.warning(String.format(Utilities.getText("FMT61"), Utilities.getClockTime(Htime), link.getLink().getId()));
     }
 
     // Updates status of a pressure reducing valve.
-    private StatType prvStatus(PropertiesMap pMap, double hset) throws ENException {
+    private StatType prvStatus(SimulationOptions opts, double hset) throws ENException {
         if (setting == Constants.MISSING)
-            return (status);
+            return (arrays.status[index]);
 
-        double htol = pMap.getHtol();
-        double hml = getKm() * (flow * flow);
+        double htol = opts.getHtol();
+        double hml = getKm() * (arrays.flow[index] * arrays.flow[index]);
         double h1 = first.getSimHead();
         double h2 = second.getSimHead();
 
-        StatType tStatus = status;
-        switch (status) {
+        StatType tStatus = arrays.status[index];
+        switch (arrays.status[index]) {
             case ACTIVE:
-                if (flow < -pMap.getQtol())
+                if (arrays.flow[index] < -opts.getQtol())
                     tStatus = StatType.CLOSED;
                 else if (h1 - hml < hset - htol)
                     tStatus = StatType.OPEN;
@@ -274,7 +284,7 @@ public class SimulationValve extends SimulationLink {
                     tStatus = StatType.ACTIVE;
                 break;
             case OPEN:
-                if (flow < -pMap.getQtol())
+                if (arrays.flow[index] < -opts.getQtol())
                     tStatus = StatType.CLOSED;
                 else if (h2 >= hset + htol)
                     tStatus = StatType.ACTIVE;
@@ -290,7 +300,7 @@ public class SimulationValve extends SimulationLink {
                     tStatus = StatType.CLOSED;
                 break;
             case XPRESSURE:
-                if (flow < -pMap.getQtol())
+                if (arrays.flow[index] < -opts.getQtol())
                     tStatus = StatType.CLOSED;
                 break;
         }
@@ -298,18 +308,18 @@ public class SimulationValve extends SimulationLink {
     }
 
     // Updates status of a pressure sustaining valve.
-    private StatType psvStatus(PropertiesMap pMap, double hset) throws ENException {
+    private StatType psvStatus(SimulationOptions opts, double hset) throws ENException {
         if (setting == Constants.MISSING)
-            return (status);
+            return (arrays.status[index]);
 
         double h1 = first.getSimHead();
         double h2 = second.getSimHead();
-        double htol = pMap.getHtol();
-        double hml = getKm() * (flow * flow);
-        StatType tStatus = status;
-        switch (status) {
+        double htol = opts.getHtol();
+        double hml = getKm() * (arrays.flow[index] * arrays.flow[index]);
+        StatType tStatus = arrays.status[index];
+        switch (arrays.status[index]) {
             case ACTIVE:
-                if (flow < -pMap.getQtol())
+                if (arrays.flow[index] < -opts.getQtol())
                     tStatus = StatType.CLOSED;
                 else if (h2 + hml > hset + htol)
                     tStatus = StatType.OPEN;
@@ -317,7 +327,7 @@ public class SimulationValve extends SimulationLink {
                     tStatus = StatType.ACTIVE;
                 break;
             case OPEN:
-                if (flow < -pMap.getQtol())
+                if (arrays.flow[index] < -opts.getQtol())
                     tStatus = StatType.CLOSED;
                 else if (h1 < hset - htol)
                     tStatus = StatType.ACTIVE;
@@ -333,7 +343,7 @@ public class SimulationValve extends SimulationLink {
                     tStatus = StatType.CLOSED;
                 break;
             case XPRESSURE:
-                if (flow < -pMap.getQtol())
+                if (arrays.flow[index] < -opts.getQtol())
                     tStatus = StatType.CLOSED;
                 break;
         }
@@ -341,22 +351,22 @@ public class SimulationValve extends SimulationLink {
     }
 
     // Compute P & Y coefficients for PBV,TCV,GPV valves
-    public boolean computeValveCoeff(FieldsMap fMap, PropertiesMap pMap, Curve[] curves) throws ENException {
+    public boolean computeValveCoeff(FieldsMap fMap, SimulationOptions opts, Curve[] curves) throws ENException {
         switch (getType()) {
             case PBV:
-                pbvCoeff(pMap);
+                pbvCoeff(opts);
                 break;
             case TCV:
-                tcvCoeff(pMap);
+                tcvCoeff(opts);
                 break;
             case GPV:
-                gpvCoeff(fMap, pMap, curves);
+                gpvCoeff(fMap, opts, curves);
                 break;
             case FCV:
             case PRV:
             case PSV:
                 if (getSimSetting() == Constants.MISSING)
-                    valveCoeff(pMap);
+                    valveCoeff(opts);
                 else
                     return false;
                 break;
@@ -365,24 +375,25 @@ public class SimulationValve extends SimulationLink {
     }
 
     // Updates status for PRVs & PSVs whose status is not fixed to OPEN/CLOSED
-    public static boolean valveStatus(FieldsMap fMap, PropertiesMap pMap, Logger log, List<SimulationValve> valves) throws ENException {
+    public static boolean valveStatus(FieldsMap fMap, SimulationOptions opts, Logger log, List<SimulationValve> valves) throws ENException {
         boolean change = false;
 
-        for (SimulationValve v : valves) {
+        for (int i = 0; i < valves.size(); i++) {
+            SimulationValve v = valves.get(i);
 
             if (v.setting == Constants.MISSING) continue;
 
-            StatType s = v.status;
+            StatType s = v.getSimStatus();
 
             switch (v.getType()) {
                 case PRV: {
                     double hset = v.second.getElevation() + v.setting;
-                    v.status = v.prvStatus(pMap, hset);
+                    v.setSimStatus(v.prvStatus(opts, hset));
                     break;
                 }
                 case PSV: {
                     double hset = v.first.getElevation() + v.setting;
-                    v.status = v.psvStatus(pMap, hset);
+                    v.setSimStatus(v.psvStatus(opts, hset));
                     break;
                 }
 
@@ -390,9 +401,9 @@ public class SimulationValve extends SimulationLink {
                     continue;
             }
 
-            if (s != v.status) {
-                if (pMap.getStatflag() == PropertiesMap.StatFlag.FULL)
-                    logStatChange(fMap, log, v, s, v.status);
+            if (s != v.getSimStatus()) {
+                if (opts.getStatflag() == PropertiesMap.StatFlag.FULL)
+                    logStatChange(fMap, log, v, s, v.getSimStatus());
                 change = true;
             }
         }
@@ -401,20 +412,21 @@ public class SimulationValve extends SimulationLink {
 
 
     // Computes solution matrix coeffs. for PRVs, PSVs & FCVs whose status is not fixed to OPEN/CLOSED
-    public static void computeMatrixCoeffs(PropertiesMap pMap, LSVariables ls, SparseMatrix smat, List<SimulationValve> valves) throws ENException {
-        for (SimulationValve valve : valves) {
+    public static void computeMatrixCoeffs(SimulationOptions opts, LSVariables ls, SparseMatrix smat, List<SimulationValve> valves) throws ENException {
+        for (int i = 0; i < valves.size(); i++) {
+            SimulationValve valve = valves.get(i);
             if (valve.getSimSetting() == Constants.MISSING)
                 continue;
 
             switch (valve.getType()) {
                 case PRV:
-                    valve.prvCoeff(pMap, ls, smat);
+                    valve.prvCoeff(opts, ls, smat);
                     break;
                 case PSV:
-                    valve.psvCoeff(pMap, ls, smat);
+                    valve.psvCoeff(opts, ls, smat);
                     break;
                 case FCV:
-                    valve.fcvCoeff(pMap, ls, smat);
+                    valve.fcvCoeff(opts, ls, smat);
                     break;
             }
         }
@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2012  Addition, Lda. (addition at addition dot pt)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package org.addition.epanet.network;
+
+import org.addition.epanet.network.PropertiesMap.FormType;
+import org.addition.epanet.network.PropertiesMap.QualType;
+import org.addition.epanet.network.PropertiesMap.StatFlag;
+import org.addition.epanet.util.ENException;
+
+/**
+ * Immutable snapshot of the simulation properties.
+ * <p/>
+ * Holds the {@link PropertiesMap} values read by the hydraulic and quality solvers in typed final fields,
+ * so the solver loops don't pay the map lookup, cast and unboxing of each property. Changes made to the
+ * properties map after the snapshot is taken are not seen by it.
+ */
+public class SimulationOptions {
+
+    private final double bulkOrder;              // Bulk reaction order
+    private final int checkFreq;                 // Status check frequency
+    private final double climit;                 // Limiting potential quality
+    private final double ctol;                   // Quality tolerance
+    private final double dampLimit;              // Solution damping threshold
+    private final double diffus;                 // Diffusivity
+    private final double dmult;                  // Demand multiplier
+    private final long duration;                 // Duration of simulation (sec)
+    private final double ecost;                  // Base energy cost per kwh
+    private final String epatId;                 // Energy cost time pattern id
+    private final double epump;                  // Global pump efficiency
+    private final int extraIter;                 // Extra hydraulic trials
+    private final FormType formflag;             // Hydraulic formula flag
+    private final double hacc;                   // Hydraulics solution accuracy
+    private final double hexp;                   // Exponent in headloss formula
+    private final long hstep;                    // Nominal hyd. time step (sec)
+    private final double htol;                   // Hydraulic head tolerance
+    private final int maxCheck;                  // Hydraulics iterations for status checks
+    private final int maxIter;                   // Max. hydraulic trials
+    private final boolean messageflag;           // Report error and warning messages
+    private final long pstart;                   // Time pattern start time (sec)
+    private final long pstep;                    // Time pattern time step (sec)
+    private final double qexp;                   // Exponent in orifice formula
+    private final long qstep;                    // Quality time step (sec)
+    private final double qtol;                   // Flow rate tolerance
+    private final QualType qualflag;             // Water quality flag
+    private final double rQtol;                  // Flow resistance tolerance
+    private final long rstart;                   // Time when reporting starts
+    private final long rstep;                    // Reporting time step (sec)
+    private final long rulestep;                 // Rule evaluation time step (sec)
+    private final double spGrav;                 // Specific gravity
+    private final StatFlag statflag;             // Status report flag
+    private final double tankOrder;              // Tank reaction order
+    private final String traceNode;              // Source node id for flow tracing
+    private final long tstart;                   // Starting time of day (sec)
+    private final double viscos;                 // Kinematic viscosity
+    private final double wallOrder;              // Wall reaction order
+
+    /**
+     * Takes a snapshot of the simulation properties.
+     *
+     * @param pMap Simulation properties map.
+     * @throws ENException
+     */
+    public SimulationOptions(PropertiesMap pMap) throws ENException {
+        bulkOrder = pMap.getBulkOrder();
+        checkFreq = pMap.getCheckFreq();
+        climit = pMap.getClimit();
+        ctol = pMap.getCtol();
+        dampLimit = pMap.getDampLimit();
+        diffus = pMap.getDiffus();
+        dmult = pMap.getDmult();
+        duration = pMap.getDuration();
+        ecost = pMap.getEcost();
+        epatId = pMap.getEpatId();
+        epump = pMap.getEpump();
+        extraIter = pMap.getExtraIter();
+        formflag = pMap.getFormflag();
+        hacc = pMap.getHacc();
+        hexp = pMap.getHexp();
+        hstep = pMap.getHstep();
+        htol = pMap.getHtol();
+        maxCheck = pMap.getMaxCheck();
+        maxIter = pMap.getMaxIter();
+        messageflag = pMap.getMessageflag();
+        pstart = pMap.getPstart();
+        pstep = pMap.getPstep();
+        qexp = pMap.getQexp();
+        qstep = pMap.getQstep();
+        qtol = pMap.getQtol();
+        qualflag = pMap.getQualflag();
+        rQtol = pMap.getRQtol();
+        rstart = pMap.getRstart();
+        rstep = pMap.getRstep();
+        rulestep = pMap.getRulestep();
+        spGrav = pMap.getSpGrav();
+        statflag = pMap.getStatflag();
+        tankOrder = pMap.getTankOrder();
+        traceNode = pMap.getTraceNode();
+        tstart = pMap.getTstart();
+        viscos = pMap.getViscos();
+        wallOrder = pMap.getWallOrder();
+    }
+
+    public double getBulkOrder() {
+        return bulkOrder;
+    }
+
+    public int getCheckFreq() {
+        return checkFreq;
+    }
+
+    public double getClimit() {
+        return climit;
+    }
+
+    public double getCtol() {
+        return ctol;
+    }
+
+    public double getDampLimit() {
+        return dampLimit;
+    }
+
+    public double getDiffus() {
+        return diffus;
+    }
+
+    public double getDmult() {
+        return dmult;
+    }
+
+    public long getDuration() {
+        return duration;
+    }
+
+    public double getEcost() {
+        return ecost;
+    }
+
+    public String getEpatId() {
+        return epatId;
+    }
+
+    public double getEpump() {
+        return epump;
+    }
+
+    public int getExtraIter() {
+        return extraIter;
+    }
+
+    public FormType getFormflag() {
+        return formflag;
+    }
+
+    public double getHacc() {
+        return hacc;
+    }
+
+    public double getHexp() {
+        return hexp;
+    }
+
+    public long getHstep() {
+        return hstep;
+    }
+
+    public double getHtol() {
+        return htol;
+    }
+
+    public int getMaxCheck() {
+        return maxCheck;
+    }
+
+    public int getMaxIter() {
+        return maxIter;
+    }
+
+    public boolean getMessageflag() {
+        return messageflag;
+    }
+
+    public long getPstart() {
+        return pstart;
+    }
+
+    public long getPstep() {
+        return pstep;
+    }
+
+    public double getQexp() {
+        return qexp;
+    }
+
+    public long getQstep() {
+        return qstep;
+    }
+
+    public double getQtol() {
+        return qtol;
+    }
+
+    public QualType getQualflag() {
+        return qualflag;
+    }
+
+    public double getRQtol() {
+        return rQtol;
+    }
+
+    public long getRstart() {
+        return rstart;
+    }
+
+    public long getRstep() {
+        return rstep;
+    }
+
+    public long getRulestep() {
+        return rulestep;
+    }
+
+    public double getSpGrav() {
+        return spGrav;
+    }
+
+    public StatFlag getStatflag() {
+        return statflag;
+    }
+
+    public double getTankOrder() {
+        return tankOrder;
+    }
+
+    public String getTraceNode() {
+        return traceNode;
+    }
+
+    public long getTstart() {
+        return tstart;
+    }
+
+    public double getViscos() {
+        return viscos;
+    }
+
+    public double getWallOrder() {
+        return wallOrder;
+    }
+}
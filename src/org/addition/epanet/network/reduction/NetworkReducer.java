@@ -0,0 +1,544 @@
+/*
+ * Copyright (C) 2012  Addition, Lda. (addition at addition dot pt)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package org.addition.epanet.network.reduction;
+
+import org.addition.epanet.network.FieldsMap;
+import org.addition.epanet.network.Network;
+import org.addition.epanet.network.PropertiesMap;
+import org.addition.epanet.network.structures.*;
+import org.addition.epanet.network.structures.Link.LinkType;
+import org.addition.epanet.network.structures.Link.StatType;
+import org.addition.epanet.util.ENException;
+
+import java.util.*;
+
+/**
+ * Skeletonization of a hydraulic network for fast screening runs.
+ * <p/>
+ * The reduction works on a copy of a parsed network and applies, until nothing changes:
+ * <ul>
+ * <li>removal of the pipes smaller than a minimum diameter, as long as their end nodes stay connected;</li>
+ * <li>trimming of dead end junctions, with their demands moved to the junction they hang from;</li>
+ * <li>merging of parallel pipes into a pipe with the same conductance;</li>
+ * <li>merging of two pipes in series into a pipe with the sum of their resistances, with the demand of the junction
+ * between them split among its neighbours in inverse proportion to the resistance to each one.</li>
+ * </ul>
+ * Demands are only moved between junctions, the simulation ignores the demands of tanks and reservoirs, so trimming
+ * and series merging stop at the last junction before a tank or reservoir and the total junction demand of the
+ * reduced network is the same as the original.
+ * Only open pipes and junctions are reduced. Tanks, reservoirs, pumps, valves, check valves, junctions with emitters
+ * or quality sources, and the nodes and links used by controls and rules are kept, as are the elements passed to
+ * {@link #keep}. Trimming and the removal of small pipes leave the flows of the rest of the network unchanged or
+ * nearly so; the equivalent pipes are exact for the Hazen-Williams and Chezy-Manning formulas, with Darcy-Weisbach
+ * only pipes of the same diameter and roughness are merged in series and none in parallel.
+ */
+public class NetworkReducer {
+
+    private boolean seriesMerging = true;
+    private boolean parallelMerging = true;
+    private boolean branchTrimming = true;
+    private double minDiameter;
+    private final Set<String> kept = new HashSet<String>();
+
+    // Reduction state
+    private Network net;
+    private ReducedNetwork result;
+    private PropertiesMap.FormType formflag;
+    private double hexp;
+    private Map<String, Node> nodes;
+    private Map<String, Link> links;
+    private Map<Node, List<Link>> adjacency;
+    private Set<String> fixed;
+
+    public void setSeriesMerging(boolean enable) {
+        this.seriesMerging = enable;
+    }
+
+    public void setParallelMerging(boolean enable) {
+        this.parallelMerging = enable;
+    }
+
+    public void setBranchTrimming(boolean enable) {
+        this.branchTrimming = enable;
+    }
+
+    /**
+     * Set the diameter below which pipes are removed, in the network diameter units, zero to keep them.
+     */
+    public void setMinDiameter(double minDiameter) {
+        this.minDiameter = minDiameter;
+    }
+
+    /**
+     * Keep a node or link of the network, for instance a monitoring point.
+     *
+     * @param id Node or link id.
+     */
+    public void keep(String id) {
+        kept.add(id);
+    }
+
+    /**
+     * Reduce a network. The network must be parsed and isn't changed.
+     *
+     * @param original Network to reduce.
+     * @return Reduced network and the mapping of the original elements.
+     * @throws ENException
+     */
+    public synchronized ReducedNetwork reduce(Network original) throws ENException {
+        net = original;
+        formflag = net.getPropertiesMap().getFormflag();
+        hexp = net.getPropertiesMap().getHexp();
+        try {
+            copy();
+            protect();
+            result = new ReducedNetwork(net, new Network(), new LinkedHashMap<String, Node>(nodes),
+                    new LinkedHashMap<String, Link>(links));
+
+            if (minDiameter > 0.0)
+                removeSmallPipes(net.getFieldsMap().convertUnitToSystem(FieldsMap.Type.DIAM, minDiameter));
+
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                if (branchTrimming)
+                    changed |= trimBranches();
+                if (parallelMerging)
+                    changed |= mergeParallel();
+                if (seriesMerging)
+                    changed |= mergeSeries();
+            }
+
+            checkDemand();
+            build(result.getNetwork());
+            return result;
+        } finally {
+            net = null;
+            result = null;
+            nodes = null;
+            links = null;
+            adjacency = null;
+            fixed = null;
+        }
+    }
+
+    // Copies the junctions and links, tanks and reservoirs are never written and are shared
+    private void copy() {
+        nodes = new LinkedHashMap<String, Node>();
+        links = new LinkedHashMap<String, Link>();
+        adjacency = new IdentityHashMap<Node, List<Link>>();
+
+        for (Node node : net.getNodes()) {
+            Node copy = node;
+            if (!(node instanceof Tank)) {
+                copy = new Node();
+                copy.setId(node.getId());
+                copy.setElevation(node.getElevation());
+                for (Demand d : node.getDemand())
+                    copy.getDemand().add(new Demand(d.getBase(), d.getPattern()));
+                copy.setInitDemand(node.getInitDemand());
+                copy.setSource(node.getSource());
+                copy.setC0(node.getC0().clone());
+                copy.setKe(node.getKe());
+                copy.setReportFlag(node.isRptFlag());
+                copy.setPosition(node.getPosition());
+                copy.setComment(node.getComment());
+            }
+            nodes.put(copy.getId(), copy);
+            adjacency.put(copy, new ArrayList<Link>());
+        }
+
+        for (Link link : net.getLinks()) {
+            Link copy = copyLink(link);
+            copy.setFirst(nodes.get(link.getFirst().getId()));
+            copy.setSecond(nodes.get(link.getSecond().getId()));
+            copy.getVertices().addAll(link.getVertices());
+            links.put(copy.getId(), copy);
+            adjacency.get(copy.getFirst()).add(copy);
+            adjacency.get(copy.getSecond()).add(copy);
+        }
+    }
+
+    private static Link copyLink(Link link) {
+        Link copy;
+        if (link instanceof Pump) {
+            Pump pump = (Pump) link;
+            Pump p = new Pump();
+            p.setPtype(pump.getPtype());
+            p.setQ0(pump.getQ0());
+            p.setQmax(pump.getQmax());
+            p.setHmax(pump.getHmax());
+            p.setH0(pump.getH0());
+            p.setFlowCoefficient(pump.getFlowCoefficient());
+            p.setN(pump.getN());
+            p.setHcurve(pump.getHcurve());
+            p.setEcurve(pump.getEcurve());
+            p.setEcost(pump.getEcost());
+            p.setEpat(pump.getEpat());
+            p.setUpat(pump.getUpat());
+            for (int i = 0; i < 6; i++)
+                p.setEnergy(i, pump.getEnergy(i));
+            copy = p;
+        } else if (link instanceof Valve) {
+            Valve v = new Valve();
+            v.setCurve(((Valve) link).getCurve());
+            copy = v;
+        } else
+            copy = new Link();
+
+        copy.setId(link.getId());
+        copy.setType(link.getType());
+        copy.setStatus(link.getStat());
+        copy.setFirst(link.getFirst());
+        copy.setSecond(link.getSecond());
+        copy.setDiameter(link.getDiameter());
+        copy.setLenght(link.getLenght());
+        copy.setRoughness(link.getRoughness());
+        copy.setKm(link.getKm());
+        copy.setKb(link.getKb());
+        copy.setKw(link.getKw());
+        copy.setFlowResistance(link.getFlowResistance());
+        copy.setC0(link.getC0());
+        copy.setParam(link.getParam());
+        copy.setReportFlag(link.isRptFlag());
+        copy.setComment(link.getComment());
+        return copy;
+    }
+
+    // Elements that must not be reduced
+    private void protect() throws ENException {
+        fixed = new HashSet<String>(kept);
+        for (Control ctr : net.getControls()) {
+            if (ctr.getLink() != null)
+                fixed.add(ctr.getLink().getId());
+            if (ctr.getNode() != null)
+                fixed.add(ctr.getNode().getId());
+        }
+        // Rule objects are referenced by id in the rule text
+        for (Rule rule : net.getRules())
+            Collections.addAll(fixed, rule.getCode().split("\\s+"));
+        if (net.getPropertiesMap().getTraceNode() != null)
+            fixed.add(net.getPropertiesMap().getTraceNode());
+    }
+
+    private boolean isFree(Node node) {
+        return !(node instanceof Tank) && node.getKe() == 0.0 && node.getSource() == null && !fixed.contains(node.getId());
+    }
+
+    private boolean isFree(Link link) {
+        return link.getType() == LinkType.PIPE && link.getStat() != StatType.CLOSED && !fixed.contains(link.getId());
+    }
+
+    private static Node other(Link link, Node node) {
+        return link.getFirst() == node ? link.getSecond() : link.getFirst();
+    }
+
+    // Removes the pipes below the minimum diameter that aren't needed to keep their end nodes connected
+    private void removeSmallPipes(double dmin) {
+        List<Link> candidates = new ArrayList<Link>();
+        for (Link link : links.values())
+            if (isFree(link) && link.getDiameter() < dmin)
+                candidates.add(link);
+        Collections.sort(candidates, new Comparator<Link>() {
+            public int compare(Link l1, Link l2) {
+                return Double.compare(l1.getDiameter(), l2.getDiameter());
+            }
+        });
+
+        for (Link link : candidates) {
+            if (!connected(link.getFirst(), link.getSecond(), link))
+                continue;
+            adjacency.get(link.getFirst()).remove(link);
+            adjacency.get(link.getSecond()).remove(link);
+            links.remove(link.getId());
+            result.removeLink(link, null, 0.0, 0.0);
+            result.removedPipes++;
+        }
+    }
+
+    // Breadth first search from one node to another without going through a link
+    private boolean connected(Node from, Node to, Link skip) {
+        Set<Node> visited = Collections.newSetFromMap(new IdentityHashMap<Node, Boolean>());
+        LinkedList<Node> queue = new LinkedList<Node>();
+        queue.add(from);
+        visited.add(from);
+        while (!queue.isEmpty()) {
+            Node node = queue.removeFirst();
+            for (Link link : adjacency.get(node)) {
+                if (link == skip)
+                    continue;
+                Node next = other(link, node);
+                if (next == to)
+                    return true;
+                if (visited.add(next))
+                    queue.add(next);
+            }
+        }
+        return false;
+    }
+
+    // Removes the dead end junctions, moving their demands to the junction they hang from
+    private boolean trimBranches() {
+        LinkedList<Node> queue = new LinkedList<Node>(nodes.values());
+        boolean changed = false;
+        while (!queue.isEmpty()) {
+            Node node = queue.removeFirst();
+            List<Link> adj = adjacency.get(node);
+            if (adj == null || adj.size() != 1 || !isFree(node) || !isFree(adj.get(0)))
+                continue;
+            Link link = adj.get(0);
+            Node up = other(link, node);
+            if (up == node || up instanceof Tank)
+                continue;
+
+            double demand = 0.0;
+            for (Demand d : node.getDemand()) {
+                demand += d.getBase();
+                addDemand(up, d.getBase(), d.getPattern());
+            }
+
+            adjacency.get(up).remove(link);
+            adjacency.remove(node);
+            nodes.remove(node.getId());
+            links.remove(link.getId());
+            result.removeNode(node, up, up, 0.0);
+            result.removeLink(link, null, 0.0, link.getSecond() == node ? demand : -demand);
+            result.trimmedNodes++;
+            changed = true;
+            queue.add(up);
+        }
+        return changed;
+    }
+
+    // Merges the pipes joining the same pair of nodes
+    private boolean mergeParallel() {
+        if (formflag == PropertiesMap.FormType.DW)
+            return false;
+        boolean changed = false;
+        for (Node node : new ArrayList<Node>(nodes.values())) {
+            List<Link> adj = adjacency.get(node);
+            for (int i = 0; i < adj.size(); i++) {
+                Link l1 = adj.get(i);
+                Node end = other(l1, node);
+                if (end == node || !isFree(l1) || l1.getKm() != 0.0)
+                    continue;
+                for (int j = i + 1; j < adj.size(); j++) {
+                    Link l2 = adj.get(j);
+                    if (other(l2, node) == end && isFree(l2) && l2.getKm() == 0.0) {
+                        mergeParallel(l1, l2);
+                        adj = adjacency.get(node);
+                        i = -1;
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+        }
+        return changed;
+    }
+
+    private void mergeParallel(Link l1, Link l2) {
+        Link template = l1.getDiameter() >= l2.getDiameter() ? l1 : l2;
+        Link other = template == l1 ? l2 : l1;
+
+        // Conductances of the headloss law h = r q^n
+        double n = formflag == PropertiesMap.FormType.HW ? hexp : 2.0;
+        double c1 = Math.pow(template.getFlowResistance(), -1.0 / n);
+        double c2 = Math.pow(other.getFlowResistance(), -1.0 / n);
+
+        Link merged = copyLink(template);
+        merged.getVertices().addAll(template.getVertices());
+        setResistance(merged, Math.pow(c1 + c2, -n));
+        replace(template, merged);
+        remove(other);
+
+        result.removeLink(template, merged, c1 / (c1 + c2), 0.0);
+        result.removeLink(other, merged, (other.getFirst() == merged.getFirst() ? 1.0 : -1.0) * c2 / (c1 + c2), 0.0);
+        result.parallelMerges++;
+    }
+
+    // Merges the two pipes connected to a junction
+    private boolean mergeSeries() {
+        boolean changed = false;
+        for (Node node : new ArrayList<Node>(nodes.values())) {
+            List<Link> adj = adjacency.get(node);
+            if (adj.size() != 2 || !isFree(node))
+                continue;
+            Link l1 = adj.get(0);
+            Link l2 = adj.get(1);
+            if (!isFree(l1) || !isFree(l2))
+                continue;
+            Node a = other(l1, node);
+            Node b = other(l2, node);
+            if (a == b || a == node || b == node || a instanceof Tank || b instanceof Tank)
+                continue;
+            if (formflag == PropertiesMap.FormType.DW &&
+                    (l1.getDiameter() != l2.getDiameter() || l1.getRoughness() != l2.getRoughness()))
+                continue;
+            mergeSeries(node, l1, l2, a, b);
+            changed = true;
+        }
+        return changed;
+    }
+
+    private void mergeSeries(Node node, Link l1, Link l2, Node a, Node b) {
+        double r1 = l1.getFlowResistance();
+        double r2 = l2.getFlowResistance();
+        double fraction = r1 + r2 > 0.0 ? r1 / (r1 + r2) : 0.5;
+
+        // The demand goes mostly to the nearest neighbour
+        double demand = 0.0;
+        for (Demand d : node.getDemand()) {
+            demand += d.getBase();
+            addDemand(a, d.getBase() * (1.0 - fraction), d.getPattern());
+            addDemand(b, d.getBase() * fraction, d.getPattern());
+        }
+
+        Link template = l1.getDiameter() >= l2.getDiameter() ? l1 : l2;
+        Link merged = copyLink(template);
+        merged.setFirst(a);
+        merged.setSecond(b);
+        merged.setKm(l1.getKm() + l2.getKm());
+        addVertices(merged, l1, a);
+        merged.getVertices().add(node.getPosition());
+        addVertices(merged, l2, node);
+        setResistance(merged, r1 + r2);
+
+        // Replace the template in the links map to keep its place
+        links.put(template.getId(), merged);
+        links.remove((template == l1 ? l2 : l1).getId());
+        adjacency.get(a).set(adjacency.get(a).indexOf(l1), merged);
+        adjacency.get(b).set(adjacency.get(b).indexOf(l2), merged);
+        adjacency.remove(node);
+        nodes.remove(node.getId());
+
+        double s1 = l1.getFirst() == a ? 1.0 : -1.0;
+        double s2 = l2.getFirst() == node ? 1.0 : -1.0;
+        result.removeNode(node, a, b, fraction);
+        result.removeLink(l1, merged, s1, s1 * demand * (1.0 - fraction));
+        result.removeLink(l2, merged, s2, -s2 * demand * fraction);
+        result.seriesMerges++;
+    }
+
+    // Sets the length of a pipe so that it has the given resistance
+    private void setResistance(Link link, double resistance) {
+        link.setLenght(1.0);
+        link.initResistance(formflag, hexp);
+        link.setLenght(resistance / link.getFlowResistance());
+        link.initResistance(formflag, hexp);
+    }
+
+    // Appends the vertices of a link, in the direction leaving a node
+    private static void addVertices(Link merged, Link link, Node from) {
+        List<Point> vertices = new ArrayList<Point>(link.getVertices());
+        if (link.getFirst() != from)
+            Collections.reverse(vertices);
+        merged.getVertices().addAll(vertices);
+    }
+
+    private void replace(Link link, Link merged) {
+        links.put(link.getId(), merged);
+        List<Link> adj1 = adjacency.get(link.getFirst());
+        adj1.set(adj1.indexOf(link), merged);
+        List<Link> adj2 = adjacency.get(link.getSecond());
+        adj2.set(adj2.indexOf(link), merged);
+    }
+
+    private void remove(Link link) {
+        links.remove(link.getId());
+        adjacency.get(link.getFirst()).remove(link);
+        adjacency.get(link.getSecond()).remove(link);
+    }
+
+    // Adds a demand to a junction, in the demand category with the same pattern if there's one
+    private static void addDemand(Node node, double base, Pattern pattern) {
+        if (node instanceof Tank)
+            throw new IllegalStateException("Demand moved to tank " + node.getId());
+        for (Demand d : node.getDemand())
+            if (d.getPattern() == pattern) {
+                d.setBase(d.getBase() + base);
+                return;
+            }
+        node.getDemand().add(new Demand(base, pattern));
+    }
+
+    // Checks that the demands of the removed junctions were kept by the remaining ones
+    private void checkDemand() {
+        double before = 0.0;
+        double scale = 0.0;
+        for (Node node : net.getNodes())
+            if (!(node instanceof Tank))
+                for (Demand d : node.getDemand()) {
+                    before += d.getBase();
+                    scale += Math.abs(d.getBase());
+                }
+        double after = 0.0;
+        for (Node node : nodes.values())
+            if (!(node instanceof Tank))
+                for (Demand d : node.getDemand())
+                    after += d.getBase();
+        if (Math.abs(after - before) > 1.0e-9 * Math.max(1.0, scale))
+            throw new IllegalStateException("Reduction changed the total junction demand from " + before
+                    + " to " + after);
+    }
+
+    // Fills the reduced network with the remaining elements
+    private void build(Network reduced) throws ENException {
+        reduced.getTitleText().addAll(net.getTitleText());
+        PropertiesMap pMap = net.getPropertiesMap();
+        for (String name : pMap.getObjectsNames(false))
+            reduced.getPropertiesMap().put(name, pMap.get(name));
+        reduced.updatedUnitsProperty();
+
+        for (Pattern pat : net.getPatterns())
+            reduced.addPattern(pat.getId(), pat);
+        for (Curve cur : net.getCurves())
+            reduced.addCurve(cur.getId(), cur);
+
+        for (Node node : nodes.values()) {
+            if (node instanceof Tank)
+                reduced.addTank(node.getId(), (Tank) node);
+            else
+                reduced.addJunction(node.getId(), node);
+        }
+        for (Link link : links.values()) {
+            if (link instanceof Pump)
+                reduced.addPump(link.getId(), (Pump) link);
+            else if (link instanceof Valve)
+                reduced.addValve(link.getId(), (Valve) link);
+            else
+                reduced.addPipe(link.getId(), link);
+        }
+
+        // Controls only use kept elements
+        for (Control ctr : net.getControls()) {
+            Control copy = new Control();
+            copy.setType(ctr.getType());
+            copy.setLink(ctr.getLink() != null ? links.get(ctr.getLink().getId()) : null);
+            copy.setNode(ctr.getNode() != null ? nodes.get(ctr.getNode().getId()) : null);
+            copy.setGrade(ctr.getGrade());
+            copy.setSetting(ctr.getSetting());
+            copy.setStatus(ctr.getStatus());
+            copy.setTime(ctr.getTime());
+            reduced.addControl(copy);
+        }
+        for (Rule rule : net.getRules())
+            reduced.addRule(rule);
+        reduced.getLabels().addAll(net.getLabels());
+    }
+}
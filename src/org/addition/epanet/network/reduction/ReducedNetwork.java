@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2012  Addition, Lda. (addition at addition dot pt)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package org.addition.epanet.network.reduction;
+
+import org.addition.epanet.network.Network;
+import org.addition.epanet.network.structures.Link;
+import org.addition.epanet.network.structures.Node;
+
+import java.util.*;
+
+/**
+ * Reduced network built by the {@link NetworkReducer}, with the mapping of the original elements.
+ * <p/>
+ * Every removed node is recorded with the two nodes it was interpolated between when it was removed, and every
+ * removed link with the link that carries its flow. The records are applied in the reverse order of the reduction,
+ * so results of the reduced network can be projected back on all the elements of the original network.
+ */
+public class ReducedNetwork {
+
+    // Head of a removed node, between the heads of two nodes at the time it was removed
+    static class NodeImage {
+        final Node a;
+        final Node b;
+        final double fraction;
+
+        NodeImage(Node a, Node b, double fraction) {
+            this.a = a;
+            this.b = b;
+            this.fraction = fraction;
+        }
+    }
+
+    // Flow of a removed link, a factor of the flow of another link plus a base demand
+    static class LinkImage {
+        final Link target;
+        final double factor;
+        final double demand;
+
+        LinkImage(Link target, double factor, double demand) {
+            this.target = target;
+            this.factor = factor;
+            this.demand = demand;
+        }
+    }
+
+    private final Network original;
+    private final Network network;
+
+    // Working copies of the original elements, by original id
+    private final Map<String, Node> nodeCopies;
+    private final Map<String, Link> linkCopies;
+
+    // Removed elements, in the order of the reduction
+    private final List<Node> removedNodes = new ArrayList<Node>();
+    private final List<Link> removedLinks = new ArrayList<Link>();
+    private final Map<Node, NodeImage> nodeImages = new IdentityHashMap<Node, NodeImage>();
+    private final Map<Link, LinkImage> linkImages = new IdentityHashMap<Link, LinkImage>();
+
+    int seriesMerges;
+    int parallelMerges;
+    int trimmedNodes;
+    int removedPipes;
+
+    ReducedNetwork(Network original, Network network, Map<String, Node> nodeCopies, Map<String, Link> linkCopies) {
+        this.original = original;
+        this.network = network;
+        this.nodeCopies = nodeCopies;
+        this.linkCopies = linkCopies;
+    }
+
+    void removeNode(Node node, Node a, Node b, double fraction) {
+        removedNodes.add(node);
+        nodeImages.put(node, new NodeImage(a, b, fraction));
+    }
+
+    void removeLink(Link link, Link target, double factor, double demand) {
+        removedLinks.add(link);
+        linkImages.put(link, new LinkImage(target, factor, demand));
+    }
+
+    /**
+     * Get the network that was reduced.
+     */
+    public Network getOriginal() {
+        return original;
+    }
+
+    /**
+     * Get the reduced network, ready to be simulated.
+     */
+    public Network getNetwork() {
+        return network;
+    }
+
+    /**
+     * Number of junctions removed by merging the two pipes connected to them.
+     */
+    public int getSeriesMerges() {
+        return seriesMerges;
+    }
+
+    /**
+     * Number of pipes removed by merging them with a parallel pipe.
+     */
+    public int getParallelMerges() {
+        return parallelMerges;
+    }
+
+    /**
+     * Number of dead end junctions removed, with their demands moved upstream.
+     */
+    public int getTrimmedNodes() {
+        return trimmedNodes;
+    }
+
+    /**
+     * Number of pipes removed for being smaller than the minimum diameter.
+     */
+    public int getRemovedPipes() {
+        return removedPipes;
+    }
+
+    /**
+     * Get the reduced node that stands for an original node.
+     *
+     * @param id Original node id.
+     * @return Id of the same node if it was kept, otherwise the id of the nearest kept node it was merged into,
+     *         null if the id is unknown.
+     */
+    public String getNodeImage(String id) {
+        Node node = nodeCopies.get(id);
+        if (node == null)
+            return null;
+        NodeImage image;
+        while ((image = nodeImages.get(node)) != null)
+            node = image.fraction <= 0.5 ? image.a : image.b;
+        return node.getId();
+    }
+
+    /**
+     * Get the reduced link whose flow carries the flow of an original link.
+     *
+     * @param id Original link id.
+     * @return Id of the same or of the merged link, null if the link was removed or trimmed or the id is unknown.
+     */
+    public String getLinkImage(String id) {
+        Link link = linkCopies.get(id);
+        if (link == null)
+            return null;
+        LinkImage image;
+        while ((image = linkImages.get(link)) != null) {
+            if (image.target == null)
+                return null;
+            link = image.target;
+        }
+        return link.getId();
+    }
+
+    /**
+     * Get the original links merged into a reduced link.
+     *
+     * @param id Reduced link id.
+     * @return Original link ids, empty if the link doesn't exist.
+     */
+    public List<String> getOriginalLinks(String id) {
+        List<String> ids = new ArrayList<String>();
+        for (Map.Entry<String, Link> entry : linkCopies.entrySet())
+            if (id.equals(getLinkImage(entry.getKey())))
+                ids.add(entry.getKey());
+        return ids;
+    }
+
+    /**
+     * Project the node heads of the reduced network on the original network.
+     * <p/>
+     * Junctions removed by a series merge are interpolated between the end nodes of the merged pipe in proportion
+     * to the pipe resistances, trimmed junctions take the head of the junction they were attached to.
+     *
+     * @param heads Heads of the reduced network nodes, by id.
+     * @return Heads of the original network nodes, by id.
+     */
+    public Map<String, Double> projectHeads(Map<String, Double> heads) {
+        Map<Node, Double> values = new IdentityHashMap<Node, Double>();
+        for (int i = removedNodes.size() - 1; i >= 0; i--) {
+            Node node = removedNodes.get(i);
+            NodeImage image = nodeImages.get(node);
+            double ha = value(image.a, heads, values);
+            double hb = value(image.b, heads, values);
+            values.put(node, ha + (hb - ha) * image.fraction);
+        }
+
+        Map<String, Double> result = new LinkedHashMap<String, Double>();
+        for (Map.Entry<String, Node> entry : nodeCopies.entrySet())
+            result.put(entry.getKey(), value(entry.getValue(), heads, values));
+        return result;
+    }
+
+    /**
+     * Project the link flows of the reduced network on the original network.
+     * <p/>
+     * Series pipes take the flow of the merged pipe corrected by the demand of the removed junction, parallel pipes
+     * share the flow of the merged pipe in proportion to their conductance, trimmed pipes carry the demand of the
+     * junctions beyond them and removed pipes carry no flow. The demands are the base demands scaled by the given
+     * factor, which assumes the demands of the removed junctions follow a common pattern.
+     *
+     * @param flows        Flows of the reduced network links, by id, in system units (cubic feet per second).
+     * @param demandFactor Demand pattern factor and multiplier applied to the base demands.
+     * @return Flows of the original network links, by id.
+     */
+    public Map<String, Double> projectFlows(Map<String, Double> flows, double demandFactor) {
+        Map<Link, Double> values = new IdentityHashMap<Link, Double>();
+        for (int i = removedLinks.size() - 1; i >= 0; i--) {
+            Link link = removedLinks.get(i);
+            LinkImage image = linkImages.get(link);
+            double q = image.target != null ? image.factor * value(image.target, flows, values) : 0.0;
+            values.put(link, q + image.demand * demandFactor);
+        }
+
+        Map<String, Double> result = new LinkedHashMap<String, Double>();
+        for (Map.Entry<String, Link> entry : linkCopies.entrySet())
+            result.put(entry.getKey(), value(entry.getValue(), flows, values));
+        return result;
+    }
+
+    private static double value(Node node, Map<String, Double> reduced, Map<Node, Double> projected) {
+        Double v = projected.get(node);
+        if (v == null)
+            v = reduced.get(node.getId());
+        return v != null ? v : Double.NaN;
+    }
+
+    private static double value(Link link, Map<String, Double> reduced, Map<Link, Double> projected) {
+        Double v = projected.get(link);
+        if (v == null)
+            v = reduced.get(link.getId());
+        return v != null ? v : Double.NaN;
+    }
+}
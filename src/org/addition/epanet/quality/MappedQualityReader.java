@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2012  Addition, Lda. (addition at addition dot pt)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package org.addition.epanet.quality;
+
+import org.addition.epanet.network.FieldsMap;
+import org.addition.epanet.util.ChunkedRecords;
+import org.addition.epanet.util.ENException;
+import org.addition.epanet.util.MappedRecords;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Memory mapped binary quality file reader class.
+ * <p/>
+ * Reads the same files as {@link QualityReader}, from a memory mapping of the file. The reader keeps a single
+ * {@link Step} view that is moved between the periods of the file and reads the values from the mapping when
+ * requested, so scanning the periods doesn't copy or allocate memory. The periods of compressed files are
+ * decompressed a chunk at a time into memory.
+ */
+public class MappedQualityReader implements Iterable<MappedQualityReader.Step> {
+
+    /**
+     * View of a period of the quality file.
+     */
+    public class Step {
+        private ByteBuffer buf;
+        private int base;
+        private int index = -1;
+
+        private Step() {
+        }
+
+        // Moves the view to a period
+        private Step moveTo(int index) throws IOException {
+            if (this.index != index) {
+                buf = records.buffer(index);
+                base = records.position(index);
+                this.index = index;
+            }
+            return this;
+        }
+
+        /**
+         * Get link quality values in user units.
+         *
+         * @param id Link sequential identification number.
+         * @return Species concentration, trace or age value in user units.
+         */
+        public float getLinkQuality(int id) throws ENException {
+            return (float) fMap.revertUnit(FieldsMap.Type.QUALITY, getRawLinkQuality(id));
+        }
+
+        /**
+         * Get node quality values in user units.
+         *
+         * @param id Node sequential identification number.
+         * @return Species concentration, trace or age value in user units.
+         */
+        public float getNodeQuality(int id) throws ENException {
+            return (float) fMap.revertUnit(FieldsMap.Type.QUALITY, getRawNodeQuality(id));
+        }
+
+        /**
+         * Get link quality values in simulation units.
+         *
+         * @param id Link sequential identification number.
+         */
+        public float getRawLinkQuality(int id) {
+            return buf.getFloat(base + (nodeCount + id) * Float.SIZE / 8);
+        }
+
+        /**
+         * Get node quality values in simulation units.
+         *
+         * @param id Node sequential identification number.
+         */
+        public float getRawNodeQuality(int id) {
+            return buf.getFloat(base + id * Float.SIZE / 8);
+        }
+
+        /**
+         * Get the number of this period in the file.
+         */
+        public int getIndex() {
+            return index;
+        }
+    }
+
+    /**
+     * Step iterator class, moves the reader step view forward.
+     */
+    private class StepIterator implements Iterator<Step> {
+        private int next;
+
+        public boolean hasNext() {
+            return next < nPeriods;
+        }
+
+        public Step next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            try {
+                return getStepAt(next++);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Units conversion map.
+     */
+    private final FieldsMap fMap;
+
+    private RandomAccessFile file;
+    private MappedRecords records;
+    private int linkCount;
+    private int nodeCount;
+    private int nPeriods;
+    private final Step qStep = new Step();
+
+    /**
+     * Class constructor
+     */
+    public MappedQualityReader(FieldsMap fMap) {
+        this.fMap = fMap;
+    }
+
+    /**
+     * Open and map a quality file.
+     *
+     * @param qualFile Abstract representation of the quality file.
+     * @throws IOException
+     */
+    public void open(File qualFile) throws IOException {
+        file = new RandomAccessFile(qualFile, "r");
+
+        // The last 4 bytes contain the number of periods
+        file.seek(file.length() - Integer.SIZE / 8);
+        nPeriods = file.readInt();
+
+        file.seek(0);
+        nodeCount = file.readInt();
+        int chunkPeriods = 0;
+        if (nodeCount == QualityReader.COMPRESSED_MARK) {
+            nodeCount = file.readInt();
+            linkCount = file.readInt();
+            chunkPeriods = file.readInt();
+        } else
+            linkCount = file.readInt();
+
+        qStep.index = -1;
+        int values = nodeCount + linkCount;
+        if (chunkPeriods > 0)
+            records = ChunkedRecords.Reader.open(file, file.getFilePointer(), file.length() - Integer.SIZE / 8,
+                    values * Float.SIZE / 8, new int[]{values, Float.SIZE / 8}, chunkPeriods);
+        else
+            records = new MappedRecords(file.getChannel(), file.getFilePointer(), values * Float.SIZE / 8, nPeriods);
+    }
+
+    /**
+     * Close the file, the periods can't be read after.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        records.close();
+        file.close();
+    }
+
+    /**
+     * Get the number of links in the file.
+     */
+    public int getLinks() {
+        return linkCount;
+    }
+
+    /**
+     * Get the number of nodes in the file.
+     */
+    public int getNodes() {
+        return nodeCount;
+    }
+
+    /**
+     * Get the number of reported quality periods in the file.
+     */
+    public int getPeriods() {
+        return nPeriods;
+    }
+
+    /**
+     * Move the step view to a period.
+     *
+     * @param index Period number, from 0 to getPeriods()-1.
+     * @return Reference to the step view.
+     * @throws IOException
+     */
+    public Step getStepAt(int index) throws IOException {
+        return qStep.moveTo(index);
+    }
+
+    /**
+     * Get step view iterator.
+     *
+     * @return Step iterator, all iterators move the same view.
+     */
+    public Iterator<Step> iterator() {
+        return new StepIterator();
+    }
+}
@@ -19,6 +19,7 @@ package org.addition.epanet.quality;
 
 
 import org.addition.epanet.network.FieldsMap;
+import org.addition.epanet.util.ChunkedRecords;
 import org.addition.epanet.util.ENException;
 
 import java.io.*;
@@ -26,9 +27,18 @@ import java.util.Iterator;
 
 /**
  * Binary quality file reader class.
+ * <p/>
+ * Compressed files start with {@link #COMPRESSED_MARK} followed by the number of nodes and links and the periods of
+ * each chunk, the periods are compressed by {@link ChunkedRecords} and decompressed while reading.
  */
 public class QualityReader implements Iterable<QualityReader.Step> {
 
+    /**
+     * Value of the first int of compressed files, written before the number of nodes, the number of links and the
+     * periods of each chunk.
+     */
+    public static final int COMPRESSED_MARK = -1;
+
     /**
      * Single step of the quality simulation, with the quality value for each
      * link and node.
@@ -258,7 +268,19 @@ public class QualityReader implements Iterable<QualityReader.Step> {
 
         inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(qualFile)));
         nodeCount = inputStream.readInt();
-        linkCount = inputStream.readInt();
+        int chunkPeriods = 0;
+        if (nodeCount == COMPRESSED_MARK) {
+            nodeCount = inputStream.readInt();
+            linkCount = inputStream.readInt();
+            chunkPeriods = inputStream.readInt();
+        } else
+            linkCount = inputStream.readInt();
+
+        if (chunkPeriods > 0) {
+            int values = nodeCount + linkCount;
+            inputStream = new DataInputStream(new ChunkedRecords.Input(inputStream, values * Float.SIZE / 8,
+                    new int[]{values, Float.SIZE / 8}, chunkPeriods));
+        }
         qStep = new Step(linkCount, nodeCount);
     }
 }
@@ -26,11 +26,13 @@ import org.addition.epanet.hydraulic.structures.SimulationNode;
 import org.addition.epanet.network.FieldsMap;
 import org.addition.epanet.network.Network;
 import org.addition.epanet.network.PropertiesMap;
+import org.addition.epanet.network.SimulationOptions;
 import org.addition.epanet.network.structures.*;
 import org.addition.epanet.quality.structures.QualityLink;
 import org.addition.epanet.quality.structures.QualityNode;
 import org.addition.epanet.quality.structures.QualitySegment;
 import org.addition.epanet.quality.structures.QualityTank;
+import org.addition.epanet.util.ChunkedRecords;
 import org.addition.epanet.util.ENException;
 import org.addition.epanet.util.Utilities;
 
@@ -64,7 +66,18 @@ public class QualitySim {
      */
     private int Nperiods;
 
+    /**
+     * Periods of each compressed chunk of the output, 0 if the output isn't compressed.
+     */
+    private int outputCompression;
+
+    /**
+     * Compressed periods of the current simulation.
+     */
+    private ChunkedRecords.Writer outputChunks;
+
     private final PropertiesMap pMap;
+    private final SimulationOptions opts;
 
     /**
      * Current quality time (sec)
@@ -119,6 +132,7 @@ public class QualitySim {
         this.net = net;
         this.fMap = net.getFieldsMap();
         this.pMap = net.getPropertiesMap();
+        this.opts = new SimulationOptions(pMap);
 
         nodes = new ArrayList<QualityNode>();
         links = new ArrayList<QualityLink>();
@@ -145,24 +159,24 @@ public class QualitySim {
         Tucf = 1.0;
         Reactflag = false;
 
-        qualflag = pMap.getQualflag();
+        qualflag = opts.getQualflag();
         if (qualflag != PropertiesMap.QualType.NONE) {
             if (qualflag == PropertiesMap.QualType.TRACE) {
                 for (QualityNode qN : nodes)
-                    if (qN.getNode().getId().equals(pMap.getTraceNode())) {
+                    if (qN.getNode().getId().equals(opts.getTraceNode())) {
                         traceNode = qN;
                         traceNode.setQuality(100.0);
                         break;
                     }
             }
 
-            if (pMap.getDiffus() > 0.0)
-                Sc = pMap.getViscos() / pMap.getDiffus();
+            if (opts.getDiffus() > 0.0)
+                Sc = opts.getViscos() / opts.getDiffus();
             else
                 Sc = 0.0;
 
-            Bucf = getUcf(pMap.getBulkOrder());
-            Tucf = getUcf(pMap.getTankOrder());
+            Bucf = getUcf(opts.getBulkOrder());
+            Tucf = getUcf(opts.getTankOrder());
 
             Reactflag = getReactflag();
         }
@@ -174,7 +188,7 @@ public class QualitySim {
         Wsource = 0.0;
 
         Htime = 0;
-        Rtime = pMap.getRstart();
+        Rtime = opts.getRstart();
         Qtime = 0;
         Nperiods = 0;
         elevUnits = fMap.getUnits(FieldsMap.Type.ELEV);
@@ -286,14 +300,14 @@ public class QualitySim {
         if (order == 0.0)
             c = 1.0;
         else if (order < 0.0) {
-            c1 = pMap.getClimit() + Utilities.getSignal(kb) * c;
+            c1 = opts.getClimit() + Utilities.getSignal(kb) * c;
             if (Math.abs(c1) < Constants.TINY) c1 = Utilities.getSignal(c1) * Constants.TINY;
             c = c / c1;
         } else {
-            if (pMap.getClimit() == 0.0)
+            if (opts.getClimit() == 0.0)
                 c1 = c;
             else
-                c1 = Math.max(0.0, Utilities.getSignal(kb) * (pMap.getClimit() - c));
+                c1 = Math.max(0.0, Utilities.getSignal(kb) * (opts.getClimit() - c));
 
             if (order == 1.0)
                 c = c1;
@@ -321,11 +335,11 @@ public class QualitySim {
         if (Htime >= Rtime) {
             saveOutput(outStream);
             Nperiods++;
-            Rtime += pMap.getRstep();
+            Rtime += opts.getRstep();
         }
 
 
-        if (qualflag != PropertiesMap.QualType.NONE && Qtime < pMap.getDuration()) {
+        if (qualflag != PropertiesMap.QualType.NONE && Qtime < opts.getDuration()) {
             if (Reactflag && qualflag != PropertiesMap.QualType.AGE)
                 ratecoeffs();
 
@@ -489,7 +503,7 @@ public class QualitySim {
         d = ql.getLink().getDiameter();
 
         if (Sc == 0.0) {
-            if (pMap.getWallOrder() == 0.0)
+            if (opts.getWallOrder() == 0.0)
                 return (Constants.BIG);
             else
                 return (ql.getLink().getKw() * (4.0 / d) / elevUnits);
@@ -497,7 +511,7 @@ public class QualitySim {
 
         a = Constants.PI * d * d / 4.0;
         u = Math.abs(ql.getFlow()) / a;
-        Re = u * d / pMap.getViscos();
+        Re = u * d / opts.getViscos();
 
         if (Re < 1.0)
             Sh = 2.0;
@@ -510,10 +524,10 @@ public class QualitySim {
         }
 
 
-        kf = Sh * pMap.getDiffus() / d;
+        kf = Sh * opts.getDiffus() / d;
 
 
-        if (pMap.getWallOrder() == 0.0) return (kf);
+        if (opts.getWallOrder() == 0.0) return (kf);
 
 
         kw = ql.getLink().getKw() / elevUnits;
@@ -531,7 +545,7 @@ public class QualitySim {
         if (qualflag == PropertiesMap.QualType.AGE) return (c + (double) dt / 3600.0);
 
 
-        rbulk = bulkrate(c, ql.getLink().getKb(), pMap.getBulkOrder()) * Bucf;
+        rbulk = bulkrate(c, ql.getLink().getKb(), opts.getBulkOrder()) * Bucf;
         rwall = wallrate(c, ql.getLink().getDiameter(), ql.getLink().getKw(), ql.getFlowResistance());
 
 
@@ -539,7 +553,7 @@ public class QualitySim {
         dcwall = rwall * (double) dt;
 
 
-        if (Htime >= pMap.getRstart()) {
+        if (Htime >= opts.getRstart()) {
             Wbulk += Math.abs(dcbulk) * v;
             Wwall += Math.abs(dcwall) * v;
         }
@@ -590,7 +604,7 @@ public class QualitySim {
                 QualitySegment seg = qL.getSegments().getLast();
 
                 // Quality of seg close to that of node
-                if (Math.abs(seg.c - c) < pMap.getCtol()) {
+                if (Math.abs(seg.c - c) < opts.getCtol()) {
                     seg.c = (seg.c * seg.v + c * v) / (seg.v + v);
                     seg.v += v;
                 } else  // Otherwise add a new seg to end of link
@@ -626,6 +640,10 @@ public class QualitySim {
      * @throws IOException
      */
     private void saveFinaloutput(DataOutput outStream) throws IOException {
+        if (outputChunks != null) {
+            outputChunks.finish();
+            outputChunks = null;
+        }
         outStream.writeInt(Nperiods);
     }
 
@@ -655,6 +673,40 @@ public class QualitySim {
 
     }
 
+    /**
+     * Set the initial water volume of a tank, to match a hydraulic simulation that changed the initial level of the
+     * tank. The tank of the network isn't changed.
+     *
+     * @param id Tank id.
+     * @param v0 Initial tank volume [Feet^3].
+     * @throws ENException If the tank is not found.
+     */
+    public void setTankInitialVolume(String id, double v0) throws ENException {
+        for (QualityTank tank : tanks) {
+            if (tank.getNode().getId().equals(id)) {
+                tank.setVolume(v0);
+                return;
+            }
+        }
+        throw new ENException(203);
+    }
+
+    /**
+     * Writes the quality results compressed, in chunks of a number of reported periods.
+     *
+     * @param chunkPeriods Periods of each compressed chunk, 0 to write the periods uncompressed. Chunks are limited to
+     *                     {@link ChunkedRecords#MAX_CHUNK_SIZE} bytes.
+     */
+    public void setOutputCompression(int chunkPeriods) {
+        if (chunkPeriods < 0)
+            throw new IllegalArgumentException("Chunks can't have a negative size");
+        this.outputCompression = chunkPeriods;
+    }
+
+    public int getOutputCompression() {
+        return outputCompression;
+    }
+
     /**
      * Run the water quality simulation.
      *
@@ -680,13 +732,24 @@ public class QualitySim {
     void simulate(File hydFile, OutputStream out) throws IOException, ENException
     {
         DataOutputStream outStream = new DataOutputStream(out);
+        DataOutputStream periodStream = outStream;
+        // Compressed files start with a mark, followed by the usual counts and the periods of each chunk
+        if (outputCompression > 0)
+            outStream.writeInt(QualityReader.COMPRESSED_MARK);
         outStream.writeInt(net.getNodes().size());
         outStream.writeInt(net.getLinks().size());
+        if (outputCompression > 0) {
+            int values = net.getNodes().size() + net.getLinks().size();
+            outputChunks = new ChunkedRecords.Writer(outStream, values * Float.SIZE / 8,
+                    new int[]{values, Float.SIZE / 8}, outputCompression);
+            outStream.writeInt(outputChunks.getChunkRecords());
+            periodStream = new DataOutputStream(outputChunks);
+        }
         long tstep;
         HydraulicReader hydraulicReader = new HydraulicReader(new RandomAccessFile(hydFile, "r"));
         do {
             if (Qtime == Htime)
-                gethyd(outStream, hydraulicReader);
+                gethyd(periodStream, hydraulicReader);
 
 
             tstep = nextqual(outStream);
@@ -717,7 +780,7 @@ public class QualitySim {
 
         Htime += hydStep;
 
-        if (qualflag != PropertiesMap.QualType.NONE && Qtime < pMap.getDuration()){
+        if (qualflag != PropertiesMap.QualType.NONE && Qtime < opts.getDuration()){
             if (Reactflag && qualflag != PropertiesMap.QualType.AGE)
                 ratecoeffs();
 
@@ -810,13 +873,13 @@ public class QualitySim {
 
                 // Update total mass added for time period & simulation
                 qN.setMassRate(qN.getMassRate() + massadded);
-                if (Htime >= pMap.getRstart())
+                if (Htime >= opts.getRstart())
                     Wsource += massadded;
             }
         }
 
         // Add mass inflows from reservoirs to Wsource
-        if (Htime >= pMap.getRstart()) {
+        if (Htime >= opts.getRstart()) {
             for (QualityTank qT : tanks) {
                 if (((Tank) qT.getNode()).getArea() == 0.0) {
                     double volout = qT.getVolumeIn() - qT.getDemand() * dt;
@@ -845,7 +908,7 @@ public class QualitySim {
         Pattern pat = source.getPattern();
         if (pat == null)
             return (c);
-        k = ((Qtime + pMap.getPstart()) / pMap.getPstep()) % (long) pat.getFactorsList().size();
+        k = ((Qtime + opts.getPstart()) / opts.getPstep()) % (long) pat.getFactorsList().size();
         return (c * pat.getFactorsList().get((int) k));
     }
 
@@ -1027,7 +1090,7 @@ public class QualitySim {
                 QualitySegment seg = tank.getSegments().getLast();
 
                 // Quality is the same, so just add flow volume to last seg
-                if (Math.abs(seg.c - cin) < pMap.getCtol())
+                if (Math.abs(seg.c - cin) < opts.getCtol())
                     seg.v += vin;
                 else // Otherwise add a new seg to tank
                     tank.getSegments().add(new QualitySegment(vin, cin));
@@ -1073,7 +1136,7 @@ public class QualitySim {
             if (tank.getSegments().size() > 0) {
                 QualitySegment seg = tank.getSegments().getLast();
                 // Quality is the same, so just add flow volume to last seg
-                if (Math.abs(seg.c - cin) < pMap.getCtol())
+                if (Math.abs(seg.c - cin) < opts.getCtol())
                     seg.v += vnet;
                     // Otherwise add a new last seg to tank
                     // Which points to old last seg
@@ -1133,10 +1196,10 @@ public class QualitySim {
         if (qualflag == PropertiesMap.QualType.AGE)
             return (c + (double) dt / 3600.0);
 
-        rbulk = bulkrate(c, kb, pMap.getTankOrder()) * Tucf;
+        rbulk = bulkrate(c, kb, opts.getTankOrder()) * Tucf;
 
         dc = rbulk * (double) dt;
-        if (Htime >= pMap.getRstart())
+        if (Htime >= opts.getRstart())
             Wtank += Math.abs(dc) * v;
         cnew = c + dc;
         cnew = Math.max(0.0, cnew);
@@ -1149,7 +1212,7 @@ public class QualitySim {
     private void transport(long tstep) throws ENException {
         long qtime = 0, dt;
         while (qtime < tstep) {
-            dt = Math.min(pMap.getQstep(), tstep - qtime);
+            dt = Math.min(opts.getQstep(), tstep - qtime);
             qtime += dt;
             if (Reactflag) updatesegs(dt);
             accumulate(dt);
@@ -1280,7 +1343,7 @@ public class QualitySim {
     private double wallrate(double c, double d, double kw, double kf) throws ENException {
         if (kw == 0.0 || d == 0.0)
             return (0.0);
-        if (pMap.getWallOrder() == 0.0) {
+        if (opts.getWallOrder() == 0.0) {
             kf = Utilities.getSignal(kw) * c * kf;
             kw = kw * Math.pow(elevUnits, 2);
             if (Math.abs(kf) < Math.abs(kw))
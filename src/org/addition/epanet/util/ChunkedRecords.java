@@ -0,0 +1,461 @@
+/*
+ * Copyright (C) 2012  Addition, Lda. (addition at addition dot pt)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package org.addition.epanet.util;
+
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of fixed size records in chunks.
+ * <p/>
+ * Records are grouped in chunks of a fixed number of records. In a chunk each record is replaced by the exclusive or
+ * of its bytes with the bytes of the previous record, so the values that didn't change become zeros, and the bytes
+ * are shuffled so that the same byte of a value is stored together for all the values and records of the chunk.
+ * The chunk is then compressed with Deflate. The record layout is given as pairs of a number of values and their
+ * size in bytes, for the shuffle.
+ * <p/>
+ * Each chunk is written as the number of records, the compressed size and the compressed bytes. A chunk with zero
+ * records ends the chunks and is followed by the index, the position of each chunk relative to the first chunk as
+ * longs, the number of records as a long and the number of chunks as an int. Chunks are read sequentially with
+ * {@link Input} and by record number with {@link Reader}.
+ * <p/>
+ * The records of a chunk take at most {@link #MAX_CHUNK_SIZE} bytes, or one record if it's larger, and the buffers
+ * only grow to the records actually in a chunk, so a large number of records per chunk or a corrupt file don't
+ * allocate more memory than the chunks need.
+ */
+public class ChunkedRecords {
+
+    /**
+     * Maximum size of the records of a chunk, in bytes.
+     */
+    public static final int MAX_CHUNK_SIZE = 1 << 22;
+
+    private ChunkedRecords() {
+    }
+
+    /**
+     * Number of records of the chunks written for a requested number of records, limited to the records that fit in
+     * {@link #MAX_CHUNK_SIZE} bytes.
+     *
+     * @param recordSize   Size of a record, in bytes.
+     * @param chunkRecords Requested number of records in a chunk.
+     * @return Number of records in a chunk.
+     */
+    public static int chunkRecords(int recordSize, int chunkRecords) {
+        return Math.min(chunkRecords, Math.max(1, MAX_CHUNK_SIZE / recordSize));
+    }
+
+    // Checks the number of records in a chunk read from a file, larger chunks are never written
+    private static void checkChunkRecords(int recordSize, int chunkRecords) throws IOException {
+        if (chunkRecords <= 0 || chunkRecords != chunkRecords(recordSize, chunkRecords))
+            throw new IOException("Invalid chunk size");
+    }
+
+    // Grows a buffer to hold at least a number of bytes
+    private static byte[] grow(byte[] buffer, int size) {
+        if (buffer.length >= size)
+            return buffer;
+        return Arrays.copyOf(buffer, Math.max(size, (int) Math.min(Integer.MAX_VALUE, buffer.length * 2L)));
+    }
+
+    // Checks that the values of a layout fill a record
+    private static void checkWords(int recordSize, int[] words) {
+        int size = 0;
+        for (int i = 0; i < words.length; i += 2)
+            size += words[i] * words[i + 1];
+        if (size != recordSize)
+            throw new IllegalArgumentException("Values don't match the record size");
+    }
+
+    // Delta and shuffle the records of a chunk
+    private static void encode(byte[] raw, byte[] out, int records, int recordSize, int[] words) {
+        int o = 0;
+        int start = 0;
+        for (int i = 0; i < words.length; i += 2) {
+            int count = words[i];
+            int width = words[i + 1];
+            for (int j = 0; j < width; j++)
+                for (int r = 0; r < records; r++) {
+                    int p = r * recordSize + start + j;
+                    for (int e = 0; e < count; e++, p += width)
+                        out[o++] = (byte) (r > 0 ? raw[p] ^ raw[p - recordSize] : raw[p]);
+                }
+            start += count * width;
+        }
+    }
+
+    // Restore the records of a chunk from the shuffled deltas
+    private static void decode(byte[] in, byte[] raw, int records, int recordSize, int[] words) {
+        int o = 0;
+        int start = 0;
+        for (int i = 0; i < words.length; i += 2) {
+            int count = words[i];
+            int width = words[i + 1];
+            for (int j = 0; j < width; j++)
+                for (int r = 0; r < records; r++) {
+                    int p = r * recordSize + start + j;
+                    for (int e = 0; e < count; e++, p += width)
+                        raw[p] = in[o++];
+                }
+            start += count * width;
+        }
+        for (int p = recordSize; p < records * recordSize; p++)
+            raw[p] ^= raw[p - recordSize];
+    }
+
+    // Reads and restores chunks, in buffers grown to the records of the chunks
+    private static class Decoder {
+        final int recordSize;
+        final int[] words;
+        final int chunkRecords;
+        final Inflater inflater = new Inflater();
+        byte[] compressed = new byte[0];
+        byte[] shuffled = new byte[0];
+        byte[] raw = new byte[0];
+
+        Decoder(int recordSize, int[] words, int chunkRecords) {
+            this.recordSize = recordSize;
+            this.words = words.clone();
+            this.chunkRecords = chunkRecords;
+        }
+
+        // Reads the next chunk into raw, returns the number of records or zero at the end of the chunks
+        int read(DataInput in, long remaining) throws IOException {
+            int records = in.readInt();
+            if (records == 0)
+                return 0;
+            int size = in.readInt();
+            if (records < 0 || records > chunkRecords || size < 0 || size > remaining)
+                throw new IOException("Invalid chunk");
+            int bytes = records * recordSize;
+            // Deflate never expands the data by more than a few bytes per block
+            if (size > bytes + (bytes >> 8) + 64)
+                throw new IOException("Invalid chunk");
+            compressed = grow(compressed, size);
+            shuffled = grow(shuffled, bytes);
+            raw = grow(raw, bytes);
+            in.readFully(compressed, 0, size);
+
+            inflater.reset();
+            inflater.setInput(compressed, 0, size);
+            int n = 0;
+            try {
+                while (n < bytes && !inflater.finished()) {
+                    int k = inflater.inflate(shuffled, n, bytes - n);
+                    if (k == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                        throw new EOFException("Truncated chunk");
+                    n += k;
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Invalid chunk", e);
+            }
+            if (n != bytes)
+                throw new IOException("Invalid chunk");
+
+            decode(shuffled, raw, records, recordSize, words);
+            return records;
+        }
+    }
+
+    /**
+     * Stream that compresses the records written to it in chunks.
+     */
+    public static class Writer extends OutputStream {
+        private final DataOutput out;
+        private final int recordSize;
+        private final int[] words;
+        private final int chunkRecords;
+        private final int chunkSize;
+        private byte[] raw = new byte[0];
+        private byte[] shuffled = new byte[0];
+        private final Deflater deflater = new Deflater();
+        private byte[] compressed = new byte[1024];
+        private long[] offsets = new long[16];
+        private int chunks;
+        private int filled;
+        private long written;
+        private long records;
+        private boolean finished;
+
+        /**
+         * Creates a writer of compressed records.
+         *
+         * @param out          Output of the chunks.
+         * @param recordSize   Size of a record, in bytes.
+         * @param words        Pairs of the number and size of the values of a record.
+         * @param chunkRecords Number of records in a chunk, limited by {@link #chunkRecords(int, int)}.
+         */
+        public Writer(DataOutput out, int recordSize, int[] words, int chunkRecords) {
+            checkWords(recordSize, words);
+            if (chunkRecords <= 0)
+                throw new IllegalArgumentException("Invalid chunk size");
+            this.out = out;
+            this.recordSize = recordSize;
+            this.words = words.clone();
+            this.chunkRecords = chunkRecords(recordSize, chunkRecords);
+            chunkSize = this.chunkRecords * recordSize;
+        }
+
+        /**
+         * Number of records in a chunk, to be stored with the chunks.
+         */
+        public int getChunkRecords() {
+            return chunkRecords;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (finished)
+                throw new IOException("Records already finished");
+            while (len > 0) {
+                int n = Math.min(len, chunkSize - filled);
+                raw = grow(raw, filled + n);
+                System.arraycopy(b, off, raw, filled, n);
+                filled += n;
+                off += n;
+                len -= n;
+                if (filled == chunkSize)
+                    writeChunk();
+            }
+        }
+
+        // Compresses and writes the buffered records
+        private void writeChunk() throws IOException {
+            int n = filled / recordSize;
+            shuffled = grow(shuffled, filled);
+            encode(raw, shuffled, n, recordSize, words);
+
+            deflater.reset();
+            deflater.setInput(shuffled, 0, filled);
+            deflater.finish();
+            int size = 0;
+            while (!deflater.finished()) {
+                if (size == compressed.length)
+                    compressed = Arrays.copyOf(compressed, compressed.length * 2);
+                size += deflater.deflate(compressed, size, compressed.length - size);
+            }
+
+            if (chunks == offsets.length)
+                offsets = Arrays.copyOf(offsets, chunks * 2);
+            offsets[chunks++] = written;
+            out.writeInt(n);
+            out.writeInt(size);
+            out.write(compressed, 0, size);
+            written += Integer.SIZE * 2 / 8 + size;
+            records += n;
+            filled = 0;
+        }
+
+        /**
+         * Writes the last chunk and the index. The underlying output isn't closed.
+         *
+         * @throws IOException
+         */
+        public void finish() throws IOException {
+            if (finished)
+                return;
+            if (filled % recordSize != 0)
+                throw new IOException("Incomplete record");
+            if (filled > 0)
+                writeChunk();
+            out.writeInt(0);
+            for (int c = 0; c < chunks; c++)
+                out.writeLong(offsets[c]);
+            out.writeLong(records);
+            out.writeInt(chunks);
+            deflater.end();
+            finished = true;
+        }
+
+        /**
+         * Same as {@link #finish()}.
+         */
+        @Override
+        public void close() throws IOException {
+            finish();
+        }
+    }
+
+    /**
+     * Stream of the records of the chunks read sequentially, ends at the end of the chunks.
+     */
+    public static class Input extends InputStream {
+        private final DataInput in;
+        private final Decoder decoder;
+        private int pos;
+        private int limit;
+        private boolean ended;
+
+        /**
+         * Creates a stream over the chunks of an input.
+         *
+         * @param in           Input positioned at the first chunk.
+         * @param recordSize   Size of a record, in bytes.
+         * @param words        Pairs of the number and size of the values of a record.
+         * @param chunkRecords Number of records in a chunk.
+         * @throws IOException If the number of records in a chunk is invalid.
+         */
+        public Input(DataInput in, int recordSize, int[] words, int chunkRecords) throws IOException {
+            checkWords(recordSize, words);
+            checkChunkRecords(recordSize, chunkRecords);
+            this.in = in;
+            decoder = new Decoder(recordSize, words, chunkRecords);
+        }
+
+        // Reads the next chunk, false at the end of the chunks
+        private boolean fill() throws IOException {
+            if (ended)
+                return false;
+            int n = decoder.read(in, Long.MAX_VALUE);
+            if (n == 0) {
+                ended = true;
+                decoder.inflater.end();
+                return false;
+            }
+            pos = 0;
+            limit = n * decoder.recordSize;
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (pos == limit && !fill())
+                return -1;
+            return decoder.raw[pos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (pos == limit && !fill())
+                return -1;
+            int n = Math.min(len, limit - pos);
+            System.arraycopy(decoder.raw, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return limit - pos;
+        }
+
+        /**
+         * Closes the underlying input, if it can be closed.
+         */
+        @Override
+        public void close() throws IOException {
+            if (!ended) {
+                ended = true;
+                decoder.inflater.end();
+            }
+            if (in instanceof Closeable)
+                ((Closeable) in).close();
+        }
+    }
+
+    /**
+     * Random access to the records of the chunks of a file, a chunk is read and decompressed when one of its
+     * records is requested. The last chunk read is kept, in a buffer that is reused by the next chunk read.
+     */
+    public static class Reader extends MappedRecords {
+        private final RandomAccessFile file;
+        private final long offset;
+        private final long[] offsets;
+        private final Decoder decoder;
+        private ByteBuffer cachedChunk;
+        private int cached = -1;
+
+        private Reader(RandomAccessFile file, long offset, int recordSize, int[] words, int chunkRecords,
+                       long count, long[] offsets) {
+            super(null, offset, recordSize, count, chunkRecords * recordSize);
+            this.file = file;
+            this.offset = offset;
+            this.offsets = offsets;
+            decoder = new Decoder(recordSize, words, chunkRecords);
+        }
+
+        /**
+         * Reads the index of the chunks of a file.
+         *
+         * @param file         File.
+         * @param offset       Position of the first chunk.
+         * @param end          Position of the end of the index.
+         * @param recordSize   Size of a record, in bytes.
+         * @param words        Pairs of the number and size of the values of a record.
+         * @param chunkRecords Number of records in a chunk.
+         * @return Reader of the records.
+         * @throws IOException If the index or the number of records in a chunk is invalid.
+         */
+        public static Reader open(RandomAccessFile file, long offset, long end, int recordSize, int[] words,
+                                  int chunkRecords) throws IOException {
+            checkWords(recordSize, words);
+            checkChunkRecords(recordSize, chunkRecords);
+            file.seek(end - Long.SIZE / 8 - Integer.SIZE / 8);
+            long count = file.readLong();
+            int chunks = file.readInt();
+            long indexPos = end - Long.SIZE / 8 - Integer.SIZE / 8 - (long) chunks * Long.SIZE / 8;
+            if (chunks < 0 || count < 0 || indexPos < offset || count > (long) chunks * chunkRecords)
+                throw new IOException("Invalid chunk index");
+            long[] offsets = new long[chunks];
+            file.seek(indexPos);
+            for (int c = 0; c < chunks; c++)
+                offsets[c] = file.readLong();
+            return new Reader(file, offset, recordSize, words, chunkRecords, count, offsets);
+        }
+
+        @Override
+        protected ByteBuffer chunk(int c) throws IOException {
+            if (c != cached) {
+                cached = -1;
+                file.seek(offset + offsets[c]);
+                byte[] raw = decoder.raw;
+                decoder.read(file, file.length() - file.getFilePointer());
+                if (cachedChunk == null || decoder.raw != raw)
+                    cachedChunk = ByteBuffer.wrap(decoder.raw);
+                cached = c;
+            }
+            return cachedChunk;
+        }
+
+        /**
+         * Releases the decompressor, the records can't be read after. The file isn't closed.
+         */
+        @Override
+        public void close() {
+            decoder.inflater.end();
+        }
+    }
+}
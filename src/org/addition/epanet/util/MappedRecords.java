@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2012  Addition, Lda. (addition at addition dot pt)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+
+package org.addition.epanet.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read only memory mapping of the fixed size records of a binary file.
+ * <p/>
+ * A single mapping is limited to 2 GB, so the records are mapped in chunks, each holding a whole number of records
+ * so that no record is split between two chunks. The chunks are mapped when first used and the values are read
+ * from the mapping with the absolute getters of {@link ByteBuffer}, without copying.
+ */
+public class MappedRecords {
+
+    /**
+     * Maximum size of a chunk, in bytes.
+     */
+    public static final int CHUNK_SIZE = 1 << 30;
+
+    private final FileChannel channel;
+    private final long offset;
+    private final int recordSize;
+    private final long count;
+    private final int chunkRecords;
+    private final ByteBuffer[] chunks;
+
+    /**
+     * Maps the records of a file.
+     *
+     * @param channel    File channel, open for reading.
+     * @param offset     Position of the first record in the file.
+     * @param recordSize Size of a record, in bytes.
+     * @param count      Number of records.
+     */
+    public MappedRecords(FileChannel channel, long offset, int recordSize, long count) {
+        this(channel, offset, recordSize, count, CHUNK_SIZE);
+    }
+
+    /**
+     * Maps the records of a file with a given chunk size.
+     *
+     * @param channel    File channel, open for reading.
+     * @param offset     Position of the first record in the file.
+     * @param recordSize Size of a record, in bytes.
+     * @param count      Number of records.
+     * @param chunkSize  Maximum size of a chunk, in bytes, raised to the size of a record if smaller.
+     */
+    public MappedRecords(FileChannel channel, long offset, int recordSize, long count, int chunkSize) {
+        if (recordSize <= 0)
+            throw new IllegalArgumentException("Records must have a positive size");
+        this.channel = channel;
+        this.offset = offset;
+        this.recordSize = recordSize;
+        this.count = count;
+        this.chunkRecords = Math.max(1, chunkSize / recordSize);
+        this.chunks = new ByteBuffer[(int) ((count + chunkRecords - 1) / chunkRecords)];
+    }
+
+    /**
+     * Get the number of records.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Get the number of records in a chunk.
+     */
+    public int getChunkRecords() {
+        return chunkRecords;
+    }
+
+    /**
+     * Get the size of a record, in bytes.
+     */
+    public int getRecordSize() {
+        return recordSize;
+    }
+
+    /**
+     * Get the mapping holding a record.
+     *
+     * @param record Record number.
+     * @return Mapped chunk, the record starts at {@link #position(long)}.
+     * @throws IOException
+     */
+    public ByteBuffer buffer(long record) throws IOException {
+        if (record < 0 || record >= count)
+            throw new IndexOutOfBoundsException("Record " + record + " of " + count);
+        return chunk((int) (record / chunkRecords));
+    }
+
+    /**
+     * Get a chunk of records, mapped when first used.
+     *
+     * @param c Chunk number.
+     * @return Buffer with the records of the chunk.
+     * @throws IOException
+     */
+    protected ByteBuffer chunk(int c) throws IOException {
+        ByteBuffer chunk = chunks[c];
+        if (chunk == null) {
+            long first = (long) c * chunkRecords;
+            long size = Math.min(chunkRecords, count - first) * recordSize;
+            chunk = chunks[c] = channel.map(FileChannel.MapMode.READ_ONLY, offset + first * recordSize, size);
+        }
+        return chunk;
+    }
+
+    /**
+     * Releases the resources held to read the records, the records can't be read after. Mappings are released
+     * by the garbage collector and the channel isn't closed.
+     */
+    public void close() {
+    }
+
+    /**
+     * Get the position of a record in its mapping.
+     *
+     * @param record Record number.
+     * @return Position of the first byte of the record.
+     */
+    public int position(long record) {
+        return (int) (record % chunkRecords) * recordSize;
+    }
+}